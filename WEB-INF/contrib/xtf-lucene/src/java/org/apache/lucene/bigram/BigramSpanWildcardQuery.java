@@ -38,6 +38,11 @@ public class BigramSpanWildcardQuery extends SpanWildcardQuery
     this.stopSet = set;
   }
 
+  /** Get the set of stop words, or null if none was set */
+  public Set getStopWords() {
+    return stopSet;
+  }
+
   protected boolean shouldSkipTerm(Term term) 
   {
     if (stopSet == null)
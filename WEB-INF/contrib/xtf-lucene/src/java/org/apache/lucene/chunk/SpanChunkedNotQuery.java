@@ -123,6 +123,18 @@ public class SpanChunkedNotQuery extends SpanQuery
       {
         if (moreInclude) // move to next include
           moreInclude = includeSpans.next();
+        return scan();
+      }
+
+      /**
+       * Starting with the current include span, scan for one that isn't
+       * excluded. The exclude spans are compared by position across chunk
+       * boundaries, so an include span near the start of a chunk can be
+       * excluded by one at the end of the previous chunk.
+       */
+      private boolean scan()
+        throws IOException 
+      {
         if (firstTime) {
           moreExclude = excludeSpans.next();
           firstTime = false;
@@ -178,26 +190,7 @@ public class SpanChunkedNotQuery extends SpanQuery
         if (!moreInclude)
           return false;
 
-        if (moreExclude // skip exclude
-             &&
-            includeSpans.doc() > excludeSpans.doc())
-          moreExclude = excludeSpans.skipTo(includeSpans.doc());
-
-        while (moreExclude // while exclude is before
-                &&
-               includeSpans.doc() == excludeSpans.doc() &&
-               excludeSpans.end() <= (includeSpans.start() - slop)) 
-        {
-          moreExclude = excludeSpans.next(); // increment exclude
-        }
-
-        if (!moreExclude // if no intersection
-             ||
-            includeSpans.doc() != excludeSpans.doc() ||
-            (includeSpans.end() + slop) <= excludeSpans.start())
-          return true; // we found a match
-
-        return next(); // scan to next match
+        return scan(); // skip any excluded spans
       }
 
       public int doc() {
@@ -0,0 +1,281 @@
+package org.apache.lucene.index;
+
+
+/**
+ * Copyright 2005 The Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.store.Directory;
+
+/**
+ * Reads an index one segment at a time, just like the reader returned by
+ * {@link IndexReader#open(Directory)}, except that it can share the readers
+ * for unchanged segments with a previously opened instance. When an index
+ * is updated incrementally, typically only the last few segments change
+ * (new documents get flushed to new segments, and merges only touch the
+ * small ones), so re-opening the index this way is much quicker than
+ * opening it from scratch.<br><br>
+ *
+ * Shared segment readers are reference-counted, so that closing an old
+ * instance only closes the segments the new one didn't pick up. The reader
+ * is meant for searching only; deleting documents or setting norms through
+ * it would affect every instance sharing the segment.
+ */
+public class SegmentSharingReader extends MultiReader
+{
+  /** How many times to retry if the index changes while we're opening it */
+  private static final int MAX_RETRIES = 10;
+
+  /** The segments that make up this reader, in order */
+  private final Segment[] segments;
+
+  /** Private constructor; use {@link #open(Directory, SegmentSharingReader)} */
+  private SegmentSharingReader(Directory dir, SegmentInfos infos,
+                               Segment[] segments, IndexReader[] readers)
+    throws IOException
+  {
+    super(dir, infos, false, readers);
+    this.segments = segments;
+  }
+
+  /**
+   * Open the current version of the index in the given directory, without
+   * sharing any segments.
+   */
+  public static SegmentSharingReader open(Directory dir)
+    throws IOException
+  {
+    return open(dir, null);
+  }
+
+  /**
+   * Open the current version of the index in the given directory. Any
+   * segments that are unchanged since <code>prev</code> was opened are
+   * shared with it rather than being read again.
+   *
+   * @param dir     Directory containing the index
+   * @param prev    Previously opened reader on the same directory, or null
+   *                to open everything fresh.
+   */
+  public static SegmentSharingReader open(Directory dir,
+                                          SegmentSharingReader prev)
+    throws IOException
+  {
+    for (int attempt = 0; ; attempt++)
+    {
+      String segFile = null;
+      try
+      {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(dir);
+        segFile = infos.getCurrentSegmentFileName();
+        return open(dir, infos, prev);
+      }
+      catch (IOException e)
+      {
+        // A writer may have committed (and merged away segments we were
+        // about to open) while we were reading. If so, try again with the
+        // new version. Otherwise it's a real error.
+        //
+        if (attempt >= MAX_RETRIES)
+          throw e;
+        if (segFile != null &&
+            segFile.equals(SegmentInfos.getCurrentSegmentFileName(dir)))
+          throw e;
+      }
+    }
+  } // open()
+
+  /** Open (or share) a reader for each segment in the given list. */
+  private static SegmentSharingReader open(Directory dir, SegmentInfos infos,
+                                           SegmentSharingReader prev)
+    throws IOException
+  {
+    Segment[] segs = new Segment[infos.size()];
+    IndexReader[] readers = new IndexReader[segs.length];
+    boolean success = false;
+    try
+    {
+      for (int i = 0; i < segs.length; i++)
+      {
+        SegmentInfo info = infos.info(i);
+        String stamp = Segment.calcStamp(info);
+
+        // Pick up the old reader if it's for the very same segment (and it
+        // hasn't been closed in the meantime.)
+        //
+        Segment seg = (prev == null) ? null : prev.findSegment(stamp);
+        if (seg == null || !seg.tryAcquire())
+          seg = new Segment(stamp, SegmentReader.get(info));
+
+        segs[i] = seg;
+        readers[i] = seg.reader;
+      }
+
+      SegmentSharingReader ret =
+        new SegmentSharingReader(dir, infos, segs, readers);
+      success = true;
+      return ret;
+    }
+    finally
+    {
+      // Don't leave files open if we couldn't finish.
+      if (!success) {
+        for (int i = 0; i < segs.length; i++) {
+          if (segs[i] != null)
+            segs[i].release();
+        }
+      }
+    }
+  } // open()
+
+  /** Locate one of our segments by its stamp, or null if not found. */
+  private Segment findSegment(String stamp)
+  {
+    if (stamp == null)
+      return null;
+    for (int i = 0; i < segments.length; i++) {
+      if (stamp.equals(segments[i].stamp))
+        return segments[i];
+    }
+    return null;
+  }
+
+  /** Find out how many segments this reader is made of. */
+  public int nSegments() {
+    return segments.length;
+  }
+
+  /**
+   * Get the reader for one of our segments. Since segments are shared,
+   * the same reader object will be returned by later instances for as long
+   * as the segment is unchanged, so it makes a good key for caching data
+   * calculated per segment.
+   */
+  public IndexReader segmentReader(int n) {
+    return segments[n].reader;
+  }
+
+  /**
+   * Find out how many of our segments are shared with another reader.
+   */
+  public int sharedSegments(SegmentSharingReader other)
+  {
+    int count = 0;
+    for (int i = 0; i < segments.length; i++) {
+      for (int j = 0; j < other.segments.length; j++) {
+        if (segments[i] == other.segments[j])
+          count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Determine how many documents at the start of this reader are numbered
+   * identically in another reader, because they come from a run of leading
+   * segments the two share. Data calculated per document for those docs
+   * can be carried over from one reader to the other.
+   */
+  public int sharedDocs(SegmentSharingReader other)
+  {
+    int nDocs = 0;
+    for (int i = 0; i < segments.length && i < other.segments.length; i++) {
+      if (segments[i] != other.segments[i])
+        break;
+      nDocs += segments[i].reader.maxDoc();
+    }
+    return nDocs;
+  }
+
+  /** Release our segments, closing those that no other reader shares. */
+  protected synchronized void doClose()
+    throws IOException
+  {
+    IOException err = null;
+    for (int i = 0; i < segments.length; i++)
+    {
+      try {
+        segments[i].release();
+      }
+      catch (IOException e) {
+        if (err == null)
+          err = e;
+      }
+    }
+    if (err != null)
+      throw err;
+  } // doClose()
+
+  /** A reader on one segment, possibly shared among several instances. */
+  private static class Segment
+  {
+    /** Identifies the exact version of the segment, or null to never share */
+    final String stamp;
+
+    /** Reader for the segment */
+    final SegmentReader reader;
+
+    /** Number of SegmentSharingReaders using it; closed when it hits 0 */
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    Segment(String stamp, SegmentReader reader) {
+      this.stamp = stamp;
+      this.reader = reader;
+    }
+
+    /**
+     * Compute a stamp that changes whenever the segment does. Segment names
+     * are never re-used by a writer, but the deletions on a segment can
+     * change, and an index re-created from scratch starts the names over.
+     * So we go by the name, the deletions file, and the size and date of the
+     * main segment file. Segments with separate norms are never shared.
+     */
+    static String calcStamp(SegmentInfo info)
+      throws IOException
+    {
+      if (info.hasSeparateNorms())
+        return null;
+      String mainFile = info.name +
+                        (info.getUseCompoundFile() ? ".cfs" : ".fnm");
+      return info.name + "|" + info.docCount + "|" + info.getDelFileName() +
+             "|" + info.dir.fileLength(mainFile) +
+             "|" + info.dir.fileModified(mainFile);
+    }
+
+    /** Add a reference, unless the reader has already been closed. */
+    boolean tryAcquire()
+    {
+      while (true)
+      {
+        int count = refCount.get();
+        if (count <= 0)
+          return false;
+        if (refCount.compareAndSet(count, count + 1))
+          return true;
+      }
+    }
+
+    /** Drop a reference, closing the reader when the last one goes. */
+    void release()
+      throws IOException
+    {
+      if (refCount.decrementAndGet() == 0)
+        reader.close();
+    }
+  } // class Segment
+} // class SegmentSharingReader
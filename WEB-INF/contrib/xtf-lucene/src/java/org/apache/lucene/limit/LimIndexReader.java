@@ -54,6 +54,15 @@ public class LimIndexReader extends IndexReader
     this.workLimit = workLimit;
   }
 
+  /**
+   * Get the reader being wrapped. Useful for looking up data cached per
+   * reader, which would otherwise be missed since each query gets its own
+   * wrapper.
+   */
+  public IndexReader getWrappedReader() {
+    return wrapped;
+  }
+
   /**
    * Called by LimTermDocs and LimTermPositions to notify us that a certain
    * amount of work has been done. We check the limit, and if exceeded, throw
@@ -60,6 +60,23 @@ public class RecordingSearcher extends IndexSearcher
    */
   public void search(Query query, Filter filter, final SpanHitCollector results)
     throws IOException 
+  {
+    search(query, filter, results, 0, Integer.MAX_VALUE);
+  }
+
+  /** Lower-level search API which supports span collection, and only
+   * considers a range of document numbers. Several ranges may be searched
+   * at the same time on different threads.
+   *
+   * <p>{@link SpanHitCollector#collect(int,float,FieldSpanSource)} is called
+   * for every non-zero scoring document which matches the filter and whose
+   * number is at least <code>startDoc</code> and less than 
+   * <code>endDoc</code>. The query's scorers must support
+   * {@link Scorer#skipTo(int)} if <code>startDoc</code> is non-zero.
+   */
+  public void search(Query query, Filter filter, final SpanHitCollector results,
+                     int startDoc, int endDoc)
+    throws IOException 
   {
     SpanHitCollector collector = results;
     if (filter != null) 
@@ -95,9 +112,14 @@ public class RecordingSearcher extends IndexSearcher
       return;
     FieldSpanSource spanSource = new FieldSpanSource(recordingScorers);
 
+    // Skip to the start of our range.
+    boolean more = (startDoc > 0) ? scorer.skipTo(startDoc) : scorer.next();
+
     // Now process all the documents and collect them and their spans.
-    while (scorer.next()) {
+    for (; more; more = scorer.next()) {
       int doc = scorer.doc();
+      if (doc >= endDoc)
+        break;
       spanSource.curDoc = doc;
       float score = scorer.score(); // must call before recordSpans()
       collector.collect(doc, score, spanSource);
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.Vector;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.limit.TermLimitException;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Searcher;
@@ -63,7 +64,7 @@ public class SpanWildcardQuery extends SpanTermQuery
     StringBuffer termReport = new StringBuffer(100);
 
     // Enumerate all the matching terms, and make a SpanTermQuery for each one.
-    WildcardTermEnum enumerator = new WildcardTermEnum(reader, getTerm());
+    TermEnum enumerator = getTermEnum(reader);
     Vector termQueries = new Vector();
     try 
     {
@@ -79,7 +80,10 @@ public class SpanWildcardQuery extends SpanTermQuery
 
           // Found a match
           SpanTermQuery tq = new SpanTermQuery(t);
-          tq.setBoost(getBoost() * enumerator.difference()); // set the boost
+          if (enumerator instanceof WildcardTermEnum)
+            tq.setBoost(getBoost() * ((WildcardTermEnum)enumerator).difference()); // set the boost
+          else
+            tq.setBoost(getBoost());
           termQueries.add(tq);
 
           if (nTerms < TERMS_TO_REPORT) {
@@ -109,6 +113,17 @@ public class SpanWildcardQuery extends SpanTermQuery
     return orQuery;
   }
 
+  /** Get an enumeration of the terms matching the wildcard pattern, positioned
+   *  at the first match (if any.) Derived classes may supply a faster way of
+   *  finding them. Default implementation scans the term dictionary from the 
+   *  pattern's literal prefix.
+   */
+  protected TermEnum getTermEnum(IndexReader reader)
+    throws IOException 
+  {
+    return new WildcardTermEnum(reader, getTerm());
+  }
+
   /** Enables derived classes to skip certain terms in the index (e.g. stop
    * words, bi-grams, etc.) Default implementation doesn't skip any terms.
    */
@@ -91,7 +91,7 @@ public class SpellKeywordTest
 
     // Create a query processor, and open the index.
     indexDir = Path.resolveRelOrAbs(new File(".").getAbsoluteFile(), "index");
-    XtfSearcher searcher = new XtfSearcher(indexDir, 30);
+    XtfSearcher searcher = new XtfSearcher(indexDir);
 
     // Attach a debug stream to the spell reader.
     SpellReader spellReader = searcher.spellReader();
@@ -35,7 +35,7 @@ import org.apache.lucene.util.LongList;
  *
  * @author Martin Haye
  */
-class FreqData 
+class FreqData implements FreqTable
 {
   /** List of keys */
   private LongList keys = new LongList();
@@ -227,8 +227,12 @@ class FreqData
     }
   }
 
-  /** If not already sorted, re-sort the data */
-  private void sort() 
+  /**
+   * If not already sorted, re-sort the data. Once sorted (and as long as
+   * nothing else is added), {@link #get(long)} changes nothing, so any
+   * number of threads may call it at once.
+   */
+  void sort() 
   {
     // Already sorted, or no data? Forget it.
     if (sortTop == keys.size())
@@ -0,0 +1,33 @@
+package org.apache.lucene.spelt;
+
+/**
+ * Copyright 2006-2007 The Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Lookup of word or pair counts, whether they're held in memory
+ * ({@link FreqData}) or mapped from disk ({@link MappedFreqData}).
+ */
+interface FreqTable
+{
+  /** Get the count for a given word, or zero if not found */
+  int get(String word);
+
+  /** Get the count for a given word pair, or zero if not found */
+  int get(String word1, String word2);
+
+  /** Get the count for a given hash code, or zero if not found */
+  int get(long hash);
+} // interface FreqTable
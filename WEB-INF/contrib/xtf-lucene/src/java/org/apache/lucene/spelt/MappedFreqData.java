@@ -0,0 +1,105 @@
+package org.apache.lucene.spelt;
+
+/**
+ * Copyright 2006-2007 The Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.lucene.util.Hash64;
+
+/**
+ * Read-only access to frequency data saved by {@link FreqData#save(File)}.
+ * Rather than loading the counts into memory, the file is memory-mapped and
+ * searched in place, so opening is nearly instant and any number of threads
+ * can look up counts at the same time.
+ */
+class MappedFreqData implements FreqTable
+{
+  /** Size of the header: magic number and count */
+  private static final int HEADER_SIZE = 8 + 4;
+
+  /** Size of each entry: hash key and count */
+  private static final int ENTRY_SIZE = 8 + 4;
+
+  /** The mapped file. Only absolute reads are used, so it can be shared. */
+  private ByteBuffer buf;
+
+  /** Number of entries in the file */
+  private int nEntries;
+
+  /** Map the given frequency file */
+  public MappedFreqData(File f)
+    throws IOException
+  {
+    RandomAccessFile file = new RandomAccessFile(f, "r");
+    try
+    {
+      long length = file.length();
+      if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+        throw new IOException("unrecognized format of frequency data");
+
+      // The mapping stays valid after the file is closed.
+      buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+    finally {
+      file.close();
+    }
+
+    // Check the magic number and entry count.
+    if (buf.getLong(0) != FreqData.MAGIC_NUM)
+      throw new IOException("unrecognized format of frequency data");
+    nEntries = buf.getInt(8);
+    if (nEntries < 0 ||
+        HEADER_SIZE + ((long)nEntries * ENTRY_SIZE) > buf.capacity())
+      throw new IOException("frequency data file is corrupted");
+  }
+
+  /** Get the count for a given word, or zero if not found */
+  public final int get(String word) {
+    return get(Hash64.hash(word));
+  }
+
+  /** Get the count for a given word pair, or zero if not found */
+  public final int get(String word1, String word2) {
+    return get(Hash64.hash(word1, word2));
+  }
+
+  /** Get the count for a given hash code, or zero if not found */
+  public final int get(long hash)
+  {
+    // The entries were saved in ascending key order, so binary search works.
+    int low = 0;
+    int high = nEntries - 1;
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+      int pos = HEADER_SIZE + (mid * ENTRY_SIZE);
+      long probe = buf.getLong(pos);
+
+      if (probe < hash)
+        low = mid + 1;
+      else if (probe > hash)
+        high = mid - 1;
+      else
+        return buf.getInt(pos + 8);
+    }
+
+    return 0;
+  }
+} // class MappedFreqData
@@ -30,9 +30,10 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -56,6 +57,12 @@ import org.apache.lucene.util.StringUtil;
  *   <li>When done with all queries, {@linkplain #close()} the reader.
  * </ol>
  * <p>
+ * A single reader may be used by any number of threads at once. The edit
+ * map and pair frequency files are memory-mapped rather than read through
+ * a shared file pointer, and the results of recent suggestions are kept
+ * so that a popular misspelling is only worked out once.
+ * </p>
+ * <p>
  * Inspired by and very distantly based on Nicolas Maisonneuve / David Spencer 
  * code.
  * </p>
@@ -64,23 +71,39 @@ import org.apache.lucene.util.StringUtil;
  */
 public class SpellReader 
 {
-  /** Keys in the edit map file */
+  /** Keys in the edit map file (text format only) */
   private IntList edMapKeys;
 
-  /** Positions in the edit map file */
+  /** Positions in the edit map file (text format only) */
   private IntList edMapPosns;
 
-  /** File for reading edit map entries */
-  private RandomAccessFile edMapFile;
+  /** True if the dictionary is in the binary format (version 2 and up) */
+  private boolean binaryFormat;
+
+  /** Number of keys in the binary edit map */
+  private int edMapNKeys;
 
-  /** Charset decoder for reading edit map entries */
-  private CharsetDecoder edMapDecoder;
+  /** Position of the key index within the binary edit map */
+  private int edMapIndexPos;
+
+  /** 
+   * Memory-mapped edit map file. We only use absolute reads on it, so it
+   * can be shared by all threads.
+   */
+  private ByteBuffer edMap;
+
+  /** Space for decoding edit map entries, allocated once per thread */
+  private final ThreadLocal edMapScratch = new ThreadLocal() {
+    protected Object initialValue() {
+      return new EdMapScratch();
+    }
+  };
 
   /** Pair frequency data */
-  private FreqData pairFreqs;
+  private MappedFreqData pairFreqs;
 
   /** Word frequency data */
-  private FreqData wordFreqs;
+  private FreqTable wordFreqs;
 
   /** Frequencies from the term data, sampled at 5 levels */
   private int[] freqSamples;
@@ -96,6 +119,21 @@ public class SpellReader
 
   /** Word equivalency checker */
   private WordEquiv wordEquiv;
+
+  /** Max number of recent suggestions to keep */
+  private static final int SUGG_CACHE_SIZE = 1000;
+
+  /** Recent suggestions, least recently used first */
+  private final LinkedHashMap suggCache = 
+    new LinkedHashMap(SUGG_CACHE_SIZE, 0.75f, true) 
+  {
+    protected boolean removeEldestEntry(Map.Entry eldest) {
+      return size() > SUGG_CACHE_SIZE;
+    }
+  };
+
+  /** Stands in for a null result in {@link #suggCache} */
+  private static final String[] NO_SUGGESTION = new String[0];
   
   /** Private constructor -- use {@link #open(File)} instead. */
   private SpellReader() {
@@ -140,6 +178,7 @@ public class SpellReader
    */
   public void setStopwords(Set set) {
     this.stopSet = set;
+    clearSuggCache();
   }
 
   /**
@@ -153,12 +192,20 @@ public class SpellReader
    */
   public void setWordEquiv(WordEquiv eq) {
     this.wordEquiv = eq;
+    clearSuggCache();
   }
 
   /** Read the index for the edit map file */ 
   private void openEdmap(File spellDir)
     throws IOException 
   {
+    // Newer dictionaries have a binary edit map; no need to read an index.
+    File binFile = new File(spellDir, "edmap.bin");
+    if (binFile.canRead()) {
+      openBinaryEdmap(binFile);
+      return;
+    }
+
     long startTime = System.currentTimeMillis();
     File file = new File(spellDir, "edmap.dat");
 
@@ -225,13 +272,17 @@ public class SpellReader
       throw new IOException("edmap file corrupt");
     }
 
-    // Make a charset decoder that will be used to decode the UTF-8 data
-    edMapDecoder = Charset.forName("UTF-8").newDecoder();
-
-    // Finally, open a random-access version of the file for the actual
-    // spellcheck process.
+    // Finally, map the file for the actual spellcheck process. The mapping
+    // remains valid after the file is closed.
     //
-    edMapFile = new RandomAccessFile(file, "r");
+    RandomAccessFile edMapFile = new RandomAccessFile(file, "r");
+    try {
+      edMap = edMapFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 
+                                         0, edMapFile.length());
+    }
+    finally {
+      edMapFile.close();
+    }
 
     // Print stats
     if (debugWriter != null) {
@@ -241,27 +292,106 @@ public class SpellReader
     }
   }
 
-  /** Closes any open files and/or resources associated with the SpellReader */
-  public void close()
+  /** 
+   * Map a binary edit map file. Its fixed-width index is searched right in
+   * the mapped file, so there's nothing to load.
+   */
+  private void openBinaryEdmap(File file)
     throws IOException 
   {
-    if (edMapFile != null) {
+    RandomAccessFile edMapFile = new RandomAccessFile(file, "r");
+    try 
+    {
+      long length = edMapFile.length();
+      if (length < SpellWriter.EDMAP_HEADER_SIZE || length > Integer.MAX_VALUE)
+        throw new IOException("edmap file corrupt");
+      edMap = edMapFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 
+                                         0, length);
+    }
+    finally {
       edMapFile.close();
-      edMapFile = null;
     }
+
+    // Check the header
+    if (edMap.getLong(0) != SpellWriter.EDMAP_MAGIC)
+      throw new IOException("edmap file corrupt");
+    if (edMap.getInt(8) != SpellWriter.FORMAT_VERSION)
+      throw new IOException("unsupported edmap file version");
+    edMapNKeys = edMap.getInt(12);
+    edMapIndexPos = edMap.getInt(16);
+    if (edMapNKeys < 0 || edMapIndexPos < SpellWriter.EDMAP_HEADER_SIZE ||
+        edMapIndexPos + (edMapNKeys * 8L) != edMap.capacity())
+      throw new IOException("edmap file index truncated");
+
+    binaryFormat = true;
+    if (debugWriter != null)
+      debugWriter.println("  nKeys: " + edMapNKeys);
+  }
+
+  /** Closes any open files and/or resources associated with the SpellReader */
+  public void close()
+    throws IOException 
+  {
+    // The mapped files are released when garbage collected.
+    edMap = null;
+    pairFreqs = null;
+    clearSuggCache();
   }
 
-  /** Establishes a destination for detailed debugging output */
+  /** 
+   * Establishes a destination for detailed debugging output. While it's
+   * set, recent suggestions aren't re-used (so the details always get
+   * printed.)
+   */
   public void setDebugWriter(PrintWriter w) {
     debugWriter = w;
   }
-  
-  private static String rtrim(String s) {
-    int i = s.length()-1;
-    while (i >= 0 && Character.isWhitespace(s.charAt(i))) {
-        i--;
+
+  /** Forget all recent suggestions */
+  private void clearSuggCache() 
+  {
+    synchronized (suggCache) {
+      suggCache.clear();
     }
-    return s.substring(0, i+1);
+  }
+
+  /** 
+   * Look up a recent suggestion.
+   *
+   * @return the suggestion, {@link #NO_SUGGESTION} if the result was null,
+   *         or null if not found.
+   */
+  private String[] getCachedSugg(String key)
+  {
+    if (debugWriter != null)
+      return null;
+    String[] ret;
+    synchronized (suggCache) {
+      ret = (String[])suggCache.get(key);
+    }
+    if (ret == null || ret == NO_SUGGESTION)
+      return ret;
+    return (String[])ret.clone(); // caller is free to change it
+  }
+
+  /** Record a suggestion for later re-use */
+  private void putCachedSugg(String key, String[] sugg)
+  {
+    sugg = (sugg == null) ? NO_SUGGESTION : (String[])sugg.clone();
+    synchronized (suggCache) {
+      suggCache.put(key, sugg);
+    }
+  }
+
+  /** 
+   * Find where the next token in the given edit map data ends, i.e. at
+   * the next bar or newline (or the end of the data.)
+   */
+  private static int nextBreak(char[] chars, int pos, int end) 
+  {
+    while (pos < end && chars[pos] != '|' && chars[pos] != '\n')
+      pos++;
+    return pos;
   }
 
   /**
@@ -278,50 +408,63 @@ public class SpellReader
                             WordQueue queue)
     throws IOException 
   {
+    if (binaryFormat)
+      return readBinaryEdKey(orig, key, minFreq, checked, queue);
+
     // Look up this key in our index.
     int idxNum = edMapKeys.binarySearch(key);
     if (idxNum < 0)
       return false;
 
-    // Read in the corresponding chunk of data
+    // Decode the corresponding chunk of UTF-8 data, into space reserved
+    // for this thread.
+    //
     int startPos = edMapPosns.get(idxNum);
     int endPos = edMapPosns.get(idxNum + 1);
-    byte[] bytes = new byte[endPos - startPos];
-    edMapFile.seek(startPos);
-    if (edMapFile.read(bytes) != bytes.length)
-      throw new IOException("error reading from edMap file");
+    EdMapScratch scratch = (EdMapScratch)edMapScratch.get();
+    char[] chars = scratch.decode(edMap, startPos, endPos);
 
-    // Decode the string data from UTF-8
-    //
     // MH 2013-12-05: Do not trim the left side of the string, because some valid keys 
     // begin with a space character, e.g. the (&127) encoding for certain Unicode chars.
     //
-    String line = rtrim(edMapDecoder.decode(ByteBuffer.wrap(bytes)).toString());
-
-    // Break up all the tokens, and validate the amount.
-    String[] tokens = splitPat.split(line);
-    if (tokens.length < 2)
-      throw new IOException("edmap file corrupt");
+    int nChars = scratch.nChars;
+    while (nChars > 0 && Character.isWhitespace(chars[nChars - 1]))
+      nChars--;
 
     // Make sure we got the right key!
-    if (key != comboKey(tokens[0], 0, 1, 2, 3))
+    int keyEnd = nextBreak(chars, 0, nChars);
+    if (keyEnd == nChars)
+      throw new IOException("edmap file corrupt");
+    if (key != comboKey(chars, keyEnd, 0, 1, 2, 3))
       throw new IOException("edmap index incorrect");
     
-    // Record each word in the list (and their frequencies)
-    String prev = null;
-    for (int j = 1; j < tokens.length; j++) 
+    // Record each word in the list (and their frequencies). The words are
+    // built up in place, and only turned into strings if they make the cut.
+    //
+    char[] word = scratch.word;
+    int wordLen = -1;
+    for (int pos = keyEnd + 1, end; pos < nChars; pos = end + 1) 
     {
-      String word = tokens[j];
+      end = nextBreak(chars, pos, nChars);
+      if (end == pos)
+        continue;
 
       // Handle prefix compression
-      if (prev != null) {
-        int overlap = word.charAt(0) - '0';
-        word = prev.substring(0, overlap) + word.substring(1);
+      int overlap = 0;
+      int suffix = pos;
+      if (wordLen >= 0) {
+        overlap = chars[pos] - '0';
+        if (overlap < 0 || overlap > wordLen)
+          throw new IOException("edmap file corrupt");
+        suffix++;
       }
-      prev = word;
+      wordLen = overlap + (end - suffix);
+      if (wordLen > word.length)
+        word = scratch.growWord(wordLen);
+      System.arraycopy(chars, suffix, word, overlap, end - suffix);
 
       // Don't consider any word twice.
-      long hash = Hash64.hash(word);
+      long hash = Hash64.hash(word, 0, wordLen);
       if (checked.contains(hash))
         continue;
       checked.add(hash);
@@ -337,11 +480,91 @@ public class SpellReader
       // but it does eliminate certain distant suggestions way down the
       // list.
       //
-      if (orig.wordDist(word) > 4)
+      if (orig.wordDist(word, wordLen) > 4)
+        continue;
+
+      // Add the new word to the queue.
+      Word w = new Word(orig, new String(word, 0, wordLen), freq);
+      queue.insert(w);
+    }
+
+    // All done.
+    return true;
+  }
+
+  /**
+   * Read the list of edit-map words for the given key, from a binary
+   * edit map. Parameters and result are the same as
+   * {@link #readEdKey(Word, int, int, LongSet, WordQueue)}.
+   */
+  private boolean readBinaryEdKey(Word orig, int key, int minFreq, 
+                                  LongSet checked, WordQueue queue)
+    throws IOException 
+  {
+    // Binary search the index for this key.
+    ByteBuffer map = edMap;
+    int low = 0;
+    int high = edMapNKeys - 1;
+    int blockPos = -1;
+    while (low <= high) 
+    {
+      int mid = (low + high) >>> 1;
+      int probe = map.getInt(edMapIndexPos + (mid * 8));
+      if (probe < key)
+        low = mid + 1;
+      else if (probe > key)
+        high = mid - 1;
+      else {
+        blockPos = map.getInt(edMapIndexPos + (mid * 8) + 4);
+        break;
+      }
+    }
+    if (blockPos < 0)
+      return false;
+
+    // Record each word in the list. Each shares a prefix with the one
+    // before, and is followed by its frequency. The words are built up in
+    // place, and only turned into strings if they make the cut.
+    //
+    EdMapScratch scratch = (EdMapScratch)edMapScratch.get();
+    scratch.pos = blockPos;
+    int nWords = scratch.readVInt(map);
+    char[] word = scratch.word;
+    int wordLen = 0;
+    for (int i = 0; i < nWords; i++)
+    {
+      int lens = map.get(scratch.pos++) & 0xff;
+      int shared = lens >> 4;
+      if (shared == 15)
+        shared += scratch.readVInt(map);
+      int suffixLen = lens & 0x0f;
+      if (suffixLen == 15)
+        suffixLen += scratch.readVInt(map);
+      if (shared > wordLen)
+        throw new IOException("edmap file corrupt");
+      wordLen = shared + suffixLen;
+      if (wordLen > word.length)
+        word = scratch.growWord(wordLen);
+      for (int j = shared; j < wordLen; j++)
+        word[j] = (char)scratch.readVInt(map);
+      int freq = scratch.readVInt(map);
+
+      // Don't consider any word twice.
+      long hash = Hash64.hash(word, 0, wordLen);
+      if (checked.contains(hash))
+        continue;
+      checked.add(hash);
+
+      // If the frequency is too low, skip it.
+      if (freq < minFreq)
+        continue;
+
+      // Skip suggestions too distant from the original (see readEdKey)
+      if (orig.wordDist(word, wordLen) > 4)
         continue;
 
       // Add the new word to the queue.
-      Word w = new Word(orig, word, freq);
+      Word w = new Word(orig, new String(word, 0, wordLen), freq);
       queue.insert(w);
     }
 
@@ -395,6 +618,23 @@ public class SpellReader
     return (ch[0] << 24) | (ch[1] << 16) | (ch[2] << 8) | (ch[3] << 0);
   }
 
+  /**
+   * Calculate a four letter key from the characters at the given positions
+   * of a word held in a character array.
+   */
+  private int comboKey(char[] word, int length, 
+                       int p0, int p1, int p2, int p3) 
+  {
+    return (comboCharAt(word, length, p0) << 24) | 
+           (comboCharAt(word, length, p1) << 16) | 
+           (comboCharAt(word, length, p2) << 8) | 
+           (comboCharAt(word, length, p3) << 0);
+  }
+
+  private int comboCharAt(char[] word, int length, int pos) {
+    return (length > pos) ? comboChar(word[pos]) : ' ';
+  }
+
   private int comboChar(int c) {
     if (c >= 0x20 && (c & ~0x7f) == 0)
       return c;
@@ -413,9 +653,17 @@ public class SpellReader
    * Suggest similar words to a given original word, but not including the
    * word itself.
    */
-  public synchronized String[] suggestSimilar(String str, int numSugg)
+  public String[] suggestSimilar(String str, int numSugg)
     throws IOException 
   {
+    // If we've made this suggestion recently, there's no need to work it
+    // out again.
+    //
+    String cacheKey = "S" + numSugg + "|" + str;
+    String[] cached = getCachedSugg(cacheKey);
+    if (cached != null)
+      return cached;
+
     // Get suggestions, including the original word
     Word[] suggs = suggestSimilar(new Word(str), numSugg + 1, 1);
 
@@ -426,7 +674,9 @@ public class SpellReader
         continue;
       out.add(suggs[i].word);
     }
-    return out.toArray(new String[out.size()]);
+    String[] ret = out.toArray(new String[out.size()]);
+    putCachedSugg(cacheKey, ret);
+    return ret;
   }
 
   /**
@@ -481,13 +731,34 @@ public class SpellReader
    *                        If the array returned is null, there were
    *                        no suggestions at all.
    */
-  public synchronized String[] suggestKeywords(String[] terms)
+  public String[] suggestKeywords(String[] terms)
     throws IOException 
   {
     // No terms? Then we can't suggest anything.
     if (terms.length == 0)
       return null;
 
+    // If we've seen this query recently, there's no need to work it out
+    // again.
+    //
+    StringBuffer buf = new StringBuffer("K");
+    for (int i = 0; i < terms.length; i++)
+      buf.append('|').append(terms[i]);
+    String cacheKey = buf.toString();
+    String[] cached = getCachedSugg(cacheKey);
+    if (cached == NO_SUGGESTION)
+      return null;
+    if (cached != null)
+      return cached;
+    String[] ret = calcSuggestKeywords(terms);
+    putCachedSugg(cacheKey, ret);
+    return ret;
+  }
+
+  /** Does the work of {@link #suggestKeywords(String[])} */
+  private String[] calcSuggestKeywords(String[] terms)
+    throws IOException 
+  {
     // Must have already opened frequency data file.
     assert pairFreqs != null;
 
@@ -550,7 +821,7 @@ public class SpellReader
     if (!anyChange)
       return null;
     return out;
-  } // suggestKeywords()
+  } // calcSuggestKeywords()
 
   /**
    * Substitute a single word at the given position, trying to improve the score.
@@ -918,15 +1189,25 @@ public class SpellReader
   private void loadWordFreqs(File spellDir)
     throws IOException 
   {
+    // Newer dictionaries have frequencies by hash code, ready to map.
+    File hashFile = new File(spellDir, "wordFreqs.dat");
+    if (hashFile.canRead()) {
+      wordFreqs = new MappedFreqData(hashFile);
+      return;
+    }
+
     // Find the word frequency file and open it
     File freqFile = new File(spellDir, "words.dat");
     if (!freqFile.canRead())
       throw new IOException("Cannot open word frequency file '" + freqFile +
                             "'");
 
-    // Read in each word and its frequency.
-    wordFreqs = new FreqData();
-    BufferedReader reader = new BufferedReader(new FileReader(freqFile));
+    // Read in each word and its frequency. The file is UTF-8, like the 
+    // edit map (and as SpellWriter reads it when converting.)
+    //
+    FreqData freqs = new FreqData();
+    BufferedReader reader = new BufferedReader(
+      new InputStreamReader(new FileInputStream(freqFile), "UTF-8"));
     try 
     {
       while (true) {
@@ -936,7 +1217,7 @@ public class SpellReader
         String[] toks = splitPat.split(line);
         String word = toks[0];
         int freq = Integer.parseInt(toks[1]);
-        wordFreqs.add(word, freq);
+        freqs.add(word, freq);
       }
     }
     catch (NumberFormatException e) {
@@ -945,15 +1226,19 @@ public class SpellReader
     finally {
       reader.close();
     }
+
+    // Sort now, so that lookups never change anything and are thus safe
+    // for many threads to do at once.
+    //
+    freqs.sort();
+    wordFreqs = freqs;
   }
 
   private void openPairFreqs(File spellDir)
     throws IOException 
   {
-    if (pairFreqs == null) {
-      pairFreqs = new FreqData();
-      pairFreqs.add(new File(spellDir, "pairs.dat"));
-    }
+    if (pairFreqs == null)
+      pairFreqs = new MappedFreqData(new File(spellDir, "pairs.dat"));
   }
 
   protected void finalize()
@@ -1043,6 +1328,12 @@ public class SpellReader
       return wordDist.getDistance(other);
     }
 
+    public int wordDist(char[] other, int length) {
+      if (wordDist == null)
+        wordDist = new TRStringDistance2(word);
+      return wordDist.getDistance(other, length);
+    }
+
     public int mphDist(String other) {
       if (mphDist == null)
         mphDist = new TRStringDistance2(metaphone);
@@ -1126,6 +1417,110 @@ public class SpellReader
     }
   }
 
+  /**
+   * Space for decoding edit map entries. Each thread gets its own, and
+   * re-uses it for every lookup.
+   */
+  private static final class EdMapScratch
+  {
+    /** Decoded characters */
+    char[] chars = new char[1024];
+
+    /** Number of valid characters in {@link #chars} */
+    int nChars;
+
+    /** Space for building up a word */
+    char[] word = new char[64];
+
+    /** Current position when reading from a binary edit map */
+    int pos;
+
+    /** Read a variable-length int from a binary edit map, at {@link #pos} */
+    int readVInt(ByteBuffer buf)
+    {
+      int val = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = buf.get(pos++);
+        val |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          return val;
+      }
+    }
+
+    /** Make {@link #word} bigger, keeping its contents */
+    char[] growWord(int minLength) 
+    {
+      char[] newWord = new char[Math.max(minLength, word.length * 2)];
+      System.arraycopy(word, 0, newWord, 0, word.length);
+      word = newWord;
+      return word;
+    }
+
+    /**
+     * Decode UTF-8 data from part of a buffer into {@link #chars}, using
+     * only absolute reads.
+     *
+     * @return the decoded characters
+     */
+    char[] decode(ByteBuffer buf, int start, int end)
+      throws IOException 
+    {
+      // UTF-8 never takes fewer bytes than the chars it decodes to.
+      if (chars.length < end - start)
+        chars = new char[end - start];
+
+      int n = 0;
+      int pos = start;
+      while (pos < end) 
+      {
+        int b = buf.get(pos++) & 0xff;
+        if (b < 0x80) {
+          chars[n++] = (char)b;
+          continue;
+        }
+
+        // Figure out how long the sequence is, and gather its bits.
+        int nMore;
+        int code;
+        if ((b & 0xe0) == 0xc0) {
+          nMore = 1;
+          code = b & 0x1f;
+        }
+        else if ((b & 0xf0) == 0xe0) {
+          nMore = 2;
+          code = b & 0x0f;
+        }
+        else if ((b & 0xf8) == 0xf0) {
+          nMore = 3;
+          code = b & 0x07;
+        }
+        else
+          throw new IOException("edmap file corrupt");
+
+        if (pos + nMore > end)
+          throw new IOException("edmap file corrupt");
+        for (int i = 0; i < nMore; i++) {
+          b = buf.get(pos++) & 0xff;
+          if ((b & 0xc0) != 0x80)
+            throw new IOException("edmap file corrupt");
+          code = (code << 6) | (b & 0x3f);
+        }
+
+        // Characters outside the basic plane need a surrogate pair.
+        if (code >= 0x10000) {
+          code -= 0x10000;
+          chars[n++] = (char)(0xd800 + (code >> 10));
+          chars[n++] = (char)(0xdc00 + (code & 0x3ff));
+        }
+        else
+          chars[n++] = (char)code;
+      }
+
+      nChars = n;
+      return chars;
+    }
+  } // class EdMapScratch
+
   /**
    * Queue of words, ordered by score and then frequency
    */
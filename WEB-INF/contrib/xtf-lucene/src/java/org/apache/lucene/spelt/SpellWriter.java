@@ -22,9 +22,12 @@ package org.apache.lucene.spelt;
  * as part of the Melvyl Recommender Project.
  */
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -33,7 +36,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.Writer;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -44,6 +49,7 @@ import org.apache.lucene.util.CountedInputStream;
 import org.apache.lucene.util.CountedOutputStream;
 import org.apache.lucene.util.FileSorter;
 import org.apache.lucene.util.IntList;
+import org.apache.lucene.util.LongSorter;
 import org.apache.lucene.util.ProgressTracker;
 
 /**
@@ -87,7 +93,10 @@ public class SpellWriter
   /** File to queue words into */
   private File pairQueueFile;
 
-  /** File containing compiled word frequencies */
+  /** File containing the compiled list of words and their frequencies */
+  private File wordsFile;
+
+  /** File containing compiled word frequencies, by hash code */
   private File freqFile;
 
   /** File containing frequency sample data */
@@ -96,6 +105,12 @@ public class SpellWriter
   /** File containing edit map data */
   private File edmapFile;
 
+  /** Word list from an older (text format) dictionary, if any */
+  private File oldWordsFile;
+
+  /** Edit map from an older (text format) dictionary, if any */
+  private File oldEdmapFile;
+
   /** File containing compiled pair frequency data */
   private File pairFreqFile;
 
@@ -137,14 +152,37 @@ public class SpellWriter
   /** Used for splitting lines delimited with bar */
   Pattern splitPat = Pattern.compile("\\|");
 
-  /** Memory limit for sorting */
-  private int SORT_MEM_LIMIT = 100 * 1024 * 1024; // 10 megs per file (2 files)
+  /** Magic number at the start of the binary word list */
+  static final long WORDS_MAGIC = ((long)'S') << (7 * 8) |
+                                  ((long)'p') << (6 * 8) |
+                                  ((long)'l') << (5 * 8) |
+                                  ((long)'W') << (4 * 8) |
+                                  ((long)'o') << (3 * 8) |
+                                  ((long)'r') << (2 * 8) |
+                                  ((long)'d') << (1 * 8) |
+                                  ((long)'s') << (0 * 8);
+
+  /** Magic number at the start of the binary edit map */
+  static final long EDMAP_MAGIC = ((long)'S') << (7 * 8) |
+                                  ((long)'p') << (6 * 8) |
+                                  ((long)'l') << (5 * 8) |
+                                  ((long)'E') << (4 * 8) |
+                                  ((long)'d') << (3 * 8) |
+                                  ((long)'M') << (2 * 8) |
+                                  ((long)'a') << (1 * 8) |
+                                  ((long)'p') << (0 * 8);
+
+  /** 
+   * Version of the binary dictionary format. Version 1 was the original
+   * text format (words.dat and edmap.dat), which can still be read.
+   */
+  static final int FORMAT_VERSION = 2;
 
-  /** Character array for forming combo keys */
-  private char[] keyChars = new char[4];
+  /** Size of the edit map header: magic, version, key count, index pos */
+  static final int EDMAP_HEADER_SIZE = 8 + 4 + 4 + 4;
 
-  /** String buffer for edmap pairs */
-  private StringBuffer edmapBuf = new StringBuffer();
+  /** Number of threads to use for sorting the edit map */
+  private int nThreads = Runtime.getRuntime().availableProcessors();
 
   /**
    * Private constructor -- do not construct directly; rather, use the
@@ -188,9 +226,12 @@ public class SpellWriter
     // Figure out the files we're going to store stuff in
     wordQueueFile = new File(spellIndexDir, "newWords.txt");
     pairQueueFile = new File(spellIndexDir, "newPairs.txt");
-    freqFile = new File(spellIndexDir, "words.dat");
+    wordsFile = new File(spellIndexDir, "words.bin");
+    freqFile = new File(spellIndexDir, "wordFreqs.dat");
     sampleFile = new File(spellIndexDir, "freqSamples.dat");
-    edmapFile = new File(spellIndexDir, "edmap.dat");
+    edmapFile = new File(spellIndexDir, "edmap.bin");
+    oldWordsFile = new File(spellIndexDir, "words.dat");
+    oldEdmapFile = new File(spellIndexDir, "edmap.dat");
     pairFreqFile = new File(spellIndexDir, "pairs.dat");
 
     // If the index directory doesn't exist, make it.
@@ -235,6 +276,16 @@ public class SpellWriter
     this.minPairFreq = freq;
   }
 
+  /**
+   * Establish how many threads to use for sorting when the dictionary is
+   * flushed. The default is one per available processor.
+   *
+   * @param n   number of threads (at least 1)
+   */
+  public void setThreads(int n) {
+    this.nThreads = Math.max(1, n);
+  }
+
   /**
    * Closes all files. Does NOT write queued words (they stay queued on
    * disk.)
@@ -253,9 +304,12 @@ public class SpellWriter
 
     wordQueueFile.delete();
     pairQueueFile.delete();
+    wordsFile.delete();
     freqFile.delete();
     sampleFile.delete();
     edmapFile.delete();
+    oldWordsFile.delete();
+    oldEdmapFile.delete();
     pairFreqFile.delete();
 
     recentWords.clear();
@@ -419,7 +473,7 @@ public class SpellWriter
     // progress in a rational way.
     //
     ProgressTracker[] phaseProgs = prog.split(
-      (freqFile.length() + wordQueueFile.length()) * 10,
+      (existingWordsFile().length() + wordQueueFile.length()) * 10,
       pairQueueFile.length());
 
     // Phase 1: Accumulate word frequencies
@@ -450,12 +504,19 @@ public class SpellWriter
     ProgressTracker[] subProgs = prog.split(5, 30, 5, 60);
 
     // Initial progress message
-    ProgressTracker[] wordProgs = subProgs[0].split(freqFile.length(),
+    File prevWordsFile = existingWordsFile();
+    ProgressTracker[] wordProgs = subProgs[0].split(prevWordsFile.length(),
                                                     wordQueueFile.length());
 
-    // Read the existing frequency list (if any)
-    FileSorter freqSorter = FileSorter.start(spellIndexDir, SORT_MEM_LIMIT);
-    readFreqs(freqFile, freqSorter, wordProgs[0]);
+    // Read the existing word list (if any). Older dictionaries kept it in
+    // text form.
+    //
+    FileSorter freqSorter = FileSorter.start(spellIndexDir, sortMemLimit());
+    freqSorter.setThreads(nThreads);
+    if (prevWordsFile == wordsFile)
+      readWordList(wordsFile, freqSorter, wordProgs[0]);
+    else
+      readFreqs(oldWordsFile, freqSorter, wordProgs[0]);
 
     // Add in the new frequencies
     readFreqs(wordQueueFile, freqSorter, wordProgs[1]);
@@ -463,24 +524,54 @@ public class SpellWriter
     // And write out the accumulated frequencies (culling entries with low 
     // frequency as we go). Also, we'll start building the edit map.
     //
-    File newFreqFile = new File(spellIndexDir, "words.dat.new");
-    FileSorter edmapSorter = FileSorter.start(spellIndexDir, SORT_MEM_LIMIT);
-    IntList allFreqs = new IntList(10000);
-    writeFreqs(newFreqFile, freqSorter, allFreqs, edmapSorter, subProgs[1]);
+    File newWordsFile = new File(spellIndexDir, "words.bin.new");
+    File newFreqFile = new File(spellIndexDir, "wordFreqs.dat.new");
+    WordTable words = new WordTable(spellIndexDir);
+    try
+    {
+      LongSorter edmapSorter = LongSorter.start(spellIndexDir, 
+                                                sortMemLimit(), nThreads);
+      writeFreqs(newWordsFile, newFreqFile, freqSorter, words, edmapSorter,
+                 subProgs[1]);
+
+      // Write out frequency samples for statistical purposes.
+      File newSampleFile = new File(spellIndexDir, "freqSamples.dat.new");
+      writeFreqSamples(words.freqs, newSampleFile, subProgs[2]);
+
+      // Write out the new edit map.
+      File newEdmapFile = new File(spellIndexDir, "edmap.bin.new");
+      writeEdMap(edmapSorter, words, newEdmapFile, subProgs[3]);
+
+      // Clear the queue, and replace the old data files.
+      replaceFile(wordsFile, newWordsFile);
+      replaceFile(freqFile, newFreqFile);
+      replaceFile(sampleFile, newSampleFile);
+      replaceFile(edmapFile, newEdmapFile);
+      deleteFile(wordQueueFile);
+    }
+    finally {
+      words.close();
+    }
 
-    // Write out frequency samples for statistical purposes.
-    File newSampleFile = new File(spellIndexDir, "freqSamples.dat.new");
-    writeFreqSamples(allFreqs, newSampleFile, subProgs[2]);
+    // The text files of an older dictionary have now been superseded.
+    if (oldWordsFile.exists())
+      deleteFile(oldWordsFile);
+    if (oldEdmapFile.exists())
+      deleteFile(oldEdmapFile);
+  }
 
-    // Write out the new edit map.
-    File newEdmapFile = new File(spellIndexDir, "edmap.dat.new");
-    writeEdMap(edmapSorter, newEdmapFile, subProgs[3]);
+  /** Locate the word list of the existing dictionary, in either format. */
+  private File existingWordsFile() {
+    return wordsFile.canRead() ? wordsFile : oldWordsFile;
+  }
 
-    // Clear the queue, and replace the old data files.
-    replaceFile(freqFile, newFreqFile);
-    replaceFile(sampleFile, newSampleFile);
-    replaceFile(edmapFile, newEdmapFile);
-    deleteFile(wordQueueFile);
+  /**
+   * Decide how much memory to give each sort. We go by the amount of heap
+   * that's free right now, since there are two sorts going at a time.
+   */
+  private int sortMemLimit() {
+    return (int)Math.min(Integer.MAX_VALUE / 2, 
+                         LongSorter.defaultMemLimit(0.25));
   }
 
   /**
@@ -514,19 +605,84 @@ public class SpellWriter
   }
 
   /**
-   * Write out frequency data, in sorted order.
+   * Read an existing binary word list, and add it to a file sorter.
+   */
+  private void readWordList(File inFile, FileSorter out, ProgressTracker prog)
+    throws IOException 
+  {
+    CountedInputStream countedIn = new CountedInputStream(
+      new FileInputStream(inFile));
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(countedIn));
+    try
+    {
+      // Check the header.
+      if (in.readLong() != WORDS_MAGIC)
+        throw new IOException("unrecognized format of word list");
+      if (in.readInt() != FORMAT_VERSION)
+        throw new IOException("unsupported version of word list");
+      int nWords = in.readInt();
+
+      // Each word shares a prefix with the one before it.
+      char[] word = new char[64];
+      int wordLen = 0;
+      for (int i = 0; i < nWords; i++)
+      {
+        int lens = in.readUnsignedByte();
+        int shared = lens >> 4;
+        if (shared == 15)
+          shared += readVInt(in);
+        int suffixLen = lens & 0x0f;
+        if (suffixLen == 15)
+          suffixLen += readVInt(in);
+        if (shared > wordLen)
+          throw new IOException("word list file is corrupted");
+        wordLen = shared + suffixLen;
+        if (wordLen > word.length) {
+          char[] newWord = new char[wordLen * 2];
+          System.arraycopy(word, 0, newWord, 0, shared);
+          word = newWord;
+        }
+        for (int j = shared; j < wordLen; j++)
+          word[j] = (char)readVInt(in);
+        int freq = readVInt(in);
+
+        out.addLine(new String(word, 0, wordLen) + "|" + freq);
+
+        // Report progress every once in a while.
+        if ((i & 0xfff) == 0)
+          prog.progress(countedIn.nRead(), inFile.length(), "Reading word files.");
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Write out the word list and frequency data, in sorted order, and queue 
+   * up the edit map entries for each word.
    */
-  private void writeFreqs(final File outFile, final FileSorter freqSorter,
-                          final IntList allFreqs, final FileSorter edmapSorter,
+  private void writeFreqs(final File outWordsFile, final File outFreqFile,
+                          final FileSorter freqSorter, final WordTable words,
+                          final LongSorter edmapSorter,
                           final ProgressTracker prog)
     throws IOException 
   {
-    final BufferedWriter out = new BufferedWriter(new FileWriter(outFile));
+    final CountedOutputStream outCounted = new CountedOutputStream(
+      new BufferedOutputStream(new FileOutputStream(outWordsFile)));
+    final DataOutputStream out = new DataOutputStream(outCounted);
+    out.writeLong(WORDS_MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(0); // word count, filled in at the end
+
+    final FreqData freqs = new FreqData();
     freqSorter.finish(new FileSorter.Output() 
     {
         String curWord = null;
         int curFreq = 0;
         int nProcessed = 0;
+        String prevWord = "";
 
         // For each token/frequency pair...
         public void writeLine(String line)
@@ -563,18 +719,27 @@ public class SpellWriter
           // Skip if the frequency is below our threshold
           if (curFreq < minWordFreq)
             return;
-
-          // Add the frequency to our list of all (for statistics later)
-          allFreqs.add(curFreq);
-
-          // Write a line to the final frequency file
-          out.append(curWord);
-          out.append('|');
-          out.append(Integer.toString(curFreq));
-          out.append('\n');
+          int freq = curFreq;
+
+          // Write the word, sharing whatever prefix it has in common with
+          // the previous one.
+          //
+          int shared = 0;
+          int maxShared = Math.min(prevWord.length(), curWord.length());
+          while (shared < maxShared &&
+                 prevWord.charAt(shared) == curWord.charAt(shared))
+            shared++;
+          writeLengths(out, shared, curWord.length() - shared);
+          for (int i = shared; i < curWord.length(); i++)
+            writeVInt(out, curWord.charAt(i));
+          writeVInt(out, freq);
+          prevWord = curWord;
+
+          // Record the frequency by hash code, for quick lookup.
+          freqs.add(curWord, freq);
 
           // Add combinations to the edit map.
-          addCombos(curWord, edmapSorter);
+          addCombos(curWord, words.add(curWord, freq), edmapSorter);
 
           // Prepare for the next word.
           curFreq = 0;
@@ -591,56 +756,67 @@ public class SpellWriter
                         true);
         }
       });
+
+    // Now that we know how many words there were, fill in the count.
+    patchInt(outWordsFile, 12, words.size());
+    words.finishAdding();
+    freqs.save(outFreqFile);
   }
 
   /**
    * Add combinations of the first six letters of the word, capturing all the
    * possibilities that represent an edit distance of 2 or less.
    */
-  private void addCombos(String word, FileSorter edMapSorter)
+  private void addCombos(String word, int wordNum, LongSorter edmapSorter)
     throws IOException 
   {
     // Add combinations to the edit map
-    addCombo(word, edMapSorter, 0, 1, 2, 3);
-    addCombo(word, edMapSorter, 0, 1, 2, 4);
-    addCombo(word, edMapSorter, 0, 1, 2, 5);
-    addCombo(word, edMapSorter, 0, 1, 3, 4);
-    addCombo(word, edMapSorter, 0, 1, 3, 5);
-    addCombo(word, edMapSorter, 0, 1, 4, 5);
-    addCombo(word, edMapSorter, 0, 2, 3, 4);
-    addCombo(word, edMapSorter, 0, 2, 3, 5);
-    addCombo(word, edMapSorter, 0, 2, 4, 5);
-    addCombo(word, edMapSorter, 0, 3, 4, 5);
+    addCombo(word, wordNum, edmapSorter, 0, 1, 2, 3);
+    addCombo(word, wordNum, edmapSorter, 0, 1, 2, 4);
+    addCombo(word, wordNum, edmapSorter, 0, 1, 2, 5);
+    addCombo(word, wordNum, edmapSorter, 0, 1, 3, 4);
+    addCombo(word, wordNum, edmapSorter, 0, 1, 3, 5);
+    addCombo(word, wordNum, edmapSorter, 0, 1, 4, 5);
+    addCombo(word, wordNum, edmapSorter, 0, 2, 3, 4);
+    addCombo(word, wordNum, edmapSorter, 0, 2, 3, 5);
+    addCombo(word, wordNum, edmapSorter, 0, 2, 4, 5);
+    addCombo(word, wordNum, edmapSorter, 0, 3, 4, 5);
     if (word.length() > 1) {
-      addCombo(word, edMapSorter, 1, 2, 3, 4);
-      addCombo(word, edMapSorter, 1, 2, 3, 5);
-      addCombo(word, edMapSorter, 1, 2, 4, 5);
-      addCombo(word, edMapSorter, 1, 3, 4, 5);
+      addCombo(word, wordNum, edmapSorter, 1, 2, 3, 4);
+      addCombo(word, wordNum, edmapSorter, 1, 2, 3, 5);
+      addCombo(word, wordNum, edmapSorter, 1, 2, 4, 5);
+      addCombo(word, wordNum, edmapSorter, 1, 3, 4, 5);
       if (word.length() > 2)
-        addCombo(word, edMapSorter, 2, 3, 4, 5);
+        addCombo(word, wordNum, edmapSorter, 2, 3, 4, 5);
     }
   }
 
-  /** Add a combination of letters to the edit map */
-  private void addCombo(String word, FileSorter edmapSorter, int p0,
-                        int p1, int p2, int p3)
+  /** 
+   * Add a combination of letters to the edit map. Each entry is packed into
+   * a long, with the key in the top half and the word number in the bottom,
+   * so that sorting groups the words by key.
+   */
+  private void addCombo(String word, int wordNum, LongSorter edmapSorter, 
+                        int p0, int p1, int p2, int p3)
     throws IOException 
   {
-    edmapBuf.setLength(0);
-    edmapBuf.append(comboKey(word, p0, p1, p2, p3));
-    edmapBuf.append('|');
-    edmapBuf.append(word);
-    String line = edmapBuf.toString();
-    edmapSorter.addLine(line);
+    long key = comboKey(word, p0, p1, p2, p3);
+    edmapSorter.add((key << 32) | wordNum);
   }
 
-  /** Calculate a key from the given characters of the word. */
-  private char[] comboKey(String word, int p0, int p1, int p2, int p3) {
-    keyChars[0] = word.length() > p0 ? comboChar(word.charAt(p0)) : ' ';
-    keyChars[1] = word.length() > p1 ? comboChar(word.charAt(p1)) : ' ';
-    keyChars[2] = word.length() > p2 ? comboChar(word.charAt(p2)) : ' ';
-    keyChars[3] = word.length() > p3 ? comboChar(word.charAt(p3)) : ' ';
-    return keyChars;
+  /** 
+   * Calculate a key from the given characters of the word. Each character
+   * fits in 7 bits, so the key is always positive.
+   */
+  private int comboKey(String word, int p0, int p1, int p2, int p3) {
+    return (comboCharAt(word, p0) << 24) |
+           (comboCharAt(word, p1) << 16) |
+           (comboCharAt(word, p2) << 8) |
+           (comboCharAt(word, p3) << 0);
+  }
+
+  private int comboCharAt(String word, int pos) {
+    return word.length() > pos ? comboChar(word.charAt(pos)) : ' ';
   }
 
   private char comboChar(char c) {
@@ -706,133 +882,312 @@ public class SpellWriter
   } // writeFreqSamples()
 
   /**
-   * Write out a prefix-compressed edit-distance map, which also contains
-   * term frequencies.
+   * Write out the binary edit map. For each key there's a block listing the
+   * words that share it, prefix-compressed and with their frequencies, and
+   * at the end a fixed-width index of the keys and the positions of their
+   * blocks, so a reader can binary-search it in place.
    */
-  private void writeEdMap(final FileSorter edmapSorter, final File outFile,
-                          final ProgressTracker prog)
+  private void writeEdMap(final LongSorter edmapSorter, final WordTable words,
+                          final File outFile, final ProgressTracker prog)
     throws IOException 
   {
     final CountedOutputStream outCounted = new CountedOutputStream(
       new BufferedOutputStream(new FileOutputStream(outFile)));
-    final Writer out = new OutputStreamWriter(outCounted, "UTF-8");
+    final DataOutputStream out = new DataOutputStream(outCounted);
+    out.writeLong(EDMAP_MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(0); // key count and index position, filled in at the end
+    out.writeInt(0);
     
     prog.progress(0, 100, "Building word map.", true);
 
-    // Finish sorting all the edit map entries, group them, and write out the keys.
-    final ArrayList<String> edKeys = new ArrayList<String>();
-    final IntList sizes = new IntList();
-    edmapSorter.finish(new FileSorter.Output() 
+    // Finish sorting all the edit map entries, group them, and write out 
+    // the keys.
+    //
+    final IntList edKeys = new IntList();
+    final IntList edPosns = new IntList();
+    edmapSorter.finish(new LongSorter.Output() 
       {
-        String curKey = null;
-        ArrayList<String> curWords = new ArrayList<String>();
-        int nWritten = 0;
+        int curKey = -1;
+        IntList curWords = new IntList();
+        long nWritten = 0;
 
-        public void writeLine(String line)
+        public void write(long val)
           throws IOException 
         {
-          String[] tokens = splitPat.split(line);
-          assert tokens.length == 2 : "invalid edmap line";
-          if (!tokens[0].equals(curKey)) {
-            if (curKey != null)
+          int key = (int)(val >>> 32);
+          int wordNum = (int)val;
+          if (key != curKey) {
+            if (curKey >= 0)
               flushKey();
-            curKey = tokens[0];
+            curKey = key;
           }
-          curWords.add(tokens[1]);
+
+          // Skip duplicates (a word can hit the same key more than once.)
+          if (curWords.isEmpty() || curWords.getLast() != wordNum)
+            curWords.add(wordNum);
 
           // Give progress every once in a while.
-          if ((nWritten++ & 0xFFF) == 0)
+          if ((nWritten++ & 0xFFFF) == 0)
             prog.progress(nWritten,
-                          edmapSorter.nLinesAdded(),
+                          edmapSorter.nAdded(),
                           "Building word map.");
         }
 
         private void flushKey()
           throws IOException 
         {
-          // Write out the condensed key
-          long prevPos = outCounted.nWritten();
-          condenseEdmapKey(curKey, curWords, out);
-          out.flush();
-
-          // Record the key and its size on disk
+          // Record the key and where its block starts
           edKeys.add(curKey);
-          sizes.add((int)(outCounted.nWritten() - prevPos));
+          edPosns.add(checkPos(outCounted.nWritten()));
+
+          // The words are numbered in the order of the word list, which
+          // puts "ab|" after "abc|". Put them in true alphabetical order.
+          //
+          int[] wordNums = curWords.toArray();
+          words.sort(wordNums);
+
+          // Write out the condensed list of words
+          writeVInt(out, wordNums.length);
+          int prev = -1;
+          for (int i = 0; i < wordNums.length; i++) {
+            int wordNum = wordNums[i];
+            int shared = (prev < 0) ? 0 : words.sharedPrefix(prev, wordNum);
+            int len = words.length(wordNum);
+            writeLengths(out, shared, len - shared);
+            for (int j = shared; j < len; j++)
+              writeVInt(out, words.charAt(wordNum, j));
+            writeVInt(out, words.freq(wordNum));
+            prev = wordNum;
+          }
 
-          // Clear the word list in preparation for the next word
+          // Clear the word list in preparation for the next key
           curWords.clear();
         }
 
-        public void close() {
+        public void close()
+          throws IOException 
+        {
+          if (curKey >= 0)
+            flushKey();
         }
       });
 
-    // At the end of the file, write an index of positions.
-    long indexPos = outCounted.nWritten();
-    out.append("edMap index\n");
-    out.append(Integer.toString(edKeys.size()));
-    out.append('\n');
+    // At the end of the file, write the index of keys and positions.
+    int indexPos = checkPos(outCounted.nWritten());
     for (int i = 0; i < edKeys.size(); i++) {
-      String key = edKeys.get(i);
-      out.append(key);
-      out.append('|');
-      out.append(Integer.toString(sizes.get(i)));
-      out.append('\n');
+      out.writeInt(edKeys.get(i));
+      out.writeInt(edPosns.get(i));
     }
+    checkPos(outCounted.nWritten());
+    out.close();
 
-    // And finally, at the very end, write the position of the index.
-    String tmp = Long.toString(indexPos);
-    while (tmp.length() < 20)
-      tmp = " " + tmp;
-    out.append(tmp);
+    // Fill in the header, now that we know where everything is.
+    patchInt(outFile, 12, edKeys.size());
+    patchInt(outFile, 16, indexPos);
 
-    // All done.
-    out.close();
+    prog.progress(100, 100, "Building word map.", true);
+  } // writeEdMap()
+
+  /** 
+   * Make sure a file position can be stored in an int (readers map the
+   * whole file, which limits it to 2 gigabytes anyway.)
+   */
+  private static int checkPos(long pos)
+    throws IOException 
+  {
+    if (pos > Integer.MAX_VALUE)
+      throw new IOException("Spelling dictionary too large");
+    return (int)pos;
+  }
+
+  /** Overwrite an int at the given position in an existing file. */
+  private static void patchInt(File file, long pos, int val)
+    throws IOException 
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(pos);
+      raf.writeInt(val);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** 
+   * Write a non-negative int using as few bytes as possible: 7 bits per
+   * byte, with the high bit set on all but the last.
+   */
+  static void writeVInt(DataOutputStream out, int val)
+    throws IOException 
+  {
+    while ((val & ~0x7f) != 0) {
+      out.write((val & 0x7f) | 0x80);
+      val >>>= 7;
+    }
+    out.write(val);
   }
 
   /**
-   * Perform prefix compression on a list of words for a single edit map
-   * key.
+   * Write the lengths of the prefix a word shares with the one before it,
+   * and of the suffix that follows. Both are usually small, so they're
+   * packed into the two halves of one byte, with any excess written after.
    */
-  private void condenseEdmapKey(String key, ArrayList<String> words, 
-                                Writer out)
+  static void writeLengths(DataOutputStream out, int shared, int suffixLen)
     throws IOException 
   {
-    String prev = words.get(0);
+    out.write((Math.min(shared, 15) << 4) | Math.min(suffixLen, 15));
+    if (shared >= 15)
+      writeVInt(out, shared - 15);
+    if (suffixLen >= 15)
+      writeVInt(out, suffixLen - 15);
+  }
+
+  /** Read an int written by {@link #writeVInt(DataOutputStream, int)} */
+  static int readVInt(DataInputStream in)
+    throws IOException 
+  {
+    int val = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      val |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return val;
+    }
+  }
+
+  /**
+   * The words of a new dictionary, in sorted order, so the edit map can
+   * refer to them by number. The characters are spooled to a temporary file
+   * and mapped back in, so only an offset and a frequency per word stay on
+   * the heap.
+   */
+  private static class WordTable
+  {
+    /** Temporary file for the characters */
+    private File tmpFile;
+
+    /** Output to the temp file, while words are being added */
+    private DataOutputStream out;
+
+    /** Characters of all the words, mapped from the temp file */
+    private CharBuffer chars;
 
-    // Write the key and the first word in full
-    out.append(key);
-    out.append('|');
-    out.append(prev);
+    /** Total number of characters added */
+    private int nChars = 0;
 
-    // Prefix-compress the list.
-    for (int j = 1; j < words.size(); j++) 
+    /** Where each word starts; one extra at the end once finished */
+    private IntList starts = new IntList(10000);
+
+    /** Frequency of each word */
+    IntList freqs = new IntList(10000);
+
+    WordTable(File tmpDir)
+      throws IOException 
     {
-      String word = words.get(j);
+      tmpFile = File.createTempFile("words", ".tmp", tmpDir);
+      out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    }
 
-      // Skip duplicates
-      if (word.equals(prev))
-        continue;
-      
-      // Figure out how many characters overlap.
-      int k;
-      for (k = 0; k < Math.min(prev.length(), word.length()); k++) {
-        if (word.charAt(k) != prev.charAt(k))
-          break;
+    /** Add a word, returning its number. */
+    int add(String word, int freq)
+      throws IOException 
+    {
+      if (nChars + (long)word.length() > Integer.MAX_VALUE / 2)
+        throw new IOException("Spelling dictionary too large");
+      starts.add(nChars);
+      freqs.add(freq);
+      out.writeChars(word);
+      nChars += word.length();
+      return starts.size() - 1;
+    }
+
+    /** Called when all words have been added, to get ready for reading */
+    void finishAdding()
+      throws IOException 
+    {
+      out.close();
+      out = null;
+      starts.add(nChars);
+
+      RandomAccessFile file = new RandomAccessFile(tmpFile, "r");
+      try {
+        chars = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, 
+                                      nChars * 2L).asCharBuffer();
+      }
+      finally {
+        file.close();
       }
+    }
 
-      // Write the prefix length and suffix
-      out.append('|');
-      out.append((char)('0' + k));
-      out.append(word.substring(k));
+    /** Number of words added */
+    int size() {
+      return freqs.size();
+    }
 
-      // Next...
-      prev = word;
+    int length(int wordNum) {
+      return starts.get(wordNum + 1) - starts.get(wordNum);
     }
 
-    // Done with this line. Write it, and record the size.
-    out.append('\n');
-  }
+    char charAt(int wordNum, int pos) {
+      return chars.get(starts.get(wordNum) + pos);
+    }
+
+    int freq(int wordNum) {
+      return freqs.get(wordNum);
+    }
+
+    /** 
+     * Sort an array of word numbers alphabetically. They're already nearly
+     * in order, so insertion sort does the job quickly.
+     */
+    void sort(int[] wordNums)
+    {
+      for (int i = 1; i < wordNums.length; i++) {
+        int wordNum = wordNums[i];
+        int j = i;
+        for (; j > 0 && compare(wordNums[j - 1], wordNum) > 0; j--)
+          wordNums[j] = wordNums[j - 1];
+        wordNums[j] = wordNum;
+      }
+    }
+
+    /** Compare two words alphabetically, like String.compareTo() */
+    int compare(int word1, int word2)
+    {
+      int shared = sharedPrefix(word1, word2);
+      int len1 = length(word1);
+      int len2 = length(word2);
+      if (shared == len1 || shared == len2)
+        return len1 - len2;
+      return charAt(word1, shared) - charAt(word2, shared);
+    }
+
+    /** Count how many leading characters two words have in common */
+    int sharedPrefix(int word1, int word2)
+    {
+      int start1 = starts.get(word1);
+      int start2 = starts.get(word2);
+      int max = Math.min(length(word1), length(word2));
+      int i = 0;
+      while (i < max && chars.get(start1 + i) == chars.get(start2 + i))
+        i++;
+      return i;
+    }
+
+    /** Get rid of the temporary file */
+    void close()
+      throws IOException 
+    {
+      if (out != null)
+        out.close();
+      chars = null;
+      if (!tmpFile.delete())
+        tmpFile.deleteOnExit(); // still mapped, on some platforms
+    }
+  } // class WordTable
 
   /** Attempt to delete (and at least truncate) the given file. */
   private void deleteFile(File file)
@@ -53,12 +53,18 @@ final class TRStringDistance2 {
        * This more fully reflects a common source of misspellings. 
        */
       public final int getDistance (String other) {
+          return getDistance(other.toCharArray(), other.length());
+      }
+
+      /**
+       * Compute the distance between the target string and the first
+       * <code>m</code> characters of the given array.
+       */
+      public final int getDistance (char[] ta, int m) {
           int d[][]; // matrix
           int baseCost, replaceCost, insertCost, deleteCost;
 
           // First, initialize the matrix.
-          final char[] ta=other.toCharArray();
-          final int m=ta.length;
           if (n==0)
               return m;
           if (m==0)
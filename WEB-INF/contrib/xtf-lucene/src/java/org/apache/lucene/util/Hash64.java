@@ -33,6 +33,17 @@ public class Hash64
     return h & 0x7fffffffffffffffL;
   }
 
+  /**
+   * Calculate a non-negative 64-bit hash code for a run of characters. The
+   * result is the same as for a string made of those characters.
+   */
+  public static long hash(char[] chars, int start, int length) {
+    long h = 0L;
+    for (int i = start; i < start + length; i++)
+      h = MAGIC_PRIME * h + chars[i];
+    return h & 0x7fffffffffffffffL;
+  }
+
   /** Calculate a non-negative 64-bit hash code for two strings */
   public static long hash(String s1, String s2) {
     long h = 0;
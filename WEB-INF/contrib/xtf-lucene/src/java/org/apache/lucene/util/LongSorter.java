@@ -0,0 +1,423 @@
+package org.apache.lucene.util;
+
+/*
+ * Copyright 2006-2007 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Performs a disk-based sort of a large number of long values, using
+ * several threads to do the sorting. It's the numeric counterpart of
+ * {@link FileSorter}, for data that can be packed into longs: values are
+ * buffered in one big array, which is cut into pieces that are sorted at
+ * the same time on separate threads, then merged. If the values won't all
+ * fit in memory, each full buffer is written to a temporary file as a
+ * sorted run, and the runs are merged at the end.
+ */
+public class LongSorter
+{
+  /** Don't bother splitting up buffers smaller than this for sorting */
+  private static final int MIN_PARALLEL_SORT = 65536;
+
+  /** Directory for temporary files, or null for the system default */
+  private File tmpDir;
+
+  /** Number of threads to sort with */
+  private int nThreads;
+
+  /** Buffer of values not yet sorted; grows as needed up to the limit */
+  private long[] buf;
+
+  /** Max number of values to buffer before writing a run to disk */
+  private int maxBufSize;
+
+  /** Number of values in {@link #buf} */
+  private int bufCount = 0;
+
+  /** Count of how many values were added */
+  private long nAdded = 0;
+
+  /** Sorted runs written to temporary files */
+  private ArrayList runFiles = new ArrayList();
+
+  /** Number of values in each of the {@link #runFiles} */
+  private LongList runCounts = new LongList();
+
+  /** Threads for sorting (created when first needed) */
+  private ExecutorService pool;
+
+  /**
+   * Protected constructor -- do not construct directly; rather, use
+   * {@link #start(File, long, int)}.
+   */
+  protected LongSorter() {
+  }
+
+  /**
+   * Figure out a reasonable memory limit for sorting, based on how much
+   * of the Java heap is currently unused.
+   *
+   * @param fraction portion of the free heap to use, e.g. 0.25
+   */
+  public static long defaultMemLimit(double fraction)
+  {
+    Runtime rt = Runtime.getRuntime();
+    long used = rt.totalMemory() - rt.freeMemory();
+    long avail = rt.maxMemory() - used;
+    return Math.max(1024 * 1024, (long)(avail * fraction));
+  }
+
+  /**
+   * Start a sort. Repeatedly call {@link #add(long)} to specify the values
+   * to sort, then call {@link #finish(Output)} to receive them in order.
+   *
+   * @param tmpDir   a filesystem directory to store temporary data during
+   *                 sort, or null for the system default.
+   * @param memLimit approximate limit on the amount of RAM to use.
+   * @param nThreads number of threads to sort with.
+   */
+  public static LongSorter start(File tmpDir, long memLimit, int nThreads)
+    throws IOException
+  {
+    if (tmpDir != null && !tmpDir.isDirectory())
+      throw new IOException("Invalid temp directory specified");
+
+    LongSorter sorter = new LongSorter();
+    sorter.tmpDir = tmpDir;
+    sorter.nThreads = Math.max(1, nThreads);
+    sorter.maxBufSize = (int)Math.min(Integer.MAX_VALUE - 16,
+                                      Math.max(1024, memLimit / 8));
+    sorter.buf = new long[Math.min(sorter.maxBufSize, 16384)];
+    return sorter;
+  }
+
+  /** Interface for receiving the sorted values */
+  public interface Output
+  {
+    void write(long val)
+      throws IOException;
+
+    void close()
+      throws IOException;
+  }
+
+  /** Add a value to be sorted. */
+  public void add(long val)
+    throws IOException
+  {
+    if (bufCount == buf.length)
+    {
+      if (buf.length < maxBufSize) {
+        long[] newBuf = new long[(int)Math.min(maxBufSize, buf.length * 2L)];
+        System.arraycopy(buf, 0, newBuf, 0, bufCount);
+        buf = newBuf;
+      }
+      else
+        flushRun();
+    }
+    buf[bufCount++] = val;
+    ++nAdded;
+  }
+
+  /** Find out how many values were added */
+  public long nAdded() {
+    return nAdded;
+  }
+
+  /**
+   * Perform the main work of sorting, sending the results (including any
+   * duplicates) to the specified output in ascending order.
+   */
+  public void finish(Output out)
+    throws IOException
+  {
+    try
+    {
+      // Special case: if everything fit in memory, merge straight from the
+      // sorted buffer.
+      //
+      if (runFiles.isEmpty()) {
+        merge(sortBuffer(), out);
+        out.close();
+        return;
+      }
+
+      // Otherwise flush the last bit, and merge all the runs. Give each one
+      // a decent share of the memory for buffering.
+      //
+      long memLimit = maxBufSize * 8L;
+      flushRun();
+      buf = null;
+      int bufSize = (int)Math.min(1024 * 1024,
+                                  Math.max(8192, memLimit / runFiles.size()));
+      ArrayList sources = new ArrayList(runFiles.size());
+      try
+      {
+        for (int i = 0; i < runFiles.size(); i++) {
+          sources.add(new RunSource((File)runFiles.get(i), runCounts.get(i),
+                                    bufSize));
+        }
+        merge(sources, out);
+        out.close();
+      }
+      finally {
+        for (int i = 0; i < sources.size(); i++)
+          ((RunSource)sources.get(i)).close();
+      }
+    }
+    finally
+    {
+      for (int i = 0; i < runFiles.size(); i++)
+        ((File)runFiles.get(i)).delete();
+      runFiles.clear();
+      if (pool != null)
+        pool.shutdown();
+      pool = null;
+    }
+  } // finish()
+
+  /** Merge several sorted sources into a single output. */
+  private static void merge(ArrayList sources, Output out)
+    throws IOException
+  {
+    PriorityQueue queue = new PriorityQueue(Math.max(1, sources.size()));
+    for (int i = 0; i < sources.size(); i++) {
+      Source src = (Source)sources.get(i);
+      if (src.next())
+        queue.add(src);
+    }
+
+    while (!queue.isEmpty())
+    {
+      // Send out values from the lowest source for as long as it remains
+      // the lowest, only re-ordering the queue when it doesn't.
+      //
+      Source src = (Source)queue.remove();
+      Source rival = (Source)queue.peek();
+      while (true)
+      {
+        out.write(src.cur);
+        if (!src.next())
+          break;
+        if (rival != null && src.cur > rival.cur) {
+          queue.add(src);
+          break;
+        }
+      }
+    }
+  } // merge()
+
+  /**
+   * Sort the buffered values, splitting the work among our threads.
+   *
+   * @return a list of sorted pieces, to be merged.
+   */
+  private ArrayList sortBuffer()
+    throws IOException
+  {
+    final long[] data = buf;
+    int nPieces = (bufCount < MIN_PARALLEL_SORT) ? 1 : nThreads;
+    ArrayList pieces = new ArrayList(nPieces);
+    ArrayList futures = new ArrayList(nPieces);
+    for (int i = 0; i < nPieces; i++)
+    {
+      final int from = (int)((long)bufCount * i / nPieces);
+      final int to = (int)((long)bufCount * (i + 1) / nPieces);
+      pieces.add(new ArraySource(data, from, to));
+      if (nPieces == 1) {
+        Arrays.sort(data, from, to);
+        break;
+      }
+
+      futures.add(getPool().submit(new Runnable() {
+        public void run() {
+          Arrays.sort(data, from, to);
+        }
+      }));
+    }
+
+    // Wait for all the pieces to finish.
+    for (int i = 0; i < futures.size(); i++)
+    {
+      try {
+        ((Future)futures.get(i)).get();
+      }
+      catch (InterruptedException e) {
+        throw new IOException("Interrupted while sorting");
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return pieces;
+  } // sortBuffer()
+
+  /** Get our thread pool, creating it if necessary. */
+  private ExecutorService getPool()
+  {
+    if (pool == null) {
+      pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "LongSorter");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return pool;
+  }
+
+  /**
+   * Sort the buffered values and write them to a temporary file as a run.
+   * Each value is stored as its difference from the previous one, which
+   * makes the runs a good deal smaller than the raw values.
+   */
+  private void flushRun()
+    throws IOException
+  {
+    File runFile = File.createTempFile("sort", ".tmp", tmpDir);
+    runFiles.add(runFile);
+    runCounts.add(bufCount);
+
+    final DataOutputStream runOut = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(runFile), 65536));
+    try
+    {
+      merge(sortBuffer(), new Output() {
+        long prev = 0;
+        public void write(long val)
+          throws IOException
+        {
+          writeVLong(runOut, val - prev);
+          prev = val;
+        }
+
+        public void close() {
+        }
+      });
+    }
+    finally {
+      runOut.close();
+    }
+
+    bufCount = 0;
+  } // flushRun()
+
+  /** Write a variable-length, unsigned long value. */
+  private static void writeVLong(DataOutputStream out, long val)
+    throws IOException
+  {
+    while ((val & ~0x7fL) != 0) {
+      out.write((int)((val & 0x7f) | 0x80));
+      val >>>= 7;
+    }
+    out.write((int)val);
+  }
+
+  /**
+   * A sorted sequence of values to be merged. Is Comparable (by the current
+   * value) so it can be used in a PriorityQueue.
+   */
+  private static abstract class Source implements Comparable
+  {
+    /** The current value; valid after {@link #next()} returns true */
+    long cur;
+
+    /** Advance to the next value, returning false if there are no more. */
+    abstract boolean next()
+      throws IOException;
+
+    public int compareTo(Object other) {
+      long otherCur = ((Source)other).cur;
+      return (cur < otherCur) ? -1 : ((cur == otherCur) ? 0 : 1);
+    }
+  }
+
+  /** Source reading from a sorted section of an array */
+  private static class ArraySource extends Source
+  {
+    private long[] data;
+    private int pos;
+    private int end;
+
+    ArraySource(long[] data, int from, int to) {
+      this.data = data;
+      this.pos = from;
+      this.end = to;
+    }
+
+    boolean next() {
+      if (pos == end)
+        return false;
+      cur = data[pos++];
+      return true;
+    }
+  }
+
+  /** Source reading a run written by {@link LongSorter#flushRun()} */
+  private static class RunSource extends Source
+  {
+    private DataInputStream in;
+    private long nLeft;
+
+    RunSource(File file, long count, int bufSize)
+      throws IOException
+    {
+      in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), bufSize));
+      nLeft = count;
+    }
+
+    boolean next()
+      throws IOException
+    {
+      if (nLeft == 0)
+        return false;
+      --nLeft;
+
+      long delta = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = in.readUnsignedByte();
+        delta |= (long)(b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          break;
+      }
+      cur += delta;
+      return true;
+    }
+
+    void close()
+      throws IOException
+    {
+      in.close();
+    }
+  }
+} // class LongSorter
@@ -0,0 +1,253 @@
+package org.apache.lucene.spelt;
+
+/*
+ * Copyright 2007 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.lucene.util.CountedOutputStream;
+import org.apache.lucene.util.StringUtil;
+
+/**
+ * Runs the {@link SpellReadWriteTest} tests on a dictionary in the older
+ * text format (words.dat and edmap.dat), and checks that the next flush
+ * converts it to the binary format.
+ */
+public class SpellOldFormatTest extends SpellReadWriteTest
+{
+  /**
+   * Build the dictionary as usual, then replace its word list and edit map
+   * with the same data in the text format, written the way older versions
+   * of {@link SpellWriter} did.
+   */
+  protected @Override void setUp() throws Exception
+  {
+    super.setUp();
+    reader.close();
+
+    Map<String, Integer> words = readWordList(new File(dictDir, "words.bin"));
+    assertTrue(words.size() > 0);
+    writeOldWords(words, new File(dictDir, "words.dat"));
+    writeOldEdMap(words.keySet(), new File(dictDir, "edmap.dat"));
+
+    assertTrue(new File(dictDir, "words.bin").delete());
+    assertTrue(new File(dictDir, "wordFreqs.dat").delete());
+    assertTrue(new File(dictDir, "edmap.bin").delete());
+
+    reader = SpellReader.open(dictDir);
+    reader.setStopwords(STOP_SET);
+    reader.setDebugWriter(debugWriter);
+  }
+
+  /** Check that a flush replaces the text files with binary ones */
+  public void testConversion() throws IOException
+  {
+    String before = StringUtil.join(reader.suggestKeywords(
+      new String[] { "newpapers" }));
+    assertEquals("newspapers", before);
+    reader.close();
+    reader = null;
+
+    SpellWriter writer = SpellWriter.open(dictDir);
+    writer.setStopwords(STOP_SET);
+    writer.setMinWordFreq(1);
+    try {
+      writer.queueWord("newspapers");
+      writer.flushQueuedWords();
+    }
+    finally {
+      writer.close();
+    }
+
+    assertTrue(new File(dictDir, "words.bin").canRead());
+    assertTrue(new File(dictDir, "wordFreqs.dat").canRead());
+    assertTrue(new File(dictDir, "edmap.bin").canRead());
+    assertFalse(new File(dictDir, "words.dat").exists());
+    assertFalse(new File(dictDir, "edmap.dat").exists());
+
+    // Nothing should have been lost in the conversion.
+    reader = SpellReader.open(dictDir);
+    reader.setStopwords(STOP_SET);
+    assertEquals(before, StringUtil.join(reader.suggestKeywords(
+      new String[] { "newpapers" })));
+    assertEquals("buck", StringUtil.join(reader.suggestKeywords(
+      new String[] { "bcuk" })));
+    assertEquals("europ\u00e4ische", StringUtil.join(reader.suggestKeywords(
+      new String[] { "europbische" })));
+  }
+
+  /** Read the words and frequencies from a binary word list */
+  private Map<String, Integer> readWordList(File file) throws IOException
+  {
+    Map<String, Integer> words = new LinkedHashMap<String, Integer>();
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try
+    {
+      assertEquals(SpellWriter.WORDS_MAGIC, in.readLong());
+      assertEquals(SpellWriter.FORMAT_VERSION, in.readInt());
+      int nWords = in.readInt();
+      String prev = "";
+      for (int i = 0; i < nWords; i++)
+      {
+        int lens = in.readUnsignedByte();
+        int shared = lens >> 4;
+        if (shared == 15)
+          shared += SpellWriter.readVInt(in);
+        int suffixLen = lens & 0x0f;
+        if (suffixLen == 15)
+          suffixLen += SpellWriter.readVInt(in);
+        StringBuffer buf = new StringBuffer(prev.substring(0, shared));
+        for (int j = 0; j < suffixLen; j++)
+          buf.append((char)SpellWriter.readVInt(in));
+        prev = buf.toString();
+        words.put(prev, SpellWriter.readVInt(in));
+      }
+    }
+    finally {
+      in.close();
+    }
+    return words;
+  }
+
+  /** Write the text word list: one "word|freq" line per word */
+  private void writeOldWords(Map<String, Integer> words, File file)
+    throws IOException
+  {
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      for (Map.Entry<String, Integer> e : words.entrySet())
+        out.write(e.getKey() + "|" + e.getValue() + "\n");
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Write the text edit map: a line per key listing its words, prefix
+   * compressed, then an index of the keys and their sizes, then the
+   * position of the index.
+   */
+  private void writeOldEdMap(Iterable<String> words, File file)
+    throws IOException
+  {
+    // Make "key|word" lines for each word, in order.
+    TreeSet<String> lines = new TreeSet<String>();
+    for (String word : words) {
+      for (int[] combo : COMBOS) {
+        if (combo[0] < word.length())
+          lines.add(comboKey(word, combo) + "|" + word);
+      }
+    }
+
+    CountedOutputStream counted = new CountedOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file)));
+    Writer out = new OutputStreamWriter(counted, "UTF-8");
+    ArrayList<String> keys = new ArrayList<String>();
+    ArrayList<Long> sizes = new ArrayList<Long>();
+    try
+    {
+      // Write each key's words on one line.
+      String curKey = null;
+      String prev = null;
+      long startPos = 0;
+      for (String line : lines)
+      {
+        String key = line.substring(0, 4);
+        String word = line.substring(5);
+        if (!key.equals(curKey))
+        {
+          if (curKey != null) {
+            out.write('\n');
+            out.flush();
+            sizes.add(counted.nWritten() - startPos);
+            startPos = counted.nWritten();
+          }
+          keys.add(key);
+          curKey = key;
+          out.write(key + "|" + word);
+        }
+        else
+        {
+          int k = 0;
+          while (k < Math.min(prev.length(), word.length()) &&
+                 word.charAt(k) == prev.charAt(k))
+            k++;
+          out.write("|" + (char)('0' + k) + word.substring(k));
+        }
+        prev = word;
+      }
+      out.write('\n');
+      out.flush();
+      sizes.add(counted.nWritten() - startPos);
+
+      // Then the index, and its position.
+      long indexPos = counted.nWritten();
+      out.write("edMap index\n" + keys.size() + "\n");
+      for (int i = 0; i < keys.size(); i++)
+        out.write(keys.get(i) + "|" + sizes.get(i) + "\n");
+      String tmp = Long.toString(indexPos);
+      while (tmp.length() < 20)
+        tmp = " " + tmp;
+      out.write(tmp);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /** Positions of the letters making up each edit map key */
+  private static final int[][] COMBOS = {
+    { 0, 1, 2, 3 }, { 0, 1, 2, 4 }, { 0, 1, 2, 5 }, { 0, 1, 3, 4 },
+    { 0, 1, 3, 5 }, { 0, 1, 4, 5 }, { 0, 2, 3, 4 }, { 0, 2, 3, 5 },
+    { 0, 2, 4, 5 }, { 0, 3, 4, 5 }, { 1, 2, 3, 4 }, { 1, 2, 3, 5 },
+    { 1, 2, 4, 5 }, { 1, 3, 4, 5 }, { 2, 3, 4, 5 }
+  };
+
+  /** Make an edit map key from the given letters of a word */
+  private static String comboKey(String word, int[] combo)
+  {
+    char[] key = new char[4];
+    for (int i = 0; i < 4; i++)
+    {
+      if (combo[i] >= word.length()) {
+        key[i] = ' ';
+        continue;
+      }
+      char c = word.charAt(combo[i]);
+      if (c < 0x20 || (c & ~0x7f) != 0) {
+        c = (char)((c & 0x7f) | 0x20);
+        if (c == '|')
+          c = '*';
+      }
+      key[i] = c;
+    }
+    return new String(key);
+  }
+}
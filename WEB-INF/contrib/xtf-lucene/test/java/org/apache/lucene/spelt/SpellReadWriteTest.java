@@ -150,6 +150,52 @@ public class SpellReadWriteTest extends TestCase
     checkSuggestion("orchards and bery patches", "orchards and berry patches");
   }
   
+  /** Test that many threads can get suggestions at once */
+  public void testConcurrentSuggestions() throws Exception
+  {
+    final String[] inputs = { "newpapers", "bcuk", "news papers", 
+                              "readnewspapers", "orchards and bery patches",
+                              "London", "Bck" };
+    
+    // Work out the expected answers one at a time, without any re-use of
+    // recent suggestions (which the debug writer disables.)
+    //
+    final String[] expected = new String[inputs.length];
+    for (int i = 0; i < inputs.length; i++)
+      expected[i] = StringUtil.join(reader.suggestKeywords(inputs[i].split("\\W+")));
+    reader.setDebugWriter(null);
+    
+    // Now hammer the reader from several threads at once.
+    final Throwable[] error = new Throwable[1];
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) 
+    {
+      final int start = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < 200; i++) {
+              int n = (start + i) % inputs.length;
+              String[] ret = reader.suggestKeywords(inputs[n].split("\\W+"));
+              if (ret != null)
+                ret[0] = "changed"; // mustn't affect later results
+              String got = StringUtil.join(reader.suggestKeywords(inputs[n].split("\\W+")));
+              assertEquals(expected[n], got);
+            }
+          }
+          catch (Throwable e) {
+            synchronized (error) { error[0] = e; }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++)
+      threads[t].join();
+    if (error[0] != null)
+      throw new RuntimeException(error[0]);
+  }
+  
   /** Check that the given series of input words gets the right suggestion */
   private void checkSuggestion(String inWords, String outWords) 
     throws IOException
@@ -0,0 +1,179 @@
+package org.apache.lucene.util;
+
+/**
+ * Copyright (c) 2007, Regents of the University of California
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, 
+ *   this list of conditions and the following disclaimer in the documentation 
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this 
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Compares the speed of the previous single-threaded sorter
+ * ({@link BaselineFileSorter}) with the current {@link FileSorter}, on one
+ * thread and on several, on a generated file of the given size (which
+ * should be several times the memory limit, so that the disk-based merge
+ * gets a real workout.) Checks that all three produce the same output. Not
+ * a unit test; run it by hand:<br><br>
+ *
+ * <code>java org.apache.lucene.util.FileSorterBenchmark sizeMegs
+ * [nThreads] [memLimitMegs] [tmpDir]</code>
+ */
+public class FileSorterBenchmark
+{
+  public static void main(String[] args)
+    throws IOException
+  {
+    if (args.length < 1 || args.length > 4) {
+      System.err.println("Usage: FileSorterBenchmark sizeMegs [nThreads] " +
+                         "[memLimitMegs] [tmpDir]");
+      System.exit(1);
+    }
+
+    long size = Long.parseLong(args[0]) * 1024 * 1024;
+    int nThreads = (args.length > 1) ? Integer.parseInt(args[1])
+                   : Runtime.getRuntime().availableProcessors();
+    int memLimit = (args.length > 2) ? Integer.parseInt(args[2]) * 1024 * 1024
+                   : FileSorter.DEFAULT_MEM_LIMIT;
+    File tmpDir = (args.length > 3) ? new File(args[3]) : null;
+
+    File inFile = File.createTempFile("sortBench", ".in", tmpDir);
+    File baselineOut = File.createTempFile("sortBench", ".out0", tmpDir);
+    File serialOut = File.createTempFile("sortBench", ".out1", tmpDir);
+    File parallelOut = File.createTempFile("sortBench", ".out2", tmpDir);
+    try
+    {
+      System.out.println("Generating " + args[0] + " megs of input...");
+      long nLines = makeInput(inFile, size);
+      System.out.println(nLines + " lines.");
+
+      long startTime = System.currentTimeMillis();
+      BaselineFileSorter.sort(inFile, baselineOut, tmpDir, memLimit);
+      long baselineTime = Math.max(1, System.currentTimeMillis() - startTime);
+      System.out.println("Baseline: " + baselineTime + " ms");
+
+      long serialTime = time(inFile, serialOut, tmpDir, memLimit, 1);
+      System.out.println("1 thread: " + serialTime + " ms (" +
+                         (baselineTime * 100 / serialTime) +
+                         "% of baseline speed)");
+
+      long parallelTime = time(inFile, parallelOut, tmpDir, memLimit,
+                               nThreads);
+      System.out.println("Parallel: " + parallelTime + " ms (" + nThreads +
+                         " threads, " + (baselineTime * 100 / parallelTime) +
+                         "% of baseline speed)");
+
+      if (!sameContents(baselineOut, serialOut) ||
+          !sameContents(baselineOut, parallelOut))
+      {
+        System.err.println("Error: outputs differ!");
+        System.exit(1);
+      }
+      System.out.println("Outputs are identical.");
+    }
+    finally {
+      inFile.delete();
+      baselineOut.delete();
+      serialOut.delete();
+      parallelOut.delete();
+    }
+  } // main()
+
+  /** Time one sort of the input file, in milliseconds */
+  private static long time(File inFile, File outFile, File tmpDir,
+                           int memLimit, int nThreads)
+    throws IOException
+  {
+    long startTime = System.currentTimeMillis();
+    FileSorter.sort(inFile, outFile, tmpDir, memLimit, nThreads);
+    return Math.max(1, System.currentTimeMillis() - startTime);
+  }
+
+  /**
+   * Write random lines, something like the word-frequency lines the spelling
+   * dictionary sorts, until the file reaches the given size.
+   */
+  private static long makeInput(File file, long size)
+    throws IOException
+  {
+    Random rand = new Random(1);
+    BufferedWriter out = new BufferedWriter(new FileWriter(file), 1024 * 1024);
+    StringBuffer buf = new StringBuffer();
+    long nLines = 0;
+    long nBytes = 0;
+    try
+    {
+      while (nBytes < size)
+      {
+        buf.setLength(0);
+        int len = 3 + rand.nextInt(10);
+        for (int i = 0; i < len; i++)
+          buf.append((char)('a' + rand.nextInt(26)));
+        buf.append('|');
+        buf.append(rand.nextInt(1000));
+        out.write(buf.toString());
+        out.write('\n');
+        nBytes += buf.length() + 1;
+        nLines++;
+      }
+    }
+    finally {
+      out.close();
+    }
+    return nLines;
+  }
+
+  /** Check whether two files have exactly the same contents */
+  private static boolean sameContents(File f1, File f2)
+    throws IOException
+  {
+    if (f1.length() != f2.length())
+      return false;
+    InputStream in1 = new BufferedInputStream(new FileInputStream(f1), 65536);
+    InputStream in2 = new BufferedInputStream(new FileInputStream(f2), 65536);
+    try
+    {
+      while (true) {
+        int b = in1.read();
+        if (b != in2.read())
+          return false;
+        if (b < 0)
+          return true;
+      }
+    }
+    finally {
+      in1.close();
+      in2.close();
+    }
+  }
+} // class FileSorterBenchmark
@@ -35,6 +35,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -93,4 +94,66 @@ public class FileSorterTest extends TestCase
       tmpOut.delete();
     }
   }
+
+  public void testParallel() throws IOException
+  {
+    // Enough lines to make many runs, which get sorted on several threads.
+    checkSort(4, FileSorter.DEFAULT_MERGE_FACTOR, true);
+  }
+
+  public void testMultiPass() throws IOException
+  {
+    // Merge only a few runs at a time, forcing intermediate merge passes.
+    checkSort(1, 3, false);
+    checkSort(3, 3, true);
+  }
+
+  /** Sort random lines through the advanced API and check the results. */
+  private void checkSort(int nThreads, int mergeFactor, boolean compress)
+    throws IOException
+  {
+    final int NLINES = 20000;
+    String[] lines = new String[NLINES];
+    Random rand = new Random(nThreads * 100 + mergeFactor);
+    StringBuffer buf = new StringBuffer();
+    for (int i=0; i<NLINES; i++) {
+      buf.setLength(0);
+      int len = rand.nextInt(40);
+      for (int j=0; j<len; j++)
+        buf.append((char)(rand.nextInt(300) + 32));
+      lines[i] = buf.toString();
+    }
+
+    FileSorter sorter = FileSorter.start(null, 30000);
+    sorter.setThreads(nThreads);
+    sorter.setMergeFactor(mergeFactor);
+    sorter.setCompressRuns(compress);
+    final long[] lastProgress = new long[1];
+    ProgressTracker prog = new ProgressTracker() {
+      public void report(int pctDone, String descrip) {
+        assertTrue(pctDone >= lastProgress[0]);
+        lastProgress[0] = pctDone;
+      }
+    };
+    prog.setMinInterval(0);
+    sorter.setProgressTracker(prog);
+    for (int i=0; i<NLINES; i++)
+      sorter.addLine(lines[i]);
+    assertEquals(NLINES, sorter.nLinesAdded());
+
+    final ArrayList out = new ArrayList();
+    sorter.finish(new FileSorter.Output() {
+      public void writeLine(String line) {
+        out.add(line);
+      }
+      public void close() {
+      }
+    });
+
+    Arrays.sort(lines);
+    assertEquals(NLINES, out.size());
+    for (int i=0; i<NLINES; i++)
+      assertEquals(lines[i], out.get(i));
+    assertEquals(100, lastProgress[0]);
+  }
 }
@@ -0,0 +1,88 @@
+package org.apache.lucene.util;
+
+/**
+ * Copyright (c) 2007, Regents of the University of California
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, 
+ *   this list of conditions and the following disclaimer in the documentation 
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this 
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** 
+ * Test the {@link LongSorter} class
+ */
+public class LongSorterTest extends TestCase
+{
+  /** Everything fits in memory, but is still sorted on several threads */
+  public void testInMemory() throws IOException
+  {
+    checkSort(200000, 100 * 1024 * 1024, 4);
+  }
+
+  /** Small memory limit forces runs to be written to disk and merged */
+  public void testRuns() throws IOException
+  {
+    checkSort(200000, 8 * 20000, 3);
+    checkSort(200000, 8 * 20000, 1);
+  }
+
+  public void testEmpty() throws IOException
+  {
+    checkSort(0, 8192, 2);
+  }
+
+  /** Sort random values (including negatives and duplicates) and check */
+  private void checkSort(int nValues, long memLimit, int nThreads)
+    throws IOException
+  {
+    Random rand = new Random(1);
+    final long[] values = new long[nValues];
+    LongSorter sorter = LongSorter.start(null, memLimit, nThreads);
+    for (int i = 0; i < nValues; i++) {
+      values[i] = ((i % 10) == 0 && i > 0) ? values[i - 1] : rand.nextLong();
+      sorter.add(values[i]);
+    }
+    assertEquals(nValues, sorter.nAdded());
+
+    Arrays.sort(values);
+    final int[] nOut = new int[1];
+    final boolean[] closed = new boolean[1];
+    sorter.finish(new LongSorter.Output() {
+      public void write(long val) {
+        assertEquals(values[nOut[0]++], val);
+      }
+      public void close() {
+        closed[0] = true;
+      }
+    });
+    assertEquals(nValues, nOut[0]);
+    assertTrue(closed[0]);
+  }
+}
@@ -0,0 +1,517 @@
+package org.cdlib.xtf.cache;
+
+
+/**
+ * Copyright (c) 2004, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache that generates an entry if one isn't found, like
+ * {@link GeneratingCache}, but that can be used by many threads at once.
+ * Lookups of existing entries never block. If several threads miss on the
+ * same key at the same time, only one of them calls generate(); the others
+ * wait for it to finish and share the result. Generating a value for one key
+ * doesn't hold up lookups or generation for any other key.<br><br>
+ *
+ * Entries are expired on a least-recently-used basis to maintain the max
+ * entry count and max time, just as in {@link Cache}. Lookups don't keep
+ * the entries in order; instead, when the cache grows past its max size
+ * the entries are sorted by last use and the oldest removed. Checking for
+ * entries past the max time is only done once a second. Still, since both
+ * of these look at every entry, this class is meant for caches of modest
+ * size (stylesheets, IP lists, images and the like.)
+ */
+public abstract class ConcurrentGeneratingCache<K,V> 
+{
+  /**
+   * Constructor - sets up the parameters of the cache.
+   *
+   * @param maxEntries    Maximum # of entries. Beyond this, older ones
+   *                      will be removed. Zero means no limit.
+   * @param maxTime       Time (in seconds) an entry can stay in the cache
+   *                      without being used. Entries older than this will
+   *                      be removed. Zero means no limit.
+   */
+  public ConcurrentGeneratingCache(int maxEntries, int maxTime) 
+  {
+    this.maxEntries = maxEntries;
+    this.maxTime = maxTime;
+  }
+
+  /**
+   * Check the cache for an entry matching the given key. If not found,
+   * one is generated. If another thread is already generating the same
+   * key, we wait for it rather than generating it again.
+   *
+   * @param key   The key to look up
+   * @return      Value corresponding to that key. Never null.
+   */
+  public V find(K key)
+    throws Exception 
+  {
+    while (true) 
+    {
+      // If there's no entry yet, try to claim the job of making one.
+      Entry entry = keyMap.get(key);
+      if (entry == null) {
+        Entry newEntry = new Entry(key);
+        entry = keyMap.putIfAbsent(key, newEntry);
+        if (entry == null)
+          return generateEntry(newEntry);
+      }
+
+      // If this thread is the one generating the entry (i.e. generate() 
+      // asked for its own key, directly or by way of other keys), waiting
+      // for it would never end.
+      //
+      if (!entry.isReady() && isGeneratingEntry(entry)) {
+        throw new IllegalStateException(
+          "Circular reference while generating cache entry for '" + key + "'");
+      }
+
+      // Wait for the value to be ready (normally it already is.) If the
+      // generation failed, everyone waiting gets the same exception.
+      //
+      entry.awaitReady();
+      if (entry.failure != null) {
+        if (entry.failure instanceof Exception)
+          throw (Exception)entry.failure;
+        throw (Error)entry.failure;
+      }
+
+      // If dependency checks pass, freshen the entry and return.
+      if (entry.dependenciesValid()) {
+        entry.lastUsedTime = System.currentTimeMillis();
+        entry.useCount = useCounter.incrementAndGet();
+        if (maxTime > 0)
+          cleanup();
+        return entry.value;
+      }
+
+      // Stale: remove it and try again.
+      if (keyMap.remove(key, entry)) {
+        logAction("Removed (stale dependencies)", key, entry.value);
+        notifyRemoved(entry);
+      }
+    }
+  } // find()
+
+  /**
+   * Does the work of generating a value for a new entry, recording the
+   * outcome so that other threads waiting on it can proceed.
+   */
+  private V generateEntry(Entry entry)
+    throws Exception 
+  {
+    Entry prevEntry = curEntry.get();
+    entry.outer = prevEntry;
+    curEntry.set(entry);
+    try 
+    {
+      entry.value = generate(entry.key);
+      entry.lastUsedTime = entry.setTime = System.currentTimeMillis();
+      entry.useCount = useCounter.incrementAndGet();
+      logAction("Generated", entry.key, entry.value);
+    }
+    catch (Exception e) {
+      entry.failure = e;
+      keyMap.remove(entry.key, entry);
+      throw e;
+    }
+    catch (Error e) {
+      entry.failure = e;
+      keyMap.remove(entry.key, entry);
+      throw e;
+    }
+    finally {
+      curEntry.set(prevEntry);
+      entry.markReady();
+    }
+
+    // If the entry was removed while we were generating it, make sure
+    // the derived class hears about it.
+    //
+    if (keyMap.get(entry.key) != entry)
+      notifyRemoved(entry);
+
+    // Since we've added an entry, clean up if necessary.
+    cleanup();
+    return entry.value;
+  } // generateEntry()
+
+  /**
+   * Can be called by the generate() method to add a dependency to the
+   * key being generated.
+   *
+   * @param d     The dependency to add
+   */
+  public void addDependency(Dependency d) {
+    Entry entry = curEntry.get();
+    assert entry != null : "addDependency() may only be called from within generate()";
+    entry.dependencies.add(d);
+  }
+
+  /**
+   * Find out whether the current thread is inside a call to generate() on
+   * this cache (and can thus call {@link #addDependency(Dependency)}.)
+   */
+  public boolean isGenerating() {
+    return curEntry.get() != null;
+  }
+
+  /**
+   * Check whether the current thread is generating the given entry, 
+   * possibly as the outer of several nested calls to generate().
+   */
+  private boolean isGeneratingEntry(Entry entry) 
+  {
+    for (Entry e = curEntry.get(); e != null; e = e.outer) {
+      if (e == entry)
+        return true;
+    }
+    return false;
+  } // isGeneratingEntry()
+
+  /**
+   * Checks if the cache currently contains a valid entry for the given key.
+   * If an entry exists but has stale dependencies, it is removed and
+   * false is returned. Otherwise, if one exists it is freshened (i.e. its
+   * expiration countdown is reset). An entry still being generated doesn't
+   * count.
+   *
+   * @param key   The key to look for.
+   * @return      true iff the key has a valid entry in the cache.
+   */
+  public boolean has(K key) 
+  {
+    Entry entry = keyMap.get(key);
+    if (entry == null || !entry.isReady() || entry.failure != null)
+      return false;
+
+    if (entry.dependenciesValid()) {
+      entry.lastUsedTime = System.currentTimeMillis();
+      entry.useCount = useCounter.incrementAndGet();
+      return true;
+    }
+
+    if (keyMap.remove(key, entry)) {
+      logAction("Removed (stale dependencies)", key, entry.value);
+      notifyRemoved(entry);
+    }
+    return false;
+  } // has()
+
+  /**
+   * Gets the time the entry for the given key was created, or zero if the
+   * key isn't present. The time is number of milliseconds since the epoch,
+   * just like System.currentTimeMillis().
+   */
+  public long lastSet(K key) {
+    Entry entry = keyMap.get(key);
+    return (entry == null || !entry.isReady()) ? 0 : entry.setTime;
+  } // lastSet()
+
+  /**
+   * Check the dependencies of a cache entry, if present.
+   *
+   * @param key   The key to check
+   * @return      true iff the cache entry for the key is still valid.
+   */
+  public boolean dependenciesValid(K key) {
+    Entry entry = keyMap.get(key);
+    return entry != null && entry.isReady() && entry.dependenciesValid();
+  } // dependenciesValid()
+
+  /**
+   * Get the list of dependencies for a cache entry, if present.
+   *
+   * @param key   The key to check
+   * @return      An iterator that will produce each dependency (possibly
+   *              none.)
+   */
+  public Iterator<Dependency> getDependencies(K key) 
+  {
+    Entry entry = keyMap.get(key);
+    if (entry == null || !entry.isReady())
+      return Collections.<Dependency>emptyList().iterator();
+    return entry.dependencies.iterator();
+  } // getDependencies()
+
+  /**
+   * Remove an entry from the cache.
+   *
+   * @param key   The key to look up
+   * @return      The value that was held for the key, or null if not found.
+   */
+  public V remove(K key) 
+  {
+    Entry entry = keyMap.remove(key);
+    if (entry == null)
+      return null;
+    logAction("Removed", key, entry.value);
+    notifyRemoved(entry);
+    return entry.value;
+  } // remove()
+
+  /** Remove all entries from the cache. */
+  public void clear() {
+    for (K key : keyMap.keySet())
+      remove(key);
+  }
+
+  /** Tells how many entries are currently cached */
+  public int size() {
+    return keyMap.size();
+  }
+
+  /**
+   * Maintains the maxEntries and maxTime constraints imposed on the cache.
+   * Only one thread does this at a time; if another is already at it,
+   * we don't bother. This is called on every lookup, so it returns right
+   * away unless the cache is too big or it's time to check for old entries.
+   */
+  protected void cleanup() 
+  {
+    long now = System.currentTimeMillis();
+    boolean checkTime = maxTime > 0 && now >= nextTimeCheck;
+    boolean checkSize = maxEntries > 0 && keyMap.size() > maxEntries;
+    if (!checkTime && !checkSize)
+      return;
+
+    if (!cleanupLock.tryLock())
+      return;
+    try 
+    {
+      // Is it time to check for old entries?
+      if (checkTime) 
+      {
+        nextTimeCheck = now + TIME_CHECK_INTERVAL;
+
+        // Remove entries that haven't been used within the max time.
+        long expireTime = now - (maxTime * 1000L);
+        for (Entry entry : keyMap.values()) 
+        {
+          if (entry.isReady() && entry.lastUsedTime < expireTime &&
+              keyMap.remove(entry.key, entry)) 
+          {
+            logAction(
+              "Expired due to over-age... age is " +
+              ((System.currentTimeMillis() - entry.lastUsedTime) / 1000) +
+              " sec, must be < " + maxTime + " sec.",
+              entry.key,
+              entry.value);
+            notifyRemoved(entry);
+          }
+        }
+      }
+
+      // Do we have a size constraint? If so, put the entries in order of
+      // last use, and remove least-recently-used ones until we meet it.
+      // Each use gets a distinct sequence number, so they make a good key.
+      //
+      if (maxEntries > 0 && keyMap.size() > maxEntries) 
+      {
+        TreeMap<Long, Entry> byUse = new TreeMap<Long, Entry>();
+        for (Entry entry : keyMap.values()) {
+          if (entry.isReady())
+            byUse.put(entry.useCount, entry);
+        }
+
+        Iterator<Entry> iter = byUse.values().iterator();
+        while (keyMap.size() > maxEntries && iter.hasNext()) 
+        {
+          Entry oldest = iter.next();
+          if (keyMap.remove(oldest.key, oldest)) {
+            logAction(
+              "Expired to maintain max # cache entries... was " +
+              (keyMap.size() + 1) + ", must be <= " + maxEntries,
+              oldest.key,
+              oldest.value);
+            notifyRemoved(oldest);
+          }
+        }
+      }
+    }
+    finally {
+      cleanupLock.unlock();
+    }
+  } // cleanup()
+
+  /**
+   * Called when find() fails to locate an entry for the given key. This
+   * method must be supplied by the derived class, and must produce a value
+   * for the key, or throw an exception if it can't. It may be called by
+   * several threads at once, though never for the same key.
+   *
+   * @param   key         The key to generate a value for.
+   * @return              The value for that key
+   * @throws Exception    If a value cannot be generated for any reason.
+   */
+  protected abstract V generate(K key)
+    throws Exception;
+
+  /**
+   * Calls valueRemoved() for an entry that has left the map, making sure
+   * it's called only once, and only if the value was actually generated.
+   * (An entry removed while still being generated is reported by the
+   * generating thread instead.)
+   */
+  private void notifyRemoved(Entry entry) 
+  {
+    if (entry.isReady() && entry.failure == null &&
+        entry.removeNotified.compareAndSet(false, true))
+      valueRemoved(entry.key, entry.value);
+  } // notifyRemoved()
+
+  /**
+   * Derived classes can override this method to print out log messages
+   * when significant things happen (entries are added, removed, expired,
+   * etc.)
+   *
+   * @param action    What happened ("Added", "Removed", etc.)
+   * @param key       The key involved in the action
+   * @param value     The value involved in the action
+   */
+  protected void logAction(String action, K key, V value) {
+  }
+
+  /**
+   * Called whenever a successfully generated value leaves the cache
+   * (whether removed, expired, or found stale.) Derived classes can
+   * override this to release resources held by the value. Note that
+   * another thread may still be using the value when this is called.
+   *
+   * @param key       The key that was removed
+   * @param value     The value that was held for it
+   */
+  protected void valueRemoved(K key, V value) {
+  }
+
+  /** An entry in the cache, possibly still being generated */
+  private class Entry 
+  {
+    /** The key being tracked */
+    final K key;
+
+    /** The generated value for that key */
+    volatile V value;
+
+    /** If generation failed, the reason why */
+    volatile Throwable failure;
+
+    /** The time (millis since epoch) since the entry was used */
+    volatile long lastUsedTime;
+
+    /** Sequence number of the most recent use, for LRU ordering */
+    volatile long useCount;
+
+    /** The time (millis since epoch) the entry was created */
+    volatile long setTime;
+
+    /** Things this entry depends on (only added to during generation) */
+    final List<Dependency> dependencies = 
+      Collections.synchronizedList(new ArrayList<Dependency>());
+
+    /** 
+     * Entry the same thread was generating when it started on this one, if
+     * any (only used by that thread.)
+     */
+    Entry outer;
+
+    /** Set once valueRemoved() has been called for this entry */
+    final AtomicBoolean removeNotified = new AtomicBoolean(false);
+
+    /** Released when the value (or failure) is ready */
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    Entry(K key) {
+      this.key = key;
+    }
+
+    boolean isReady() {
+      return ready.getCount() == 0;
+    }
+
+    void markReady() {
+      ready.countDown();
+    }
+
+    void awaitReady() throws InterruptedException {
+      ready.await();
+    }
+
+    boolean dependenciesValid() 
+    {
+      synchronized (dependencies) {
+        for (Dependency d : dependencies) {
+          if (!d.validate())
+            return false;
+        }
+      }
+      return true;
+    }
+  } // class Entry
+
+  /** Maximum number of entries the cache may contain (zero for no limit) */
+  private final int maxEntries;
+
+  /**
+   * Maximum amount of time (in seconds) an entry can stay in the cache
+   * without being used (zero for no limit.)
+   */
+  private final int maxTime;
+
+  /** Maps each key to its entry */
+  private final ConcurrentHashMap<K, Entry> keyMap = 
+    new ConcurrentHashMap<K, Entry>();
+
+  /** Hands out use sequence numbers, for least-recently-used ordering */
+  private final AtomicLong useCounter = new AtomicLong();
+
+  /** How often (in milliseconds) to check for entries past the max time */
+  private static final long TIME_CHECK_INTERVAL = 1000;
+
+  /** When to next check for entries past the max time */
+  private volatile long nextTimeCheck = 0;
+
+  /** Makes sure only one thread at a time is cleaning up */
+  private final ReentrantLock cleanupLock = new ReentrantLock();
+
+  /** The entry being generated by each thread (if any) */
+  private final ThreadLocal<Entry> curEntry = new ThreadLocal<Entry>();
+} // class ConcurrentGeneratingCache
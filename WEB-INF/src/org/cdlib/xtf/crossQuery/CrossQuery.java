@@ -46,6 +46,7 @@ import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.trace.TraceListener;
 import net.sf.saxon.tree.TreeBuilder;
 
+import org.cdlib.xtf.cache.SimpleCache;
 import org.cdlib.xtf.servletBase.StylesheetCache;
 import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.servletBase.TextServlet;
@@ -56,6 +57,7 @@ import org.cdlib.xtf.textEngine.QueryRequest;
 import org.cdlib.xtf.textEngine.QueryRequestParser;
 import org.cdlib.xtf.textEngine.QueryResult;
 import org.cdlib.xtf.util.AttribList;
+import org.cdlib.xtf.util.Metrics;
 import org.cdlib.xtf.util.Trace;
 import org.cdlib.xtf.util.XMLFormatter;
 import org.cdlib.xtf.util.XMLWriter;
@@ -77,6 +79,9 @@ public class CrossQuery extends TextServlet
   /** Used for stylesheet profiling, if enabled */
   protected TimeProfilingListener profListener;
 
+  /** Requests already parsed, keyed by the query parser output */
+  protected SimpleCache<String, QueryRequest> parsedRequests;
+
   /**
    * Called by the superclass to find out the name of our specific config
    * file.
@@ -93,6 +98,10 @@ public class CrossQuery extends TextServlet
     // Load the configuration file.
     config = new CrossQueryConfig(this, configPath);
 
+    // Start over with parsed requests, since the config may have changed.
+    parsedRequests = (config.queryPlanCacheSize > 0) ?
+      new SimpleCache<String, QueryRequest>(config.queryPlanCacheSize, 0) : null;
+
     // And we're done.
     return config;
   } // readConfig()
@@ -192,20 +201,27 @@ public class CrossQuery extends TextServlet
     long startTime = System.currentTimeMillis();
 
     // If a query router was specified, run it.
+    long phaseStart = System.nanoTime();
     QueryRoute queryRoute = runQueryRouter(req, res, attribs);
     if (queryRoute == null)
       return;
+    Metrics.recordTime(metricName("queryRouter"), phaseStart);
 
     // Generate a query request.
+    phaseStart = System.nanoTime();
     QueryRequest queryReq = runQueryParser(req, res, queryRoute, attribs);
     if (queryReq == null)
       return;
+    Metrics.recordTime(metricName("queryParser"), phaseStart);
 
     // Process it to generate result document hits
+    phaseStart = System.nanoTime();
     QueryProcessor proc = createQueryProcessor();
     QueryResult queryResult = proc.processRequest(queryReq);
+    Metrics.recordTime(metricName("processRequest"), phaseStart);
 
     // Format the hits for the output document.
+    phaseStart = System.nanoTime();
     formatHits("crossQueryResult",
                req,
                res,
@@ -213,6 +229,7 @@ public class CrossQuery extends TextServlet
                queryReq,
                queryResult,
                startTime);
+    Metrics.recordTime(metricName("resultFormatter"), phaseStart);
   } // apply()
 
   /**
@@ -391,14 +408,27 @@ public class CrossQuery extends TextServlet
     if (shuntQueryReq(req, res, queryReqDoc))
       return null;
 
-    // Process it to generate result document hits
-    QueryRequest queryReq = new QueryRequestParser().parseRequest(queryReqDoc,
-      new File(
-        getRealPath("")));
+    // Identical parser output always makes an identical request, so if
+    // we've seen this one before, just copy the earlier request.
+    //
+    String parserOutput = XMLWriter.toString(queryReqDoc, false);
+    QueryRequest queryReq = (parsedRequests == null) ? null
+                            : parsedRequests.get(parserOutput);
+    if (queryReq != null)
+      queryReq = (QueryRequest)queryReq.clone();
+    else 
+    {
+      // Process it to generate result document hits
+      queryReq = new QueryRequestParser().parseRequest(queryReqDoc,
+        new File(
+          getRealPath("")));
+      if (parsedRequests != null)
+        parsedRequests.set(parserOutput, (QueryRequest)queryReq.clone());
+    }
 
     // Fill in the auxiliary info
     queryReq.parserInput = fmt.toString();
-    queryReq.parserOutput = XMLWriter.toString(queryReqDoc, false);
+    queryReq.parserOutput = parserOutput;
 
     // All done.
     return queryReq;
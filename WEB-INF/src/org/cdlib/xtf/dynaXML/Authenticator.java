@@ -649,7 +649,7 @@ class Authenticator
    * This class is used to cache IP maps so we don't have to load the
    * same ones over and over.
    */
-  private class IpListCache extends GeneratingCache 
+  private class IpListCache extends ConcurrentGeneratingCache<String, IpList> 
   {
     private boolean dependencyChecking;
 
@@ -669,18 +669,17 @@ class Authenticator
     public IpList find(String path)
       throws Exception 
     {
-      return (IpList)super.find(path);
+      return super.find(path);
     }
 
     /**
      * Load an IP list from the filesystem.
-     * @param key       Full path of the file to load
+     * @param path      Full path of the file to load
      * @throws Exception If not found or bad format.
      */
-    protected Object generate(Object key)
+    protected IpList generate(String path)
       throws Exception 
     {
-      String path = (String)key;
       if (dependencyChecking)
         addDependency(new FileDependency(path));
 
@@ -691,8 +690,8 @@ class Authenticator
     } // generate()
 
     /** Prints out useful debugging info */
-    protected void logAction(String action, Object key, Object value) {
-      Trace.warning("IpListCache: " + action + ". Path=" + (String)key);
+    protected void logAction(String action, String key, IpList value) {
+      Trace.warning("IpListCache: " + action + ". Path=" + key);
     } // logAction()
   } // class IpListCache
 } // class Authenticator
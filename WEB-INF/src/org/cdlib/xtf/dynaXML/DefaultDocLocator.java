@@ -45,6 +45,7 @@ import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.servletBase.TextServlet;
 import org.cdlib.xtf.textEngine.IndexUtil;
 import org.cdlib.xtf.util.DocTypeDeclRemover;
+import org.cdlib.xtf.util.MappedStructuredFile;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.StructuredFile;
 import org.cdlib.xtf.util.StructuredStore;
@@ -181,7 +182,9 @@ public class DefaultDocLocator implements DocLocator
                      stripWhitespace);
     }
 
-    // Cool. Open the lazy file.
+    // Cool. Open the lazy file, memory-mapped if so configured.
+    if (config instanceof DynaXMLConfig && ((DynaXMLConfig)config).mapLazyFiles)
+      return MappedStructuredFile.open(lazyFile);
     return StructuredFile.open(lazyFile);
   } // getLazyStore()
 
@@ -55,6 +55,7 @@ import net.sf.saxon.trace.TraceListener;
 import net.sf.saxon.trans.KeyManager;
 import net.sf.saxon.tree.TreeBuilder;
 
+import org.cdlib.xtf.cache.Dependency;
 import org.cdlib.xtf.servletBase.RedirectException;
 import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.servletBase.TextServlet;
@@ -64,6 +65,7 @@ import org.cdlib.xtf.textEngine.QueryRequestParser;
 import org.cdlib.xtf.util.AttribList;
 import org.cdlib.xtf.util.EasyNode;
 import org.cdlib.xtf.util.GeneralException;
+import org.cdlib.xtf.util.Metrics;
 import org.cdlib.xtf.util.StructuredStore;
 import org.cdlib.xtf.util.Trace;
 import org.cdlib.xtf.util.XMLFormatter;
@@ -100,6 +102,9 @@ public class DynaXML extends TextServlet
   /** Locator used to find lazy and non-lazy document files */
   private DocLocator docLocator = createDocLocator();
 
+  /** Lazy documents kept open between requests (null if disabled) */
+  private LazyDocumentCache lazyDocCache;
+
   /**
    * Called by the superclass to find out the name of our specific config
    * file.
@@ -120,6 +125,17 @@ public class DynaXML extends TextServlet
     // Create a helper for authentication.
     authenticator = new Authenticator(this);
 
+    // Close any documents left open by a previous configuration, and
+    // make a new cache for them.
+    //
+    if (lazyDocCache != null)
+      lazyDocCache.clear();
+    lazyDocCache = null;
+    if (config.lazyDocCacheSize > 0) {
+      lazyDocCache = new LazyDocumentCache(config.lazyDocCacheSize,
+                                           config.lazyDocCacheExpire);
+    }
+
     // And we're done.
     return config;
   } // readConfig()
@@ -228,6 +244,7 @@ public class DynaXML extends TextServlet
       Trace.debug("Processing request: " + getRequestURL(req));
 
       // Run the document request parser
+      long phaseStart = System.nanoTime();
       DocRequest docReq = runDocReqParser(req, makeAttribList(req));
 
       // If source overridden in the URL, make sure it's really
@@ -244,10 +261,13 @@ public class DynaXML extends TextServlet
         if (!docFile.canRead())
           throw new InvalidDocumentException();
       }
+      Metrics.recordTime(metricName("docLocator"), phaseStart);
 
       // Authenticate (if necessary)
+      phaseStart = System.nanoTime();
       if (!authenticate(docReq, req, res))
         return;
+      Metrics.recordTime(metricName("auth"), phaseStart);
 
       // This does the bulk of the work.
       apply(docReq, req, res);
@@ -284,9 +304,9 @@ public class DynaXML extends TextServlet
     // having to throw away the stylesheet entry, we record the current
     // dependencies so we can restore them later.
     // 
-    Iterator di = stylesheetCache.getDependencies(
+    Iterator<Dependency> di = stylesheetCache.getDependencies(
       config.docLookupSheet);
-    LinkedList oldStylesheetDeps = new LinkedList();
+    LinkedList<Dependency> oldStylesheetDeps = new LinkedList<Dependency>();
     while (di.hasNext())
       oldStylesheetDeps.add(di.next());
 
@@ -473,10 +493,14 @@ public class DynaXML extends TextServlet
     // stuff the output tags into parameters. They can be whatever the 
     // stylesheet writer desires.
     //
+    long phaseStart = System.nanoTime();
     readBranding(docReq.brand, req, transformer);
+    Metrics.recordTime(metricName("branding"), phaseStart);
 
     // Get the source document.
+    phaseStart = System.nanoTime();
     Source sourceDoc = getSourceDoc(docReq, transformer);
+    Metrics.recordTime(metricName("lazyStore"), phaseStart);
 
     // If we are in raw mode, use a null transform instead of the
     // stylesheet.
@@ -509,8 +533,10 @@ public class DynaXML extends TextServlet
     // Now do the bulk of the work
     try 
     {
+      phaseStart = System.nanoTime();
       transformer.transform(sourceDoc,
                             createFilteredReceiver(transformer, req, res));
+      Metrics.recordTime(metricName("transform"), phaseStart);
     }
     finally 
     {
@@ -535,6 +561,8 @@ public class DynaXML extends TextServlet
       }
 
       // It's a good idea to close disk-based trees when done using them.
+      // (Shared documents are only really closed by their last user.)
+      //
       if (sourceDoc instanceof PersistentTree)
         ((PersistentTree)sourceDoc).close();
     }
@@ -631,6 +659,22 @@ public class DynaXML extends TextServlet
       tree.search(createQueryProcessor(), docReq.query);
       sourceDoc = tree;
     }
+    else if (lazyDocCache != null && !this.config.stylesheetProfiling) 
+    {
+      // Plain lazy trees are never modified, so they can be shared with
+      // other requests. Profiling is the exception, since the profile
+      // listener is attached to the document.
+      //
+      try {
+        sourceDoc = lazyDocCache.find(lazyStore, config);
+      }
+      catch (IOException e) {
+        throw e;
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
     else {
       LazyTreeBuilder builder = new LazyTreeBuilder(config);
       builder.setNamePool(NamePool.getDefaultNamePool());
@@ -642,6 +686,9 @@ public class DynaXML extends TextServlet
     //
     ((LazyDocument)sourceDoc).setDebug(true);
 
+    // Limit how many nodes the document keeps in memory.
+    ((LazyDocument)sourceDoc).setNodeCacheSize(this.config.lazyNodeCacheSize);
+
     // We need a special key manager on the lazy tree, so that we can
     // use lazily stored keys on disk.
     //
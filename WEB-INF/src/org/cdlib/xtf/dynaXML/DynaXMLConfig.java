@@ -29,6 +29,7 @@ package org.cdlib.xtf.dynaXML;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import org.cdlib.xtf.lazyTree.LazyDocument;
 import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.util.GeneralException;
 
@@ -71,12 +72,24 @@ class DynaXMLConfig extends TextConfig
   /** Max amount of time (seconds) before IP list is automatically reloaded */
   public int ipListCacheExpire = 15 * 60; // 15 minutes
 
+  /** Max # of lazy documents to keep open between requests */
+  public int lazyDocCacheSize = 20;
+
+  /** Max amount of time (seconds) an unused lazy document is kept open */
+  public int lazyDocCacheExpire = 15 * 60; // 15 minutes
+
   /** Whether to use lazy files */
   public boolean useLazyFiles = true;
   
   /** Whether to generate lazy files alone (outside of textIndexer) */
   public boolean buildLazyFilesAlone = false;
 
+  /** Whether to read lazy files through memory-mapped buffers */
+  public boolean mapLazyFiles = false;
+
+  /** Max # of nodes to keep in memory for each lazy document */
+  public int lazyNodeCacheSize = LazyDocument.DEFAULT_NODE_CACHE_SIZE;
+
   /**
    * Constructor - Reads and parses the global configuration file (XML) for
    * the servlet.
@@ -129,6 +142,14 @@ class DynaXMLConfig extends TextConfig
       ipListCacheExpire = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("lazyDocCache.size")) {
+      lazyDocCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("lazyDocCache.expire")) {
+      lazyDocCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
     else if (tagAttr.equalsIgnoreCase("authCache.size")) {
       authCacheSize = parseInt(tagAttr, strVal);
       return true;
@@ -153,6 +174,14 @@ class DynaXMLConfig extends TextConfig
       buildLazyFilesAlone = parseBoolean(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("lazyTrees.memoryMap")) {
+      mapLazyFiles = parseBoolean(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("lazyTrees.nodeCacheSize")) {
+      lazyNodeCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
 
     // Don't recognize it... see if the base class does.
     return super.handleProperty(tagAttr, strVal);
@@ -0,0 +1,180 @@
+package org.cdlib.xtf.dynaXML;
+
+
+/*
+ * Copyright (c) 2004, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.HashMap;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NamePool;
+
+import org.cdlib.xtf.cache.ConcurrentGeneratingCache;
+import org.cdlib.xtf.lazyTree.LazyDocument;
+import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
+import org.cdlib.xtf.util.StructuredStore;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Keeps lazy documents open between requests, so that popular documents
+ * don't have to be re-opened (and their node caches re-warmed) every time.
+ * Entries are keyed by the store the lazy file is open as. The store stays
+ * the same while the file is in use, even as indexes are added to it, but
+ * a re-built lazy file is opened as a new store (see
+ * {@link org.cdlib.xtf.util.StructuredFile}), so it gets a fresh document,
+ * and the document for the old version is closed as soon as the new one is
+ * asked for. The documents are shared by all the requests using them at
+ * the same time, so only plain lazy trees belong here; search trees modify
+ * their nodes and must be built per request.
+ */
+class LazyDocumentCache extends ConcurrentGeneratingCache<LazyDocumentCache.Key, LazyDocument> 
+{
+  /** Newest key seen for each lazy file path */
+  private HashMap<String, Key> newestKeys = new HashMap<String, Key>();
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries    Max # of documents to keep open
+   * @param maxTime       Max time (in seconds) a document can remain unused
+   *                      before it is closed. Zero means no limit.
+   */
+  LazyDocumentCache(int maxEntries, int maxTime) {
+    super(maxEntries, maxTime);
+  }
+
+  /**
+   * Get the document for a lazy store, loading it if it isn't already
+   * cached. The caller gives up the store either way (it is either used by
+   * the new document or closed), and must call close() on the document
+   * when done with it.
+   *
+   * @param store   Lazy store, freshly opened by a {@link DocLocator}
+   * @param config  Saxon configuration to load the document with
+   * @return        The document, acquired for the caller
+   */
+  public LazyDocument find(StructuredStore store, Configuration config)
+    throws Exception 
+  {
+    Key key = new Key(store, config);
+    try 
+    {
+      // If the lazy file has been re-built, drop the document for the old
+      // version so it doesn't hold the old file open.
+      //
+      Key oldKey = null;
+      synchronized (newestKeys) {
+        Key prev = newestKeys.get(key.path);
+        if (prev == null || prev.store != key.store) {
+          newestKeys.put(key.path, key);
+          oldKey = prev;
+        }
+      }
+      if (oldKey != null)
+        remove(oldKey);
+
+      while (true) 
+      {
+        // If we generated a new document, it's already been acquired for us.
+        LazyDocument doc = find(key);
+        if (key.storeUsed)
+          return doc;
+  
+        // Otherwise, grab a reference. If it was closed in the meantime
+        // (due to being bumped from the cache), try again.
+        //
+        if (doc.tryAcquire())
+          return doc;
+        remove(key);
+      }
+    }
+    finally {
+      if (!key.storeUsed)
+        store.close();
+    }
+  } // find()
+
+  /**
+   * Load a lazy document from the store recorded in the key.
+   */
+  protected LazyDocument generate(Key key)
+    throws Exception 
+  {
+    LazyTreeBuilder builder = new LazyTreeBuilder(key.config);
+    builder.setNamePool(NamePool.getDefaultNamePool());
+    LazyDocument doc = (LazyDocument)builder.load(key.store);
+
+    // One reference for the cache, and one for the caller.
+    doc.tryAcquire();
+    key.storeUsed = true;
+    return doc;
+  } // generate()
+
+  /** Close documents as they leave the cache */
+  protected void valueRemoved(Key key, LazyDocument doc) {
+    doc.close();
+  }
+
+  /** Prints out useful debugging info */
+  protected void logAction(String action, Key key, LazyDocument value) {
+    Trace.debug("LazyDocumentCache: " + action + ". Path=" + key.path);
+  }
+
+  /**
+   * Identifies a lazy document by the store it's loaded from, and the
+   * configuration it's loaded with.
+   */
+  static class Key 
+  {
+    final String path;
+    final Configuration config;
+    final StructuredStore store;
+
+    /** Set when a document was loaded from the store */
+    boolean storeUsed = false;
+
+    Key(StructuredStore store, Configuration config) {
+      this.store = store;
+      this.config = config;
+      path = store.getSystemId();
+    }
+
+    public int hashCode() {
+      return System.identityHashCode(store) ^ System.identityHashCode(config);
+    }
+
+    public boolean equals(Object other) 
+    {
+      if (!(other instanceof Key))
+        return false;
+      Key k = (Key)other;
+      return k.store == store && k.config == config;
+    }
+  } // class Key
+} // class LazyDocumentCache
@@ -37,11 +37,9 @@ public class ElementImpl extends ParentNodeImpl
     if (attrOffset >= 0) 
     {
       // Read in the attributes.
-      document.attrFile.seek(attrOffset);
-      document.attrFile.read(document.attrBytes);
-
-      PackedByteBuf buf = document.attrBuf;
-      buf.setBytes(document.attrBytes);
+      byte[] attrBytes = LazyDocument.getReadBuffer(document.maxAttrSize);
+      document.attrFile.read(attrOffset, attrBytes, 0, document.maxAttrSize);
+      PackedByteBuf buf = new PackedByteBuf(attrBytes);
 
       int nAttrs = buf.readInt();
       attrNames = new int[nAttrs];
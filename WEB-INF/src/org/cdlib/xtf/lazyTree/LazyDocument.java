@@ -1,12 +1,12 @@
 package org.cdlib.xtf.lazyTree;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.saxon.Configuration;
 import net.sf.saxon.event.Receiver;
@@ -25,6 +25,7 @@ import net.sf.saxon.type.Type;
 
 import org.cdlib.xtf.util.DiskHashReader;
 import org.cdlib.xtf.util.DiskHashWriter;
+import org.cdlib.xtf.util.Metrics;
 import org.cdlib.xtf.util.PackedByteBuf;
 import org.cdlib.xtf.util.StructuredStore;
 import org.cdlib.xtf.util.SubStoreReader;
@@ -40,9 +41,13 @@ import org.cdlib.xtf.util.Trace;
  * <p>This class should never be instatiated directly, but rather loaded by
  * LazyTreeBuilder.</p>
  *
- * <p>Once loaded, a soft reference to the node is kept in RAM; if memory runs
- * low, these soft references will be thrown away. This behavior can be
- * defeated by calling {@link #setAllPermanent(boolean)}.</p>
+ * <p>Once loaded, a node is kept in a bounded cache in RAM; when the cache
+ * fills up, the least recently used nodes are thrown away. This behavior can
+ * be defeated by calling {@link #setAllPermanent(boolean)}.</p>
+ *
+ * <p>Loaded nodes are never modified, so a document may be shared by
+ * several threads at once (see {@link #tryAcquire()}). Subclasses that
+ * modify nodes, such as {@link SearchTree}, must not be shared.</p>
  *
  * @author Martin Haye
  */
@@ -94,11 +99,11 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** The size of the largest node entry on disk */
   protected int maxNodeSize;
 
-  /** Byte buffer for reading nodes */
-  protected byte[] nodeBytes;
-
-  /** Buffer for unpacking nodes */
-  protected PackedByteBuf nodeBuf;
+  /**
+   * Per-thread buffer that node and attribute data is read into, so that
+   * loading a node doesn't have to allocate a fresh one every time.
+   */
+  private static ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>();
 
   /** Contains all the attributes */
   protected SubStoreReader attrFile;
@@ -106,12 +111,6 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** The max size of any attribute block */
   protected int maxAttrSize;
 
-  /** Byte buffer for reading nodes */
-  protected byte[] attrBytes;
-
-  /** Buffer for unpacking nodes */
-  protected PackedByteBuf attrBuf;
-
   /** Number of namespaces currently declared */
   public int numberOfNamespaces = 0;
 
@@ -131,10 +130,21 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** Maps name numbers in the file to namecodes in the current NamePool */
   int[] nameNumToCode;
 
+  /** Default max # of (unpinned) nodes to keep in the node cache */
+  public static final int DEFAULT_NODE_CACHE_SIZE = 100000;
+
   /** Caches nodes in memory so they only have to be loaded once. */
-  HashMap nodeCache = new HashMap();
+  NodeCache nodeCache = new NodeCache(DEFAULT_NODE_CACHE_SIZE);
+
+  /** Counts node cache hits across all documents, for the metrics */
+  private static final Metrics.Counter nodeCacheHits = 
+    Metrics.counter("lazyTree.nodeCache.hits");
+
+  /** Counts node cache misses across all documents, for the metrics */
+  private static final Metrics.Counter nodeCacheMisses = 
+    Metrics.counter("lazyTree.nodeCache.misses");
 
-  /** True if nodes in the cache should be permanent, false for weak refs */
+  /** True if nodes in the cache should be permanent, false for evictable */
   boolean allPermanent = false;
 
   /** Notified of profile-related events */
@@ -143,6 +153,12 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** Counter to govern periodic checking for thread time limit */
   private int killCheckCounter = 0;
 
+  /**
+   * Number of users of the document; the disk files are closed when it
+   * drops to zero. See {@link #tryAcquire()} and {@link #close()}.
+   */
+  private AtomicInteger refCount = new AtomicInteger(1);
+
   /**
    * Construct a new (empty) document. Should call
    * {@link #init(NamePool, StructuredStore)} afterward.
@@ -191,14 +207,6 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
 
       textFile = store.openSubStore("text");
 
-      // Allocate the buffer for reading nodes.
-      nodeBytes = new byte[maxNodeSize];
-      nodeBuf = new PackedByteBuf(0);
-
-      // Likewise for reading attributes.
-      attrBytes = new byte[maxAttrSize];
-      attrBuf = new PackedByteBuf(0);
-
       // Read in the root node (shenanigans to force loading)
       nodeNum = rootNodeNum;
       rootNodeNum = -1;
@@ -209,12 +217,28 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
 
   /**
    * If 'flag' is true, all loaded nodes will be cached until the tree goes
-   * away, instead of being held by weak references.
+   * away, instead of being subject to eviction.
    */
   public void setAllPermanent(boolean flag) {
     allPermanent = flag;
-    if (allPermanent)
-      nodeCache.put(Integer.valueOf(0), this);
+    if (allPermanent) {
+      synchronized (nodeCache) {
+        nodeCache.pin(0, this);
+      }
+    }
+  }
+
+  /**
+   * Sets the maximum number of nodes to keep in memory (not counting nodes
+   * that are permanent or have been modified.) Beyond this, the least
+   * recently used nodes are dropped and re-loaded from disk if needed.
+   *
+   * @param maxNodes  Max # of nodes to cache, or zero for no limit.
+   */
+  public void setNodeCacheSize(int maxNodes) {
+    synchronized (nodeCache) {
+      nodeCache.setMaxEvictable(maxNodes);
+    }
   }
 
   /**
@@ -238,14 +262,38 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       profileListener.printProfile();
   }
 
+  /**
+   * Adds a user of the document, so that it can be shared (for instance by
+   * a cache used by many threads.) Each successful call must be matched by
+   * a call to {@link #close()}.
+   *
+   * @return  true if acquired, false if the document has already been
+   *          closed by its last user.
+   */
+  public boolean tryAcquire() 
+  {
+    while (true) {
+      int count = refCount.get();
+      if (count <= 0)
+        return false;
+      if (refCount.compareAndSet(count, count + 1))
+        return true;
+    }
+  } // tryAcquire()
+
   /**
    * Closes all disk files opened by the document. While this will
    * theoretically be done when the LazyDocument is garbage collected, it's
    * a good idea to conserve file handles by closing them promptly as soon
-   * as the tree's usefulness is done.
+   * as the tree's usefulness is done. If the document has been shared using
+   * {@link #tryAcquire()}, the files are only closed when the last user
+   * closes it.
    */
   public void close() 
   {
+    if (refCount.decrementAndGet() != 0)
+      return;
+
     try 
     {
       textFile.close();
@@ -445,14 +493,16 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       if (profileListener != null)
         profileListener.bumpCount(num);
 
-      // Read the most data it could be.
-      synchronized (mainStore) {
-        nodeFile.seek(NODE_FILE_HEADER_SIZE + (num * maxNodeSize));
-        nodeFile.read(nodeBytes);
-      }
+      // Read the most data it could be. This is a positional read into a
+      // per-thread buffer, so there's no need to lock anything even if other
+      // threads are reading the same document.
+      //
+      byte[] nodeBytes = getReadBuffer(maxNodeSize);
+      nodeFile.read(NODE_FILE_HEADER_SIZE + ((long)num * maxNodeSize), 
+                    nodeBytes, 0, maxNodeSize);
 
       // Get the type and the flags.
-      nodeBuf.setBytes(nodeBytes);
+      PackedByteBuf nodeBuf = new PackedByteBuf(nodeBytes);
       short kind = nodeBuf.readByte();
       int flags = nodeBuf.readInt();
 
@@ -528,7 +578,12 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       node.init(alpha, beta);
 
       // All done!
-      nodeCache.put(Integer.valueOf(num), new SoftReference(node));
+      synchronized (nodeCache) {
+        if (allPermanent)
+          nodeCache.pin(num, node);
+        else
+          nodeCache.put(num, node);
+      }
       return node;
     } // try
     catch (IOException e) {
@@ -536,6 +591,21 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     }
   } // getNode()
 
+  /**
+   * Get this thread's buffer for reading node or attribute data, making
+   * sure it holds at least the given number of bytes. The contents are
+   * only good until the next call on the same thread.
+   */
+  static byte[] getReadBuffer(int size) 
+  {
+    byte[] buf = readBuffer.get();
+    if (buf == null || buf.length < size) {
+      buf = new byte[size];
+      readBuffer.set(buf);
+    }
+    return buf;
+  } // getReadBuffer()
+
   /**
    * Checks to see if we've already loaded the node corresponding with the
    * given number. If so, return it, else null.
@@ -551,20 +621,20 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
         throw new RuntimeException("Runaway request - time limit exceeded");
     }
 
-    // Do we have a reference in the cache? If not, return. And if it's a
-    // strong reference to a node, return it.
-    //
-    Object ref = nodeCache.get(Integer.valueOf(num));
-    NodeImpl node = null;
-    if (ref instanceof NodeImpl)
-      node = (NodeImpl)ref;
-    else if (ref instanceof SoftReference) 
-    {
-      // Is the reference still valid? If not, remove it.
-      SoftReference weak = (SoftReference)ref;
-      node = (NodeImpl)weak.get();
-      if (node == null)
-        nodeCache.remove(Integer.valueOf(num));
+    // Look it up, and keep score if we're profiling.
+    NodeImpl node;
+    synchronized (nodeCache) {
+      node = nodeCache.get(num);
+    }
+    if (node != null)
+      nodeCacheHits.increment();
+    else
+      nodeCacheMisses.increment();
+    if (profileListener != null) {
+      if (node != null)
+        profileListener.countCacheHit();
+      else
+        profileListener.countCacheMiss();
     }
 
     // All done.
@@ -37,6 +37,12 @@ public class LazyProfilingListener implements TraceListener
    */
   private ThreadLocal tlCountMap = new ThreadLocal();
 
+  /**
+   * Counts node cache hits and misses: element 0 is hits, 1 is misses.
+   * Thread-local for the same reason as the counts above.
+   */
+  private ThreadLocal tlCacheStats = new ThreadLocal();
+
   /** Unused */
   public void open() {
   }
@@ -67,6 +73,17 @@ public class LazyProfilingListener implements TraceListener
     return map;
   } // getCountMap()
 
+  /** Get the thread-local node cache hit/miss counters */
+  private long[] getCacheStats() 
+  {
+    long[] stats = (long[])tlCacheStats.get();
+    if (stats == null) {
+      stats = new long[2];
+      tlCacheStats.set(stats);
+    }
+    return stats;
+  } // getCacheStats()
+
   /**
    * Record the instruction being entered, so that subsequent counts can
    * be attributed to it.
@@ -122,6 +139,26 @@ public class LazyProfilingListener implements TraceListener
     }
   } // bumpCount()
 
+  /** Called when a node is found in a lazy document's node cache */
+  public void countCacheHit() {
+    getCacheStats()[0]++;
+  }
+
+  /** Called when a node is not found in a lazy document's node cache */
+  public void countCacheMiss() {
+    getCacheStats()[1]++;
+  }
+
+  /** Gets the number of node cache hits (for this thread) so far */
+  public long getCacheHits() {
+    return getCacheStats()[0];
+  }
+
+  /** Gets the number of node cache misses (for this thread) so far */
+  public long getCacheMisses() {
+    return getCacheStats()[1];
+  }
+
   /**
    * Gets a list of all the counts, sorted by ascending count. The act of
    * getting the counts clears out the table, so that a fresh profile can
@@ -229,6 +266,11 @@ public class LazyProfilingListener implements TraceListener
       }
       */
     }
+
+    // Print (and reset) the node cache statistics.
+    long[] stats = getCacheStats();
+    Trace.info("Node cache: " + stats[0] + " hits, " + stats[1] + " misses");
+    stats[0] = stats[1] = 0;
   } // printProfile()
 } // class ProfilingListener
 
@@ -0,0 +1,309 @@
+package org.cdlib.xtf.lazyTree;
+
+/**
+ * Copyright (c) 2007, Regents of the University of California
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, 
+ *   this list of conditions and the following disclaimer in the documentation 
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this 
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+/**
+ * Caches the nodes of a {@link LazyDocument} in memory, keyed by node number.
+ * Unlike a HashMap of soft references, it's an open-addressed table of
+ * primitive ints, so lookups and insertions allocate nothing (except when
+ * the table grows).<br><br>
+ *
+ * Entries are either pinned, meaning they stay until removed (used for
+ * nodes that have been modified or synthesized and thus can't be reloaded
+ * from disk), or evictable. The number of evictable entries is bounded;
+ * when the bound is exceeded, entries are thrown out using the "clock"
+ * approximation of least-recently-used.<br><br>
+ *
+ * Not thread-safe. Documents may be shared by several threads at once
+ * (see the dynaXML lazy document cache), so callers must synchronize on the
+ * cache around every call, as {@link LazyDocument} does. Only a document
+ * that is never shared, like a {@link SearchTree}, may skip this.
+ */
+final class NodeCache 
+{
+  /** Flag bit: entry is never evicted */
+  private static final byte PINNED = 1;
+
+  /** Flag bit: entry has been used since the clock hand last passed it */
+  private static final byte REFERENCED = 2;
+
+  /** Node number of each slot */
+  private int[] keys;
+
+  /** Node in each slot, or null if the slot is empty */
+  private NodeImpl[] values;
+
+  /** PINNED and REFERENCED flags for each slot */
+  private byte[] flags;
+
+  /** Table size minus one (the size is always a power of two) */
+  private int mask;
+
+  /** Number of occupied slots */
+  private int count;
+
+  /** Number of occupied slots that aren't pinned */
+  private int nEvictable;
+
+  /** Max # of evictable entries, or zero for no limit */
+  private int maxEvictable;
+
+  /** Next slot the clock hand will examine */
+  private int clockHand;
+
+  /**
+   * Construct an empty cache.
+   *
+   * @param maxEvictable  Max # of unpinned nodes to keep, or zero for no
+   *                      limit.
+   */
+  NodeCache(int maxEvictable) {
+    this.maxEvictable = maxEvictable;
+    allocate(64);
+  }
+
+  /** Allocate a new, empty table of the given size (a power of two) */
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new NodeImpl[capacity];
+    flags = new byte[capacity];
+    mask = capacity - 1;
+    count = 0;
+  }
+
+  /** Scrambles a node number so consecutive ones spread out */
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Locate the slot for the given key.
+   *
+   * @return  The slot index if found, else the one's complement of the
+   *          empty slot where it would go.
+   */
+  private int findSlot(int key) 
+  {
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (values[i] == null)
+        return ~i;
+      if (keys[i] == key)
+        return i;
+    }
+  } // findSlot()
+
+  /**
+   * Retrieve the node for the given number, or null if not cached.
+   */
+  NodeImpl get(int key) 
+  {
+    int slot = findSlot(key);
+    if (slot < 0)
+      return null;
+    flags[slot] |= REFERENCED;
+    return values[slot];
+  } // get()
+
+  /** Check whether the given node number is cached */
+  boolean contains(int key) {
+    return findSlot(key) >= 0;
+  }
+
+  /**
+   * Add an evictable entry for the given node number. If an entry already
+   * exists, its value is replaced but it stays pinned if it was.
+   */
+  void put(int key, NodeImpl node) {
+    insert(key, node, false);
+  }
+
+  /**
+   * Add a pinned entry for the given node number, or pin the existing
+   * entry.
+   */
+  void pin(int key, NodeImpl node) {
+    insert(key, node, true);
+  }
+
+  /** Does the work of put() and pin() */
+  private void insert(int key, NodeImpl node, boolean pinned) 
+  {
+    int slot = findSlot(key);
+    if (slot >= 0) 
+    {
+      values[slot] = node;
+      if (pinned && (flags[slot] & PINNED) == 0) {
+        flags[slot] |= PINNED;
+        nEvictable--;
+      }
+      flags[slot] |= REFERENCED;
+      return;
+    }
+
+    // Keep the load factor under 3/4.
+    if ((count + 1) * 4 > values.length * 3) {
+      grow();
+      slot = findSlot(key);
+    }
+
+    slot = ~slot;
+    keys[slot] = key;
+    values[slot] = node;
+    flags[slot] = pinned ? (PINNED | REFERENCED) : REFERENCED;
+    count++;
+
+    if (!pinned) {
+      nEvictable++;
+      trim();
+    }
+  } // insert()
+
+  /** Double the size of the table, re-inserting all the entries */
+  private void grow() 
+  {
+    int[] oldKeys = keys;
+    NodeImpl[] oldValues = values;
+    byte[] oldFlags = flags;
+
+    allocate(oldValues.length * 2);
+    for (int i = 0; i < oldValues.length; i++) 
+    {
+      if (oldValues[i] == null)
+        continue;
+      int slot = ~findSlot(oldKeys[i]);
+      keys[slot] = oldKeys[i];
+      values[slot] = oldValues[i];
+      flags[slot] = oldFlags[i];
+      count++;
+    }
+    clockHand = 0;
+  } // grow()
+
+  /** Remove the entry (if any) for the given node number */
+  void remove(int key) 
+  {
+    int slot = findSlot(key);
+    if (slot < 0)
+      return;
+    if ((flags[slot] & PINNED) == 0)
+      nEvictable--;
+    removeSlot(slot);
+  } // remove()
+
+  /**
+   * Empties a slot, shifting later entries of the same probe run back so
+   * that lookups never need tombstones.
+   */
+  private void removeSlot(int hole) 
+  {
+    values[hole] = null;
+    count--;
+
+    for (int i = (hole + 1) & mask; values[i] != null; i = (i + 1) & mask) 
+    {
+      // Leave the entry alone if its home slot lies cyclically within
+      // (hole, i]; otherwise it can (and must) move back to the hole.
+      //
+      int home = hash(keys[i]) & mask;
+      boolean stays = (hole <= i) ? (home > hole && home <= i)
+                                  : (home > hole || home <= i);
+      if (stays)
+        continue;
+
+      keys[hole] = keys[i];
+      values[hole] = values[i];
+      flags[hole] = flags[i];
+      values[i] = null;
+      hole = i;
+    }
+  } // removeSlot()
+
+  /** Evict entries until we're within the max, using the clock algorithm */
+  private void trim() 
+  {
+    if (maxEvictable <= 0)
+      return;
+
+    while (nEvictable > maxEvictable) 
+    {
+      if (clockHand > mask)
+        clockHand = 0;
+      int slot = clockHand;
+      if (values[slot] == null || (flags[slot] & PINNED) != 0)
+        clockHand++;
+      else if ((flags[slot] & REFERENCED) != 0) {
+        flags[slot] &= ~REFERENCED;
+        clockHand++;
+      }
+      else {
+        // Don't advance the hand: another entry may have shifted into
+        // this slot.
+        //
+        removeSlot(slot);
+        nEvictable--;
+      }
+    }
+  } // trim()
+
+  /**
+   * Change the max # of evictable entries, throwing out entries if
+   * necessary.
+   *
+   * @param maxEvictable  New max, or zero for no limit.
+   */
+  void setMaxEvictable(int maxEvictable) {
+    this.maxEvictable = maxEvictable;
+    trim();
+  }
+
+  /** Tells how many entries are currently cached */
+  int size() {
+    return count;
+  }
+
+  /** Make an array of all the cached nodes, in no particular order */
+  NodeImpl[] values() 
+  {
+    NodeImpl[] ret = new NodeImpl[count];
+    int n = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null)
+        ret[n++] = values[i];
+    }
+    return ret;
+  } // values()
+
+  /** Tells whether every cached entry is pinned */
+  boolean allPinned() {
+    return nEvictable == 0;
+  }
+} // class NodeCache
@@ -46,11 +46,11 @@ public interface PersistentTree
   void printProfile()
     throws IOException;
 
-  /** Establishes whether nodes should be held in RAM, or only held by
-   *  soft references.
+  /** Establishes whether nodes should be held in RAM, or only held in a
+   *  bounded cache.
    *
    *  @param flag     True to hold nodes for the life of the tree, false
-   *                  to hold only soft references to them.
+   *                  to let the least recently used ones be dropped.
    */
   void setAllPermanent(boolean flag);
 } // interface PersistentTree
@@ -32,7 +32,6 @@ package org.cdlib.xtf.lazyTree;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.StringReader;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -509,9 +508,9 @@ public class SearchTree extends LazyDocument
       node = checkCache(normNum);
       if (node != null) {
         if (allPermanent)
-          nodeCache.put(Integer.valueOf(num), node);
+          nodeCache.pin(num, node);
         else
-          nodeCache.put(Integer.valueOf(num), new SoftReference(node));
+          nodeCache.put(num, node);
         return node;
       }
     }
@@ -522,7 +521,7 @@ public class SearchTree extends LazyDocument
       return null;
     
     if (allPermanent)
-      nodeCache.put(Integer.valueOf(normNum), node);
+      nodeCache.pin(normNum, node);
     
     assert node.parentNum >= 0 || node == this;
     assert node.nextSibNum >= -1;
@@ -547,7 +546,7 @@ public class SearchTree extends LazyDocument
 
     // All done.
     if (num >= MARKER_BASE)
-      nodeCache.put(Integer.valueOf(num), node);
+      nodeCache.pin(num, node);
     return node;
   } // getNode()
 
@@ -604,7 +603,7 @@ public class SearchTree extends LazyDocument
 
     // The element we want should now be in the cache.
     SearchElementImpl el = (SearchElementImpl)nodeCache.get(
-      Integer.valueOf(HIT_ELMT_MARKER + hitNum));
+      HIT_ELMT_MARKER + hitNum);
     assert el != null : "Search element must be created with its text";
     return el;
   } // getHitElement
@@ -1009,7 +1008,7 @@ public class SearchTree extends LazyDocument
     node.setNodeNum(nextVirtualNum);
 
     if (!(node instanceof ProxyElement))
-      nodeCache.put(Integer.valueOf(nextVirtualNum), node);
+      nodeCache.pin(nextVirtualNum, (NodeImpl)node);
 
     nextVirtualNum++;
   } // initNode
@@ -1020,11 +1019,11 @@ public class SearchTree extends LazyDocument
    */
   private void modifyNode(NodeImpl node) 
   {
-    // Before modifying the node, make sure we hold onto a hard reference
-    // (normally the node cache only contains weak references.)
+    // Before modifying the node, make sure it's pinned in the cache
+    // (normally nodes can be evicted and re-loaded from disk.)
     //
     if (node != null)
-      nodeCache.put(Integer.valueOf(node.nodeNum), node);
+      nodeCache.pin(node.nodeNum, node);
   } // modifyNode()
 
   /**
@@ -1075,7 +1074,7 @@ public class SearchTree extends LazyDocument
     // Give it a special place in the node cache so we can find it again.
     snippetElement.setNodeNum(num);
     if (realNotProxy)
-      nodeCache.put(Integer.valueOf(num), snippetElement);
+      nodeCache.pin(num, (NodeImpl)snippetElement);
 
     // Add the score (if not suppressed), hit number, and (if present) 
     // the section type.
@@ -1365,13 +1364,10 @@ public class SearchTree extends LazyDocument
     NodeImpl[] stack = new NodeImpl[(numberOfNodes + nHits) * 3];
     int top = 0;
 
-    for (Iterator iter = nodeCache.values().iterator(); iter.hasNext();) {
-      Object ref = iter.next();
-      if (ref instanceof NodeImpl)
-        stack[top++] = (NodeImpl)ref;
-      else
-        assert false : "allPermanent should be true for pruneUnused()";
-    } // for iter
+    assert nodeCache.allPinned() : "allPermanent should be true for pruneUnused()";
+    NodeImpl[] cached = nodeCache.values();
+    for (int i = 0; i < cached.length; i++)
+      stack[top++] = cached[i];
 
     // Keep processing until we've finished everything.
     while (top > 0) 
@@ -1382,9 +1378,9 @@ public class SearchTree extends LazyDocument
       // to the stack for processing.
       //
       if (node.prevSibNum >= 0) {
-        if (!nodeCache.containsKey(Integer.valueOf(node.prevSibNum)))
+        if (!nodeCache.contains(node.prevSibNum))
           stack[top++] = getNode(node.prevSibNum);
-        assert nodeCache.containsKey(Integer.valueOf(node.prevSibNum));
+        assert nodeCache.contains(node.prevSibNum);
       }
 
       // Ditto the parent.
@@ -1395,22 +1391,20 @@ public class SearchTree extends LazyDocument
     // Cool. We've loaded everything necessary to get to the nodes that
     // were loaded before. Kill off all other links.
     //
-    for (Iterator iter = nodeCache.values().iterator(); iter.hasNext();) 
+    cached = nodeCache.values();
+    for (int i = 0; i < cached.length; i++) 
     {
-      NodeImpl node = (NodeImpl)iter.next();
-      if (node.prevSibNum >= 0 &&
-          !nodeCache.containsKey(Integer.valueOf(node.prevSibNum)))
+      NodeImpl node = cached[i];
+      if (node.prevSibNum >= 0 && !nodeCache.contains(node.prevSibNum))
         assert false : "Should have loaded prev sib";
-      if (node.nextSibNum >= 0 &&
-          !nodeCache.containsKey(Integer.valueOf(node.nextSibNum)))
+      if (node.nextSibNum >= 0 && !nodeCache.contains(node.nextSibNum))
         node.nextSibNum = -1;
       if (node instanceof ParentNodeImpl) {
         ParentNodeImpl pnode = (ParentNodeImpl)node;
-        if (pnode.childNum >= 0 &&
-            !nodeCache.containsKey(Integer.valueOf(pnode.childNum)))
+        if (pnode.childNum >= 0 && !nodeCache.contains(pnode.childNum))
           pnode.childNum = -1;
       }
-    } // for iter
+    } // for i
   } // pruneUnused()
 
   public int getTotalHits() {
@@ -38,14 +38,14 @@ import javax.imageio.ImageIO;
 
 import net.sf.saxon.trans.DynamicError;
 
-import org.cdlib.xtf.cache.GeneratingCache;
+import org.cdlib.xtf.cache.ConcurrentGeneratingCache;
 
 /**
  * Maintain a cache of palette-mapped images used for image highlighting.
  * 
  * @author Martin Haye
  */
-class ImageCache extends GeneratingCache<String, BufferedImage>
+class ImageCache extends ConcurrentGeneratingCache<String, BufferedImage>
 {
   private int outColorBase;
   
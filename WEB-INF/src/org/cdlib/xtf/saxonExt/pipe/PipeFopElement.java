@@ -37,14 +37,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Source;
@@ -56,6 +55,7 @@ import javax.xml.transform.sax.SAXResult;
 import org.cdlib.xtf.saxonExt.ElementWithContent;
 import org.cdlib.xtf.saxonExt.InstructionWithContent;
 import org.cdlib.xtf.servletBase.TextServlet;
+import org.cdlib.xtf.util.Metrics;
 import org.cdlib.xtf.util.Trace;
 import org.cdlib.xtf.xslt.FileUtils;
 import org.xml.sax.SAXException;
@@ -98,12 +98,27 @@ import net.sf.saxon.trans.XPathException;
 /**
  * Implements a Saxon extension that runs the FOP processor
  * to transform XSL-FO formatting instructions into a PDF file,
- * and pipes that PDF back to the client.
+ * and pipes that PDF back to the client.<br><br>
+ * 
+ * Several requests can run FOP at once, each with its own Fop instance
+ * but sharing a FopFactory (and thus its font cache) per set of font
+ * directories. The number running at once is limited by the
+ * "maxConcurrent" attribute (the first request to use a given set of
+ * font directories decides); others wait in line, up to "waitTime"
+ * seconds.
  */
 public class PipeFopElement extends ElementWithContent 
 {
-  private static HashMap<String, FopFactory> fopFactories = new HashMap();
-  private static Lock fopLock = new ReentrantLock();
+  private static HashMap<String, FopPool> fopPools = new HashMap();
+  
+  /** FOP output up to this size is kept in memory rather than a temp file */
+  private static final int MAX_MEM_OUTPUT = 4*1024*1024;
+  
+  /** Number of requests waiting for their turn to run FOP */
+  private static final AtomicLong nWaiting = Metrics.gauge("pipeFop.waiting");
+  
+  /** Number of requests running FOP right now */
+  private static final AtomicLong nRunning = Metrics.gauge("pipeFop.running");
   
   private enum MergeAt { START, END };
   private enum MergeMode { SEQUENTIAL, OVERLAY, UNDERLAY };
@@ -120,7 +135,8 @@ public class PipeFopElement extends ElementWithContent
                               "mergeMode",        // *"sequential", "overlay", "underlay"
                               "fallbackIfError",  // default: yes
                               "fontDirs",         // default: none
-                              "waitTime"          // default: 5 (seconds)
+                              "waitTime",         // default: 5 (seconds)
+                              "maxConcurrent"     // default: # of processors
                             };
     parseAttributes(mandatoryAtts, optionalAtts);
   }
@@ -207,45 +223,53 @@ public class PipeFopElement extends ElementWithContent
         TransformerFactory transFactory = new net.sf.saxon.TransformerFactoryImpl();
         Transformer transformer = transFactory.newTransformer(); // identity transformer
 
-        // So that we can keep the lock on FOP short, and also so we can send an
-        // accurate Content-length header to the client, we'll accumulate the FOP output
-        // in a temp file. We don't use a memory buffer since sometimes these things
-        // can be quite huge.
+        // So that we can free up our turn at FOP quickly, and also so we can send
+        // an accurate Content-length header to the client, we'll accumulate the
+        // FOP output, in memory unless it gets huge.
         //
-        File tempFile = new File(FileUtils.createTempFile(context, "xtfFop.", ".tmp"));
-        FileOutputStream fopOut = new FileOutputStream(tempFile);
+        SpillingOutputStream fopOut = new SpillingOutputStream(context);
         
-        // According to the Apache docs, FOP may not be thread-safe. So, we need to
-        // single-thread it. However, we must at all costs keep requests from backing
-        // up behind each other in a scenario where many clients are making requests
-        // all at once. So put a time limit on it.
+        // FOP can be slow, so the number of requests running it at once is limited.
+        // However, we must at all costs keep requests from backing up behind each
+        // other in a scenario where many clients are making requests all at once.
+        // So put a time limit on waiting our turn.
         //
-        int lockTime;
+        int waitTime;
         if (attribs.containsKey("waitTime"))
-          lockTime = Integer.parseInt(attribs.get("waitTime").evaluateAsString(context));
+          waitTime = Integer.parseInt(attribs.get("waitTime").evaluateAsString(context));
         else
-          lockTime = 5; // default to waiting 5 seconds
-        boolean gotLock = false;
+          waitTime = 5; // default to waiting 5 seconds
+        FopPool pool = getFopPool(context);
+        boolean gotTurn = false;
         try {
-          if (lockTime <= 0) {
-            gotLock = true;
-            fopLock.lock();
+          long startTime = System.nanoTime();
+          nWaiting.incrementAndGet();
+          try {
+            if (waitTime <= 0) {
+              pool.permits.acquireUninterruptibly();
+              gotTurn = true;
+            }
+            else
+              gotTurn = pool.permits.tryAcquire(waitTime, TimeUnit.SECONDS);
           }
-          else
-            gotLock = fopLock.tryLock(lockTime, TimeUnit.SECONDS);
+          finally {
+            nWaiting.decrementAndGet();
+          }
+          Metrics.recordTime("pipeFop.wait", startTime);
         
-          // Failure to get the lock is an error. However, this exception will
+          // Failure to get a turn is an error. However, this exception will
           // be caught below and, if requested, we'll fall back to just outputting
           // the append PDF.
           //
-          if (!gotLock)
-            throw new TimeoutException("Timed out trying to obtain FOP lock");
-          
-          // For speed, only create FOP factory if we haven't already got one.
-          FopFactory fopFactory = createFopFactory(context);
+          if (!gotTurn) {
+            Metrics.counter("pipeFop.timeouts").increment();
+            throw new TimeoutException("Timed out waiting for a turn to run FOP");
+          }
+          nRunning.incrementAndGet();
+          startTime = System.nanoTime();
           
           // Apply the optional things that can be added to the PDF header
-          FOUserAgent foAgent = fopFactory.newFOUserAgent();
+          FOUserAgent foAgent = pool.factory.newFOUserAgent();
           if (attribs.containsKey("author"))
             foAgent.setAuthor(attribs.get("author").evaluateAsString(context));
           if (attribs.containsKey("creator"))
@@ -258,48 +282,42 @@ public class PipeFopElement extends ElementWithContent
             foAgent.setTitle(attribs.get("title").evaluateAsString(context));
 
           // Now run FOP
-          Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, foAgent, fopOut);
+          Fop fop = pool.factory.newFop(MimeConstants.MIME_PDF, foAgent, fopOut);
           transformer.transform(src, new SAXResult(fop.getDefaultHandler()));
+          Metrics.recordTime("pipeFop.render", startTime);
         }
         finally 
         {
-          // Always release the FOP lock when we're done, regardless of what happened.
-          if (gotLock)
-            fopLock.unlock();
-          if (fopOut != null)
-            fopOut.close();
-        }
-        
-        // Now that we've released the FOP lock, check if we need to merge a PDF or not.
-        
-        File finalOut;
-        if (fileToMerge != null) {
-          File tempFile2 = new File(FileUtils.createTempFile(context, "xtfFopMerge.", ".tmp"));
-          finalOut = tempFile2;
-          OutputStream mergeOut = new BufferedOutputStream(new FileOutputStream(tempFile2));
-          try {
-            mergePdf(context, tempFile, fileToMerge, mergeMode, mergeAt, mergeOut);
-          }
-          finally {
-            mergeOut.close();
+          // Always give up our turn when we're done, regardless of what happened.
+          if (gotTurn) {
+            nRunning.decrementAndGet();
+            pool.permits.release();
           }
+          fopOut.close();
         }
-        else 
-          finalOut = tempFile;
         
-        // Now we know the output length, so let the client know and then send it.
-        servletResponse.setHeader("Content-length", Long.toString(finalOut.length()));
-        PipeFileElement.copyFileToStream(finalOut, servletResponse.getOutputStream());
+        // Now that we're done with FOP, check if we need to merge a PDF or not. If so,
+        // the merged output goes straight to the client (the length isn't known 
+        // ahead of time.)
+        //
+        if (fileToMerge != null)
+          mergePdf(context, fopOut, fileToMerge, mergeMode, mergeAt, servletResponse.getOutputStream());
+        else {
+          servletResponse.setHeader("Content-length", Long.toString(fopOut.length()));
+          fopOut.writeTo(servletResponse.getOutputStream());
+        }
       } 
       catch (Throwable e) 
       {
         // If requested, fall back to simply piping the PDF file itself, without any FOP prefix.
         if (fileToMerge != null)
         {
-          if (getAttribBool("fallbackIfError", context, true))
+          // We can only fall back if nothing has been sent to the client yet.
+          if (getAttribBool("fallbackIfError", context, true) && !servletResponse.isCommitted())
           {
             try {
               Trace.warning("Warning: pipeFop failed, falling back to just piping PDF file. Cause: " + e.toString());
+              servletResponse.resetBuffer();
               servletResponse.setHeader("Content-length", Long.toString(fileToMerge.length()));
               PipeFileElement.copyFileToStream(fileToMerge, servletResponse.getOutputStream());
               e = null;
@@ -333,8 +351,12 @@ public class PipeFopElement extends ElementWithContent
       return null;
     }
 
-    /** Create a FOP factory and configure it, if we don't already have one. */ 
-    private FopFactory createFopFactory(XPathContext context) 
+    /** 
+     * Get the pool of FOP workers for the set of font directories we've been
+     * asked to use, creating it (and its FopFactory) if we don't already have
+     * one.
+     */ 
+    private FopPool getFopPool(XPathContext context) 
       throws ConfigurationException, SAXException, IOException, XPathException 
     {
       // See if any font directories were specified.
@@ -345,10 +367,28 @@ public class PipeFopElement extends ElementWithContent
       // If we've already created a factory with this set of font directories,
       // don't re-create (it's expensive.)
       //
-      if (fopFactories.containsKey(fontDirs))
-        return fopFactories.get(fontDirs);
-      
-      // Gotta make a new one.
+      synchronized (fopPools) 
+      {
+        FopPool pool = fopPools.get(fontDirs);
+        if (pool == null) 
+        {
+          int maxConcurrent;
+          if (attribs.containsKey("maxConcurrent"))
+            maxConcurrent = Integer.parseInt(attribs.get("maxConcurrent").evaluateAsString(context));
+          else
+            maxConcurrent = Runtime.getRuntime().availableProcessors();
+          
+          pool = new FopPool(createFopFactory(fontDirs), Math.max(1, maxConcurrent));
+          fopPools.put(fontDirs, pool);
+        }
+        return pool;
+      }
+    }
+
+    /** Create a FOP factory and configure it. */ 
+    private FopFactory createFopFactory(String fontDirs) 
+      throws ConfigurationException, SAXException, IOException 
+    {
       FopFactory factory = FopFactory.newInstance();
       if (fontDirs.length() > 0) 
       {
@@ -383,8 +423,6 @@ public class PipeFopElement extends ElementWithContent
         factory.setUserConfig(config);
       }
       
-      // Cache this factory so we don't have to create it again (they're expensive.)
-      fopFactories.put(fontDirs, factory);
       return factory;
     }
     
@@ -398,7 +436,7 @@ public class PipeFopElement extends ElementWithContent
      *  3. Output the pages  
      */
     private void mergePdf(XPathContext context, 
-                           File origPdfData, 
+                           SpillingOutputStream origPdfData, 
                            File fileToAppend,
                            MergeMode mergeMode, 
                            MergeAt mergeAt, 
@@ -417,9 +455,7 @@ public class PipeFopElement extends ElementWithContent
         // For large PDFs, use a buffered random access file rather than the default
         // memory-mapped file that iText assumes.
         //
-        randFiles[0] = (origPdfData.length() > 1024*1024) ? 
-                       new BufferedRandomAccessFile(origPdfData.toString()) : 
-                       new RandomAccessFileOrArray(origPdfData.toString());
+        randFiles[0] = origPdfData.openRandomAccess();
         randFiles[1] = (fileToAppend.length() > 1024*1024) ? 
                        new BufferedRandomAccessFile(fileToAppend.toString()) : 
                        new RandomAccessFileOrArray(fileToAppend.toString());
@@ -632,4 +668,81 @@ public class PipeFopElement extends ElementWithContent
       Image image;
     } 
   }  
+  
+  /** A shared FopFactory, and a limit on how many requests can use it at once. */
+  private static class FopPool
+  {
+    FopFactory factory;
+    Semaphore permits;
+    
+    FopPool(FopFactory factory, int maxConcurrent) {
+      this.factory = factory;
+      this.permits = new Semaphore(maxConcurrent, true);
+    }
+  }
+  
+  /**
+   * Accumulates output in memory, switching to a temp file if it grows larger
+   * than {@link #MAX_MEM_OUTPUT}.
+   */
+  private static class SpillingOutputStream extends OutputStream
+  {
+    private XPathContext context;
+    private ByteArrayOutputStream memOut = new ByteArrayOutputStream();
+    private File tempFile;
+    private OutputStream fileOut;
+    private long length = 0;
+    
+    SpillingOutputStream(XPathContext context) {
+      this.context = context;
+    }
+    
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException 
+    {
+      if (fileOut == null && length + len > MAX_MEM_OUTPUT) {
+        tempFile = new File(FileUtils.createTempFile(context, "xtfFop.", ".tmp"));
+        fileOut = new BufferedOutputStream(new FileOutputStream(tempFile));
+        memOut.writeTo(fileOut);
+        memOut = null;
+      }
+      if (fileOut != null)
+        fileOut.write(b, off, len);
+      else
+        memOut.write(b, off, len);
+      length += len;
+    }
+    
+    public void close() throws IOException {
+      if (fileOut != null)
+        fileOut.close();
+    }
+    
+    /** Total number of bytes written */
+    long length() {
+      return length;
+    }
+    
+    /** Copy everything written (after closing) to the given stream. */
+    void writeTo(OutputStream out) throws IOException
+    {
+      if (tempFile != null)
+        PipeFileElement.copyFileToStream(tempFile, out);
+      else
+        memOut.writeTo(out);
+    }
+    
+    /** Get random access to everything written (after closing) */
+    RandomAccessFileOrArray openRandomAccess() throws IOException 
+    {
+      if (tempFile == null)
+        return new RandomAccessFileOrArray(memOut.toByteArray());
+      if (tempFile.length() > 1024*1024)
+        return new BufferedRandomAccessFile(tempFile.toString());
+      return new RandomAccessFileOrArray(tempFile.toString());
+    }
+  }
 }
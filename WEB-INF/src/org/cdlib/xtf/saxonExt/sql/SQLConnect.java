@@ -17,7 +17,6 @@ import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.ObjectValue;
 import net.sf.saxon.value.StringValue;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,7 +33,7 @@ public class SQLConnect extends ExtensionInstruction
   Expression password;
   static ThreadLocal threadConnections = new ThreadLocal();
 
-  /** Close any connections held by the current thread */
+  /** Close (i.e. give back to the pool) any connections held by the current thread */
   public static synchronized void closeThreadConnections() 
   {
     ArrayList list = (ArrayList)threadConnections.get();
@@ -222,9 +221,10 @@ public class SQLConnect extends ExtensionInstruction
           props.put(name, val);
         }
 
-        // the following hack is necessary to load JDBC drivers
-        Class.forName(dbDriverString);
-        connection = DriverManager.getConnection(dbString, props);
+        // Get a connection from the pool. When closed (explicitly or at the
+        // end of the request), it goes back to the pool for re-use.
+        //
+        connection = SQLConnectionPool.getConnection(dbDriverString, dbString, props);
         addThreadConnection(connection);
       }
       catch (Exception ex) {
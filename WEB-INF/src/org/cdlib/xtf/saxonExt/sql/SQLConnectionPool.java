@@ -0,0 +1,598 @@
+package org.cdlib.xtf.saxonExt.sql;
+
+/*
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps JDBC connections open between requests, so that stylesheets making
+ * several SQL calls per page don't pay for connection setup every time.
+ * There is one pool for each combination of driver, database URL, and
+ * connection properties (including user and password.)<br><br>
+ *
+ * A connection handed out by the pool is returned to it when closed; the
+ * caller may close it more than once, and must not use it afterward. Each
+ * connection also keeps its most recently used prepared statements, which
+ * are handed out again when the same SQL is prepared; closing one of these
+ * just clears its parameters. Statements can't be used once their
+ * connection has been given back.<br><br>
+ *
+ * Connections idle for more than a few minutes are closed, and those idle
+ * more than a few seconds are checked before being handed out. A connection
+ * on which an error occurred is closed rather than re-used.<br><br>
+ *
+ * The limits for new pools can be changed with
+ * {@link #setDefaults(int, int, long, long)} (the servlets do this from the
+ * &lt;sqlPool&gt; entry in their config files.) Connections got through
+ * {@link #getConnection} are shared by all the calls made on one thread
+ * until closed, so a page making several SQL calls only uses up one.
+ */
+public class SQLConnectionPool 
+{
+  /** Default max # of connections open at once in each pool (0 for no limit) */
+  public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+  /** Default max # of prepared statements kept for each connection */
+  public static final int DEFAULT_MAX_STATEMENTS = 50;
+
+  /** Default time (in milliseconds) an idle connection is kept open */
+  public static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000;
+
+  /** Default time (in milliseconds) to wait for a free connection */
+  public static final long DEFAULT_WAIT_TIME = 30 * 1000;
+
+  /** Connections idle longer than this (in milliseconds) get checked */
+  private static final long VALIDATE_AFTER = 30 * 1000;
+
+  /** Pools by driver, URL, and properties */
+  private static HashMap<String, SQLConnectionPool> pools = 
+    new HashMap<String, SQLConnectionPool>();
+
+  /** Limits for new pools; see {@link #setDefaults} */
+  private static int defaultMaxConnections = DEFAULT_MAX_CONNECTIONS;
+  private static int defaultMaxStatements = DEFAULT_MAX_STATEMENTS;
+  private static long defaultMaxIdleTime = DEFAULT_MAX_IDLE_TIME;
+  private static long defaultWaitTime = DEFAULT_WAIT_TIME;
+
+  /** Database URL to connect to */
+  private String url;
+
+  /** Properties for each new connection (user, password, etc.) */
+  private Properties props;
+
+  /** Max # of prepared statements kept for each connection */
+  private int maxStatements;
+
+  /** Max time an idle connection is kept open */
+  private long maxIdleTime;
+
+  /** Max time to wait for a free connection */
+  private long waitTime;
+
+  /** Limits the number of connections in use at once (null for no limit) */
+  private Semaphore permits;
+
+  /** Connection each thread is sharing, if any; see {@link #borrowForThread} */
+  private ThreadLocal<PooledConnection> threadConn = 
+    new ThreadLocal<PooledConnection>();
+
+  /** Idle connections, most recently used first */
+  private LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+  /** Number of physical connections made so far (for testing) */
+  private int nOpened = 0;
+
+  /**
+   * Get a connection from the pool for the given driver, database, and
+   * properties, creating the pool if necessary.
+   *
+   * @param driver    Class name of the JDBC driver
+   * @param url       Database URL to connect to
+   * @param props     Properties for the connection (e.g. user, password)
+   * @return          A connection, which should be closed when done with.
+   *                  If the thread already has one open from the same pool,
+   *                  that one is shared; see {@link #borrowForThread}.
+   */
+  public static Connection getConnection(String driver, String url,
+                                         Properties props)
+    throws SQLException, ClassNotFoundException 
+  {
+    return getPool(driver, url, props).borrowForThread();
+  } // getConnection()
+
+  /**
+   * Change the limits used for pools created from now on. Pools already
+   * made keep the limits they were made with.
+   *
+   * @param maxConnections  Max # of connections in use at once, per pool;
+   *                        0 for no limit
+   * @param maxStatements   Max # of prepared statements kept per connection
+   * @param maxIdleTime     Milliseconds an idle connection is kept open
+   * @param waitTime        Milliseconds to wait for a free connection
+   */
+  public static void setDefaults(int maxConnections, int maxStatements,
+                                 long maxIdleTime, long waitTime) 
+  {
+    synchronized (pools) {
+      defaultMaxConnections = maxConnections;
+      defaultMaxStatements = maxStatements;
+      defaultMaxIdleTime = maxIdleTime;
+      defaultWaitTime = waitTime;
+    }
+  } // setDefaults()
+
+  /**
+   * Get the pool for the given driver, database, and properties, creating
+   * it (with default limits) if necessary.
+   */
+  public static SQLConnectionPool getPool(String driver, String url,
+                                          Properties props)
+    throws ClassNotFoundException 
+  {
+    String key = driver + "|" + url + "|" + new TreeMap(props).toString();
+    synchronized (pools) 
+    {
+      SQLConnectionPool pool = pools.get(key);
+      if (pool == null) 
+      {
+        // the following hack is necessary to load JDBC drivers
+        Class.forName(driver);
+        pool = new SQLConnectionPool(url, props, defaultMaxConnections,
+                                     defaultMaxStatements,
+                                     defaultMaxIdleTime, defaultWaitTime);
+        pools.put(key, pool);
+      }
+      return pool;
+    }
+  } // getPool()
+
+  /**
+   * Construct a pool. Generally {@link #getConnection} should be used
+   * instead, so that pools are shared.
+   *
+   * @param url             Database URL to connect to
+   * @param props           Properties for each connection
+   * @param maxConnections  Max # of connections in use at once; 0 for no
+   *                        limit
+   * @param maxStatements   Max # of prepared statements kept per connection
+   * @param maxIdleTime     Milliseconds an idle connection is kept open
+   * @param waitTime        Milliseconds to wait for a free connection
+   */
+  public SQLConnectionPool(String url, Properties props, int maxConnections,
+                           int maxStatements, long maxIdleTime, long waitTime) 
+  {
+    this.url = url;
+    this.props = (Properties)props.clone();
+    this.maxStatements = maxStatements;
+    this.maxIdleTime = maxIdleTime;
+    this.waitTime = waitTime;
+    if (maxConnections > 0)
+      permits = new Semaphore(maxConnections, true);
+  }
+
+  /**
+   * Get a connection to share with other calls on this thread: if the
+   * thread already has one from this pool that hasn't been given back, the
+   * same physical connection is lent out again, and only goes back to the
+   * pool once every borrower has closed it. Otherwise, a connection is
+   * borrowed as usual.
+   */
+  public Connection borrowForThread()
+    throws SQLException 
+  {
+    PooledConnection pc = threadConn.get();
+    if (pc != null) {
+      Connection conn = pc.share();
+      if (conn != null)
+        return conn;
+    }
+
+    Connection conn = borrow(Thread.currentThread());
+    threadConn.set(((Lease)Proxy.getInvocationHandler(conn)).pc);
+    return conn;
+  } // borrowForThread()
+
+  /**
+   * Get a connection from the pool, waiting for one to be returned if the
+   * max number are already in use.
+   */
+  public Connection borrow()
+    throws SQLException 
+  {
+    return borrow(null);
+  }
+
+  /**
+   * Get a connection from the pool, noting which thread it may be shared
+   * with (if any.)
+   */
+  private Connection borrow(Thread owner)
+    throws SQLException 
+  {
+    try {
+      if (permits != null &&
+          !permits.tryAcquire(waitTime, TimeUnit.MILLISECONDS))
+        throw new SQLException("Timed out waiting for a connection to " + url);
+    }
+    catch (InterruptedException e) {
+      throw new SQLException("Interrupted waiting for a connection to " + url);
+    }
+
+    boolean ok = false;
+    try 
+    {
+      // Use an idle connection if there's a good one, else make a new one.
+      PooledConnection pc;
+      while (true) 
+      {
+        pc = takeIdle();
+        if (pc == null) {
+          pc = new PooledConnection(DriverManager.getConnection(url, props));
+          synchronized (this) {
+            ++nOpened;
+          }
+          break;
+        }
+        if (pc.isUsable())
+          break;
+        pc.closeAll();
+      }
+      ok = true;
+      pc.broken = false;
+      return pc.lend(owner);
+    }
+    finally {
+      if (!ok && permits != null)
+        permits.release();
+    }
+  } // borrow()
+
+  /** Number of physical connections made so far */
+  public synchronized int nOpened() {
+    return nOpened;
+  }
+
+  /** Number of connections sitting idle */
+  public int nIdle() 
+  {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  /**
+   * Take the most recently used idle connection, if any, closing any that
+   * have been idle too long.
+   */
+  private PooledConnection takeIdle() 
+  {
+    LinkedList<PooledConnection> toClose = new LinkedList<PooledConnection>();
+    PooledConnection ret;
+    synchronized (idle) 
+    {
+      long tooOld = System.currentTimeMillis() - maxIdleTime;
+      while (!idle.isEmpty() && idle.getLast().lastUsed < tooOld)
+        toClose.add(idle.removeLast());
+      ret = idle.isEmpty() ? null : idle.removeFirst();
+    }
+
+    // Do the closing outside the lock, since it may be slow.
+    for (PooledConnection pc : toClose)
+      pc.closeAll();
+    return ret;
+  } // takeIdle()
+
+  /** Called when a borrowed connection is closed. */
+  private void giveBack(PooledConnection pc) 
+  {
+    try 
+    {
+      // Don't leave a transaction hanging for the next user.
+      boolean keep = !pc.broken;
+      if (keep) 
+      {
+        try {
+          if (!pc.conn.getAutoCommit())
+            pc.conn.rollback();
+          pc.conn.clearWarnings();
+        }
+        catch (SQLException e) {
+          keep = false;
+        }
+      }
+
+      if (keep) {
+        pc.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+          idle.addFirst(pc);
+        }
+      }
+      else
+        pc.closeAll();
+    }
+    finally {
+      if (permits != null)
+        permits.release();
+    }
+  } // giveBack()
+
+  /**
+   * A physical connection, plus the prepared statements we're keeping for
+   * it.
+   */
+  private class PooledConnection 
+  {
+    Connection conn;
+    long lastUsed = System.currentTimeMillis();
+    boolean broken = false;
+
+    /** Number of wrappers handed out and not yet closed */
+    int nLeases = 0;
+
+    /** Thread the connection may be shared with, while lent out */
+    Thread owner;
+
+    /** Prepared statements by SQL, least recently used first */
+    LinkedHashMap<String, PreparedStatement> statements = 
+      new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) 
+      {
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) 
+        {
+          if (size() <= maxStatements)
+            return false;
+          closeQuietly(eldest.getValue());
+          return true;
+        }
+      };
+
+    PooledConnection(Connection conn) {
+      this.conn = conn;
+    }
+
+    /** Check that an idle connection still works. */
+    boolean isUsable() 
+    {
+      try {
+        if (System.currentTimeMillis() - lastUsed < VALIDATE_AFTER)
+          return !conn.isClosed();
+        return conn.isValid(5);
+      }
+      catch (LinkageError e) { // drivers or runtimes older than JDBC 4
+        try {
+          return !conn.isClosed();
+        }
+        catch (SQLException e2) {
+          return false;
+        }
+      }
+      catch (SQLException e) {
+        return false;
+      }
+    } // isUsable()
+
+    /**
+     * Make a new wrapper for the connection, to hand out.
+     *
+     * @param owner   Thread the connection may be shared with, or null
+     */
+    synchronized Connection lend(Thread owner) 
+    {
+      ++nLeases;
+      this.owner = owner;
+      Lease lease = new Lease(this);
+      lease.proxy = (Connection)Proxy.newProxyInstance(
+        Connection.class.getClassLoader(),
+        new Class[] { Connection.class },
+        lease);
+      return lease.proxy;
+    }
+
+    /**
+     * Hand out another wrapper for a connection already lent out to share
+     * with this thread, or return null if it has been given back since.
+     */
+    synchronized Connection share() 
+    {
+      Thread thread = Thread.currentThread();
+      if (nLeases == 0 || owner != thread)
+        return null;
+      return lend(thread);
+    }
+
+    /** Called when a wrapper is closed; gives back after the last one. */
+    void endLease() 
+    {
+      synchronized (this) {
+        if (--nLeases > 0)
+          return;
+        owner = null;
+      }
+      giveBack(this);
+    }
+
+    /** Close the physical connection and its statements. */
+    void closeAll() 
+    {
+      for (PreparedStatement ps : statements.values())
+        closeQuietly(ps);
+      statements.clear();
+      try {
+        conn.close();
+      }
+      catch (SQLException e) { /* ignore */
+      }
+    }
+  } // class PooledConnection
+
+  /** Close a statement, ignoring any errors. */
+  private static void closeQuietly(PreparedStatement ps) 
+  {
+    try {
+      ps.close();
+    }
+    catch (SQLException e) { /* ignore */
+    }
+  }
+
+  /**
+   * Handles calls on a borrowed connection: closing gives it back to the
+   * pool, and preparing a statement uses a kept one if possible.
+   */
+  private class Lease implements InvocationHandler 
+  {
+    PooledConnection pc;
+    Connection proxy;
+    volatile boolean closed = false;
+
+    Lease(PooledConnection pc) {
+      this.pc = pc;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable 
+    {
+      String name = method.getName();
+      if (name.equals("close")) {
+        if (!closed) {
+          closed = true;
+          pc.endLease();
+        }
+        return null;
+      }
+      if (name.equals("isClosed"))
+        return Boolean.valueOf(closed);
+      if (name.equals("equals"))
+        return Boolean.valueOf(proxy == args[0]);
+      if (name.equals("hashCode"))
+        return new Integer(System.identityHashCode(proxy));
+      if (name.equals("toString"))
+        return "Pooled " + pc.conn.toString();
+      if (closed)
+        throw new SQLException("Connection has been closed");
+
+      // Re-use a prepared statement if we have one for this SQL.
+      if (name.equals("prepareStatement") && args.length == 1) 
+      {
+        String sql = (String)args[0];
+        PreparedStatement ps = pc.statements.get(sql);
+        if (ps == null) {
+          ps = (PreparedStatement)call(pc.conn, method, args);
+          pc.statements.put(sql, ps);
+        }
+        return wrap(method.getReturnType(), ps, true);
+      }
+
+      // Other statements are wrapped too, so we'll know about errors.
+      Object ret = call(pc.conn, method, args);
+      if (ret instanceof Statement)
+        return wrap(method.getReturnType(), ret, false);
+      return ret;
+    } // invoke()
+
+    /** Wrap a statement so it can't be used after the lease is over. */
+    Object wrap(Class type, Object stmt, boolean kept) 
+    {
+      return Proxy.newProxyInstance(type.getClassLoader(),
+                                    new Class[] { type },
+                                    new LeasedStatement(this, (Statement)stmt, kept));
+    } // wrap()
+
+    /**
+     * Call a method on the real connection or statement, noting any error
+     * so we won't re-use the connection.
+     */
+    Object call(Object target, Method method, Object[] args)
+      throws Throwable 
+    {
+      try {
+        return method.invoke(target, args);
+      }
+      catch (InvocationTargetException e) {
+        if (e.getCause() instanceof SQLException)
+          pc.broken = true;
+        throw e.getCause();
+      }
+    }
+  } // class Lease
+
+  /**
+   * Handles calls on a statement made from a borrowed connection. If it's a
+   * prepared statement we're keeping, closing just clears its parameters so
+   * it can be used again.
+   */
+  private static class LeasedStatement implements InvocationHandler 
+  {
+    Lease lease;
+    Statement stmt;
+    boolean kept;
+
+    LeasedStatement(Lease lease, Statement stmt, boolean kept) {
+      this.lease = lease;
+      this.stmt = stmt;
+      this.kept = kept;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable 
+    {
+      String name = method.getName();
+      if (name.equals("close") && kept) {
+        if (!lease.closed)
+          ((PreparedStatement)stmt).clearParameters();
+        return null;
+      }
+      if (name.equals("getConnection"))
+        return lease.proxy;
+      if (name.equals("equals"))
+        return Boolean.valueOf(proxy == args[0]);
+      if (name.equals("hashCode"))
+        return new Integer(System.identityHashCode(proxy));
+      if (lease.closed && !name.equals("close"))
+        throw new SQLException("Connection has been closed");
+      return lease.call(stmt, method, args);
+    }
+  } // class LeasedStatement
+} // class SQLConnectionPool
@@ -44,18 +44,18 @@ import net.sf.saxon.trace.TraceListener;
 
 import org.xml.sax.InputSource;
 import org.cdlib.xtf.cache.FileDependency;
-import org.cdlib.xtf.cache.GeneratingCache;
+import org.cdlib.xtf.cache.ConcurrentGeneratingCache;
 import org.cdlib.xtf.util.*;
 
 /**
  * This class is used to cache stylesheets so they don't have to be
- * reloaded each time they're used.
+ * reloaded each time they're used. Different stylesheets may be compiled
+ * by several threads at once, but each is only compiled once.
  */
-public class StylesheetCache extends GeneratingCache 
+public class StylesheetCache extends ConcurrentGeneratingCache<String, Templates> 
 {
   private boolean dependencyChecking = false;
-  private GeneratingCache dependencyReceiver = null;
-  private TraceListenerFactory traceListenerFactory = null;
+  private volatile TraceListenerFactory traceListenerFactory = null;
   private TransformerFactory factory;
   
   public interface TraceListenerFactory {
@@ -74,7 +74,14 @@ public class StylesheetCache extends GeneratingCache
   public StylesheetCache(int maxEntries, int maxTime, boolean dependencyChecking) {
     super(maxEntries, maxTime);
     this.dependencyChecking = dependencyChecking;
-    
+    factory = createFactory();
+  }
+
+  /**
+   * Make a factory that compiles stylesheets the way we want them.
+   */
+  private TransformerFactory createFactory()
+  {
     // Create a Saxon Configuration, and make it use the default name pool
     // (it defaults to making a new name pool).
     //
@@ -84,7 +91,7 @@ public class StylesheetCache extends GeneratingCache
     // Make a factory that will compile stylesheets for us. Force it to use
     // our centralized Configuration.
     //
-    factory = new net.sf.saxon.TransformerFactoryImpl(config);
+    TransformerFactory factory = new net.sf.saxon.TransformerFactoryImpl(config);
     
     // We want to report errors in a nice, servlet kind of way.
     if (!(factory.getErrorListener() instanceof XTFSaxonErrorListener))
@@ -100,7 +107,8 @@ public class StylesheetCache extends GeneratingCache
     // Set a URI resolver for dependency checking, if enabled.
     if (dependencyChecking)
       factory.setURIResolver(new DepResolver(this, factory.getURIResolver()));
-  }
+    return factory;
+  } // createFactory()
 
   /**
    * Locate the stylesheet for the given filesystem path. If not cached,
@@ -113,7 +121,8 @@ public class StylesheetCache extends GeneratingCache
   public Templates find(String path)
     throws Exception 
   {
-    return (Templates)super.find(path);
+    Metrics.counter("stylesheetCache.lookups").increment();
+    return super.find(path);
   }
 
   /**
@@ -128,54 +137,50 @@ public class StylesheetCache extends GeneratingCache
   /**
    * Load and parse a stylesheet from the filesystem.
    *
-   * @param  key          (String)Filesystem path of the stylesheet to load
+   * @param  path         Filesystem path of the stylesheet to load
    * @return              The parsed stylesheet
    * @throws Exception    If the stylesheet could not be loaded.
    */
-  protected synchronized Object generate(Object key)
+  protected Templates generate(String path)
     throws Exception 
   {
-    assert dependencyReceiver == null : "stylesheet cache should only have dependencyReceiver " +
-      "during external calls, not during find().";
+    Metrics.counter("stylesheetCache.misses").increment();
+    File file = new File(path);
     if (dependencyChecking)
-      dependencyReceiver = this;
-
-    try 
+      addDependency(new FileDependency(file));
+    if (!path.startsWith("http:") && !file.canRead())
+      throw new GeneralException("Cannot read stylesheet: " + path);
+
+    String url;
+    if (path.startsWith("http:"))
+      url = path;
+    else
+      url = file.toURL().toString();
+
+    // Load that stylesheet! The profiling listener is set on the factory
+    // itself, so when profiling use a factory of our own, so the listener
+    // doesn't end up in stylesheets other threads are compiling.
+    //
+    Templates x;
+    TraceListenerFactory tlf = traceListenerFactory;
+    if (tlf != null) 
     {
-      String path = (String)key;
-      File file = new File(path);
-      if (dependencyChecking)
-        addDependency(new FileDependency(file));
-      if (!path.startsWith("http:") && !file.canRead())
-        throw new GeneralException("Cannot read stylesheet: " + path);
-
-      // Set up the profiling listener, if profiling is enabled
-      if (traceListenerFactory != null) {
-        TraceListener listener = traceListenerFactory.createListener();
-        factory.setAttribute(FeatureKeys.TRACE_LISTENER, listener);
-        factory.setAttribute(FeatureKeys.LINE_NUMBERING, Boolean.TRUE);
-      }
-  
-      // Load that stylesheet!
-      String url;
-      if (path.startsWith("http:"))
-        url = path;
-      else
-        url = file.toURL().toString();
-      Templates x = factory.newTemplates(new SAXSource(new InputSource(url)));
-      if (x == null)
-        throw new TransformerException("Cannot read stylesheet: " + path);
-
-      return x;
-    }
-    finally {
-      dependencyReceiver = null;
+      TransformerFactory profFactory = createFactory();
+      profFactory.setAttribute(FeatureKeys.TRACE_LISTENER, tlf.createListener());
+      profFactory.setAttribute(FeatureKeys.LINE_NUMBERING, Boolean.TRUE);
+      x = profFactory.newTemplates(new SAXSource(new InputSource(url)));
     }
+    else
+      x = factory.newTemplates(new SAXSource(new InputSource(url)));
+
+    if (x == null)
+      throw new TransformerException("Cannot read stylesheet: " + path);
+    return x;
   } // generate()
 
   /** Prints out useful debugging info */
-  protected void logAction(String action, Object key, Object value) {
-    Trace.debug("StylesheetCache: " + action + ". Path=" + (String)key);
+  protected void logAction(String action, String key, Templates value) {
+    Trace.debug("StylesheetCache: " + action + ". Path=" + key);
   }
 
   /**
@@ -225,17 +230,14 @@ public class StylesheetCache extends GeneratingCache
         String sysId = src.getSystemId();
         if (sysId != null && sysId.startsWith("file:")) 
         {
-          // Be careful to pay attention if the cache is locked, so as to 
-          // avoid leaking dependencies between threads.
+          // Only record it if this thread is loading a stylesheet, so as 
+          // to avoid leaking dependencies between threads.
           //
-          synchronized (cache)
-          {
-            if (cache.dependencyReceiver != null) {
-              String path = sysId.substring("file:".length());
-              while (path.startsWith("//"))
-                path = path.substring(1);
-              cache.dependencyReceiver.addDependency(new FileDependency(path));
-            }
+          if (cache.isGenerating()) {
+            String path = sysId.substring("file:".length());
+            while (path.startsWith("//"))
+              path = path.substring(1);
+            cache.addDependency(new FileDependency(path));
           }
         }
       }
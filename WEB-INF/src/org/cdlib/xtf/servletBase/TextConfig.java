@@ -30,9 +30,13 @@ package org.cdlib.xtf.servletBase;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import org.cdlib.xtf.saxonExt.sql.SQLConnectionPool;
 import org.cdlib.xtf.util.*;
 
 /** Common members and methods for servlet configuration classes */
@@ -44,6 +48,15 @@ public abstract class TextConfig
   /** Logging level: "silent", "errors", "warnings", "info", or "debug" */
   public String logLevel = "info";
 
+  /** Whether to write log messages on a background thread */
+  public boolean logAsync = false;
+
+  /** Max # of log messages waiting to be written in the background */
+  public int logBufferSize = 8192;
+
+  /** Whether to drop log messages (vs. waiting) when the buffer is full */
+  public boolean logDropWhenFull = false;
+
   /** Max # of stylesheets to cache */
   public int stylesheetCacheSize = 10;
 
@@ -74,6 +87,24 @@ public abstract class TextConfig
    */
   public int latencyCutoffSize = 0;
 
+  /**
+   * Whether to give out the servlet's metrics (see {@link org.cdlib.xtf.util.Metrics})
+   * when a URL has "metrics=yes". Default: false
+   */
+  public boolean exposeMetrics = false;
+
+  /** Max # of connections to each database in use at once (0 for no limit) */
+  public int sqlPoolMaxConnections = SQLConnectionPool.DEFAULT_MAX_CONNECTIONS;
+
+  /** Time (in seconds) to wait for a free database connection */
+  public int sqlPoolWaitTime = (int)(SQLConnectionPool.DEFAULT_WAIT_TIME / 1000);
+
+  /** Time (in seconds) an idle database connection is kept open */
+  public int sqlPoolIdleTime = (int)(SQLConnectionPool.DEFAULT_MAX_IDLE_TIME / 1000);
+
+  /** Max # of prepared statements kept for each database connection */
+  public int sqlPoolMaxStatements = SQLConnectionPool.DEFAULT_MAX_STATEMENTS;
+
   /**
    * Amount of time (in seconds) that a request is allowed to run
    * before we consider it a possible "runaway" and start logging warning
@@ -115,6 +146,33 @@ public abstract class TextConfig
   
   /** Interval for index warming. Default: 60 (seconds) */
   public int indexWarmingUpdateInterval = 60;
+
+  /** 
+   * Max number of threads to split a single search across. Default: 1
+   * (i.e. no parallel searching.)
+   */
+  public int parallelSearchThreads = 1;
+
+  /** 
+   * Min number of index chunks for each thread in a parallel search.
+   * Default: 100000
+   */
+  public int parallelSearchMinChunks = 100000;
+
+  /**
+   * Max number of parsed and rewritten queries to keep for re-use by
+   * identical requests. Default: 1000 (0 to disable.)
+   */
+  public int queryPlanCacheSize = 1000;
+
+  /**
+   * Indexes whose query results should be cached, with paths as given in
+   * the config file. Default: empty (no result caching.)
+   */
+  public Set<String> resultCacheIndexes = new LinkedHashSet<String>();
+
+  /** Max size (in megabytes) of the cached results for each index. Default: 32 */
+  public int resultCacheSize = 32;
   
   /** All the configuration attributes in the form of name/value pairs */
   public AttribList attribs = new AttribList();
@@ -217,6 +275,25 @@ public abstract class TextConfig
       logLevel = strVal;
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("logging.async")) {
+      logAsync = parseBoolean(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("logging.bufferSize")) {
+      logBufferSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("logging.whenFull")) {
+      if (strVal.equals("drop"))
+        logDropWhenFull = true;
+      else if (strVal.equals("block"))
+        logDropWhenFull = false;
+      else {
+        throw new GeneralException(
+          "Expected 'drop' or 'block' for " + tagAttr);
+      }
+      return true;
+    }
     else if (tagAttr.equalsIgnoreCase("stylesheetCache.size")) {
       stylesheetCacheSize = parseInt(tagAttr, strVal);
       return true;
@@ -243,6 +320,26 @@ public abstract class TextConfig
       latencyCutoffSize = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("metrics.expose")) {
+      exposeMetrics = parseBoolean(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("sqlPool.maxConnections")) {
+      sqlPoolMaxConnections = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("sqlPool.waitTime")) {
+      sqlPoolWaitTime = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("sqlPool.idleTime")) {
+      sqlPoolIdleTime = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("sqlPool.maxStatements")) {
+      sqlPoolMaxStatements = parseInt(tagAttr, strVal);
+      return true;
+    }
     else if (tagAttr.equalsIgnoreCase("runawayTimer.normalTime")) {
       runawayNormalTime = parseInt(tagAttr, strVal);
       return true;
@@ -294,6 +391,28 @@ public abstract class TextConfig
       indexWarmingUpdateInterval = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("parallelSearch.threads")) {
+      parallelSearchThreads = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("parallelSearch.minChunks")) {
+      parallelSearchMinChunks = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryPlanCache.size")) {
+      queryPlanCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("resultCache.indexes")) {
+      StringTokenizer st = new StringTokenizer(strVal, " \t\r\n,;");
+      while (st.hasMoreTokens())
+        resultCacheIndexes.add(st.nextToken());
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("resultCache.size")) {
+      resultCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
 
     // Not recognized.
     return false;
@@ -35,10 +35,13 @@ package org.cdlib.xtf.servletBase;
  * was made possible by a grant from the Andrew W. Mellon Foundation,
  * as part of the Melvyl Recommender Project.
  */
+import java.beans.Introspector;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -78,6 +81,7 @@ import org.apache.lucene.analysis.Token;
 import org.apache.lucene.limit.ExcessiveWorkException;
 import org.apache.lucene.limit.TermLimitException;
 import org.cdlib.xtf.saxonExt.sql.SQLConnect;
+import org.cdlib.xtf.saxonExt.sql.SQLConnectionPool;
 import org.cdlib.xtf.textEngine.DefaultQueryProcessor;
 import org.cdlib.xtf.textEngine.IndexUtil;
 import org.cdlib.xtf.textEngine.IndexWarmer;
@@ -89,6 +93,7 @@ import org.cdlib.xtf.util.EasyNode;
 import org.cdlib.xtf.util.FastStringReader;
 import org.cdlib.xtf.util.FastTokenizer;
 import org.cdlib.xtf.util.GeneralException;
+import org.cdlib.xtf.util.Metrics;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.ThreadWatcher;
 import org.cdlib.xtf.util.Trace;
@@ -117,6 +122,9 @@ public abstract class TextServlet extends HttpServlet
   /** Flag to discern whether class has been initialized yet */
   private boolean isInitted = false;
 
+  /** Prefix for the names of metrics recorded by this servlet */
+  private String metricsPrefix;
+
   /** The error generator stylesheet to use */
   private ThreadLocal<String> errorGenSheet = new ThreadLocal<String>();
 
@@ -310,6 +318,12 @@ public abstract class TextServlet extends HttpServlet
       //
       setupTrace(config);
 
+      // Set the limits for database connection pools.
+      SQLConnectionPool.setDefaults(config.sqlPoolMaxConnections,
+                                    config.sqlPoolMaxStatements,
+                                    config.sqlPoolIdleTime * 1000L,
+                                    config.sqlPoolWaitTime * 1000L);
+
       // Create the caches
       stylesheetCache = new StylesheetCache(config.stylesheetCacheSize,
                                             config.stylesheetCacheExpire,
@@ -344,6 +358,12 @@ public abstract class TextServlet extends HttpServlet
       : (config.logLevel.equals("warnings")) ? Trace.warnings
       : (config.logLevel.equals("debug")) ? Trace.debug : Trace.info);
 
+    // Write log messages in the background if requested (or switch back
+    // to writing them immediately if not.)
+    //
+    Trace.setAsync(config.logAsync ? config.logBufferSize : 0, 
+                   config.logDropWhenFull);
+
     // And let everyone know the servlet has restarted
     Trace.error("");
     Trace.error("*** SERVLET RESTART: " + getServletInfo() + " ***");
@@ -367,8 +387,19 @@ public abstract class TextServlet extends HttpServlet
     String clearCaches = req.getParameter("clear-caches");
     firstTimeInit("yes".equals(clearCaches));
 
-    // If reporting latency, record the start time.
+    // If metrics were requested (and we're allowed to give them out), that's
+    // all we do.
+    //
     TextConfig config = getConfig();
+    if (config.exposeMetrics && "yes".equals(req.getParameter("metrics"))) {
+      res.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+      Metrics.write(new PrintWriter(
+        new OutputStreamWriter(res.getOutputStream(), "UTF-8")));
+      return;
+    }
+    long reqStartNanos = System.nanoTime();
+
+    // If reporting latency, record the start time.
     long reqStartTime = 0;
     if (config.reportLatency)
       reqStartTime = System.currentTimeMillis();
@@ -470,6 +501,9 @@ public abstract class TextServlet extends HttpServlet
           "Latency" + extraText + ": " + latency + " msec for request: " +
           requestUrl);
       } // if
+
+      // Record the total time for the request.
+      Metrics.recordTime(metricName("request"), reqStartNanos);
       
       // If any temporary files were created while processing this request,
       // close them now.
@@ -484,6 +518,19 @@ public abstract class TextServlet extends HttpServlet
     } // finally
   } // service()
 
+  /**
+   * Make the name of a metric recorded by this servlet, by tacking on a
+   * prefix naming the servlet (e.g. "crossQuery.request").
+   *
+   * @param phase   Phase of processing the metric is for
+   */
+  protected String metricName(String phase) 
+  {
+    if (metricsPrefix == null)
+      metricsPrefix = Introspector.decapitalize(getClass().getSimpleName()) + ".";
+    return metricsPrefix + phase;
+  } // metricName()
+
   /**
    * Switch to using a different error generator stylesheet than the default.
    */
@@ -949,8 +996,8 @@ public abstract class TextServlet extends HttpServlet
       
       // Enable background index warming
       IndexWarmer warmer = null;
+      String xtfHome = Path.normalizePath(TextServlet.getCurServlet().getRealPath(""));
       synchronized (indexWarmers) {
-        String xtfHome = Path.normalizePath(TextServlet.getCurServlet().getRealPath(""));
         warmer = indexWarmers.get(xtfHome);
         if (warmer == null) {
           warmer = new IndexWarmer(xtfHome, getConfig().indexWarmingUpdateInterval);
@@ -959,6 +1006,18 @@ public abstract class TextServlet extends HttpServlet
       }
       processor.setIndexWarmer(warmer);
       
+      // Split large searches across threads if so configured.
+      processor.setParallelSearch(getConfig().parallelSearchThreads,
+                                  getConfig().parallelSearchMinChunks);
+
+      // Let repeated queries re-use their rewritten form.
+      processor.setPlanCacheSize(getConfig().queryPlanCacheSize);
+
+      // And, for the indexes that want it, their results as well.
+      processor.setXtfHome(xtfHome);
+      processor.setResultCache(getConfig().resultCacheIndexes,
+                               getConfig().resultCacheSize);
+      
       // And we're done.
       return processor;
     }
@@ -0,0 +1,318 @@
+package org.cdlib.xtf.test;
+
+/*
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.chunk.DocNumMap;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.cdlib.xtf.textEngine.XtfDocNumMap;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Measures the cost of the chunk-to-document lookups done for every span
+ * hit during dechunking and snippet making, comparing {@link XtfDocNumMap}
+ * with the synchronized binary search it used to do. A synthetic index is
+ * built in memory, with the given number of documents each made of a
+ * random number of chunks; then several threads look up batches of
+ * ascending chunk numbers, the way hits are collected. Usage:<br><br>
+ *
+ * <code>DocNumMapBenchmark [-threads 1,2,4,8] [-seconds 5] [-docs 20000]
+ * [-chunks 50]</code>
+ */
+public class DocNumMapBenchmark 
+{
+  /** Thread counts to try, in order */
+  private int[] threadCounts = { 1, 2, 4, 8 };
+
+  /** How long to run each test, in milliseconds */
+  private long runTime = 5000;
+
+  /** Number of documents in the synthetic index */
+  private int nDocs = 20000;
+
+  /** Max number of chunks per document */
+  private int maxChunks = 50;
+
+  /** Chunk numbers to look up, in ascending batches */
+  private int[] targets;
+
+  public static void main(String[] args) 
+  {
+    try {
+      new DocNumMapBenchmark().run(args);
+    }
+    catch (Exception e) {
+      Trace.error("Unexpected error: " + e);
+      System.exit(1);
+    }
+    System.exit(0);
+  } // main()
+
+  public void run(String[] args)
+    throws Exception 
+  {
+    // Parse the command-line.
+    for (int i = 0; i < args.length; i++) 
+    {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        String[] counts = args[++i].split(",");
+        threadCounts = new int[counts.length];
+        for (int j = 0; j < counts.length; j++)
+          threadCounts[j] = Integer.parseInt(counts[j].trim());
+      }
+      else if (args[i].equals("-seconds") && i + 1 < args.length)
+        runTime = Long.parseLong(args[++i]) * 1000;
+      else if (args[i].equals("-docs") && i + 1 < args.length)
+        nDocs = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-chunks") && i + 1 < args.length)
+        maxChunks = Integer.parseInt(args[++i]);
+      else {
+        Trace.error("Usage: DocNumMapBenchmark [-threads 1,2,4,8] " +
+                    "[-seconds 5] [-docs 20000] [-chunks 50]");
+        return;
+      }
+    }
+
+    // Build the index and both maps, and make sure they agree.
+    Trace.info("Building index of " + nDocs + " documents...");
+    IndexReader reader = buildIndex();
+    XtfDocNumMap newMap = new XtfDocNumMap(reader, 100, 50);
+    OldDocNumMap oldMap = new OldDocNumMap(reader);
+    for (int chunk = 0; chunk <= reader.maxDoc(); chunk++) {
+      int doc = newMap.getDocNum(chunk);
+      if (doc != oldMap.getDocNum(chunk) ||
+          newMap.getFirstChunk(doc) != oldMap.getFirstChunk(doc))
+        throw new RuntimeException("Maps disagree at chunk " + chunk);
+    }
+    Trace.info(reader.maxDoc() + " chunks; maps agree.");
+
+    // Make up batches of hits to look up.
+    Random rand = new Random(1);
+    targets = new int[100000];
+    for (int i = 0; i < targets.length; i++)
+      targets[i] = rand.nextInt(reader.maxDoc());
+    for (int i = 0; i < targets.length; i += 1000)
+      Arrays.sort(targets, i, Math.min(targets.length, i + 1000));
+
+    // Now time each thread count in turn.
+    for (int nThreads : threadCounts) 
+    {
+      double oldRate = measure(oldMap, nThreads);
+      double newRate = measure(newMap, nThreads);
+      Trace.info(String.format(
+        "%3d thread(s): before %8.1f, after %8.1f Mlookups/sec (%.2fx)",
+        nThreads, oldRate / 1e6, newRate / 1e6, newRate / oldRate));
+    }
+    reader.close();
+  } // run()
+
+  /**
+   * Build an in-memory index laid out like an XTF one: each document's
+   * text chunks, followed by its docInfo chunk.
+   */
+  private IndexReader buildIndex()
+    throws Exception 
+  {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true);
+    writer.setMaxBufferedDocs(10000);
+    Random rand = new Random(2);
+
+    // Account for the index info chunk.
+    Document info = new Document();
+    info.add(new Field("indexInfo", "1", Field.Store.NO, Field.Index.UN_TOKENIZED));
+    writer.addDocument(info);
+
+    for (int d = 0; d < nDocs; d++) 
+    {
+      int nChunks = 1 + rand.nextInt(maxChunks);
+      for (int c = 0; c < nChunks; c++) {
+        Document chunk = new Document();
+        chunk.add(new Field("text", "x", Field.Store.NO, Field.Index.UN_TOKENIZED));
+        writer.addDocument(chunk);
+      }
+      Document doc = new Document();
+      doc.add(new Field("docInfo", "1", Field.Store.NO, Field.Index.UN_TOKENIZED));
+      writer.addDocument(doc);
+    }
+
+    writer.close();
+    return IndexReader.open(dir);
+  } // buildIndex()
+
+  /**
+   * Run lookups on the given number of threads for the configured length
+   * of time.
+   *
+   * @return  the number of lookups completed per second
+   */
+  private double measure(final DocNumMap map, int nThreads)
+    throws Exception 
+  {
+    final AtomicLong nDone = new AtomicLong(0);
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch doneLatch = new CountDownLatch(nThreads);
+    final long[] stopTime = new long[1];
+
+    for (int t = 0; t < nThreads; t++) 
+    {
+      final int offset = t * 1000;
+      Thread thread = new Thread() 
+      {
+        public void run() 
+        {
+          try {
+            startLatch.await();
+            long count = 0;
+            int sum = 0;
+            for (int i = offset; System.currentTimeMillis() < stopTime[0]; ) 
+            {
+              // Look up a batch of hits like SpanDechunkingQuery does:
+              // find each chunk's document, and the start of that document.
+              //
+              for (int j = 0; j < 1000; j++, i++) {
+                int doc = map.getDocNum(targets[i % targets.length]);
+                sum += map.getFirstChunk(doc);
+              }
+              count += 2000;
+            }
+            nDone.addAndGet(count + (sum & 1)); // keep sum from being optimized away
+          }
+          catch (InterruptedException e) {
+          }
+          finally {
+            doneLatch.countDown();
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    // Let them all go at once, then wait for them to finish.
+    long startTime = System.currentTimeMillis();
+    stopTime[0] = startTime + runTime;
+    startLatch.countDown();
+    doneLatch.await();
+    long elapsed = System.currentTimeMillis() - startTime;
+
+    return nDone.get() * 1000.0 / Math.max(1, elapsed);
+  } // measure()
+
+  /**
+   * The way {@link XtfDocNumMap} used to work, for comparison: a binary
+   * search whose results are kept in fields, so every lookup has to be
+   * synchronized.
+   */
+  private static class OldDocNumMap implements DocNumMap 
+  {
+    private int[] docNums;
+    private int nDocs;
+    private int prevNum = -1;
+    private int low = -1;
+    private int high = -1;
+
+    OldDocNumMap(IndexReader reader)
+      throws Exception 
+    {
+      XtfDocNumMap map = new XtfDocNumMap(reader, 100, 50);
+      map.getDocNum(0); // force load
+      nDocs = map.getDocCount();
+      docNums = new int[nDocs];
+      int prev = 0;
+      for (int i = 0; i < nDocs; i++) {
+        docNums[i] = map.getDocNum(prev);
+        prev = docNums[i] + 1;
+      }
+    }
+
+    public int getChunkSize() {
+      return 100;
+    }
+
+    public int getChunkOverlap() {
+      return 50;
+    }
+
+    public int getDocCount() {
+      return nDocs;
+    }
+
+    public synchronized int getDocNum(int chunkNumber) 
+    {
+      scan(chunkNumber);
+      if (high == nDocs)
+        return -1;
+      return docNums[high];
+    }
+
+    public synchronized int getFirstChunk(int docNum) 
+    {
+      scan(docNum);
+      if (low < 0 || docNums[low] != docNum)
+        return -1;
+      if (low == 0)
+        return 1;
+      else
+        return docNums[low - 1] + 1;
+    }
+
+    public int getLastChunk(int docNum) {
+      return docNum - 1;
+    }
+
+    private void scan(int num) 
+    {
+      if (num == prevNum)
+        return;
+      int high = nDocs;
+      int low = -1;
+      int probe;
+      while (high - low > 1) {
+        probe = (high + low) / 2;
+        if (docNums[probe] > num)
+          high = probe;
+        else
+          low = probe;
+      }
+      this.low = low;
+      this.high = high;
+    }
+  } // class OldDocNumMap
+} // class DocNumMapBenchmark
@@ -76,6 +76,7 @@ import org.cdlib.xtf.util.FastIntCache;
 import org.cdlib.xtf.util.FastCache;
 import org.cdlib.xtf.util.IntHash;
 import org.cdlib.xtf.util.IntMultiMap;
+import org.cdlib.xtf.util.MappedStructuredFile;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.StructuredFile;
 import org.cdlib.xtf.util.StructuredStore;
@@ -128,6 +129,7 @@ public class RegressTest
     // Test the libraries we depend on.
     Path.tester.test();
     StructuredFile.tester.test();
+    MappedStructuredFile.tester.test();
     IntHash.tester.test();
     DiskHashWriter.tester.test();
     CircularQueue.tester.test();
@@ -0,0 +1,479 @@
+package org.cdlib.xtf.test;
+
+/*
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.cdlib.xtf.saxonExt.sql.SQLConnectionPool;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Checks that {@link SQLConnectionPool} re-uses connections and prepared
+ * statements, limits the number in use, closes idle and broken ones, and
+ * doesn't let a connection be used after it's given back. By default it
+ * runs against a tiny in-memory database built in below (just enough SQL
+ * for these checks), so it needs nothing outside the tree; any other JDBC
+ * driver can be given instead. Exits with status 1 if any check fails.
+ * Usage:<br><br>
+ *
+ * <code>SQLPoolTest [-driver className -url jdbcUrl] [-user name]
+ * [-password pw]</code>
+ */
+public class SQLPoolTest 
+{
+  private String driver = null;
+  private String url = MemDriver.URL;
+  private Properties props = new Properties();
+  private int nFailed = 0;
+
+  public static void main(String[] args) 
+  {
+    try {
+      new SQLPoolTest().run(args);
+    }
+    catch (Throwable t) {
+      Trace.error("Unexpected error: " + t);
+      System.exit(1);
+    }
+    System.exit(0);
+  } // main()
+
+  private void run(String[] args)
+    throws Exception 
+  {
+    props.put("user", "sa");
+    props.put("password", "");
+    for (int i = 0; i + 1 < args.length; i += 2) 
+    {
+      if (args[i].equals("-driver"))
+        driver = args[i + 1];
+      else if (args[i].equals("-url"))
+        url = args[i + 1];
+      else if (args[i].equals("-user"))
+        props.put("user", args[i + 1]);
+      else if (args[i].equals("-password"))
+        props.put("password", args[i + 1]);
+      else
+        throw new RuntimeException("Unknown option '" + args[i] + "'");
+    }
+    if (driver != null)
+      Class.forName(driver);
+    else
+      DriverManager.registerDriver(new MemDriver());
+
+    testReuse();
+    testStatements();
+    testLimit();
+    testIdle();
+    testBroken();
+    testThreadShare();
+    testNoLimit();
+
+    if (nFailed > 0) {
+      System.out.println(nFailed + " checks failed.");
+      System.exit(1);
+    }
+    System.out.println("All checks passed.");
+  } // run()
+
+  /** Connections given back should be handed out again. */
+  private void testReuse()
+    throws SQLException 
+  {
+    SQLConnectionPool pool = newPool(2, 1000 * 60);
+    Connection c1 = pool.borrow();
+    c1.close();
+    c1.close(); // closing twice mustn't give it back twice
+    Connection c2 = pool.borrow();
+    check("reuse: one physical connection", pool.nOpened() == 1);
+    check("reuse: old handle is closed", c1.isClosed() && !c2.isClosed());
+    try {
+      c1.createStatement();
+      check("reuse: old handle unusable", false);
+    }
+    catch (SQLException e) {
+    }
+    Connection c3 = pool.borrow();
+    check("reuse: second connection opened", pool.nOpened() == 2);
+    c2.close();
+    c3.close();
+    check("reuse: both idle", pool.nIdle() == 2);
+  } // testReuse()
+
+  /** Prepared statements should work across borrowings. */
+  private void testStatements()
+    throws SQLException 
+  {
+    SQLConnectionPool pool = newPool(1, 1000 * 60);
+    Connection conn = pool.borrow();
+    Statement stmt = conn.createStatement();
+    stmt.execute("CREATE TABLE poolTest (val VARCHAR(20))");
+    stmt.close();
+    conn.close();
+
+    for (int i = 0; i < 100; i++) 
+    {
+      conn = pool.borrow();
+      PreparedStatement ps = conn.prepareStatement(
+        "INSERT INTO poolTest (val) VALUES (?)");
+      check("statements: getConnection", ps.getConnection() == conn);
+      ps.setString(1, "v" + i);
+      ps.executeUpdate();
+      ps.close();
+      conn.close();
+    }
+
+    conn = pool.borrow();
+    PreparedStatement ps = conn.prepareStatement(
+      "SELECT COUNT(*) FROM poolTest");
+    ResultSet rs = ps.executeQuery();
+    check("statements: all rows inserted", rs.next() && rs.getInt(1) == 100);
+    rs.close();
+    ps.close();
+    stmt = conn.createStatement();
+    stmt.execute("DROP TABLE poolTest");
+    stmt.close();
+    conn.close();
+    check("statements: one physical connection", pool.nOpened() == 1);
+  } // testStatements()
+
+  /** No more than the max connections should be handed out at once. */
+  private void testLimit()
+    throws SQLException 
+  {
+    SQLConnectionPool pool = newPool(2, 1000 * 60);
+    Connection c1 = pool.borrow();
+    Connection c2 = pool.borrow();
+    try {
+      pool.borrow();
+      check("limit: third borrow should time out", false);
+    }
+    catch (SQLException e) {
+    }
+    c1.close();
+    Connection c3 = pool.borrow();
+    check("limit: borrow after give back", pool.nOpened() == 2);
+    c2.close();
+    c3.close();
+  } // testLimit()
+
+  /** Connections idle too long should be closed. */
+  private void testIdle()
+    throws Exception 
+  {
+    SQLConnectionPool pool = newPool(2, 50);
+    pool.borrow().close();
+    Thread.sleep(200);
+    pool.borrow().close();
+    check("idle: stale connection replaced", pool.nOpened() == 2);
+    check("idle: only one kept", pool.nIdle() == 1);
+  } // testIdle()
+
+  /** A connection that had an error shouldn't be re-used. */
+  private void testBroken()
+    throws SQLException 
+  {
+    SQLConnectionPool pool = newPool(2, 1000 * 60);
+    Connection conn = pool.borrow();
+    try {
+      conn.createStatement().execute("THIS IS NOT SQL");
+      check("broken: bad SQL should fail", false);
+    }
+    catch (SQLException e) {
+    }
+    conn.close();
+    check("broken: not kept", pool.nIdle() == 0);
+    pool.borrow().close();
+    check("broken: new connection opened", pool.nOpened() == 2);
+  } // testBroken()
+
+  /** Calls on one thread should share a connection until all close it. */
+  private void testThreadShare()
+    throws Exception 
+  {
+    final SQLConnectionPool pool = newPool(1, 1000 * 60);
+    Connection c1 = pool.borrowForThread();
+    Connection c2 = pool.borrowForThread();
+    check("share: one physical connection", pool.nOpened() == 1);
+    c1.close();
+    c1.close(); // closing twice mustn't end the other borrower's use
+    check("share: still usable by other borrower", !c2.isClosed());
+    c2.createStatement().close();
+
+    // Another thread can't share it, and has to wait for it.
+    final boolean[] gotIt = new boolean[1];
+    Thread other = new Thread() {
+      public void run() {
+        try {
+          pool.borrowForThread().close();
+          gotIt[0] = true;
+        }
+        catch (SQLException e) {
+        }
+      }
+    };
+    other.start();
+    other.join();
+    check("share: other thread not given it", !gotIt[0]);
+
+    c2.close();
+    check("share: given back after last close", pool.nIdle() == 1);
+    Connection c3 = pool.borrowForThread();
+    check("share: new lease after give back", c3 != c2 && !c3.isClosed());
+    c3.close();
+  } // testThreadShare()
+
+  /** A pool with no limit should never make callers wait. */
+  private void testNoLimit()
+    throws SQLException 
+  {
+    SQLConnectionPool pool = newPool(0, 1000 * 60);
+    Connection[] conns = new Connection[20];
+    for (int i = 0; i < conns.length; i++)
+      conns[i] = pool.borrow();
+    check("no limit: all opened", pool.nOpened() == conns.length);
+    for (int i = 0; i < conns.length; i++)
+      conns[i].close();
+    check("no limit: all idle", pool.nIdle() == conns.length);
+  } // testNoLimit()
+
+  private SQLConnectionPool newPool(int maxConnections, long maxIdleTime) {
+    return new SQLConnectionPool(url, props, maxConnections, 10, maxIdleTime, 200);
+  }
+
+  private void check(String what, boolean ok) 
+  {
+    if (!ok) {
+      System.out.println("FAILED: " + what);
+      ++nFailed;
+    }
+  }
+
+  /**
+   * A minimal in-memory JDBC driver, so the test can run without a real
+   * database. Tables only keep a count of their rows, and the only SQL
+   * understood is what the checks above use: CREATE TABLE, INSERT INTO,
+   * SELECT COUNT(*) FROM, and DROP TABLE. Anything else is an error.
+   */
+  private static class MemDriver implements Driver 
+  {
+    static final String URL = "jdbc:xtfPoolTest:mem";
+
+    /** Number of rows in each table */
+    private HashMap<String, Integer> tables = new HashMap<String, Integer>();
+
+    public Connection connect(String url, Properties info) {
+      if (!acceptsURL(url))
+        return null;
+      return (Connection)proxy(Connection.class, new MemConnection());
+    }
+
+    public boolean acceptsURL(String url) {
+      return URL.equals(url);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    public Logger getParentLogger() {
+      return Logger.getLogger("org.cdlib.xtf.test");
+    }
+
+    /** Make an object implementing a JDBC interface */
+    private static Object proxy(Class type, InvocationHandler handler) {
+      return Proxy.newProxyInstance(SQLPoolTest.class.getClassLoader(),
+                                    new Class[] { type }, handler);
+    }
+
+    /** The value to return for a method we don't care about */
+    private static Object defaultValue(Method method) 
+    {
+      Class type = method.getReturnType();
+      if (type == boolean.class)
+        return Boolean.FALSE;
+      if (type == int.class)
+        return new Integer(0);
+      if (type == long.class)
+        return new Long(0);
+      return null;
+    }
+
+    /** Run a statement, returning the resulting count if it's a query. */
+    private synchronized int runSQL(String sql)
+      throws SQLException 
+    {
+      String[] words = sql.trim().split("\\s+");
+      if (words.length >= 3 && words[0].equalsIgnoreCase("CREATE") &&
+          words[1].equalsIgnoreCase("TABLE")) 
+      {
+        tables.put(words[2].toLowerCase(), new Integer(0));
+        return 0;
+      }
+      if (words.length >= 3 && words[0].equalsIgnoreCase("DROP") &&
+          words[1].equalsIgnoreCase("TABLE")) 
+      {
+        rowCount(words[2]);
+        tables.remove(words[2].toLowerCase());
+        return 0;
+      }
+      if (words.length >= 3 && words[0].equalsIgnoreCase("INSERT") &&
+          words[1].equalsIgnoreCase("INTO")) 
+      {
+        int count = rowCount(words[2]);
+        tables.put(words[2].toLowerCase(), new Integer(count + 1));
+        return 1;
+      }
+      if (words.length == 4 && words[0].equalsIgnoreCase("SELECT") &&
+          words[1].equalsIgnoreCase("COUNT(*)") &&
+          words[2].equalsIgnoreCase("FROM"))
+        return rowCount(words[3]);
+      throw new SQLException("Unsupported SQL: " + sql);
+    } // runSQL()
+
+    private int rowCount(String table)
+      throws SQLException 
+    {
+      Integer count = tables.get(table.toLowerCase());
+      if (count == null)
+        throw new SQLException("No such table: " + table);
+      return count.intValue();
+    }
+
+    /** A connection to the in-memory database */
+    private class MemConnection implements InvocationHandler 
+    {
+      boolean closed = false;
+
+      public Object invoke(Object proxy, Method method, Object[] args)
+        throws SQLException 
+      {
+        String name = method.getName();
+        if (name.equals("close"))
+          closed = true;
+        else if (name.equals("isClosed"))
+          return Boolean.valueOf(closed);
+        else if (name.equals("isValid"))
+          return Boolean.valueOf(!closed);
+        else if (name.equals("getAutoCommit"))
+          return Boolean.TRUE;
+        else if (name.equals("equals"))
+          return Boolean.valueOf(proxy == args[0]);
+        else if (name.equals("hashCode"))
+          return new Integer(System.identityHashCode(proxy));
+        else if (name.equals("toString"))
+          return "MemConnection";
+        else if (closed)
+          throw new SQLException("Connection is closed");
+        else if (name.equals("createStatement"))
+          return proxy(Statement.class, new MemStatement(null));
+        else if (name.equals("prepareStatement"))
+          return proxy(PreparedStatement.class, 
+                       new MemStatement((String)args[0]));
+        return defaultValue(method);
+      }
+    } // class MemConnection
+
+    /** A plain or prepared statement. Parameters are ignored. */
+    private class MemStatement implements InvocationHandler 
+    {
+      String preparedSQL;
+
+      MemStatement(String preparedSQL) {
+        this.preparedSQL = preparedSQL;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args)
+        throws SQLException 
+      {
+        String name = method.getName();
+        if (!name.startsWith("execute"))
+          return defaultValue(method);
+        String sql = (args != null && args.length > 0) ? (String)args[0]
+                     : preparedSQL;
+        int result = runSQL(sql);
+        if (name.equals("executeQuery"))
+          return proxy(ResultSet.class, new MemResultSet(result));
+        if (name.equals("executeUpdate"))
+          return new Integer(result);
+        return Boolean.FALSE;
+      }
+    } // class MemStatement
+
+    /** A result set holding one row, with one integer column */
+    private static class MemResultSet implements InvocationHandler 
+    {
+      int value;
+      boolean read = false;
+
+      MemResultSet(int value) {
+        this.value = value;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) 
+      {
+        String name = method.getName();
+        if (name.equals("next")) {
+          boolean ret = !read;
+          read = true;
+          return Boolean.valueOf(ret);
+        }
+        if (name.equals("getInt"))
+          return new Integer(value);
+        return defaultValue(method);
+      }
+    } // class MemResultSet
+  } // class MemDriver
+} // class SQLPoolTest
@@ -0,0 +1,197 @@
+package org.cdlib.xtf.test;
+
+/*
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.stream.StreamSource;
+
+import org.cdlib.xtf.textEngine.DefaultQueryProcessor;
+import org.cdlib.xtf.textEngine.IndexWarmer;
+import org.cdlib.xtf.textEngine.QueryProcessor;
+import org.cdlib.xtf.textEngine.QueryRequest;
+import org.cdlib.xtf.textEngine.QueryRequestParser;
+import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Measures how query throughput scales with the number of threads, when all
+ * the threads share a single {@link DefaultQueryProcessor}. Each query file
+ * is in the same format as the regression test "-in.xml" files (i.e. the
+ * output of a query parser stylesheet.) Usage:<br><br>
+ *
+ * <code>ThroughputTest [-threads 1,2,4,8] [-seconds 10] xtfHome query1-in.xml ...</code>
+ */
+public class ThroughputTest 
+{
+  /** Thread counts to try, in order */
+  private int[] threadCounts = { 1, 2, 4, 8 };
+
+  /** How long to run each thread count, in milliseconds */
+  private long runTime = 10000;
+
+  /** The parsed queries to cycle through */
+  private ArrayList<QueryRequest> requests = new ArrayList<QueryRequest>();
+
+  /** The single processor shared by all the threads */
+  private QueryProcessor processor;
+
+  public static void main(String[] args) 
+  {
+    try {
+      new ThroughputTest().run(args);
+    }
+    catch (Exception e) {
+      Trace.error("Unexpected error: " + e);
+      System.exit(1);
+    }
+    System.exit(0);
+  } // main()
+
+  public void run(String[] args)
+    throws Exception 
+  {
+    // Parse the command-line.
+    String xtfHome = null;
+    ArrayList<String> queryFiles = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) 
+    {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        String[] counts = args[++i].split(",");
+        threadCounts = new int[counts.length];
+        for (int j = 0; j < counts.length; j++)
+          threadCounts[j] = Integer.parseInt(counts[j].trim());
+      }
+      else if (args[i].equals("-seconds") && i + 1 < args.length)
+        runTime = Long.parseLong(args[++i]) * 1000;
+      else if (xtfHome == null)
+        xtfHome = args[i];
+      else
+        queryFiles.add(args[i]);
+    }
+
+    if (xtfHome == null || queryFiles.isEmpty()) {
+      Trace.error("Usage: ThroughputTest [-threads 1,2,4,8] [-seconds 10] " +
+                  "xtfHome query1-in.xml ...");
+      return;
+    }
+
+    // Parse all the queries up front, so we time only the processing.
+    xtfHome = Path.normalizePath(new File(xtfHome).getAbsolutePath());
+    for (String fileName : queryFiles) {
+      File queryFile = new File(fileName).getAbsoluteFile();
+      requests.add(new QueryRequestParser().parseRequest(
+        new StreamSource(queryFile), queryFile.getParentFile()));
+    }
+
+    // Make the one processor that every thread will share.
+    processor = new DefaultQueryProcessor();
+    processor.setXtfHome(xtfHome);
+    processor.setIndexWarmer(new IndexWarmer(xtfHome, 0));
+
+    // Warm up: run each query once so that index opening and cache
+    // loading aren't counted.
+    //
+    for (QueryRequest req : requests)
+      processor.processRequest((QueryRequest)req.clone());
+
+    // Now time each thread count in turn.
+    double baseRate = 0;
+    for (int nThreads : threadCounts) 
+    {
+      double rate = measure(nThreads);
+      if (baseRate == 0)
+        baseRate = rate;
+      Trace.info(String.format("%3d thread(s): %9.1f queries/sec (%.2fx)",
+                               nThreads, rate, rate / baseRate));
+    }
+  } // run()
+
+  /**
+   * Run the queries on the given number of threads for the configured
+   * length of time.
+   *
+   * @return  the number of queries completed per second
+   */
+  private double measure(int nThreads)
+    throws Exception 
+  {
+    final AtomicInteger nDone = new AtomicInteger(0);
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch doneLatch = new CountDownLatch(nThreads);
+    final Exception[] failure = new Exception[1];
+    final long[] stopTime = new long[1];
+
+    for (int t = 0; t < nThreads; t++) 
+    {
+      final int offset = t;
+      Thread thread = new Thread() 
+      {
+        public void run() 
+        {
+          try {
+            startLatch.await();
+            for (int i = offset; System.currentTimeMillis() < stopTime[0]; i++) {
+              QueryRequest req = requests.get(i % requests.size());
+              processor.processRequest((QueryRequest)req.clone());
+              nDone.incrementAndGet();
+            }
+          }
+          catch (Exception e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          }
+          finally {
+            doneLatch.countDown();
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    // Let them all go at once, then wait for them to finish.
+    long startTime = System.currentTimeMillis();
+    stopTime[0] = startTime + runTime;
+    startLatch.countDown();
+    doneLatch.await();
+    long elapsed = System.currentTimeMillis() - startTime;
+
+    synchronized (failure) {
+      if (failure[0] != null)
+        throw failure[0];
+    }
+
+    return nDone.get() * 1000.0 / Math.max(1, elapsed);
+  } // measure()
+} // class ThroughputTest
@@ -0,0 +1,207 @@
+package org.cdlib.xtf.test;
+
+/*
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.WildcardTermEnum;
+import org.apache.lucene.store.RAMDirectory;
+import org.cdlib.xtf.textEngine.WildcardTermIndex;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Measures how long it takes to find the terms matching wildcard patterns,
+ * especially those starting with a wildcard, comparing Lucene's scan of the
+ * term dictionary with {@link WildcardTermIndex}. A synthetic index is built
+ * in memory with the given number of distinct made-up words, and each
+ * pattern is expanded repeatedly both ways (checking that the results
+ * agree.) Usage:<br><br>
+ *
+ * <code>WildcardBenchmark [-terms 1000000] [-reps 20]
+ * [-patterns *ology,?ar*,*tion,*qu?st*,ex*]</code>
+ */
+public class WildcardBenchmark 
+{
+  /** Number of distinct terms in the synthetic index */
+  private int nTerms = 1000000;
+
+  /** Number of times to expand each pattern */
+  private int nReps = 20;
+
+  /** Patterns to try */
+  private String[] patterns = { "*ology", "?ar*", "*tion", "*qu?st*", "ex*" };
+
+  /** Pieces the made-up words are built from */
+  private static final String[] SYLLABLES = {
+    "ab", "ar", "bo", "ca", "de", "ex", "fi", "gy", "ing", "lo", "log",
+    "ma", "ne", "ol", "og", "pa", "qu", "re", "st", "ti", "tion", "un",
+    "va", "y", "zo"
+  };
+
+  public static void main(String[] args) 
+  {
+    try {
+      new WildcardBenchmark().run(args);
+    }
+    catch (Exception e) {
+      Trace.error("Unexpected error: " + e);
+      System.exit(1);
+    }
+    System.exit(0);
+  } // main()
+
+  public void run(String[] args)
+    throws Exception 
+  {
+    // Parse the command-line.
+    for (int i = 0; i < args.length; i++) 
+    {
+      if (args[i].equals("-terms") && i + 1 < args.length)
+        nTerms = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-reps") && i + 1 < args.length)
+        nReps = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-patterns") && i + 1 < args.length)
+        patterns = args[++i].split(",");
+      else {
+        Trace.error("Usage: WildcardBenchmark [-terms 1000000] [-reps 20] " +
+                    "[-patterns *ology,?ar*,*tion,*qu?st*,ex*]");
+        return;
+      }
+    }
+
+    Trace.info("Building index of " + nTerms + " terms...");
+    IndexReader reader = buildIndex();
+
+    long startTime = System.currentTimeMillis();
+    WildcardTermIndex.warm(reader, "text", null);
+    Trace.info("Trigram index built in " + 
+               (System.currentTimeMillis() - startTime) + " ms.");
+
+    for (String pattern : patterns) 
+    {
+      Term term = new Term("text", pattern);
+
+      // Make sure both ways find the same terms.
+      ArrayList<String> scanned = collect(new WildcardTermEnum(reader, term));
+      TermEnum indexedEnum = WildcardTermIndex.expand(reader, term, null,
+                                                      Integer.MAX_VALUE);
+      if (indexedEnum == null) {
+        Trace.info(String.format("%-10s %7d matches; pattern can't use index",
+                                 pattern, scanned.size()));
+        continue;
+      }
+      ArrayList<String> indexed = collect(indexedEnum);
+      if (!scanned.equals(indexed))
+        throw new RuntimeException("Results differ for pattern '" + pattern + "'");
+
+      // Now time them.
+      long scanTime = System.nanoTime();
+      for (int i = 0; i < nReps; i++)
+        collect(new WildcardTermEnum(reader, term));
+      scanTime = (System.nanoTime() - scanTime) / nReps;
+
+      long indexTime = System.nanoTime();
+      for (int i = 0; i < nReps; i++)
+        collect(WildcardTermIndex.expand(reader, term, null, Integer.MAX_VALUE));
+      indexTime = (System.nanoTime() - indexTime) / nReps;
+
+      Trace.info(String.format(
+        "%-10s %7d matches; scan %9.3f ms, trigram index %9.3f ms (%.1fx)",
+        pattern, scanned.size(), scanTime / 1e6, indexTime / 1e6,
+        (double)scanTime / indexTime));
+    }
+    reader.close();
+  } // run()
+
+  /** Build an in-memory index containing the made-up words. */
+  private IndexReader buildIndex()
+    throws Exception 
+  {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true);
+    writer.setMaxBufferedDocs(1000);
+    Random rand = new Random(1);
+
+    HashSet<String> seen = new HashSet<String>();
+    StringBuffer buf = new StringBuffer();
+    int inDoc = 0;
+    while (seen.size() < nTerms) 
+    {
+      StringBuffer word = new StringBuffer();
+      int nSyl = 2 + rand.nextInt(4);
+      for (int i = 0; i < nSyl; i++)
+        word.append(SYLLABLES[rand.nextInt(SYLLABLES.length)]);
+      if (!seen.add(word.toString()))
+        continue;
+      buf.append(word).append(' ');
+
+      if (++inDoc == 1000 || seen.size() == nTerms) {
+        Document doc = new Document();
+        doc.add(new Field("text", buf.toString(), Field.Store.NO, Field.Index.TOKENIZED));
+        writer.addDocument(doc);
+        buf.setLength(0);
+        inDoc = 0;
+      }
+    }
+
+    writer.optimize();
+    writer.close();
+    return IndexReader.open(dir);
+  } // buildIndex()
+
+  /** Gather the text of every term in the enumeration. */
+  private static ArrayList<String> collect(TermEnum termEnum)
+    throws Exception 
+  {
+    ArrayList<String> ret = new ArrayList<String>();
+    try 
+    {
+      do {
+        Term t = termEnum.term();
+        if (t == null)
+          break;
+        ret.add(t.text());
+      } while (termEnum.next());
+    }
+    finally {
+      termEnum.close();
+    }
+    return ret;
+  } // collect()
+} // class WildcardBenchmark
@@ -40,7 +40,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.WeakHashMap;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
@@ -50,7 +50,9 @@ import org.cdlib.xtf.util.Trace;
 
 /**
  * Holds a set of boost factors to apply to individual documents in the
- * document set.
+ * document set. The boosts are correlated with the documents separately for
+ * each segment of the index, so that when the index is re-opened after an
+ * update, only the new segments have to be matched up.
  *
  * @author Martin Haye
  */
@@ -71,6 +73,45 @@ public class BoostSet
   /** Marker for the default value */
   private static float DEFAULT_MARKER = -99.0f;
 
+  /** Boosts for each segment, from which the set for a reader is built */
+  private static SegmentCache segmentCache = new SegmentCache() 
+  {
+    protected Object load(IndexReader segment, Object key)
+      throws IOException 
+    {
+      SegmentKey k = (SegmentKey)key;
+      BoostSet set = new BoostSet(segment, k.inFile, k.field, true);
+      set.modTime = k.modTime;
+      set.length = k.length;
+      return set;
+    }
+
+    protected boolean isCurrent(Object data, Object key) 
+    {
+      BoostSet set = (BoostSet)data;
+      SegmentKey k = (SegmentKey)key;
+      return set.modTime == k.modTime && set.length == k.length;
+    }
+  };
+
+  /** Modification time of the boost file when a segment's set was read */
+  private long modTime;
+
+  /** Length of the boost file when a segment's set was read */
+  private long length;
+
+  /** Lines of the boost file that matched documents, by line number */
+  private BitSet matchedLines = new BitSet();
+
+  /** Number of lines in the boost file */
+  private int nLines = 0;
+
+  /** True if any lines of the boost file were malformed or out of order */
+  private boolean badLines = false;
+
+  /** If true, don't emit warnings */
+  private boolean quiet;
+
   /**
    * Retrieves BoostSet for a given File from a given reader. Maintains a cache
    * so that if the same File is requested again for this reader, we don't have
@@ -85,23 +126,27 @@ public class BoostSet
                                       String field)
     throws IOException 
   {
-    // See if we have a cache for this reader.
-    HashMap readerCache = (HashMap)cache.get(indexReader);
-    if (readerCache == null) {
-      readerCache = new HashMap();
-      cache.put(indexReader, readerCache);
-    }
-
-    // Now see if we've already read data for this field.
-    BoostSet set = (BoostSet)readerCache.get(inFile);
-    if (set == null || !set.field.equals(field)) 
+    // See if we've already read data for this file with this reader.
+    indexReader = SegmentCache.unwrap(indexReader);
+    SegmentCache.Entry ent = SegmentCache.entry(cache, indexReader, inFile);
+    synchronized (ent) 
     {
-      // Don't have cached data, so read and remember it.
-      set = new BoostSet(indexReader, inFile, field);
-      readerCache.put(inFile, set);
+      BoostSet set = (BoostSet)ent.data;
+      if (set == null || !set.field.equals(field)) 
+      {
+        // Don't have cached data, so build it from the boosts for each
+        // segment and remember it.
+        //
+        Trace.debug("Loading boost set '" + inFile + "'...");
+        set = new BoostSet(
+          segmentCache.get(indexReader, new SegmentKey(inFile, field)),
+          SegmentCache.segmentStarts(SegmentCache.segments(indexReader)),
+          inFile, field);
+        Trace.debug("... done loading boost set");
+        ent.data = set;
+      }
+      return set;
     }
-
-    return set;
   } // getCachedSet()
 
   /** Get the boost factor associated with the given document, or the default
@@ -124,14 +169,16 @@ public class BoostSet
    *  {@link #getCachedSet(IndexReader, File, String)}
    *  instead. Constructs a BoostSet by reading a file containing document
    *  key -> boost factor mappings, and correlating it with the keys in the
-   *  given index reader.
+   *  given index reader (typically a single segment.)
+   *
+   *  @param quiet    true to suppress warnings
    */
-  private BoostSet(IndexReader indexReader, File inFile, String field)
+  private BoostSet(IndexReader indexReader, File inFile, String field,
+                   boolean quiet)
     throws IOException 
   {
     this.field = field;
-
-    Trace.debug("Loading boost set '" + inFile + "'...");
+    this.quiet = quiet;
 
     // Figure out the max doc ID, make an array that big, and fill it with
     // a marker for the default value.
@@ -168,8 +215,10 @@ public class BoostSet
 
         // Found a match.
         int docId = docIter.docId();
-        if (docId >= 0 && docId < boostByDoc.length)
+        if (docId >= 0 && docId < boostByDoc.length) {
           boostByDoc[docId] = lineIter.boost();
+          matchedLines.set(lineIter.lineNum());
+        }
 
         docIter.next();
         lineIter.next();
@@ -187,8 +236,7 @@ public class BoostSet
         warn("Boost document key '" + lineIter.key() + "' not found in index");
         lineIter.next();
       }
-
-      Trace.debug("... done loading boost set");
+      nLines = lineIter.lineNum();
     }
     finally {
       if (docIter != null)
@@ -198,6 +246,52 @@ public class BoostSet
     }
   } // constructor
 
+  /**
+   * Put together the boost set for a whole reader from the sets for each of
+   * its segments.
+   *
+   * @param parts   The set for each segment
+   * @param starts  Starting document ID of each segment
+   */
+  private BoostSet(Object[] parts, int[] starts, File inFile, String field)
+    throws IOException 
+  {
+    this.field = field;
+
+    // Copy each segment's boosts into place, and find out which lines of
+    // the file matched somewhere.
+    //
+    boostByDoc = new float[starts[parts.length] + 1];
+    Arrays.fill(boostByDoc, DEFAULT_MARKER);
+    for (int i = 0; i < parts.length; i++) 
+    {
+      BoostSet part = (BoostSet)parts[i];
+      System.arraycopy(part.boostByDoc, 0, boostByDoc, starts[i], 
+                       starts[i + 1] - starts[i]);
+      matchedLines.or(part.matchedLines);
+      nLines = part.nLines;
+      badLines |= part.badLines;
+    }
+
+    // The segments don't complain, since a key missing from one is usually
+    // in another. If there's anything to complain about for the index as a
+    // whole, go through the file again to do it.
+    //
+    if (!badLines && matchedLines.cardinality() == nLines)
+      return;
+    LineIter lineIter = new LineIter(new BufferedReader(new FileReader(inFile)));
+    try 
+    {
+      for (; !lineIter.done(); lineIter.next()) {
+        if (!matchedLines.get(lineIter.lineNum()))
+          warn("Boost document key '" + lineIter.key() + "' not found in index");
+      }
+    }
+    finally {
+      lineIter.close();
+    }
+  } // constructor
+
   /**
    * If less than 10 warnings have been emitted, we print this one out.
    * Otherwise, we suppress it.
@@ -205,6 +299,8 @@ public class BoostSet
    * @param msg   The message to emit
    */
   private void warn(String msg) {
+    if (quiet)
+      return;
     ++nWarnings;
     if (nWarnings < 10)
       Trace.warning(msg);
@@ -243,14 +339,17 @@ public class BoostSet
       return docKey;
     }
 
-    /** Gets the Lucene document ID of the current document */
+    /**
+     * Gets the Lucene document ID of the current document, or -1 if it has
+     * been deleted (in a segment, the only document with a key can be
+     * deleted, with its replacement in a later segment.)
+     */
     int docId()
       throws IOException 
     {
       termPositions.seek(termEnum);
       if (termPositions.next())
         return termPositions.doc();
-      assert false : "error reading term positions";
       return -1;
     }
 
@@ -294,6 +393,7 @@ public class BoostSet
     String prevLineKey = "";
     String lineKey;
     float lineBoost;
+    int lineNum = -1;
 
     /** Construct from a reader */
     LineIter(BufferedReader reader)
@@ -318,6 +418,14 @@ public class BoostSet
       return lineBoost;
     }
 
+    /**
+     * Get the number of the current line, counting only valid ones. Once
+     * done, this is the number of valid lines.
+     */
+    int lineNum() {
+      return lineNum;
+    }
+
     /** Advance to the next line */
     void next()
       throws IOException 
@@ -341,28 +449,65 @@ public class BoostSet
         String line = reader.readLine();
         if (line == null) {
           done = true;
+          ++lineNum;
           break;
         }
         int sepPos = line.indexOf('|');
         if (sepPos < 0) {
           warn("Boost line missing separator: '" + line + "'");
+          badLines = true;
           continue;
         }
         lineKey = line.substring(0, sepPos);
         lineBoost = Float.parseFloat(line.substring(sepPos + 1));
 
         if (lineKey.compareTo(prevLineKey) <= 0) {
-          Trace.error(
-            "Error: Boost set lines out of order: '" + prevLineKey +
-            "' came before '" + lineKey + "', but should come after.");
+          if (!quiet)
+            Trace.error(
+              "Error: Boost set lines out of order: '" + prevLineKey +
+              "' came before '" + lineKey + "', but should come after.");
+          badLines = true;
           done = true;
+          ++lineNum;
           break;
         }
         prevLineKey = lineKey;
 
         // Got a valid line.
+        ++lineNum;
         break;
       }
     } // readLine()
   } // class LineIter
+
+  /**
+   * Identifies the boosts for a segment: file and field. Also records the
+   * file's current version; a set read from an older version is replaced
+   * rather than kept alongside the new one.
+   */
+  private static class SegmentKey 
+  {
+    File inFile;
+    String field;
+    long modTime;
+    long length;
+
+    SegmentKey(File inFile, String field) {
+      this.inFile = inFile;
+      this.field = field;
+      modTime = inFile.lastModified();
+      length = inFile.length();
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof SegmentKey))
+        return false;
+      SegmentKey other = (SegmentKey)o;
+      return inFile.equals(other.inFile) && field.equals(other.field);
+    }
+
+    public int hashCode() {
+      return inFile.hashCode() ^ field.hashCode();
+    }
+  } // class SegmentKey
 } // class BoostSet
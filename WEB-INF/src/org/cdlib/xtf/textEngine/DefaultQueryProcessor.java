@@ -38,12 +38,19 @@ package org.cdlib.xtf.textEngine;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.lucene.chunk.DocNumMap;
@@ -67,6 +74,7 @@ import org.apache.lucene.search.spans.SpanNotQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.spelt.SpellReader;
 import org.apache.lucene.util.PriorityQueue;
+import org.cdlib.xtf.cache.SimpleCache;
 import org.cdlib.xtf.textEngine.facet.DynamicGroupData;
 import org.cdlib.xtf.textEngine.facet.FacetSpec;
 import org.cdlib.xtf.textEngine.facet.GroupCounts;
@@ -75,6 +83,8 @@ import org.cdlib.xtf.textEngine.facet.ResultFacet;
 import org.cdlib.xtf.textEngine.facet.ResultGroup;
 import org.cdlib.xtf.textEngine.facet.StaticGroupData;
 import org.cdlib.xtf.util.CharMap;
+import org.cdlib.xtf.util.Metrics;
+import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.Trace;
 import org.cdlib.xtf.util.WordMap;
 
@@ -90,48 +100,8 @@ public class DefaultQueryProcessor extends QueryProcessor
   /** Map of all XtfSearchers, so we can re-use them */
   private static HashMap searchers = new HashMap();
 
-  /** Lucene reader from which to read index data */
-  private IndexReader indexReader;
-
-  /** Fetches spelling suggestions */
-  private SpellReader spellReader;
-
-  /** Keeps track of which chunks belong to which documents */
-  private DocNumMap docNumMap;
-
-  /** Max size of a chunk (in words) */
-  @SuppressWarnings("unused")
-  private int chunkSize;
-
-  /** Number of words a chunk shares with its successor */
-  private int chunkOverlap;
-
-  /** Stop-words to remove (e.g. "the", "a", "and", etc.) */
-  private Set stopSet;
-
-  /** Mapping of plural words to singular words */
-  private WordMap pluralMap;
-
-  /** Mapping of accented chars to chars without diacritics */
-  private CharMap accentMap;
-
-  /** Whether the index is "sparse" (i.e. more than 5 chunks per doc) */
-  private boolean isSparse;
-
-  /** Names of fields that are tokenized in this index */
-  private Set tokFields;
-
-  /** Total number of documents hit (not just those that scored high) */
-  private int nDocsHit;
-
-  /** Maximum document score (used to normalize scores) */
-  private float maxDocScore;
-
-  /** Document normalization factor (calculated from {@link #maxDocScore}) */
-  private float docScoreNorm;
-
   /** Used to warm up indexes prior to use */
-  private IndexWarmer indexWarmer;
+  private volatile IndexWarmer indexWarmer;
 
   /** Comparator used for sorting strings in "sparse" indexes */
   private static final SparseStringComparator sparseStringComparator = new SparseStringComparator();
@@ -142,54 +112,185 @@ public class DefaultQueryProcessor extends QueryProcessor
   /** Comparator used to sort by total number of hits */
   private static final TotalHitsComparator totalHitsComparator = new TotalHitsComparator();
   
+  /** Max number of ranges to split a single search into */
+  private int searchThreads = 1;
+
+  /** Min number of chunks per range when searching in parallel */
+  private int minChunksPerThread = 100000;
+
+  /** Threads shared by all processors for searching index ranges */
+  private static ExecutorService searchPool;
+
+  /** Max number of query plans to keep for each index (0 to disable) */
+  private int planCacheSize = 0;
+
+  /** XTF home directory, against which index paths are resolved */
+  private String xtfHome;
+
+  /** Full paths of the indexes whose results may be cached */
+  private Set<String> resultCacheIndexes = new HashSet<String>();
+
+  /** Max total size (in bytes) of cached results for each index */
+  private long resultCacheBytes = 0;
+
+  /** Record the XTF home directory, used to resolve index paths. */
+  public void setXtfHome(String homeDir) {
+    xtfHome = homeDir;
+  }
+
   /** Record an index warmer to use for background warming. */
   public void setIndexWarmer(IndexWarmer warmer) {
     indexWarmer = warmer;
   }
 
+  /** 
+   * Enable splitting large searches into ranges of documents that are
+   * searched in parallel.
+   *
+   * @param nThreads          Max # of ranges (1 to disable)
+   * @param minChunksPerThread  Don't split unless each range will contain
+   *                            at least this many chunks.
+   */
+  public void setParallelSearch(int nThreads, int minChunksPerThread) {
+    this.searchThreads = nThreads;
+    this.minChunksPerThread = Math.max(1, minChunksPerThread);
+  }
+
+  /**
+   * Enable re-use of rewritten queries between requests that have
+   * identical query XML (see {@link QueryRequest#parserOutput}).
+   *
+   * @param maxEntries        Max # of plans to keep per index (0 to
+   *                          disable.)
+   */
+  public void setPlanCacheSize(int maxEntries) {
+    this.planCacheSize = Math.max(0, maxEntries);
+  }
+
+  /**
+   * Enable caching of results for requests on certain indexes, so that a
+   * request with identical query XML (see {@link QueryRequest#parserOutput})
+   * doesn't have to search again. {@link #setXtfHome(String)} should be 
+   * called first, so that relative index paths can be resolved.
+   *
+   * @param indexPaths        Paths of the indexes to cache results for
+   * @param maxMegs           Max total size of the cached results for each
+   *                          index, in megabytes (0 to disable.)
+   */
+  public void setResultCache(Set<String> indexPaths, int maxMegs) 
+  {
+    resultCacheIndexes = new HashSet<String>();
+    for (String path : indexPaths)
+      resultCacheIndexes.add(resolveIndexPath(path));
+    resultCacheBytes = Math.max(0, maxMegs) * 1024L * 1024L;
+  }
+
   /**
    * This is main entry point. Takes a pre-parsed query request and handles
    * searching the index and forming the results.<br>
    *
-   * This method is synchronized because it uses two instance variables,
-   * so access by multiple threads would result in incorrect counting. For
-   * maximum efficiency, each thread should really use its own instance.
+   * All state for a given request is kept in a private {@link RequestContext},
+   * so any number of threads may call this method at the same time on a
+   * single processor instance.
    *
    * @param req      The pre-parsed request to process
    * @return         Zero or more document hits
    */
-  public synchronized QueryResult processRequest(final QueryRequest req)
+  public QueryResult processRequest(final QueryRequest req)
     throws IOException 
   {
-    // Clear out our counters.
-    nDocsHit = 0;
-    maxDocScore = 0;
-
-    // Make an vector to store the hits (we'll make it into an array
-    // later, when we know how many we have.)
-    //
-    Vector hitVec = new Vector(10);
-
     if (indexWarmer == null)
       throw new IOException("Fatal: must call setIndexWarmer() before DefaultQueryProcessor.processRequest()");
 
-    // Get a reader, searcher, and document number map that will all be
-    // consistent with each other and up-to-date.
+    // Get a snapshot of the reader, document number map, etc. that are all
+    // consistent with each other and up-to-date. It stays open until we
+    // release it, even if a new index gets flipped in meanwhile.
     //
     XtfSearcher xtfSearcher = indexWarmer.getSearcher(req.indexPath);
-    synchronized (xtfSearcher) {
-      xtfSearcher.update();
-      indexReader = xtfSearcher.indexReader();
-      docNumMap = xtfSearcher.docNumMap();
-      chunkSize = xtfSearcher.chunkSize();
-      chunkOverlap = xtfSearcher.chunkOverlap();
-      stopSet = xtfSearcher.stopSet();
-      pluralMap = xtfSearcher.pluralMap();
-      accentMap = xtfSearcher.accentMap();
-      spellReader = xtfSearcher.spellReader();
-      isSparse = xtfSearcher.isSparse();
-      tokFields = xtfSearcher.tokenizedFields();
+    try 
+    {
+      // If results are being cached for this index, and the same request
+      // was made recently, just hand back the same result.
+      //
+      ResultCache cache = null;
+      String key = null;
+      if (resultCacheBytes > 0 && req.parserOutput != null &&
+          resultCacheIndexes.contains(resolveIndexPath(req.indexPath)))
+      {
+        cache = xtfSearcher.resultCache(resultCacheBytes);
+        key = resultKey(req);
+        QueryResult result = cache.get(key);
+        if (result != null) {
+          Metrics.counter("textEngine.resultCache.hits").increment();
+          return result;
+        }
+        Metrics.counter("textEngine.resultCache.misses").increment();
+      }
+
+      // Now run the request against that consistent view of the index.
+      QueryResult result = processRequest(req, new RequestContext(xtfSearcher));
+
+      // Keep the result if we're caching (this loads all its hits, so it
+      // has to happen before we let go of the index.)
+      //
+      if (cache != null)
+        cache.put(key, result);
+      return result;
+    }
+    finally {
+      // Let go of the searcher, so it can be closed if the index has been
+      // flipped while we were working.
+      //
+      xtfSearcher.release();
     }
+  } // processRequest()
+
+  /**
+   * Resolve an index path to the full form used to check whether its
+   * results should be cached.
+   */
+  private String resolveIndexPath(String indexPath) {
+    return Path.normalizeFileName(Path.resolveRelOrAbs(xtfHome, indexPath));
+  }
+
+  /**
+   * Make the key identifying a request in the result cache. The query XML
+   * already covers the query, sorting, range of documents, facets, etc.
+   * A boost set file can change without the index changing, so its
+   * modification time is added as well.
+   */
+  private String resultKey(QueryRequest req) 
+  {
+    if (req.boostSetParams == null)
+      return req.parserOutput;
+    File boostFile = new File(req.boostSetParams.path);
+    return req.parserOutput + "\n" + boostFile.lastModified();
+  }
+
+  /**
+   * Does the work of processing a request, using the index data captured
+   * in the given context.
+   *
+   * @param req      The pre-parsed request to process
+   * @param ctx      Index data and counters for this request
+   * @return         Zero or more document hits
+   */
+  private QueryResult processRequest(final QueryRequest req,
+                                     final RequestContext ctx)
+    throws IOException 
+  {
+    // Make handy local references to the index data.
+    final IndexReader indexReader = ctx.indexReader;
+    final DocNumMap docNumMap = ctx.docNumMap;
+    final Set stopSet = ctx.stopSet;
+    final WordMap pluralMap = ctx.pluralMap;
+    final CharMap accentMap = ctx.accentMap;
+    final Set tokFields = ctx.tokFields;
+
+    // Make an vector to store the hits (we'll make it into an array
+    // later, when we know how many we have.)
+    //
+    Vector hitVec = new Vector(10);
 
     // Apply a work limit to the query if we were requested to. If no
     // specific limit was set, use a limiter with an infinite limit 
@@ -214,7 +315,7 @@ public class DefaultQueryProcessor extends QueryProcessor
                                                      req.startDoc +
                                                        req.maxDocs,
                                                      req.sortMetaFields,
-                                                     isSparse);
+                                                     ctx.isSparse);
 
     // Start making the result by filling in its context.
     QueryResult result = new QueryResult();
@@ -231,57 +332,20 @@ public class DefaultQueryProcessor extends QueryProcessor
       return result;
     }
 
-    // Perform standard tokenization tasks: change words to lowercase,
-    // remove apostrophes, etc.
+    // Get the query rewritten for this index and with wildcards, ranges,
+    // etc. expanded to the terms they match. If an identical request was
+    // made recently, this comes straight from the plan cache.
     //
-    query = new StdTermRewriter(tokFields).rewriteQuery(query);
-    
-    // Normalize all Unicode encoding to normalized form C (NFC)
-    query = new UnicodeNormalizingRewriter(tokFields).rewriteQuery(query);
-
-    // If an accent map is present, remove diacritics.
-    if (accentMap != null)
-      query = new AccentFoldingRewriter(accentMap, tokFields).rewriteQuery(query);
-
-    // If a plural map is present, change plural words to non-plural.
-    if (pluralMap != null)
-      query = new PluralFoldingRewriter(pluralMap, tokFields).rewriteQuery(query);
-
-    // Rewrite the query for bigrams (if we have stop-words to deal with.)
-    if (stopSet != null)
-      query = new XtfBigramQueryRewriter(stopSet, chunkOverlap, tokFields).rewriteQuery(
-        query);
+    final Query finalQuery = getPlan(req, ctx, limReader).query;
 
     // If there's nothing left (for instance if the query was all stop-words)
     // then there will be no results.
     //
-    if (query == null) {
+    if (finalQuery == null) {
       result.docHits = new DocHit[0];
       return result;
     }
 
-    // Fix up all the "infinite" slop entries to be actually limited to
-    // the chunk overlap size. That way, we'll get consistent results and
-    // the user won't be able to tell where the chunk boundaries are. 
-    // Also, attach the docNumMap to every SpanDechunkingQuery.
-    //
-    final Query finalQuery = new SlopFixupRewriter(docNumMap,
-                                                   stopSet,
-                                                   pluralMap,
-                                                   accentMap).rewriteQuery(query);
-
-    // If debugging is enabled, print out the final rewritten and fixed
-    // up query.
-    //
-    if (finalQuery != req.query)
-      Trace.debug("Rewritten query: " + finalQuery.toString());
-
-    // While processing the query, we want to lazily generate DocHits,
-    // and only generate a DocHit once even if it's added to multiple
-    // groups.
-    //
-    final DocHitMakerImpl docHitMaker = new DocHitMakerImpl();
-
     // If we're to apply a set of additional boost sets to the documents,
     // get the set now.
     //
@@ -300,42 +364,32 @@ public class DefaultQueryProcessor extends QueryProcessor
     // Note that the GroupData class holds its own cache so we don't have
     // to read data for a given field more than once.
     //
+    long phaseStart = System.nanoTime();
     final GroupCounts[] groupCounts = (req.facetSpecs == null) ? null
                                       : prepGroups(req,
+                                                   ctx,
                                                    boostSet,
                                                    searcher,
                                                    finalQuery);
+    long facetTime = System.nanoTime() - phaseStart;
 
-    // Now for the big show... go get the hits!
-    searcher.search(finalQuery, null,
-      new SpanHitCollector() 
-      {
-        public void collect(int doc, float score, FieldSpanSource spanSource) 
-        {
-          // Apply a boost (if there's a boost set)
-          score = applyBoost(doc, score, boostSet, req);
-
-          // Ignore deleted entries, and entries boosted down to zero.
-          if (score <= 0.0f)
-            return;
-
-          // Bump the count of documents hit, and update the max score.
-          nDocsHit++;
-          if (score > maxDocScore)
-            maxDocScore = score;
-
-          // Record the hit.
-          docHitMaker.reset(doc, score, spanSource);
-          if (req.maxDocs > 0)
-            docHitMaker.insertInto(docHitQueue);
-
-          // If grouping is enabled, add this document to the counts.
-          if (groupCounts != null) {
-            for (int i = 0; i < groupCounts.length; i++)
-              groupCounts[i].addDoc(docHitMaker);
-          }
-        } // collect()
-      });
+    // Now for the big show... go get the hits! If the index is big enough
+    // (and no work limit has to be tracked), split it into ranges and 
+    // search them in parallel. Otherwise just do it all on this thread.
+    //
+    HitCollector collector = new HitCollector(req, boostSet, docHitQueue, 
+                                              groupCounts, ctx.isSparse);
+    int[] rangeBounds = (req.workLimit > 0) ? null 
+                        : calcSearchRanges(indexReader, docNumMap);
+    if (rangeBounds == null ||
+        !parallelSearch(finalQuery, limReader, rangeBounds, collector, req))
+    {
+      searcher.search(finalQuery, null, collector);
+    }
+
+    // Record the totals.
+    ctx.nDocsHit = collector.nDocsHit;
+    ctx.maxDocScore = collector.maxDocScore;
 
     // Take the high-ranking hits and add them to the hit vector.
     // Note that they come out of the hit queue in backwards order.
@@ -348,9 +402,9 @@ public class DefaultQueryProcessor extends QueryProcessor
     }
 
     // Calculate the document score normalization factor.
-    docScoreNorm = 1.0f;
-    if (req.normalizeScores && maxDocScore > 0.0f)
-      docScoreNorm = 1.0f / maxDocScore;
+    ctx.docScoreNorm = 1.0f;
+    if (req.normalizeScores && ctx.maxDocScore > 0.0f)
+      ctx.docScoreNorm = 1.0f / ctx.maxDocScore;
 
     // We'll need a query weight if we're being asked to explain the
     // scores.
@@ -360,6 +414,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       weight = finalQuery.weight(searcher);
 
     // Finish off the hits (read in the fields, normalize, make snippets).
+    phaseStart = System.nanoTime();
     SnippetMaker snippetMaker = new SnippetMaker(limReader,
                                                  docNumMap,
                                                  stopSet,
@@ -373,30 +428,35 @@ public class DefaultQueryProcessor extends QueryProcessor
     {
       if (req.explainScores) {
         hitArray[i].finishWithExplain(snippetMaker,
-                                      docScoreNorm,
+                                      ctx.docScoreNorm,
                                       weight,
                                       boostSet,
                                       req.boostSetParams);
       }
       else
-        hitArray[i].finish(snippetMaker, docScoreNorm);
+        hitArray[i].finish(snippetMaker, ctx.docScoreNorm);
       if (result.textTerms == null)
         result.textTerms = hitArray[i].textTerms();
       hitVec.add(hitArray[i]);
     }
+    Metrics.recordTime("textEngine.snippets", phaseStart);
 
     // If grouping was enabled, group the hits and finish all of them.
     if (groupCounts != null) 
     {
+      // Count the time spent preparing the groups (above) as well.
+      phaseStart = System.nanoTime() - facetTime;
       result.facets = new ResultFacet[groupCounts.length];
       for (int i = 0; i < groupCounts.length; i++) {
         result.facets[i] = groupCounts[i].getResult();
         finishGroup(result.facets[i].rootGroup,
                     snippetMaker,
                     req,
+                    ctx,
                     weight,
                     boostSet);
       } // for if
+      Metrics.recordTime("textEngine.facets", phaseStart);
     }
 
     // Done with that searcher
@@ -405,29 +465,137 @@ public class DefaultQueryProcessor extends QueryProcessor
     assert req.maxDocs < 0 || hitVec.size() <= req.maxDocs;
 
     // Pack up the results into a tidy array.
-    result.totalDocs = nDocsHit;
+    result.totalDocs = ctx.nDocsHit;
     result.startDoc = req.startDoc;
     result.endDoc = req.startDoc + hitVec.size();
     result.docHits = (DocHit[])hitVec.toArray(new DocHit[hitVec.size()]);
 
     // Make spelling suggestions if applicable.
-    if (spellReader != null && req.spellcheckParams != null)
-      spellCheck(req, result, tokFields);
+    if (ctx.spellReader != null && req.spellcheckParams != null) {
+      phaseStart = System.nanoTime();
+      spellCheck(req, ctx, result);
+      Metrics.recordTime("textEngine.spelling", phaseStart);
+    }
 
     // All done.
     return result;
-  } // processReq()
+  } // processRequest()
+
+  /**
+   * Gets the plan for a request: its query rewritten for the index, with
+   * wildcards, ranges, etc. expanded to the terms they match. Plans are
+   * cached with the index data, keyed by the request's query XML, so a
+   * repeated request can skip all the rewriting. Since the cache belongs to
+   * one version of the index, it's dropped when a new one is flipped in.
+   *
+   * @param req        The request to get a plan for
+   * @param ctx        Index data for the request
+   * @param limReader  Work-limited reader to expand terms with
+   * @return           The plan (its query is null if nothing is left to
+   *                   search for.)
+   */
+  private QueryPlan getPlan(QueryRequest req, RequestContext ctx,
+                            IndexReader limReader)
+    throws IOException 
+  {
+    // Requests that weren't parsed from XML can't be matched up with
+    // earlier ones, so they always get a fresh plan.
+    //
+    if (planCacheSize == 0 || req.parserOutput == null)
+      return makePlan(req, ctx, limReader);
+
+    // See if an identical request has been made against this index.
+    SimpleCache<String, QueryPlan> cache = 
+      ctx.xtfSearcher.planCache(planCacheSize);
+    QueryPlan plan = cache.get(req.parserOutput);
+    if (plan != null) {
+      Metrics.counter("textEngine.planCache.hits").increment();
+      return plan;
+    }
+
+    // Nope, make a new plan and remember it. If two threads get here with
+    // the same request at once, they'll make identical plans so it doesn't
+    // matter which one is kept.
+    //
+    Metrics.counter("textEngine.planCache.misses").increment();
+    plan = makePlan(req, ctx, limReader);
+    cache.set(req.parserOutput, plan);
+    return plan;
+  } // getPlan()
+
+  /**
+   * Makes a plan for a request, by running all the query rewriters and
+   * then expanding the terms.
+   *
+   * @param req        The request to make a plan for
+   * @param ctx        Index data for the request
+   * @param limReader  Work-limited reader to expand terms with
+   * @return           The new plan
+   */
+  private QueryPlan makePlan(QueryRequest req, RequestContext ctx,
+                             IndexReader limReader)
+    throws IOException 
+  {
+    Query query = req.query;
+
+    // Perform standard tokenization tasks: change words to lowercase,
+    // remove apostrophes, etc.
+    //
+    query = new StdTermRewriter(ctx.tokFields).rewriteQuery(query);
+    
+    // Normalize all Unicode encoding to normalized form C (NFC)
+    query = new UnicodeNormalizingRewriter(ctx.tokFields).rewriteQuery(query);
+
+    // If an accent map is present, remove diacritics.
+    if (ctx.accentMap != null)
+      query = new AccentFoldingRewriter(ctx.accentMap, ctx.tokFields).rewriteQuery(query);
+
+    // If a plural map is present, change plural words to non-plural.
+    if (ctx.pluralMap != null)
+      query = new PluralFoldingRewriter(ctx.pluralMap, ctx.tokFields).rewriteQuery(query);
+
+    // Rewrite the query for bigrams (if we have stop-words to deal with.)
+    if (ctx.stopSet != null)
+      query = new XtfBigramQueryRewriter(ctx.stopSet, ctx.chunkOverlap, ctx.tokFields).rewriteQuery(
+        query);
+
+    // Nothing may be left (for instance if the query was all stop-words.)
+    if (query == null)
+      return new QueryPlan(null);
+
+    // Fix up all the "infinite" slop entries to be actually limited to
+    // the chunk overlap size. That way, we'll get consistent results and
+    // the user won't be able to tell where the chunk boundaries are. 
+    // Also, attach the docNumMap to every SpanDechunkingQuery.
+    //
+    Query finalQuery = new SlopFixupRewriter(ctx.docNumMap,
+                                             ctx.stopSet,
+                                             ctx.pluralMap,
+                                             ctx.accentMap).rewriteQuery(query);
+
+    // If debugging is enabled, print out the final rewritten and fixed
+    // up query.
+    //
+    if (finalQuery != req.query)
+      Trace.debug("Rewritten query: " + finalQuery.toString());
+
+    // Expand wildcards, ranges, etc. into the terms they match. The
+    // searches would otherwise each do this for themselves.
+    //
+    return new QueryPlan(new RecordingSearcher(limReader).rewrite(finalQuery));
+  } // makePlan()
 
   /**
    * Checks spelling of query terms, if spelling suggestion is enabled and
    * the result falls below the cutoff threshholds.
    *
    * @param req   Original query request
+   * @param ctx   Index data and counters for the request (its set of
+   *              tokenized fields is used in case no field list was
+   *              specified in the query request.)
    * @param res   Results of the query
-   * @param tokFields  Set of tokenized fields (in case no field list was
-   *                   specified in the query request.)
    */
-  private void spellCheck(QueryRequest req, QueryResult res, Set tokFields)
+  private void spellCheck(QueryRequest req, RequestContext ctx, QueryResult res)
     throws IOException 
   {
     // We can use a handy reference to the spellcheck params, and to the
@@ -451,13 +619,13 @@ public class DefaultQueryProcessor extends QueryProcessor
     // Check the cutoffs. If the documents scored well, or there were
     // a lot of them, then suggestions aren't needed.
     //
-    if (params.docScoreCutoff > 0 && maxDocScore > params.docScoreCutoff)
+    if (params.docScoreCutoff > 0 && ctx.maxDocScore > params.docScoreCutoff)
       return;
     if (params.totalDocsCutoff > 0 && totalDocs > params.totalDocsCutoff)
       return;
 
     // Gather the query terms, grouped by field set.
-    Set spellFieldSet = params.fields != null ? params.fields : tokFields;
+    Set spellFieldSet = params.fields != null ? params.fields : ctx.tokFields;
     LinkedHashMap fieldsMap = gatherKeywords(req.query, spellFieldSet);
 
     // Make suggestions for each field set.
@@ -472,7 +640,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       String[] terms = (String[])termsSet.toArray(new String[termsSet.size()]);
 
       // Get some suggestions
-      String[] suggested = spellReader.suggestKeywords(terms);
+      String[] suggested = ctx.spellReader.suggestKeywords(terms);
 
       // If no suggestions, skip these fields.
       if (suggested == null)
@@ -506,7 +674,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       return;
 
     // Make sure the suggestions result in better results.
-    if (!spellingImprovesResults(req, res, spellFieldSet, out))
+    if (!spellingImprovesResults(req, ctx, res, spellFieldSet, out))
       return;
 
     // Record the final suggestions in an array.
@@ -520,6 +688,7 @@ public class DefaultQueryProcessor extends QueryProcessor
    * are more of them, and their max score is higher.
    *
    * @param origReq   Original query request
+   * @param origCtx   Context the original query was run in
    * @param origRes   Results of the original query
    * @param spellFieldSet  Set of fields to rewrite terms within
    * @param suggs     Map of terms to their suggested replacements
@@ -527,6 +696,7 @@ public class DefaultQueryProcessor extends QueryProcessor
    * @throws IOException
    */
   private boolean spellingImprovesResults(QueryRequest origReq,
+                                          RequestContext origCtx,
                                           QueryResult origRes,
                                           Set spellFieldSet, LinkedHashMap suggs)
     throws IOException 
@@ -536,14 +706,16 @@ public class DefaultQueryProcessor extends QueryProcessor
     //
     QueryRequest newReq = (QueryRequest)origReq.clone();
     newReq.spellcheckParams = null;
+    newReq.parserOutput = null;
 
-    // Before re-querying, save the max doc score.
-    float origMaxDocScore = maxDocScore;
-
-    // Now apply the spelling suggestions to the original query.
+    // Now apply the spelling suggestions to the original query, and run
+    // it against the same index data as the original (but with fresh
+    // counters.)
+    //
     newReq.query = new SpellSuggRewriter(suggs, spellFieldSet).rewriteQuery(
       newReq.query);
-    QueryResult newRes = this.processRequest(newReq);
+    RequestContext newCtx = new RequestContext(origCtx);
+    QueryResult newRes = processRequest(newReq, newCtx);
 
     // If the new query returns nothing and the old query also returned
     // nothing, it's a semi-failure. There's no use suggesting the new
@@ -563,7 +735,7 @@ public class DefaultQueryProcessor extends QueryProcessor
     }
 
     // If the max doc score is lower, that's also a failure.
-    if (maxDocScore < origMaxDocScore) 
+    if (newCtx.maxDocScore < origCtx.maxDocScore) 
     {
       //System.out.print("Lower score: " + newReq.query.toString() + "... ");
       return false;
@@ -676,11 +848,13 @@ public class DefaultQueryProcessor extends QueryProcessor
    * creating the proper hit queue for each one.
    *
    * @param req       query request containing group specs
+   * @param ctx       index data for the request
    * @param query     query to use to form dynamic groups
    * @param searcher  searcher for dynamic groups
    * @param boostSet  boost set for dynamic groups
    */
   private GroupCounts[] prepGroups(final QueryRequest req,
+                                   final RequestContext ctx,
                                    final BoostSet boostSet,
                                    RecordingSearcher searcher, Query query)
     throws IOException 
@@ -693,11 +867,11 @@ public class DefaultQueryProcessor extends QueryProcessor
     {
       FacetSpec spec = req.facetSpecs[i];
       if (spec.field.startsWith("java:")) {
-        groupData[i] = createDynamicGroup(indexReader, spec.field);
+        groupData[i] = createDynamicGroup(ctx.indexReader, ctx.tokFields, spec.field);
         dynamicGroupVec.add(groupData[i]);
       }
       else
-        groupData[i] = StaticGroupData.getCachedData(indexReader, spec.field);
+        groupData[i] = StaticGroupData.getCachedData(ctx.indexReader, spec.field);
     }
 
     // If there are dynamic groups, pre-scan the query and hand them the
@@ -732,9 +906,9 @@ public class DefaultQueryProcessor extends QueryProcessor
     GroupCounts[] groupCounts = new GroupCounts[req.facetSpecs.length];
     for (int i = 0; i < req.facetSpecs.length; i++) {
       FacetSpec spec = req.facetSpecs[i];
-      HitQueueMakerImpl maker = new HitQueueMakerImpl(indexReader,
+      HitQueueMakerImpl maker = new HitQueueMakerImpl(ctx.indexReader,
                                                       spec.sortDocsBy,
-                                                      isSparse);
+                                                      ctx.isSparse);
       groupCounts[i] = new GroupCounts(groupData[i], spec, maker);
     }
 
@@ -746,11 +920,13 @@ public class DefaultQueryProcessor extends QueryProcessor
    * Create a dynamic group based on a field specification.
    *
    * @param indexReader   Where to get the data from
+   * @param tokFields     Set of tokenized fields in the index
    * @param field         Special field name starting with "java:"
    * @return              Dynamic group data
    * @throws IOException
    */
-  private GroupData createDynamicGroup(IndexReader indexReader, String field)
+  private GroupData createDynamicGroup(IndexReader indexReader, Set tokFields,
+                                       String field)
     throws IOException 
   {
     // Parse out the class name and parameters
@@ -801,11 +977,13 @@ public class DefaultQueryProcessor extends QueryProcessor
    * @param snippetMaker  Used to make snippets for any DocHits inside the
    *                      group.
    * @param req           Determines whether to finish with 'explain' or not
+   * @param ctx           Supplies the document score normalization factor
    * @param weight        Used for score explanations
    * @param boostSet      Used for score explanations
    */
   private void finishGroup(ResultGroup group, SnippetMaker snippetMaker,
-                           QueryRequest req, Weight weight, BoostSet boostSet)
+                           QueryRequest req, RequestContext ctx,
+                           Weight weight, BoostSet boostSet)
     throws IOException 
   {
     // Finish DocHits for this group
@@ -816,20 +994,20 @@ public class DefaultQueryProcessor extends QueryProcessor
         DocHitImpl hit = (DocHitImpl)group.docHits[k];
         if (req.explainScores) {
           hit.finishWithExplain(snippetMaker,
-                                docScoreNorm,
+                                ctx.docScoreNorm,
                                 weight,
                                 boostSet,
                                 req.boostSetParams);
         }
         else
-          hit.finish(snippetMaker, docScoreNorm);
+          hit.finish(snippetMaker, ctx.docScoreNorm);
       } // for k
     }
 
     // Now finish all the descendants.
     if (group.subGroups != null) {
       for (int j = 0; j < group.subGroups.length; j++)
-        finishGroup(group.subGroups[j], snippetMaker, req, weight, boostSet);
+        finishGroup(group.subGroups[j], snippetMaker, req, ctx, weight, boostSet);
     }
   } // finishGroup()
 
@@ -845,11 +1023,178 @@ public class DefaultQueryProcessor extends QueryProcessor
     searchers.clear();
   } // resetCache()
 
+  /**
+   * Decide how to split up a search into ranges of documents for parallel 
+   * searching. Range boundaries always fall just after a docInfo chunk, so
+   * that all the chunks of a document are in the same range.
+   *
+   * @param reader      index to be searched
+   * @param docNumMap   used to find document boundaries
+   * @return            array of (nRanges+1) starting chunk numbers (the last
+   *                    being the end of the index), or null if the search
+   *                    shouldn't be split.
+   */
+  private int[] calcSearchRanges(IndexReader reader, DocNumMap docNumMap) 
+  {
+    int maxDoc = reader.maxDoc();
+    int nRanges = Math.min(searchThreads, maxDoc / minChunksPerThread);
+    if (nRanges < 2)
+      return null;
+
+    // Pick evenly spaced chunks, and move each up to the end of the
+    // document it's part of.
+    //
+    int[] bounds = new int[nRanges + 1];
+    int n = 1;
+    for (int i = 1; i < nRanges; i++) 
+    {
+      int target = (int)((long)maxDoc * i / nRanges);
+      int doc = docNumMap.getDocNum(target);
+      if (doc < 0)
+        break;
+      if (doc + 1 > bounds[n - 1] && doc + 1 < maxDoc)
+        bounds[n++] = doc + 1;
+    }
+    bounds[n++] = maxDoc;
+
+    // If documents are so big that we ended up with one range, forget it.
+    if (n < 3)
+      return null;
+    int[] ret = new int[n];
+    System.arraycopy(bounds, 0, ret, 0, n);
+    return ret;
+  } // calcSearchRanges()
+
+  /**
+   * Search ranges of the index in parallel, each with its own hit queue and
+   * group counts, and then merge them all into the given collector. The first
+   * range is searched on the calling thread.
+   *
+   * @param query       the query to run (already rewritten)
+   * @param reader      the (work-limited) reader to search
+   * @param bounds      range boundaries from {@link #calcSearchRanges}
+   * @param collector   where the results should end up
+   * @param req         the request being processed
+   * @return            true if successful, false if the query doesn't support
+   *                    skipping to a range (in which case the search should
+   *                    be done the normal way.)
+   */
+  private boolean parallelSearch(final Query query, final IndexReader reader,
+                                 final int[] bounds, HitCollector collector,
+                                 QueryRequest req)
+    throws IOException 
+  {
+    // Make a separate collector for each range after the first, and start
+    // them going.
+    //
+    int nRanges = bounds.length - 1;
+    HitCollector[] collectors = new HitCollector[nRanges];
+    Future[] futures = new Future[nRanges];
+    ExecutorService pool = getSearchPool();
+    collectors[0] = collector;
+    for (int i = 1; i < nRanges; i++) 
+    {
+      collectors[i] = collector.makeEmptyCopy(createHitQueue(reader,
+                                                             req.startDoc + req.maxDocs,
+                                                             req.sortMetaFields,
+                                                             collector.isSparse));
+      final HitCollector rangeCollector = collectors[i];
+      final int startDoc = bounds[i];
+      final int endDoc = bounds[i + 1];
+      futures[i] = pool.submit(new Callable() 
+      {
+        public Object call() throws IOException {
+          new RecordingSearcher(reader).search(query, null, rangeCollector, 
+                                               startDoc, endDoc);
+          return null;
+        }
+      });
+    }
+
+    // Do the first range ourselves, then wait for the others to finish.
+    boolean unsupported = false;
+    Throwable failure = null;
+    try {
+      new RecordingSearcher(reader).search(query, null, collector, 
+                                           0, bounds[1]);
+    }
+    catch (UnsupportedOperationException e) {
+      unsupported = true;
+    }
+    catch (Throwable t) {
+      failure = t;
+    }
+    for (int i = 1; i < nRanges; i++) 
+    {
+      try {
+        futures[i].get();
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof UnsupportedOperationException)
+          unsupported = true;
+        else if (failure == null)
+          failure = e.getCause();
+      }
+      catch (InterruptedException e) {
+        if (failure == null)
+          failure = e;
+      }
+    }
+
+    // Pass on the first problem we hit.
+    if (failure instanceof IOException)
+      throw (IOException)failure;
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException)failure;
+    if (failure instanceof Error)
+      throw (Error)failure;
+    if (failure != null)
+      throw new RuntimeException(failure);
+
+    // If some part of the query can't skip, the caller will have to start
+    // over without splitting.
+    //
+    if (unsupported) {
+      collector.clear();
+      return false;
+    }
+
+    // Merge all the ranges into the first one.
+    for (int i = 1; i < nRanges; i++)
+      collector.addCounts(collectors[i]);
+    return true;
+  } // parallelSearch()
+
+  /**
+   * Get the pool of threads used for parallel searching, creating it if
+   * necessary. It has one thread per processor, and they are daemon 
+   * threads so they don't keep the VM from exiting.
+   */
+  private static synchronized ExecutorService getSearchPool() 
+  {
+    if (searchPool == null) 
+    {
+      searchPool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactory() 
+        {
+          private int threadNum = 0;
+
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "XTF-search-" + (++threadNum));
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return searchPool;
+  } // getSearchPool()
+
   /**
    * If a boost set was specified, boost the given document's score according to the
    * set.
    */
-  private float applyBoost(int doc, float score, BoostSet boostSet,
+  private static float applyBoost(int doc, float score, BoostSet boostSet,
                            QueryRequest req) 
   {
     // If we're boosting, apply that factor.
@@ -1018,6 +1363,214 @@ public class DefaultQueryProcessor extends QueryProcessor
     return ret;
   } // createHitQueue()
 
+  /**
+   * Build (and cache) the comparators needed to sort documents in the given
+   * way, so that queries sorting that way don't have to. Called when a new
+   * index is being warmed.
+   *
+   * @param reader     index to warm
+   * @param sortFields fields to sort by, in the same form as "sortDocsBy"
+   * @param isSparse   if index is sparse (i.e. more than 5 chunks per doc)
+   */
+  static void warmSortFields(IndexReader reader, String sortFields,
+                             boolean isSparse)
+    throws IOException 
+  {
+    createHitQueue(reader, 1, sortFields, isSparse);
+  }
+
+  /**
+   * Holds everything a single request needs: a consistent view of the
+   * index data (copied out of the {@link XtfSearcher}), plus the counters
+   * accumulated while hits are collected. Each request gets its own, so
+   * that requests never share mutable state.
+   */
+  private static class RequestContext
+  {
+    /** Snapshot the index data came from */
+    final XtfSearcher xtfSearcher;
+
+    /** Lucene reader from which to read index data */
+    final IndexReader indexReader;
+
+    /** Fetches spelling suggestions */
+    final SpellReader spellReader;
+
+    /** Keeps track of which chunks belong to which documents */
+    final DocNumMap docNumMap;
+
+    /** Number of words a chunk shares with its successor */
+    final int chunkOverlap;
+
+    /** Stop-words to remove (e.g. "the", "a", "and", etc.) */
+    final Set stopSet;
+
+    /** Mapping of plural words to singular words */
+    final WordMap pluralMap;
+
+    /** Mapping of accented chars to chars without diacritics */
+    final CharMap accentMap;
+
+    /** Whether the index is "sparse" (i.e. more than 5 chunks per doc) */
+    final boolean isSparse;
+
+    /** Names of fields that are tokenized in this index */
+    final Set tokFields;
+
+    /** Total number of documents hit (not just those that scored high) */
+    int nDocsHit;
+
+    /** Maximum document score (used to normalize scores) */
+    float maxDocScore;
+
+    /** Document normalization factor (calculated from {@link #maxDocScore}) */
+    float docScoreNorm;
+
+    /** Capture the current index data from a searcher */
+    RequestContext(XtfSearcher xtfSearcher)
+    {
+      this.xtfSearcher = xtfSearcher;
+      indexReader = xtfSearcher.indexReader();
+      spellReader = xtfSearcher.spellReader();
+      docNumMap = xtfSearcher.docNumMap();
+      chunkOverlap = xtfSearcher.chunkOverlap();
+      stopSet = xtfSearcher.stopSet();
+      pluralMap = xtfSearcher.pluralMap();
+      accentMap = xtfSearcher.accentMap();
+      isSparse = xtfSearcher.isSparse();
+      tokFields = xtfSearcher.tokenizedFields();
+    }
+
+    /** Make a fresh context on the same index data as another one */
+    RequestContext(RequestContext other)
+    {
+      xtfSearcher = other.xtfSearcher;
+      indexReader = other.indexReader;
+      spellReader = other.spellReader;
+      docNumMap = other.docNumMap;
+      chunkOverlap = other.chunkOverlap;
+      stopSet = other.stopSet;
+      pluralMap = other.pluralMap;
+      accentMap = other.accentMap;
+      isSparse = other.isSparse;
+      tokFields = other.tokFields;
+    }
+  } // class RequestContext
+
+  /**
+   * A query that has been rewritten for a particular version of an index,
+   * and can be shared by any number of requests against it.
+   */
+  static class QueryPlan
+  {
+    /** The final query to search with, or null if there's nothing to find */
+    final Query query;
+
+    QueryPlan(Query query) {
+      this.query = query;
+    }
+  } // class QueryPlan
+
+  /**
+   * Receives the hits for all or part of the index, and keeps track of
+   * the top-ranking ones, group counts, and totals.
+   */
+  private static class HitCollector extends SpanHitCollector 
+  {
+    private final QueryRequest req;
+    private final BoostSet boostSet;
+    private final PriorityQueue docHitQueue;
+    private final GroupCounts[] groupCounts;
+    final boolean isSparse;
+
+    /** Total number of documents hit (not just those that scored high) */
+    int nDocsHit;
+
+    /** Maximum document score (used to normalize scores) */
+    float maxDocScore;
+
+    /**
+     * While processing the query, we want to lazily generate DocHits,
+     * and only generate a DocHit once even if it's added to multiple
+     * groups.
+     */
+    private final DocHitMakerImpl docHitMaker = new DocHitMakerImpl();
+
+    HitCollector(QueryRequest req, BoostSet boostSet, 
+                 PriorityQueue docHitQueue, GroupCounts[] groupCounts,
+                 boolean isSparse) 
+    {
+      this.req = req;
+      this.boostSet = boostSet;
+      this.docHitQueue = docHitQueue;
+      this.groupCounts = groupCounts;
+      this.isSparse = isSparse;
+    }
+
+    public void collect(int doc, float score, FieldSpanSource spanSource) 
+    {
+      // Apply a boost (if there's a boost set)
+      score = applyBoost(doc, score, boostSet, req);
+
+      // Ignore deleted entries, and entries boosted down to zero.
+      if (score <= 0.0f)
+        return;
+
+      // Bump the count of documents hit, and update the max score.
+      nDocsHit++;
+      if (score > maxDocScore)
+        maxDocScore = score;
+
+      // Record the hit.
+      docHitMaker.reset(doc, score, spanSource);
+      if (req.maxDocs > 0)
+        docHitMaker.insertInto(docHitQueue);
+
+      // If grouping is enabled, add this document to the counts.
+      if (groupCounts != null) {
+        for (int i = 0; i < groupCounts.length; i++)
+          groupCounts[i].addDoc(docHitMaker);
+      }
+    } // collect()
+
+    /** Make a collector like this one, but with all counts empty */
+    HitCollector makeEmptyCopy(PriorityQueue newHitQueue) 
+    {
+      GroupCounts[] newCounts = null;
+      if (groupCounts != null) {
+        newCounts = new GroupCounts[groupCounts.length];
+        for (int i = 0; i < groupCounts.length; i++)
+          newCounts[i] = groupCounts[i].makeEmptyCopy();
+      }
+      return new HitCollector(req, boostSet, newHitQueue, newCounts, isSparse);
+    }
+
+    /** Add in the hits and counts from another collector */
+    void addCounts(HitCollector other) 
+    {
+      nDocsHit += other.nDocsHit;
+      maxDocScore = Math.max(maxDocScore, other.maxDocScore);
+      while (other.docHitQueue.size() > 0)
+        docHitQueue.insert(other.docHitQueue.pop());
+      if (groupCounts != null) {
+        for (int i = 0; i < groupCounts.length; i++)
+          groupCounts[i].addCounts(other.groupCounts[i]);
+      }
+    }
+
+    /** Throw away everything collected so far */
+    void clear() 
+    {
+      nDocsHit = 0;
+      maxDocScore = 0;
+      docHitQueue.clear();
+      if (groupCounts != null) {
+        for (int i = 0; i < groupCounts.length; i++)
+          groupCounts[i] = groupCounts[i].makeEmptyCopy();
+      }
+    }
+  } // class HitCollector
+
   private static class DocHitMakerImpl implements GroupCounts.DocHitMaker 
   {
     private int doc;
@@ -179,6 +179,24 @@ public class DocHitImpl extends DocHit
     }
   } // finishWithExplain()
 
+  /**
+   * Load the document info and all the snippets now, rather than waiting
+   * until they're asked for. After this the hit never changes, so it can
+   * be kept after the request is done and read by several threads at once.
+   */
+  void loadAll() 
+  {
+    if (docKey == null)
+      load();
+    for (int i = 0; i < nSnippets(); i++)
+      snippet(i, true);
+
+    // The span source holds on to the scorers of the whole query, and
+    // isn't needed any more now that we have our spans.
+    //
+    fieldSpanSource = null;
+  } // loadAll()
+
   /**
    * Read in the document info chunk and record the path, date, etc. that
    * we find there.
@@ -0,0 +1,286 @@
+package org.cdlib.xtf.textEngine;
+
+/**
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.servlet.ServletException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Hits;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.cdlib.xtf.crossQuery.test.TestableCrossQuery;
+import org.cdlib.xtf.textEngine.facet.StaticGroupData;
+import org.cdlib.xtf.util.EasyNode;
+import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
+
+////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Builds the expensive per-field structures for a new (or changed) index
+ * before it is flipped in, so that users never pay the cold-cache cost
+ * after an update. Which structures to build is listed in a warming file,
+ * specified in the index configuration like this:<br><br>
+ *
+ * <code>&lt;warming path="./conf/indexWarming.xml"/&gt;</code><br><br>
+ *
+ * The file lists facet fields, numeric fields, sort specifications, boost
+ * sets, and fields to index for wildcard queries, which are built in
+ * parallel; plus crossQuery URLs, which are run (at the same time) to warm
+ * everything else.
+ */
+public class IndexPrewarmer
+{
+  private String baseDir;
+  private String indexPath;
+  private XtfSearcher searcher;
+  private ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+  private ArrayList<String> queryUrls = new ArrayList<String>();
+
+  /**
+   * Warm the given index, if it has a warming file.
+   * 
+   * @param baseDir      XTF home directory
+   * @param indexPath    path to the index data
+   * @param searcher     searcher on the new index
+   * @throws IOException if the index or warming file can't be read
+   */
+  public void prewarm(String baseDir, String indexPath, XtfSearcher searcher)
+    throws IOException
+  {
+    this.baseDir = baseDir;
+    this.indexPath = indexPath;
+    this.searcher = searcher;
+    IndexReader indexReader = searcher.indexReader();
+
+    // Fetch the index information chunk.
+    Hits match = new IndexSearcher(indexReader).search(new TermQuery(new Term("indexInfo", "1")));
+    if (match.length() == 0)
+      throw new IOException("Index missing indexInfo doc");
+    assert match.id(0) == 0 : "indexInfo chunk must be first in index";
+    Document doc = match.doc(0);
+
+    // If no warming is specified, we're done.
+    String warmingName = doc.get("warming");
+    if (warmingName == null || warmingName.length() == 0)
+      return;
+
+    // Figure out what to do.
+    EasyNode root = EasyNode.readXMLFile(new File(indexPath, warmingName));
+    for (EasyNode top : root.children()) 
+    {
+      if (top.isText())
+        continue;
+      if (!top.name().equals("index-warming"))
+        throw new IOException("Root element of warming file must be '<index-warming>'");
+      for (EasyNode node : top.children())
+        addTask(node);
+    }
+
+    Trace.info(String.format("Pre-warming %d structure(s) and %d query(s):", 
+                             tasks.size(), queryUrls.size()));
+    Trace.tab();
+    long startTime = System.currentTimeMillis();
+
+    // Build all the structures in parallel.
+    int nThreads = Math.max(1, Math.min(tasks.size(), 
+                                Runtime.getRuntime().availableProcessors()));
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "IndexPrewarmer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    try
+    {
+      ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (Callable<Object> task : tasks)
+        futures.add(pool.submit(task));
+
+      // Meanwhile, run the queries on this thread. They have to run here,
+      // since this is the thread the warmer recognizes as warming the new
+      // index.
+      //
+      runQueries();
+
+      // Wait for the structures, and report any that failed.
+      for (int i = 0; i < futures.size(); i++) 
+      {
+        try {
+          futures.get(i).get();
+        }
+        catch (ExecutionException e) {
+          Trace.warning("Pre-warming failed: " + tasks.get(i) + ": " + 
+                        e.getCause());
+        }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted while pre-warming");
+        }
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    Trace.untab();
+    Trace.info(String.format("Pre-warming done (%d ms).",
+                             System.currentTimeMillis() - startTime));
+  } // prewarm()
+
+  /**
+   * Make a task for one element of the warming file.
+   */
+  private void addTask(final EasyNode node)
+    throws IOException
+  {
+    if (node.isText())
+      return;
+
+    final String name = node.name();
+    final IndexReader reader = searcher.indexReader();
+    if (name.equals("crossQuery")) {
+      queryUrls.add(node.toString());
+      return;
+    }
+
+    final String field = node.attrValue("field");
+    if (field == null || field.length() == 0)
+      throw new IOException(String.format("Warming element '%s' requires a 'field' attribute", name));
+
+    if (name.equals("facet")) 
+    {
+      tasks.add(new Task(name, field) {
+        public Object call() throws IOException {
+          return StaticGroupData.getCachedData(reader, field);
+        }
+      });
+    }
+    else if (name.equals("numeric")) 
+    {
+      tasks.add(new Task(name, field) {
+        public Object call() throws IOException {
+          return NumericFieldData.getCachedData(reader, field.intern());
+        }
+      });
+    }
+    else if (name.equals("sort")) 
+    {
+      tasks.add(new Task(name, field) {
+        public Object call() throws IOException {
+          DefaultQueryProcessor.warmSortFields(reader, field, searcher.isSparse());
+          return null;
+        }
+      });
+    }
+    else if (name.equals("wildcard")) 
+    {
+      tasks.add(new Task(name, field) {
+        public Object call() throws IOException {
+          WildcardTermIndex.warm(reader, field, searcher.stopSet());
+          return null;
+        }
+      });
+    }
+    else if (name.equals("boost")) 
+    {
+      String path = node.attrValue("path");
+      if (path == null || path.length() == 0)
+        throw new IOException("Warming element 'boost' requires a 'path' attribute");
+      final File boostFile = new File(Path.resolveRelOrAbs(baseDir, path));
+      tasks.add(new Task(name, field) {
+        public Object call() throws IOException {
+          return BoostSet.getCachedSet(reader, boostFile, field);
+        }
+      });
+    }
+    else
+      throw new IOException(String.format("Element '%s' not recognized in warming file", name));
+  } // addTask()
+
+  /**
+   * Run each of the warm-up queries, ignoring the results.
+   */
+  private void runQueries()
+  {
+    if (queryUrls.isEmpty())
+      return;
+
+    try 
+    {
+      TestableCrossQuery crossQuery = new TestableCrossQuery(baseDir);
+      crossQuery.overrideIndexDir(indexPath);
+      for (String url : queryUrls)
+      {
+        Trace.info("crossQuery: [%s]", url);
+        int prevTraceLevel = Trace.getOutputLevel();
+        Trace.setOutputLevel(Trace.warnings);
+        try {
+          crossQuery.service(url);
+        }
+        finally {
+          Trace.setOutputLevel(prevTraceLevel);
+        }
+      }
+    }
+    catch (ServletException e) {
+      Trace.warning("Pre-warming query failed: " + e.getMessage());
+    }
+    catch (IOException e) {
+      Trace.warning("Pre-warming query failed: " + e.getMessage());
+    }
+  } // runQueries()
+
+  /** One structure to build, with a description for error messages */
+  private static abstract class Task implements Callable<Object>
+  {
+    private String descrip;
+
+    Task(String kind, String field) {
+      descrip = kind + " '" + field + "'";
+    }
+
+    public String toString() {
+      return descrip;
+    }
+  }
+}
@@ -31,9 +31,11 @@ package org.cdlib.xtf.textEngine;
  */
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.store.Directory;
+import org.cdlib.xtf.util.Metrics;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.Trace;
 
@@ -47,7 +49,7 @@ import org.cdlib.xtf.util.Trace;
 public class IndexWarmer
 {
   private String xtfHome;
-  private HashMap<String, Entry> entries  = new HashMap();
+  private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
   private BgThread bgThread;
   private int updateInterval;
   
@@ -82,34 +84,57 @@ public class IndexWarmer
       bgThread.interrupt();
     }
     
-    // Close all open indexes.
-    for (Entry e : entries.values()) 
+    // Let go of all open indexes. Any that are still in use by queries
+    // will be closed when those queries finish.
+    //
+    synchronized (this)
     {
-      if (e.curSearcher != null) {
-        try {
-          e.curSearcher.close();
-        } catch (IOException e1) {
-          // ignore close problems
-        }
-      }
-      if (e.newSearcher != null) {
-        try {
-          e.curSearcher.close();
-        } catch (IOException e1) {
-          // ignore close problems
-        }
+      for (Entry e : entries.values()) 
+      {
+        releaseQuietly(e.curSearcher);
+        e.curSearcher = null;
+        releaseQuietly(e.newSearcher);
+        e.newSearcher = null;
       }
     }
   }
   
   /**
    * Get a searcher for the given index path. If there isn't one already,
-   * we create one in the foreground (we don't return til it's ready).
+   * we create one in the foreground (we don't return til it's ready).<br><br>
+   *
+   * The searcher is returned with a reference already added for the caller,
+   * who must call {@link XtfSearcher#release()} when done with it.
    */
-  public synchronized XtfSearcher getSearcher(String indexPath) 
+  public XtfSearcher getSearcher(String indexPath) 
     throws IOException
   {
     indexPath = Path.resolveRelOrAbs(xtfHome, indexPath);
+
+    // In the usual case the index is already open, and we can grab a
+    // reference to it without taking any locks.
+    //
+    if (Thread.currentThread() != bgThread) 
+    {
+      Entry ent = entries.get(indexPath);
+      if (ent != null) {
+        XtfSearcher searcher = ent.curSearcher;
+        if (searcher != null && searcher.tryAcquire())
+          return searcher;
+      }
+    }
+
+    // Otherwise do it the slow way.
+    return getSearcherLocked(indexPath);
+  }
+
+  /**
+   * Slow path of {@link #getSearcher(String)}, used when the index hasn't
+   * been opened yet.
+   */
+  private synchronized XtfSearcher getSearcherLocked(String indexPath) 
+    throws IOException
+  {
     Entry ent = entries.get(indexPath);
 
     // If this is the background warmer thread, this must be a request as part
@@ -119,6 +144,8 @@ public class IndexWarmer
       String nonPendingPath = indexPath.replaceAll("-pending$", "");
       ent = entries.get(nonPendingPath);
       assert ent != null;
+      if (!ent.newSearcher.tryAcquire())
+        throw new IOException("Index being validated has already been closed");
       return ent.newSearcher;
     }
     
@@ -148,17 +175,37 @@ public class IndexWarmer
       }
       else {
         // Read the index and ancillary files (plural/accent map, spelling, etc.)
-        ent.curSearcher = new XtfSearcher(indexPath, 0); // disable update check
+        ent.curSearcher = new XtfSearcher(indexPath);
       }
             
       if (ent.curSearcher == null)
         throw new RuntimeException("Error opening XTF search index. Perhaps you need to run the textIndexer?");
     }
     
+    // Flips happen while holding our lock, so the current searcher can't
+    // have been released yet.
+    //
+    if (!ent.curSearcher.tryAcquire())
+      throw new IOException("Current index has already been closed");
+
     // All done.
     return ent.curSearcher;
   }
 
+  /** Release a searcher (if any), logging rather than throwing errors. */
+  private static void releaseQuietly(XtfSearcher searcher)
+  {
+    if (searcher == null)
+      return;
+    try {
+      searcher.release();
+    }
+    catch (IOException e) {
+      Trace.warning(String.format("Error closing index '%s': %s", 
+                                  searcher.indexPath(), e.toString()));
+    }
+  }
+
   /** 
    * Thread that sits in the background and periodically checks if there are
    * indexes in need of warming, and warms them.
@@ -241,6 +288,7 @@ public class IndexWarmer
      */
     private void warm(Entry ent, boolean validateOk) 
     {
+      long startTime = System.nanoTime();
       try 
       {
         Trace.info(String.format("Warming index [%s]", ent.indexPath));
@@ -248,6 +296,7 @@ public class IndexWarmer
         
         File indexPath;
         Directory dir;
+        XtfSearcher prevSearcher = null;
 
         // For new-style (rotating) warming, we're going to start with the
         // pending directory. Later, after it's warm we'll rename it and flip.
@@ -257,15 +306,40 @@ public class IndexWarmer
           dir = new FlippingDirectory(NativeFSDirectory.getDirectory(indexPath));
         }
         
-        // Old-style warming is simpler.
+        // Old-style warming is simpler. And since it's the same index that
+        // was updated in place, we can share the segments that didn't change.
+        //
         else {
           indexPath = ent.currentPath;
           dir = NativeFSDirectory.getDirectory(indexPath);
+          prevSearcher = ent.curSearcher;
         }
         
-        // Okay, load up the index along with ancillary files. Disable its update check.
-        ent.newSearcher = new XtfSearcher(indexPath.toString(), dir, 0);
-        
+        // Okay, load up the index along with ancillary files.
+        ent.newSearcher = new XtfSearcher(indexPath.toString(), dir, prevSearcher);
+        if (prevSearcher != null) {
+          Trace.info(String.format("Re-used %d of %d segments", 
+                                   ent.newSearcher.sharedSegments(prevSearcher),
+                                   ent.newSearcher.nSegments()));
+        }
+
+        // Build the facet, sort, and boost data users will need, so they
+        // don't have to wait for it after the flip. Only worth doing in the
+        // background; in the foreground a user is already waiting.
+        //
+        if (validateOk)
+        {
+          long prewarmStart = System.nanoTime();
+          try {
+            new IndexPrewarmer().prewarm(warmer.xtfHome, indexPath.toString(),
+                                         ent.newSearcher);
+          }
+          catch (IOException e) {
+            Trace.warning("Index pre-warming failed: " + e.getMessage());
+          }
+          Metrics.recordTime("indexWarmer.prewarm", prewarmStart);
+        }
+
         // Validate this new index. If it fails, don't flip.
         if (validateOk)
         {
@@ -303,13 +377,18 @@ public class IndexWarmer
           }
           
           // Finally record the flip in the entry, so that future requests will
-          // pick up the new Searcher.
+          // pick up the new Searcher. Queries still running on the old one
+          // hold their own references, so it won't actually be closed until
+          // they're done.
           //
+          XtfSearcher oldSearcher = ent.curSearcher;
           ent.curSearcher = ent.newSearcher;
           ent.newSearcher = null;
+          releaseQuietly(oldSearcher);
           Trace.untab();
           Trace.info("Done.");
         }
+        Metrics.recordTime("indexWarmer.warm", startTime);
       } 
       catch (Throwable exc) 
       {
@@ -318,6 +397,10 @@ public class IndexWarmer
         //
         ent.exception = exc;
         ent.exceptionTime = System.currentTimeMillis();
+        synchronized (warmer) {
+          releaseQuietly(ent.newSearcher);
+          ent.newSearcher = null;
+        }
         Trace.untab();
         Trace.error(String.format("Error warming index '%s': %s", ent.indexPath, exc.toString()));
       }
@@ -335,8 +418,8 @@ public class IndexWarmer
     File sparePath;
     File newPath;
     
-    XtfSearcher curSearcher;
-    XtfSearcher newSearcher;
+    volatile XtfSearcher curSearcher;
+    volatile XtfSearcher newSearcher;
     
     Throwable   exception;
     long        exceptionTime;
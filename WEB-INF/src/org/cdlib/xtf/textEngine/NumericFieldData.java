@@ -36,7 +36,6 @@ package org.cdlib.xtf.textEngine;
  * as part of the Melvyl Recommender Project.
  */
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.WeakHashMap;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
@@ -47,7 +46,9 @@ import org.apache.lucene.util.LongList;
 
 /**
  * Holds numeric data for a field from a Lucene index. Data is cached for a
- * given index reader, to speed access after the initial load.
+ * given index reader, to speed access after the initial load. Underneath,
+ * it's also cached for each segment of the index, so that when the index is
+ * re-opened after an update, only the new segments have to be read.
  *
  * @author Martin Haye
  */
@@ -56,12 +57,25 @@ public class NumericFieldData
   /** Cached data. If the reader goes away, our cache will too. */
   private static WeakHashMap cache = new WeakHashMap();
 
+  /** Data for each segment, from which the data for a reader is assembled */
+  private static SegmentCache segmentCache = new SegmentCache() 
+  {
+    protected Object load(IndexReader segment, Object field)
+      throws IOException 
+    {
+      return new NumericFieldData(segment, (String)field);
+    }
+  };
+
   /** Document IDs containing values for the field */
   private IntList docs = new IntList();
 
   /** Associated numeric value for each document */
   private LongList values = new LongList();
 
+  /** True if the reader had no terms at all at or after the field */
+  private boolean noTerms = false;
+
   /**
    * Retrieves tags for a given field from a given reader. Maintains a cache
    * so that if the same fields are requested again for this reader, we don't have
@@ -74,23 +88,29 @@ public class NumericFieldData
   public static NumericFieldData getCachedData(IndexReader reader, String field)
     throws IOException 
   {
-    // See if we have a cache for this reader.
-    HashMap readerCache = (HashMap)cache.get(reader);
-    if (readerCache == null) {
-      readerCache = new HashMap();
-      cache.put(reader, readerCache);
-    }
+    // Queries see the reader through a work limiter, which is different
+    // every time; we want the real one.
+    //
+    reader = SegmentCache.unwrap(reader);
 
-    // Now see if we've already read data for this field.
-    NumericFieldData data = (NumericFieldData)readerCache.get(field);
-    if (data == null) 
+    // See if we've already read data for this field of this reader.
+    SegmentCache.Entry ent = SegmentCache.entry(cache, reader, field);
+    synchronized (ent) 
     {
-      // Don't have cached data, so read and remember it.
-      data = new NumericFieldData(reader, field);
-      readerCache.put(field, data);
+      if (ent.data == null) 
+      {
+        // Don't have cached data, so put it together from the data for each
+        // segment, and remember it.
+        //
+        NumericFieldData data = new NumericFieldData(
+          segmentCache.get(reader, field), 
+          SegmentCache.segmentStarts(SegmentCache.segments(reader)));
+        if (data.noTerms)
+          throw new IOException("no terms in field " + field);
+        ent.data = data;
+      }
+      return (NumericFieldData)ent.data;
     }
-
-    return data;
   } // getCachedTags()
 
   /** Parse the numeric characters of a string, ignoring all non-digits */
@@ -119,9 +139,13 @@ public class NumericFieldData
 
     try 
     {
-      // First, collect all the doc/value pairs.
-      if (termEnum.term() == null)
-        throw new IOException("no terms in field " + field);
+      // First, collect all the doc/value pairs. If this segment has no
+      // terms at all, the others may yet.
+      //
+      if (termEnum.term() == null) {
+        noTerms = true;
+        return;
+      }
 
       do 
       {
@@ -176,6 +200,44 @@ public class NumericFieldData
     }
   } // constructor
 
+  /**
+   * Put together the data for a whole reader from the data for each of its
+   * segments.
+   *
+   * @param parts   Data for each segment
+   * @param starts  Starting document ID of each segment
+   */
+  private NumericFieldData(Object[] parts, int[] starts) 
+  {
+    // Easy if there's just one segment.
+    if (parts.length == 1) {
+      NumericFieldData part = (NumericFieldData)parts[0];
+      docs = part.docs;
+      values = part.values;
+      noTerms = part.noTerms;
+      return;
+    }
+
+    // Otherwise, the segments are in document order, so we just need to
+    // string them together, bumping up the document IDs.
+    //
+    int total = 0;
+    for (int i = 0; i < parts.length; i++)
+      total += ((NumericFieldData)parts[i]).size();
+    docs = new IntList(total);
+    values = new LongList(total);
+    noTerms = true;
+    for (int i = 0; i < parts.length; i++) 
+    {
+      NumericFieldData part = (NumericFieldData)parts[i];
+      for (int j = 0; j < part.size(); j++) {
+        docs.add(part.doc(j) + starts[i]);
+        values.add(part.value(j));
+      }
+      noTerms &= part.noTerms;
+    }
+  } // constructor
+
   public final int size() {
     return docs.size();
   }
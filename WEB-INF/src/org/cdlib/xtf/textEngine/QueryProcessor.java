@@ -1,6 +1,7 @@
 package org.cdlib.xtf.textEngine;
 
 import java.io.IOException;
+import java.util.Set;
 
 /*
  * Copyright (c) 2004, Regents of the University of California
@@ -74,4 +75,35 @@ public abstract class QueryProcessor
    */
   public void setIndexWarmer(IndexWarmer warmer) {
   }
+
+  /**
+   * Optional method: allow large searches to be split into ranges of
+   * documents that are searched by several threads at once.
+   *
+   * @param nThreads            Max # of ranges to split into (1 to disable)
+   * @param minChunksPerThread  Min # of index chunks in each range
+   */
+  public void setParallelSearch(int nThreads, int minChunksPerThread) {
+  }
+
+  /**
+   * Optional method: allow rewritten queries to be re-used by later
+   * requests with identical query XML.
+   *
+   * @param maxEntries          Max # of plans to keep per index (0 to
+   *                            disable)
+   */
+  public void setPlanCacheSize(int maxEntries) {
+  }
+
+  /**
+   * Optional method: allow the results of requests on certain indexes to
+   * be re-used by later requests with identical query XML.
+   *
+   * @param indexPaths          Paths of the indexes to cache results for
+   * @param maxMegs             Max size of the cached results per index,
+   *                            in megabytes (0 to disable)
+   */
+  public void setResultCache(Set<String> indexPaths, int maxMegs) {
+  }
 }
@@ -91,7 +91,11 @@ public class QueryRequest implements Cloneable
   /** Optional: the <parameters> block sent to the query parser stylesheet */
   public String parserInput = null;
 
-  /** Optional: the raw output of the query parser stylesheet */
+  /**
+   * Optional: the raw output of the query parser stylesheet. If present,
+   * it's used to find the plans of earlier identical requests, so it must
+   * be cleared if the query is changed after parsing.
+   */
   public String parserOutput = null;
 
   /** Optional: list of metadata fields to return (defaults to all) */
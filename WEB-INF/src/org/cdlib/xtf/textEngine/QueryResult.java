@@ -91,9 +91,6 @@ public class QueryResult
   /** Spelling suggestions for query terms (if spellcheck specified) */
   public SpellingSuggestion[] suggestions;
 
-  /** Formatter for non-normalized scores */
-  private DecimalFormat decFormat;
-
   /**
    * Makes an XML document out of the list of document hits, and returns a
    * Source object that represents it.
@@ -215,6 +212,12 @@ public class QueryResult
     if (docHits == null)
       return;
 
+    // Formatter for non-normalized scores. It's made here rather than kept
+    // in a field, since a cached result may be formatted by several threads
+    // at once.
+    //
+    DecimalFormat decFormat = null;
+
     for (int i = 0; i < docHits.length; i++) 
     {
       DocHit docHit = docHits[i];
@@ -0,0 +1,213 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2004, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.apache.lucene.search.Explanation;
+import org.cdlib.xtf.textEngine.facet.ResultGroup;
+import org.cdlib.xtf.util.Attrib;
+
+/**
+ * Holds finished query results for one version of an index, so that a
+ * request repeated many times (e.g. a link on a front page, or paging back
+ * and forth) can be answered without searching again. The cache is kept
+ * within its {@link XtfSearcher}, so it goes away when a new version of
+ * the index is flipped in.<br><br>
+ *
+ * The total size of the results is bounded rather than their number, since
+ * one result with many facet groups and snippets can take far more space
+ * than hundreds of small ones. When the bound is exceeded, the least
+ * recently used results are thrown out. Sizes are only estimates, based
+ * on the amount of text each result holds.<br><br>
+ *
+ * Results are normally loaded lazily as they're formatted, so before one
+ * is added all of its hits are loaded. After that it's never changed, and
+ * any number of requests may share it.
+ */
+class ResultCache 
+{
+  /** Rough size of an object with a few fields, in bytes */
+  private static final int OBJECT_SIZE = 48;
+
+  /** Max estimated size of all results, in bytes */
+  private final long maxBytes;
+
+  /** Estimated size of the results currently held */
+  private long curBytes = 0;
+
+  /** The results, in order from least to most recently used */
+  private final LinkedHashMap<String, Entry> entries = 
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   * Make a new, empty cache.
+   *
+   * @param maxBytes    Max total size of results to keep
+   */
+  ResultCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the result for a given request, if we have it.
+   *
+   * @param key     Key identifying the request
+   * @return        The result, or null if not found.
+   */
+  synchronized QueryResult get(String key) {
+    Entry ent = entries.get(key);
+    return (ent == null) ? null : ent.result;
+  }
+
+  /**
+   * Add a result to the cache, removing older ones if necessary to keep
+   * within the size bound. The result's hits are all loaded, so this must
+   * be called while the index is still open.
+   *
+   * @param key     Key identifying the request
+   * @param result  The result to keep.
+   */
+  void put(String key, QueryResult result) 
+  {
+    // Load everything and figure the size outside the lock, since this
+    // can take a while.
+    //
+    long size = (key.length() * 2) + sizeOf(result);
+
+    // Don't let one giant result push out everything else.
+    if (size > maxBytes / 4)
+      return;
+
+    synchronized (this) 
+    {
+      Entry prev = entries.put(key, new Entry(result, size));
+      if (prev != null)
+        curBytes -= prev.size;
+      curBytes += size;
+
+      // Throw out the least recently used results until we're in bounds.
+      Iterator<Entry> iter = entries.values().iterator();
+      while (curBytes > maxBytes && iter.hasNext()) {
+        curBytes -= iter.next().size;
+        iter.remove();
+      }
+    }
+  } // put()
+
+  /** Tells how many results are currently cached */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /** Estimate the size of a result, loading all its hits along the way. */
+  private static long sizeOf(QueryResult result) 
+  {
+    long size = OBJECT_SIZE + sizeOf(result.docHits);
+
+    if (result.facets != null) {
+      for (int i = 0; i < result.facets.length; i++)
+        size += OBJECT_SIZE + sizeOf(result.facets[i].rootGroup);
+    }
+
+    if (result.suggestions != null)
+      size += result.suggestions.length * OBJECT_SIZE * 2;
+
+    return size;
+  } // sizeOf(QueryResult)
+
+  /** Estimate the size of a facet group and all its sub-groups. */
+  private static long sizeOf(ResultGroup group) 
+  {
+    long size = OBJECT_SIZE + sizeOf(group.value) + sizeOf(group.docHits);
+    if (group.subGroups != null) {
+      for (int i = 0; i < group.subGroups.length; i++)
+        size += sizeOf(group.subGroups[i]);
+    }
+    return size;
+  } // sizeOf(ResultGroup)
+
+  /** Estimate the size of a list of hits, loading them along the way. */
+  private static long sizeOf(DocHit[] hits) 
+  {
+    if (hits == null)
+      return 0;
+
+    long size = 0;
+    for (int i = 0; i < hits.length; i++) 
+    {
+      DocHit hit = hits[i];
+      if (hit instanceof DocHitImpl)
+        ((DocHitImpl)hit).loadAll();
+
+      size += OBJECT_SIZE * 2 + sizeOf(hit.filePath()) + 
+              sizeOf(hit.subDocument());
+      for (Iterator atts = hit.metaData().iterator(); atts.hasNext();) {
+        Attrib att = (Attrib)atts.next();
+        size += OBJECT_SIZE + sizeOf(att.key) + sizeOf(att.value);
+      }
+      for (int j = 0; j < hit.nSnippets(); j++)
+        size += OBJECT_SIZE + sizeOf(hit.snippet(j, true).text);
+      size += sizeOf(hit.explanation());
+    }
+    return size;
+  } // sizeOf(DocHit[])
+
+  /** Estimate the size of a score explanation */
+  private static long sizeOf(Explanation exp) 
+  {
+    if (exp == null)
+      return 0;
+    long size = OBJECT_SIZE + sizeOf(exp.getDescription());
+    Explanation[] subs = exp.getDetails();
+    if (subs != null) {
+      for (int i = 0; i < subs.length; i++)
+        size += sizeOf(subs[i]);
+    }
+    return size;
+  } // sizeOf(Explanation)
+
+  /** Estimate the size of a string */
+  private static long sizeOf(String str) {
+    return (str == null) ? 0 : OBJECT_SIZE + (str.length() * 2);
+  }
+
+  /** A result along with its estimated size */
+  private static class Entry 
+  {
+    final QueryResult result;
+    final long size;
+
+    Entry(QueryResult result, long size) {
+      this.result = result;
+      this.size = size;
+    }
+  } // class Entry
+} // class ResultCache
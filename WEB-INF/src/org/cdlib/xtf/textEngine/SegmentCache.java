@@ -0,0 +1,198 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2004, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentSharingReader;
+import org.apache.lucene.limit.LimIndexReader;
+
+/**
+ * Keeps data calculated from an index separately for each of its segments.
+ * When the index is updated, {@link XtfSearcher} re-opens it sharing the
+ * readers of segments that didn't change, so data kept this way only has
+ * to be calculated for the new segments. The data for each segment is
+ * dropped when the last reader using the segment goes away.<br><br>
+ *
+ * Document IDs in the per-segment data are relative to the start of the
+ * segment; use {@link #segmentStarts(IndexReader[])} to translate them.
+ */
+public abstract class SegmentCache 
+{
+  /** Data per segment reader, then per key */
+  private WeakHashMap cache = new WeakHashMap();
+
+  /**
+   * Calculate the data for one segment.
+   *
+   * @param segment   Reader for the segment
+   * @param key       Identifies which data to calculate (e.g. a field name)
+   */
+  protected abstract Object load(IndexReader segment, Object key)
+    throws IOException;
+
+  /**
+   * Check whether data loaded earlier for a key is still good, or should
+   * be replaced by loading it again. By default, data never goes stale.
+   *
+   * @param data      Data loaded earlier
+   * @param key       Key being looked up now
+   */
+  protected boolean isCurrent(Object data, Object key) {
+    return true;
+  }
+
+  /**
+   * Get the data for each segment of the given reader, calculating it for
+   * any segment we haven't seen before.
+   *
+   * @param reader    Reader to get data for
+   * @param key       Identifies which data to get (e.g. a field name)
+   * @return          Data for each of the reader's segments, in order
+   */
+  public Object[] get(IndexReader reader, Object key)
+    throws IOException 
+  {
+    IndexReader[] segs = segments(reader);
+    Object[] ret = new Object[segs.length];
+    for (int i = 0; i < segs.length; i++) 
+    {
+      Entry ent = entry(cache, segs[i], key);
+      synchronized (ent) {
+        if (ent.data == null || !isCurrent(ent.data, key))
+          ent.data = load(segs[i], key);
+        ret[i] = ent.data;
+      }
+    }
+    return ret;
+  } // get()
+
+  /**
+   * Get the data for each segment of the given reader, but only if it has
+   * already been calculated for every one of them. Never waits for data 
+   * being calculated by another thread.
+   *
+   * @param reader    Reader to get data for
+   * @param key       Identifies which data to get (e.g. a field name)
+   * @return          Data for each of the reader's segments, in order, or 
+   *                  null if any of it hasn't been calculated.
+   */
+  public Object[] getIfLoaded(IndexReader reader, Object key)
+  {
+    IndexReader[] segs = segments(reader);
+    Object[] ret = new Object[segs.length];
+    for (int i = 0; i < segs.length; i++) 
+    {
+      ret[i] = entry(cache, segs[i], key).data;
+      if (ret[i] == null || !isCurrent(ret[i], key))
+        return null;
+    }
+    return ret;
+  } // getIfLoaded()
+
+  /**
+   * Find the entry for the given reader and key in a cache, making one if
+   * necessary. Only the lookup is done under the cache's lock; the caller
+   * should load the data (if not already there) while holding the entry's
+   * lock. That way, different data can be loaded at the same time, but
+   * threads wanting the same data won't load it twice.
+   *
+   * @param cache   Maps each reader to a HashMap of key to Entry
+   * @param reader  Reader the data is for
+   * @param key     Identifies which data (e.g. a field name)
+   */
+  public static Entry entry(WeakHashMap cache, IndexReader reader, Object key)
+  {
+    synchronized (cache) 
+    {
+      HashMap readerCache = (HashMap)cache.get(reader);
+      if (readerCache == null) {
+        readerCache = new HashMap();
+        cache.put(reader, readerCache);
+      }
+
+      Entry ent = (Entry)readerCache.get(key);
+      if (ent == null) {
+        ent = new Entry();
+        readerCache.put(key, ent);
+      }
+      return ent;
+    }
+  } // entry()
+
+  /** Holds one piece of cached data; see {@link #entry}. */
+  public static class Entry 
+  {
+    /** The data, or null if not loaded yet */
+    public volatile Object data;
+  }
+
+  /**
+   * Get past the wrapper that limits the work done by a query, if any, to
+   * the reader that's really being searched.
+   */
+  public static IndexReader unwrap(IndexReader reader) 
+  {
+    while (reader instanceof LimIndexReader)
+      reader = ((LimIndexReader)reader).getWrappedReader();
+    return reader;
+  }
+
+  /**
+   * Break a reader up into its segments. Readers that don't share their
+   * segments are treated as a single segment.
+   */
+  public static IndexReader[] segments(IndexReader reader) 
+  {
+    reader = unwrap(reader);
+    if (!(reader instanceof SegmentSharingReader))
+      return new IndexReader[] { reader };
+
+    SegmentSharingReader sharer = (SegmentSharingReader)reader;
+    IndexReader[] ret = new IndexReader[sharer.nSegments()];
+    for (int i = 0; i < ret.length; i++)
+      ret[i] = sharer.segmentReader(i);
+    return ret;
+  } // segments()
+
+  /**
+   * Figure out the starting document ID of each segment, plus (as the last
+   * entry) the total number of documents.
+   */
+  public static int[] segmentStarts(IndexReader[] segs) 
+  {
+    int[] starts = new int[segs.length + 1];
+    for (int i = 0; i < segs.length; i++)
+      starts[i + 1] = starts[i] + segs[i].maxDoc();
+    return starts;
+  }
+} // class SegmentCache
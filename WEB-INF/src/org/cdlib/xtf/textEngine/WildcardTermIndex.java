@@ -0,0 +1,441 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2004, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.bigram.BigramQueryRewriter;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.WildcardTermEnum;
+import org.apache.lucene.util.IntList;
+import org.cdlib.xtf.util.FrontCodedStrings;
+
+/**
+ * Finds the terms of a field matching a wildcard pattern without scanning
+ * the whole term dictionary. Lucene's wildcard enumeration can only skip to
+ * the literal prefix of the pattern, so a pattern like "*ology" or "?ar*"
+ * has to look at every term in the field. Instead, this keeps a list of the
+ * three-character sequences ("trigrams") in each term, with the terms that
+ * contain each. A pattern's literal parts are broken into trigrams, the
+ * lists for those are intersected, and only the terms left are checked
+ * against the full pattern. Two-character sequences are kept as well, for
+ * patterns whose literal parts are too short for trigrams (like "?ar*").<br><br>
+ *
+ * Start and end of term are marked by a null character, so that "*ology"
+ * uses the trigram "gy\0" and only finds terms that end that way.
+ * Patterns with no literal pairs at all (e.g. "*a*"), or with a literal
+ * prefix long enough for Lucene to skip to, are left to the normal
+ * enumeration.<br><br>
+ *
+ * Building the index takes a pass over the field's terms, so it's only
+ * done for fields listed in the index's warming file (see
+ * {@link IndexPrewarmer}), before the index is put into use. It's kept
+ * for each segment of the index, so after an update only the new segments
+ * need it built.<br><br>
+ *
+ * Terms a wildcard query never matches (the start- and end-of-field
+ * markers, and stop words and bi-grams when the index has a stop list) are
+ * left out of the index, so they don't take up space or count toward a
+ * query's term limit.
+ */
+public class WildcardTermIndex 
+{
+  /** Marks the start and end of each term */
+  private static final char BOUNDARY = '\0';
+
+  /** Patterns with a literal prefix at least this long scan quickly anyway */
+  private static final int MAX_PREFIX = 2;
+
+  /** Index for each segment */
+  private static SegmentCache segmentCache = new SegmentCache() 
+  {
+    protected Object load(IndexReader segment, Object key)
+      throws IOException 
+    {
+      return new WildcardTermIndex(segment, (Key)key);
+    }
+  };
+
+  /** Stop words the index was built with (null if none) */
+  private Set stopSet;
+
+  /** All the terms in the field, in order */
+  private FrontCodedStrings terms;
+
+  /** Each distinct trigram and pair, sorted */
+  private long[] grams;
+
+  /** Position in {@link #termNums} of the terms for each gram */
+  private int[] gramStarts;
+
+  /** Numbers of the terms containing each gram, in order */
+  private int[] termNums;
+
+  /**
+   * Build the index for a field (if not already built) for each segment of
+   * the given reader.
+   *
+   * @param reader    Reader to build the index for
+   * @param field     Field whose terms to index
+   * @param stopSet   Stop words of the index (stop words, and bi-grams made
+   *                  from them, are left out), or null if none.
+   */
+  public static void warm(IndexReader reader, String field, Set stopSet)
+    throws IOException 
+  {
+    segmentCache.get(reader, new Key(field.intern(), stopSet));
+  }
+
+  /**
+   * Find the terms matching a wildcard pattern, if the index has been built
+   * for the term's field and the pattern can take advantage of it.
+   *
+   * @param reader    Reader to find terms in
+   * @param pattern   Field and wildcard pattern ('*' and '?')
+   * @param stopSet   Stop words the query skips, or null if none. Must be
+   *                  the same set the index was warmed with.
+   * @param maxTerms  Give up on finding more than this many terms in a
+   *                  segment
+   * @return          Enumeration of the matching terms, in order and 
+   *                  positioned at the first one; or null if the normal 
+   *                  enumeration should be used instead.
+   */
+  public static TermEnum expand(IndexReader reader, Term pattern, 
+                                Set stopSet, int maxTerms)
+    throws IOException 
+  {
+    String text = pattern.text();
+    int prefixLen = 0;
+    while (prefixLen < text.length() && !isWild(text.charAt(prefixLen)))
+      ++prefixLen;
+    if (prefixLen >= MAX_PREFIX)
+      return null;
+
+    long[] patGrams = patternGrams(text);
+    if (patGrams.length == 0)
+      return null;
+
+    Object[] indexes = segmentCache.getIfLoaded(reader, 
+                         new Key(pattern.field().intern(), stopSet));
+    if (indexes == null)
+      return null;
+
+    // Gather the matches from each segment. Usually there's just one. If
+    // there are too many, let the normal enumeration handle it, so the
+    // query reports the limit being exceeded in the usual way.
+    //
+    String[] found;
+    if (indexes.length == 1)
+      found = ((WildcardTermIndex)indexes[0]).find(text, patGrams, maxTerms);
+    else 
+    {
+      TreeSet<String> all = new TreeSet<String>();
+      for (int i = 0; i < indexes.length; i++) {
+        String[] segFound = ((WildcardTermIndex)indexes[i]).find(text, patGrams, maxTerms);
+        if (segFound == null)
+          return null;
+        all.addAll(Arrays.asList(segFound));
+      }
+      found = all.toArray(new String[all.size()]);
+    }
+    if (found == null)
+      return null;
+    return new ListTermEnum(reader, pattern.field(), found);
+  } // expand()
+
+  /** Build the index for one field of a segment */
+  private WildcardTermIndex(IndexReader reader, Key key)
+    throws IOException 
+  {
+    String field = key.field;
+    stopSet = key.stopSet;
+
+    // Gather the terms, and the trigrams and pairs in each, skipping those
+    // no wildcard query would match.
+    ArrayList<String> termList = new ArrayList<String>();
+    HashMap<Long, IntList> gramTerms = new HashMap<Long, IntList>();
+    long nPostings = 0;
+    TermEnum termEnum = reader.terms(new Term(field, ""));
+    try 
+    {
+      do 
+      {
+        Term t = termEnum.term();
+        if (t == null || t.field() != field)
+          break;
+        if (isSkipped(t.text()))
+          continue;
+        int termNum = termList.size();
+        termList.add(t.text());
+
+        String padded = BOUNDARY + t.text() + BOUNDARY;
+        for (int len = 2; len <= 3; len++) 
+        {
+          for (int i = 0; i + len <= padded.length(); i++) 
+          {
+            Long gram = Long.valueOf(gram(padded, i, len));
+            IntList list = gramTerms.get(gram);
+            if (list == null) {
+              list = new IntList(4);
+              gramTerms.put(gram, list);
+            }
+            if (list.isEmpty() || list.getLast() != termNum) {
+              list.add(termNum);
+              ++nPostings;
+            }
+          }
+        }
+      } while (termEnum.next());
+    }
+    finally {
+      termEnum.close();
+    }
+
+    terms = new FrontCodedStrings(termList.toArray(new String[termList.size()]));
+
+    // Pack the lists into arrays for compactness.
+    grams = new long[gramTerms.size()];
+    int n = 0;
+    for (Iterator<Long> iter = gramTerms.keySet().iterator(); iter.hasNext();)
+      grams[n++] = iter.next().longValue();
+    Arrays.sort(grams);
+
+    if (nPostings > Integer.MAX_VALUE)
+      throw new IOException("Too many terms in field '" + field + 
+                            "' to build wildcard index");
+    gramStarts = new int[grams.length + 1];
+    termNums = new int[(int)nPostings];
+    int pos = 0;
+    for (int i = 0; i < grams.length; i++) 
+    {
+      gramStarts[i] = pos;
+      IntList list = gramTerms.get(Long.valueOf(grams[i]));
+      for (int j = 0; j < list.size(); j++)
+        termNums[pos++] = list.get(j);
+    }
+    gramStarts[grams.length] = pos;
+  } // constructor
+
+  /**
+   * Check whether a term is one that wildcard queries skip (see
+   * {@link XtfSpanWildcardQuery#shouldSkipTerm}.)
+   */
+  private boolean isSkipped(String word) 
+  {
+    // Skip the special start-of-field and end-of-field terms.
+    if (word.length() > 1) {
+      if (word.charAt(0) == Constants.FIELD_START_MARKER)
+        return true;
+      if (word.charAt(word.length() - 1) == Constants.FIELD_END_MARKER)
+        return true;
+    }
+
+    // Skip stop words, and bi-grams containing them.
+    if (stopSet == null)
+      return false;
+    if (stopSet.contains(word))
+      return true;
+    return BigramQueryRewriter.isBigram(stopSet, word);
+  } // isSkipped()
+
+  /**
+   * Find the terms in this segment matching the pattern, or return null if
+   * there are more than maxTerms of them.
+   */
+  private String[] find(String pattern, long[] patGrams, int maxTerms) 
+  {
+    // Look up the terms for each gram. If any has none, nothing matches.
+    int[][] lists = new int[patGrams.length][];
+    for (int i = 0; i < patGrams.length; i++) 
+    {
+      int g = Arrays.binarySearch(grams, patGrams[i]);
+      if (g < 0)
+        return new String[0];
+      lists[i] = new int[gramStarts[g + 1] - gramStarts[g]];
+      System.arraycopy(termNums, gramStarts[g], lists[i], 0, lists[i].length);
+    }
+
+    // Intersect the lists, shortest first so the candidates shrink fast.
+    Arrays.sort(lists, new Comparator<int[]>() {
+      public int compare(int[] a, int[] b) {
+        return a.length - b.length;
+      }
+    });
+    int[] cands = lists[0];
+    int nCands = cands.length;
+    for (int i = 1; i < lists.length && nCands > 0; i++)
+      nCands = intersect(cands, nCands, lists[i]);
+
+    // Check each remaining term against the full pattern.
+    ArrayList<String> ret = new ArrayList<String>();
+    for (int i = 0; i < nCands; i++) {
+      String term = terms.get(cands[i]);
+      if (WildcardTermEnum.wildcardEquals(pattern, 0, term, 0)) {
+        if (ret.size() == maxTerms)
+          return null;
+        ret.add(term);
+      }
+    }
+    return ret.toArray(new String[ret.size()]);
+  } // find()
+
+  /**
+   * Keep only those of the first n candidates that are also in the given
+   * list (both in ascending order), returning the number left.
+   */
+  private static int intersect(int[] cands, int n, int[] list) 
+  {
+    int out = 0;
+    int j = 0;
+    for (int i = 0; i < n && j < list.length; i++) 
+    {
+      while (j < list.length && list[j] < cands[i])
+        ++j;
+      if (j < list.length && list[j] == cands[i])
+        cands[out++] = cands[i];
+    }
+    return out;
+  } // intersect()
+
+  /** 
+   * Get the distinct trigrams in the literal parts of a pattern, or if there
+   * are none, the pairs.
+   */
+  private static long[] patternGrams(String pattern) 
+  {
+    String padded = BOUNDARY + pattern + BOUNDARY;
+    TreeSet<Long> set = new TreeSet<Long>();
+    for (int len = 3; len >= 2 && set.isEmpty(); len--) 
+    {
+      nextGram:
+      for (int i = 0; i + len <= padded.length(); i++) 
+      {
+        for (int j = i; j < i + len; j++) {
+          if (isWild(padded.charAt(j)))
+            continue nextGram;
+        }
+        set.add(Long.valueOf(gram(padded, i, len)));
+      }
+    }
+    long[] ret = new long[set.size()];
+    int n = 0;
+    for (Iterator<Long> iter = set.iterator(); iter.hasNext();)
+      ret[n++] = iter.next().longValue();
+    return ret;
+  } // patternGrams()
+
+  /** Pack two or three characters into a number */
+  private static long gram(String s, int pos, int len) 
+  {
+    if (len == 2)
+      return (1L << 48) | ((long)s.charAt(pos) << 16) | s.charAt(pos + 1);
+    return ((long)s.charAt(pos) << 32) | ((long)s.charAt(pos + 1) << 16) |
+           s.charAt(pos + 2);
+  }
+
+  private static boolean isWild(char c) {
+    return c == WildcardTermEnum.WILDCARD_STRING ||
+           c == WildcardTermEnum.WILDCARD_CHAR;
+  }
+
+  /** 
+   * Identifies an index in the segment cache: the field, and the stop set
+   * it was built with (compared by identity, since an index keeps the one 
+   * set it read at start-up.)
+   */
+  private static class Key 
+  {
+    String field;
+    Set stopSet;
+
+    Key(String field, Set stopSet) {
+      this.field = field;
+      this.stopSet = stopSet;
+    }
+
+    public boolean equals(Object o) 
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key)o;
+      return k.field == field && k.stopSet == stopSet;
+    }
+
+    public int hashCode() {
+      return field.hashCode() ^ System.identityHashCode(stopSet);
+    }
+  } // class Key
+
+  /** Enumerates a list of terms, positioned at the first one to start. */
+  private static class ListTermEnum extends TermEnum 
+  {
+    private IndexReader reader;
+    private String field;
+    private String[] texts;
+    private int pos = 0;
+
+    ListTermEnum(IndexReader reader, String field, String[] texts) {
+      this.reader = reader;
+      this.field = field;
+      this.texts = texts;
+    }
+
+    public boolean next() {
+      return ++pos < texts.length;
+    }
+
+    public Term term() {
+      return (pos < texts.length) ? new Term(field, texts[pos]) : null;
+    }
+
+    public int docFreq() 
+    {
+      if (pos >= texts.length)
+        return 0;
+      try {
+        return reader.docFreq(term());
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public void close() {
+    }
+  } // class ListTermEnum
+} // class WildcardTermIndex
@@ -38,12 +38,27 @@ import org.apache.lucene.index.TermDocs;
 /**
  * Used to map chunk indexes to the corresponding document index, and
  * vice-versa. Only performs the load when necessary (typically dynaXML uses
- * the DocNumMap, while crossQuery doesn't.)
+ * the DocNumMap, while crossQuery doesn't.)<br><br>
+ *
+ * Once loaded, the map never changes, so any number of threads can look
+ * things up at once without locking. Besides the sorted list of docInfo
+ * chunk numbers, we keep a lookup table indexed by chunk number, so that
+ * finding the document for a chunk (which happens for every span hit) is
+ * a couple of array accesses rather than a binary search. For indexes with
+ * a great many chunks, each table entry covers a range of chunks rather
+ * than just one, which keeps the table no bigger than a few entries per
+ * document.
  *
  * @author Martin Haye
  */
 public class XtfDocNumMap implements DocNumMap 
 {
+  /**
+   * Up to this many chunks, the lookup table has one entry per chunk. Past
+   * that, it's scaled down to a few entries per document.
+   */
+  private static final int DENSE_LIMIT = 1 << 20;
+
   /** Where to get the data from */
   private IndexReader reader;
 
@@ -53,20 +68,14 @@ public class XtfDocNumMap implements DocNumMap
   /** Number of words one chunk overlaps with the next */
   private int chunkOverlap;
 
-  /** Total number of docInfo chunks found */
-  private int nDocs;
-
-  /** Array of indexes, one for each docInfo chunk */
-  private int[] docNums = null; /* null until load() called */
+  /** The loaded data; null until load() called */
+  private volatile Table table = null;
 
-  /** Caches result of previous scan, used for speed */
-  private int prevNum = -1;
+  /** Map carried over from a previous version of the index, or null */
+  private XtfDocNumMap prevMap = null;
 
-  /** Used in binary searching */
-  private int low = -1;
-
-  /** Used in binary searching */
-  private int high = -1;
+  /** Chunk number at which entries not carried over begin */
+  private int sharedChunks = 0;
 
   /**
    * Make a map for the given reader. This reads in all the docInfo chunks
@@ -80,11 +89,47 @@ public class XtfDocNumMap implements DocNumMap
     this.chunkOverlap = chunkOverlap;
   } // constructor
 
-  private synchronized void load() 
+  /**
+   * Make a map for the given reader, re-using the entries of a map made
+   * for a previous version of the index wherever they're still valid. This
+   * is the case for the first <code>sharedChunks</code> chunks, if the two
+   * readers share the leading segments that hold them.
+   *
+   * @param prev          Map for the previous version of the index
+   * @param sharedChunks  Number of leading chunks numbered identically in
+   *                      the old reader and the new one.
+   */
+  public XtfDocNumMap(IndexReader reader, int chunkSize, int chunkOverlap,
+                      XtfDocNumMap prev, int sharedChunks)
+    throws IOException 
+  {
+    this(reader, chunkSize, chunkOverlap);
+
+    // We can only re-use the old entries if they've already been loaded,
+    // since the old reader might be closed by the time we need them.
+    //
+    if (prev.table != null && sharedChunks > 0) {
+      this.prevMap = prev;
+      this.sharedChunks = sharedChunks;
+    }
+  } // constructor
+
+  /**
+   * Get the loaded data, loading it the first time. We do this lazily
+   * because some indexes are only used for crossQuery, which doesn't really
+   * use the info in a DocNumMap.
+   */
+  private Table table()
+  {
+    Table t = table;
+    return (t != null) ? t : load();
+  }
+
+  private synchronized Table load() 
   {
     // If already loaded, don't do it again.
-    if (docNums != null)
-      return;
+    if (table != null)
+      return table;
 
     try 
     {
@@ -92,24 +137,42 @@ public class XtfDocNumMap implements DocNumMap
       // that big.
       //
       Term term = new Term("docInfo", "1");
-      nDocs = reader.docFreq(term);
-      docNums = new int[nDocs];
+      int[] docNums = new int[reader.docFreq(term)];
 
       // Get a list of all the "header" chunks for documents in this
       // index (i.e., documents with a "docInfo" field.)
       //
       TermDocs docHeaders = reader.termDocs(term);
 
-      // Record each document number.
+      // Record each document number. Ones carried over from a previous
+      // map don't need to be read again.
+      //
       int i = 0;
-      while (docHeaders.next())
+      boolean more;
+      if (prevMap != null) 
+      {
+        Table prev = prevMap.table;
+        while (i < prev.nDocs && prev.docNums[i] < sharedChunks)
+          i++;
+        System.arraycopy(prev.docNums, 0, docNums, 0, i);
+        prevMap = null;
+        more = docHeaders.skipTo(sharedChunks);
+      }
+      else
+        more = docHeaders.next();
+      while (more) {
         docNums[i++] = docHeaders.doc();
-      nDocs = i; // Account for possibly deleted docs
+        more = docHeaders.next();
+      }
+
+      // Account for possibly deleted docs
+      table = new Table(docNums, i);
+      return table;
     }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
-  }
+  } // load()
 
   /** Get the max number of words per chunk */
   public int getChunkSize() {
@@ -123,9 +186,12 @@ public class XtfDocNumMap implements DocNumMap
 
   /**
    * Return a count of the number of documents (not chunks) in the index.
+   * Note that this doesn't trigger a load, so it's zero until the map has
+   * been used for something else.
    */
   public final int getDocCount() {
-    return nDocs;
+    Table t = table;
+    return (t == null) ? 0 : t.nDocs;
   }
 
   /**
@@ -138,36 +204,36 @@ public class XtfDocNumMap implements DocNumMap
    * @param chunkNumber Chunk number to translate
    * @return Document index, or -1 if no match.
    */
-  public final synchronized int getDocNum(int chunkNumber) 
+  public final int getDocNum(int chunkNumber) 
   {
-    // Do a binary search for the chunk
-    scan(chunkNumber);
+    Table t = table();
+    int high = t.findAbove(chunkNumber);
 
     // Return the upper end, since the document info is written after
     // all of its chunks.
     //
-    if (high == nDocs)
+    if (high == t.nDocs)
       return -1;
-    return docNums[high];
+    return t.docNums[high];
   } // getDocNum()
 
   /**
    * Given a document number, this method returns the number of its first
    * chunk.
    */
-  public final synchronized int getFirstChunk(int docNum) 
+  public final int getFirstChunk(int docNum) 
   {
-    // Scan for the document
-    scan(docNum);
+    Table t = table();
+    int low = t.findAbove(docNum) - 1;
 
     // If not found, get out.
-    if (low < 0 || docNums[low] != docNum)
+    if (low < 0 || t.docNums[low] != docNum)
       return -1;
 
     if (low == 0)
       return 1; // Account for index info chunk
     else
-      return docNums[low - 1] + 1;
+      return t.docNums[low - 1] + 1;
   } // getFirstchunk()
 
   /**
@@ -179,45 +245,84 @@ public class XtfDocNumMap implements DocNumMap
   }
 
   /**
-   * Perform a binary search looking for the given number. On exit, the
-   * 'low' and 'high' member variables will be indexes into the array that
-   * bracket the value.
-   *
-   * @param num   The number to look for.
+   * The loaded data. Never changes once constructed, so it can be shared
+   * by any number of threads.
    */
-  private void scan(int num) 
+  private static final class Table
   {
-    // Early-out
-    if (num == prevNum)
-      return;
+    /** Array of indexes, one for each docInfo chunk, in ascending order */
+    final int[] docNums;
 
-    // Make sure we load the data the first time. We do this lazily because
-    // some indexes are only used for crossQuery, which doesn't really use
-    // the info in a DocNumMap.
-    //
-    load();
+    /** Total number of docInfo chunks found */
+    final int nDocs;
 
-    // Perform a simple binary search.
-    int high = nDocs;
+    /** Each entry in {@link #starts} covers this many chunks (as a shift) */
+    final int shift;
 
-    // Perform a simple binary search.
-    int low = -1;
+    /**
+     * Lookup table: entry <i>n</i> is the number of docNums less than
+     * <i>n</i> &lt;&lt; {@link #shift}.
+     */
+    final int[] starts;
 
-    // Perform a simple binary search.
-    int probe;
-    while (high - low > 1) {
-      probe = (high + low) / 2;
-      if (docNums[probe] > num)
-        high = probe;
-      else
-        low = probe;
-    }
+    Table(int[] docNums, int nDocs)
+    {
+      this.docNums = docNums;
+      this.nDocs = nDocs;
 
-    // At this point, low and high bracket the value searched for.
-    assert low == -1 || docNums[low] <= num;
-    assert high == nDocs || docNums[high] > num;
+      // Use one entry per chunk if that's not too many; otherwise, cover
+      // enough chunks per entry to get down to a couple per document.
+      //
+      int maxNum = (nDocs > 0) ? docNums[nDocs - 1] : 0;
+      int sh = 0;
+      while ((maxNum >> sh) > Math.max(DENSE_LIMIT, nDocs * 2))
+        sh++;
+      shift = sh;
+
+      // Fill in the table by walking the list.
+      starts = new int[(maxNum >> shift) + 2];
+      int i = 0;
+      for (int n = 0; n < starts.length; n++) {
+        long base = (long)n << shift;
+        while (i < nDocs && docNums[i] < base)
+          i++;
+        starts[n] = i;
+      }
+    } // constructor
+
+    /**
+     * Find the index of the first docNum greater than the given number (or
+     * nDocs if there isn't one.) The entry before it, if any, is the last
+     * docNum less than or equal to the number.
+     */
+    int findAbove(int num)
+    {
+      if (num < 0)
+        return 0;
+
+      // The table tells us which part of the list to look in. If there's
+      // one entry per chunk, this narrows it to a single docNum.
+      //
+      int n = num >> shift;
+      int low, high;
+      if (n + 1 < starts.length) {
+        low = starts[n];
+        high = starts[n + 1];
+      }
+      else {
+        low = starts[starts.length - 1];
+        high = nDocs;
+      }
 
-    this.low = low;
-    this.high = high;
-  } // scan()
-} // class DocNumMap
+      // Search what's left.
+      while (low < high) {
+        int probe = (low + high) >>> 1;
+        if (docNums[probe] > num)
+          high = probe;
+        else
+          low = probe + 1;
+      }
+      return low;
+    } // findAbove()
+  } // class Table
+} // class XtfDocNumMap
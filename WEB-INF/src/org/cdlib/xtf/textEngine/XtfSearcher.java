@@ -37,11 +37,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import org.apache.lucene.bigram.BigramQueryRewriter;
 import org.apache.lucene.chunk.DocNumMap;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentSharingReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.Hits;
@@ -49,97 +51,257 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.spelt.SpellReader;
 import org.apache.lucene.store.Directory;
+import org.cdlib.xtf.cache.SimpleCache;
 import org.cdlib.xtf.textIndexer.TextIndexer;
 import org.cdlib.xtf.util.CharMap;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.WordMap;
 
 /**
- * Used to keep a set of searcher, reader, and doc-num-map that are consistent
- * with each other and also up-to-date.
+ * An immutable snapshot of an index: a searcher, reader, doc-num-map, and
+ * ancillary data (stop words, plural and accent maps, spelling dictionary)
+ * that are all consistent with each other. To pick up a newer version of
+ * the index, a new snapshot must be made (this is normally done by
+ * {@link IndexWarmer}.)<br><br>
+ *
+ * Snapshots are reference-counted. The code that makes one holds the first
+ * reference, and anyone else that wants to use it should call
+ * {@link #tryAcquire()} and later {@link #release()}. The underlying reader
+ * is only closed when the last reference is released, so a query in progress
+ * can never have its index closed out from under it.<br><br>
+ *
+ * When a new snapshot is made from a previous one on the same directory,
+ * the index segments that haven't changed (along with the chunk-to-doc
+ * mapping for them) are shared rather than being loaded again, so that
+ * picking up a small incremental update is quick.<br><br>
+ *
+ * Each snapshot also keeps caches of recently used query plans and, if
+ * enabled, query results. Since these are only valid for this version of
+ * the index, they go away along with the snapshot when a new version is
+ * flipped in.
  *
  * @author Martin Haye
  */
 public class XtfSearcher 
 {
   /** Path to the index directory */
-  private String indexPath;
+  private final String indexPath;
 
   /** The index directory to read from */
-  private Directory directory;
-
-  /** How often to check for an out-of-date directory */
-  private long updatePeriod;
-
-  /** Last time we checked for out-of-date */
-  private long lastCheckTime;
+  private final Directory directory;
 
   /** Version number of the index in memory */
-  private long curVersion;
+  private final long curVersion;
 
-  /** Version number of index on disk */
-  private long newVersion;
+  /** Number of outstanding references; the index is closed when it hits 0 */
+  private final AtomicInteger refCount = new AtomicInteger(1);
 
   /** Reader used to access the index */
-  private IndexReader indexReader;
+  private final SegmentSharingReader indexReader;
 
   /** Keeps track of which chunks belong to which documents */
-  private DocNumMap docNumMap;
+  private final DocNumMap docNumMap;
 
   /** Fetching spelling suggestions */
-  private SpellReader spellReader;
+  private final SpellReader spellReader;
 
   /** Max # of words in a chunk */
-  private int chunkSize;
+  private final int chunkSize;
 
   /** Amount of overlap, in words, between adjacent chunks */
-  private int chunkOverlap;
+  private final int chunkOverlap;
 
   /** Stop-words associated with the index (e.g. "the", "a", "and", etc.) */
-  private Set stopSet;
+  private final Set stopSet;
 
   /** Map of plural words to singular words */
-  private WordMap pluralMap;
+  private final WordMap pluralMap;
 
   /** Map of accented chars to remove diacritics from */
-  private CharMap accentMap;
+  private final CharMap accentMap;
 
   /** Set of all indexed fields in the index */
-  private Set indexedFields;
+  private final Set indexedFields;
 
   /** Set of all fields which are tokenized in the index */
-  private Set tokenizedFields;
+  private final Set tokenizedFields;
 
   /** Whether this index is "sparse" (i.e. more than 5 chunks per doc) */
-  private boolean isSparse;
+  private final boolean isSparse;
+
+  /** Rewritten queries for this version of the index, made on demand */
+  private SimpleCache<String, DefaultQueryProcessor.QueryPlan> planCache;
+
+  /** Finished query results for this version of the index, if enabled */
+  private ResultCache resultCache;
 
   /**
-   * Construct a searcher set on the given directory.
+   * Construct a searcher on the given directory.
    *
    * @param indexPath             Directory to load index data from
-   * @param updateCheckSeconds    How often to check for an updated index
    */
-  public XtfSearcher(String indexPath, int updateCheckSeconds)
+  public XtfSearcher(String indexPath)
     throws IOException 
   {
-    this(indexPath, NativeFSDirectory.getDirectory(indexPath), updateCheckSeconds);
+    this(indexPath, NativeFSDirectory.getDirectory(indexPath));
   } // XtfSearcher
 
   /**
-   * Construct a searcher set on the given directory.
+   * Construct a searcher on the given directory, loading all the index
+   * data and ancillary files.
    *
    * @param indexPath             Path to index directory
    * @param dir                   Lucene version of the index directory
-   * @param updateCheckSeconds    How often to check for an updated index
    */
-  public XtfSearcher(String indexPath, Directory dir, int updateCheckSeconds)
+  public XtfSearcher(String indexPath, Directory dir)
+    throws IOException 
+  {
+    this(indexPath, dir, null);
+  } // XtfSearcher
+
+  /**
+   * Construct a searcher on the given directory, sharing whatever parts
+   * of the index haven't changed since a previous searcher was made on the
+   * same directory.
+   *
+   * @param indexPath             Path to index directory
+   * @param dir                   Lucene version of the index directory
+   * @param prev                  Previous searcher on the same index, or
+   *                              null to load everything from scratch.
+   */
+  public XtfSearcher(String indexPath, Directory dir, XtfSearcher prev)
     throws IOException 
   {
     this.indexPath = indexPath;
     this.directory = dir;
-    curVersion = -99;
-    updatePeriod = ((long)updateCheckSeconds) * 1000;
-    update();
+
+    // Make sure the previous searcher stays open while we share its
+    // segments. If it's already been closed, there's nothing to share.
+    //
+    if (prev != null && !prev.tryAcquire())
+      prev = null;
+    try {
+      indexReader = SegmentSharingReader.open(directory, 
+                      (prev == null) ? null : prev.indexReader);
+    }
+    finally {
+      if (prev != null)
+        prev.release();
+    }
+
+    // Record the version we read, so we can later tell if the index on 
+    // disk has moved on.
+    //
+    curVersion = indexReader.getVersion();
+
+    boolean success = false;
+    SpellReader spell = null;
+    try
+    {
+      // Fetch the index information chunk.
+      Hits match = new IndexSearcher(indexReader).search(
+        new TermQuery(new Term("indexInfo", "1")));
+      if (match.length() == 0)
+        throw new IOException("Index missing indexInfo doc");
+      assert match.id(0) == 0 : "indexInfo chunk must be first in index";
+      Document doc = match.doc(0);
+
+      // Ensure that the index version is compatible.
+      String indexVersion = doc.get("xtfIndexVersion");
+      if (indexVersion == null)
+        indexVersion = "1.0";
+      if (indexVersion.compareTo(TextIndexer.REQUIRED_VERSION) < 0) {
+        throw new IOException(
+          "Incompatible index version " + indexVersion + "; require at least " + 
+          TextIndexer.REQUIRED_VERSION + "... consider re-indexing with '-clean'.");
+      }
+
+      // Validate the chunk size and overlap
+      chunkSize = Integer.parseInt(doc.get("chunkSize"));
+      chunkOverlap = Integer.parseInt(doc.get("chunkOvlp"));
+      if (chunkSize <= 0 || chunkOverlap <= 0 || chunkOverlap >= chunkSize)
+        throw new IOException("Invalid chunkSize/overlap in index");
+
+      // Construct a map from doc # to chunk #'s (and vice-versa), carrying
+      // over the part that covers segments shared with the previous searcher.
+      //
+      if (prev != null && prev.docNumMap instanceof XtfDocNumMap) {
+        docNumMap = new XtfDocNumMap(indexReader, chunkSize, chunkOverlap, 
+                                     (XtfDocNumMap)prev.docNumMap, 
+                                     indexReader.sharedDocs(prev.indexReader));
+      }
+      else
+        docNumMap = new XtfDocNumMap(indexReader, chunkSize, chunkOverlap);
+
+      // Get the stop-word set.
+      String stopWords = doc.get("stopWords");
+      if (stopWords != null && stopWords.length() > 0)
+        stopSet = BigramQueryRewriter.makeStopSet(stopWords);
+      else
+        stopSet = null;
+
+      // If there's an accent map specified, load it.
+      String accentMapName = doc.get("accentMap");
+      if (accentMapName != null && accentMapName.length() > 0) {
+        File accentFile = new File(indexPath, accentMapName);
+        InputStream stream = new FileInputStream(accentFile);
+        if (accentMapName.endsWith(".gz"))
+          stream = new GZIPInputStream(stream);
+        accentMap = new CharMap(stream);
+      }
+      else
+        accentMap = null;
+
+      // If there's a plural map specified, load it. Be sure to apply
+      // the accent map, if any, so that plural words get mapped
+      // whether they're accented or not.
+      //
+      String pluralMapName = doc.get("pluralMap");
+      if (pluralMapName != null && pluralMapName.length() > 0) {
+        File pluralFile = new File(indexPath, pluralMapName);
+        InputStream stream = new FileInputStream(pluralFile);
+        if (pluralMapName.endsWith(".gz"))
+          stream = new GZIPInputStream(stream);
+        pluralMap = new WordMap(stream, accentMap);
+      }
+      else
+        pluralMap = null;
+
+      // If there's a spelling correction dictionary, attach to it.
+      File spellDir = new File(indexPath, "spellDict");
+      if (SpellReader.isValidDictionary(spellDir)) {
+        spell = SpellReader.open(spellDir);
+        spell.setStopwords(stopSet);
+        spell.setWordEquiv(new XtfWordEquiv(accentMap, pluralMap));
+      }
+      spellReader = spell;
+
+      // Determine whether this is a "sparse" index. Our definition of
+      // sparse is that there are more than 5 chunks per document, meaning
+      // that meta-data sorting and grouping will waste a lot of memory
+      // if they allocate a slot per chunk.
+      //
+      int nDocs = indexReader.docFreq(new Term("docInfo", "1"));
+      int nChunks = indexReader.maxDoc();
+      isSparse = nChunks > (nDocs * 5);
+
+      // Determine the list of all fields.
+      indexedFields = new LinkedHashSet(
+        indexReader.getFieldNames(IndexReader.FieldOption.ALL));
+
+      // Determine which fields are tokenized.
+      tokenizedFields = readTokenizedFields(indexPath, indexReader);
+      success = true;
+    }
+    finally
+    {
+      // Don't leave files open if we couldn't finish loading.
+      if (!success) {
+        indexReader.close();
+        if (spell != null)
+          spell.close();
+      }
+    }
   } // XtfSearcher
 
   /**
@@ -151,124 +313,72 @@ public class XtfSearcher
     // Get the version on disk. If it's the same as the one we have in
     // memory, no problem.
     //
-    newVersion = IndexReader.getCurrentVersion(directory);
-    return (newVersion == curVersion);
+    return IndexReader.getCurrentVersion(directory) == curVersion;
   }
 
   /**
-   * Ensures that this searcher is up-to-date with regards to the index on
-   * disk.
+   * Find out how many index segments this searcher shares with another
+   * one, out of the {@link #nSegments()} it has.
    */
-  public void update()
-    throws IOException 
-  {
-    // It would be too time-consuming to read the index version number
-    // every single time. So only check it periodically.
-    //
-    if (curVersion >= 0) {
-      long time = System.currentTimeMillis();
-      if (time - lastCheckTime < updatePeriod)
-        return;
-      lastCheckTime = time;
-    }
+  public int sharedSegments(XtfSearcher other) {
+    return indexReader.sharedSegments(other.indexReader);
+  }
 
-    // Get the version on disk. If it's the same as the one we have in
-    // memory, no problem.
-    //
-    if (isUpToDate())
-      return;
-    
-    // If we've been requested to never re-update, forget it.
-    if (curVersion >= 0 && updatePeriod == 0)
-      return;
-
-    // Okay, better re-open to get the fresh data.
-    close();
-    indexReader = IndexReader.open(directory);
-
-    // Fetch the index information chunk.
-    Hits match = new IndexSearcher(indexReader).search(
-      new TermQuery(new Term("indexInfo", "1")));
-    if (match.length() == 0)
-      throw new IOException("Index missing indexInfo doc");
-    assert match.id(0) == 0 : "indexInfo chunk must be first in index";
-    Document doc = match.doc(0);
-
-    // Ensure that the index version is compatible.
-    String indexVersion = doc.get("xtfIndexVersion");
-    if (indexVersion == null)
-      indexVersion = "1.0";
-    if (indexVersion.compareTo(TextIndexer.REQUIRED_VERSION) < 0) {
-      throw new IOException(
-        "Incompatible index version " + indexVersion + "; require at least " + 
-        TextIndexer.REQUIRED_VERSION + "... consider re-indexing with '-clean'.");
-    }
+  /**
+   * Find out how many segments the index is made of.
+   */
+  public int nSegments() {
+    return indexReader.nSegments();
+  }
 
-    // Validate the chunk size and overlap
-    chunkSize = Integer.parseInt(doc.get("chunkSize"));
-    chunkOverlap = Integer.parseInt(doc.get("chunkOvlp"));
-    if (chunkSize <= 0 || chunkOverlap <= 0 || chunkOverlap >= chunkSize)
-      throw new IOException("Invalid chunkSize/overlap in index");
-
-    // Construct a map from doc # to chunk #'s (and vice-versa)
-    docNumMap = new XtfDocNumMap(indexReader, chunkSize, chunkOverlap);
-
-    // Get the stop-word set.
-    String stopWords = doc.get("stopWords");
-    stopSet = null;
-    if (stopWords != null && stopWords.length() > 0)
-      stopSet = BigramQueryRewriter.makeStopSet(stopWords);
-
-    // If there's an accent map specified, load it.
-    String accentMapName = doc.get("accentMap");
-    if (accentMapName != null && accentMapName.length() > 0) {
-      File accentFile = new File(indexPath, accentMapName);
-      InputStream stream = new FileInputStream(accentFile);
-      if (accentMapName.endsWith(".gz"))
-        stream = new GZIPInputStream(stream);
-      accentMap = new CharMap(stream);
-    }
+  /**
+   * Gets the path of the index directory this searcher was loaded from.
+   */
+  public String indexPath() {
+    return indexPath;
+  }
 
-    // If there's a plural map specified, load it. Be sure to apply
-    // the accent map, if any, so that plural words get mapped
-    // whether they're accented or not.
-    //
-    String pluralMapName = doc.get("pluralMap");
-    if (pluralMapName != null && pluralMapName.length() > 0) {
-      File pluralFile = new File(indexPath, pluralMapName);
-      InputStream stream = new FileInputStream(pluralFile);
-      if (pluralMapName.endsWith(".gz"))
-        stream = new GZIPInputStream(stream);
-      pluralMap = new WordMap(stream, accentMap);
-    }
+  /**
+   * Gets the version number of the index this searcher was loaded from.
+   */
+  public long version() {
+    return curVersion;
+  }
 
-    // If there's a spelling correction dictionary, attach to it.
-    File spellDir = new File(indexPath, "spellDict");
-    if (SpellReader.isValidDictionary(spellDir)) {
-      spellReader = SpellReader.open(spellDir);
-      spellReader.setStopwords(stopSet);
-      spellReader.setWordEquiv(new XtfWordEquiv(accentMap, pluralMap));
+  /**
+   * Adds a reference to this searcher, guaranteeing that its index will
+   * stay open until a matching call to {@link #release()}. This never
+   * blocks, but can fail if the last reference has already been released
+   * (e.g. if a newer version of the index was flipped in at just the wrong
+   * moment.)
+   *
+   * @return  true if a reference was added, false if the searcher has
+   *          already been closed.
+   */
+  public boolean tryAcquire() 
+  {
+    while (true) 
+    {
+      int count = refCount.get();
+      if (count <= 0)
+        return false;
+      if (refCount.compareAndSet(count, count + 1))
+        return true;
     }
+  }
 
-    // Determine whether this is a "sparse" index. Our definition of
-    // sparse is that there are more than 5 chunks per document, meaning
-    // that meta-data sorting and grouping will waste a lot of memory
-    // if they allocate a slot per chunk.
-    //
-    int nDocs = indexReader.docFreq(new Term("docInfo", "1"));
-    int nChunks = indexReader.maxDoc();
-    isSparse = nChunks > (nDocs * 5);
-
-    // Determine the list of all fields.
-    indexedFields = new LinkedHashSet(
-      indexReader.getFieldNames(IndexReader.FieldOption.ALL));
-
-    // Determine which fields are tokenized.
-    tokenizedFields = readTokenizedFields(indexPath, indexReader);
-
-    // Remember the version that's now in memory.
-    curVersion = newVersion;
-  } // update()
+  /**
+   * Drops a reference to this searcher. When the last reference is
+   * dropped, the index reader and spelling dictionary are closed.
+   */
+  public void release()
+    throws IOException 
+  {
+    int count = refCount.decrementAndGet();
+    assert count >= 0 : "searcher released too many times";
+    if (count == 0)
+      close();
+  }
 
   /**
    * Read in the list of fields that are tokenized in this index.
@@ -390,23 +500,49 @@ public class XtfSearcher
   }
 
   /**
-   * Close down the searcher and all its dependencies.
+   * Get the cache of query plans for this version of the index, creating
+   * it if necessary.
+   *
+   * @param maxEntries  Max # of plans to keep (only used if the cache
+   *                    hasn't been made yet.)
    */
-  public void close()
-    throws IOException 
+  synchronized SimpleCache<String, DefaultQueryProcessor.QueryPlan> 
+    planCache(int maxEntries) 
   {
-    docNumMap = null;
+    if (planCache == null)
+      planCache = new SimpleCache<String, DefaultQueryProcessor.QueryPlan>(
+        maxEntries, 0);
+    return planCache;
+  }
 
-    if (indexReader != null) {
-      indexReader.close();
-      indexReader = null;
-    }
+  /**
+   * Get the cache of query results for this version of the index, creating
+   * it if necessary.
+   *
+   * @param maxBytes    Max total size of results to keep (only used if
+   *                    the cache hasn't been made yet.)
+   */
+  synchronized ResultCache resultCache(long maxBytes) 
+  {
+    if (resultCache == null)
+      resultCache = new ResultCache(maxBytes);
+    return resultCache;
+  }
 
-    if (spellReader != null) {
-      spellReader.close();
-      spellReader = null;
+  /**
+   * Close down the searcher and all its dependencies. Called when the last
+   * reference is released.
+   */
+  private void close()
+    throws IOException 
+  {
+    synchronized (this) {
+      if (planCache != null)
+        planCache.clear();
+      resultCache = null;
     }
-
-    curVersion = -99;
+    indexReader.close();
+    if (spellReader != null)
+      spellReader.close();
   } // close()
 } // class XtfSearcher
@@ -29,8 +29,11 @@ package org.cdlib.xtf.textEngine;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import java.io.IOException;
 import org.apache.lucene.bigram.BigramSpanWildcardQuery;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
 
 /**
  * Matches spans containing a wildcard term. Performs extra filtering to make
@@ -43,6 +46,18 @@ public class XtfSpanWildcardQuery extends BigramSpanWildcardQuery
     super(term, termLimit);
   }
 
+  /** 
+   * Use the trigram index to find matching terms, if one was built for this
+   * field (see {@link WildcardTermIndex}).
+   */
+  protected TermEnum getTermEnum(IndexReader reader)
+    throws IOException 
+  {
+    TermEnum e = WildcardTermIndex.expand(reader, getTerm(), getStopWords(),
+                                           getTermLimit());
+    return (e != null) ? e : super.getTermEnum(reader);
+  }
+
   protected boolean shouldSkipTerm(Term term) 
   {
     // Skip the special start-of-field and end-of-field terms.
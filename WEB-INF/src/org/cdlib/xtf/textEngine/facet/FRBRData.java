@@ -76,7 +76,7 @@ public class FRBRData
    * @param fields  Which fields to read
    * @return        FRBR tags for the specified fields
    */
-  public static FRBRData getCachedTags(IndexReader reader, String[] fields)
+  public static synchronized FRBRData getCachedTags(IndexReader reader, String[] fields)
     throws IOException 
   {
     // See if we have a cache for this reader.
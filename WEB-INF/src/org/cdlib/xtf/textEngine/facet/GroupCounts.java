@@ -267,6 +267,45 @@ public class GroupCounts
     } // for link
   } // addDoc()
 
+  /**
+   * Make a new set of counts, all zero, for the same group data and facet
+   * spec as this one. Used to count hits on part of the index separately,
+   * to be combined later with {@link #addCounts(GroupCounts)}.
+   */
+  public GroupCounts makeEmptyCopy() {
+    return new GroupCounts(data, spec, hitQueueMaker);
+  }
+
+  /**
+   * Add in the counts and document hits from another set of counts made
+   * by {@link #makeEmptyCopy()}. The other counts are emptied in the
+   * process.
+   */
+  public void addCounts(GroupCounts other) 
+  {
+    assert other.data == data && other.spec == spec;
+
+    for (int group = 0; group < data.nGroups(); group++) 
+    {
+      // Combine the counts and max scores.
+      if (!data.isDynamic()) {
+        count[group] += other.count[group];
+        score[group] = Math.max(score[group], other.score[group]);
+      }
+
+      // Move over any document hits.
+      PriorityQueue otherQueue = other.hitQueue[group];
+      if (otherQueue == null || otherQueue.size() == 0)
+        continue;
+      if (hitQueue[group] == null) {
+        hitQueue[group] = hitQueueMaker.makeQueue(
+          startDoc[group] + maxDocs[group]);
+      }
+      while (otherQueue.size() > 0)
+        hitQueue[group].insert(otherQueue.pop());
+    } // for group
+  } // addCounts()
+
   /**
    * Retrieve the result facet with its groupings.
    */
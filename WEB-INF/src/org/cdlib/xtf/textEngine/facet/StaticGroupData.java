@@ -30,8 +30,10 @@ package org.cdlib.xtf.textEngine.facet;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -40,12 +42,26 @@ import java.util.Vector;
 import java.util.WeakHashMap;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.IntList;
+import org.cdlib.xtf.textEngine.SegmentCache;
+import org.cdlib.xtf.util.FrontCodedStrings;
 
 /**
  * This class contains the mapping, for a given field, from documents to
- * one or more term values in that document.
+ * one or more term values in that document.<br><br>
+ *
+ * Reading the terms and documents is the slow part, so that's done (and
+ * cached) separately for each segment of the index. When the index is
+ * re-opened after an update, only the new segments have to be read, and
+ * the group data for the whole index is quickly put back together.<br><br>
+ *
+ * With many facet fields over a large index, this data gets big, so it is
+ * kept in direct buffers outside the Java heap, where it doesn't burden
+ * the garbage collector. The links from documents to groups are stored in
+ * columns: for each document, the position of its first link; and for
+ * each link, its group.
  *
  * @author Martin Haye
  */
@@ -54,64 +70,79 @@ public class StaticGroupData extends GroupData
   /** The particular field we have data from */
   private String field;
 
-  /** Array of document IDs */
-  private int[] docs;
+  /** Number of documents covered */
+  private int maxDoc;
+
+  /**
+   * Position in {@link #linkGroups} of the first link for each document. The
+   * links for a document end where those of the next document start, so
+   * there is one extra entry at the end.
+   */
+  private IntBuffer docFirstLink;
 
   /**
-   * Array of links: 0..docs.length is either positive to indicate a single group
-   * for this doc, or negative to indicate a link later in the array to a list
-   * of groups. docs.length..links.length holds the extra groups; each entry is
-   * a group number, negative to mean end of the groups for a single doc.
+   * Group of each link. The last link for each document is stored with its
+   * bits flipped (i.e. negative), marking the end of the document's groups.
    */
-  private int[] links;
+  private IntBuffer linkGroups;
 
-  /** Array of group names */
-  private String[] groups;
+  /** Names of the groups */
+  private FrontCodedStrings groups;
 
   /** The parent of each group, or -1 for none */
-  private int[] groupParents;
+  private IntBuffer groupParents;
 
   /** The first child of each group, or -1 for none. */
-  private int[] groupChildren;
+  private IntBuffer groupChildren;
 
   /** The next sibling of each group, or -1 for none. */
-  private int[] groupSiblings;
+  private IntBuffer groupSiblings;
 
   /** Cached data. If the reader goes away, our cache will too. */
   private static WeakHashMap cache = new WeakHashMap();
 
+  /** Terms and documents for each segment, from which group data is built */
+  private static SegmentCache segmentCache = new SegmentCache() 
+  {
+    protected Object load(IndexReader segment, Object field)
+      throws IOException 
+    {
+      return new SegmentTerms(segment, (String)field);
+    }
+  };
+
   /**
    * Retrieves GroupData for a given field from a given reader. Maintains a cache
    * so that if the same field is requested again for this reader, we don't have
    * to re-read the group data.
    * 
-   * Synchronized so that if a bunch of threads come in wanting to load the same
-   * data, we won't waste time and memory loading it over and over.
+   * If a bunch of threads come in wanting to load the same data, only one
+   * loads it, so we won't waste time and memory loading it over and over.
+   * Different fields can be loaded at the same time, though.
    *
    * @param reader  Where to read the data from
    * @param field   Which field to read
    * @return        Group data for the specified field
    */
-  public static synchronized StaticGroupData getCachedData(IndexReader reader, String field)
+  public static StaticGroupData getCachedData(IndexReader reader, String field)
     throws IOException 
   {
-    // See if we have a cache for this reader.
-    HashMap readerCache = (HashMap)cache.get(reader);
-    if (readerCache == null) {
-      readerCache = new HashMap();
-      cache.put(reader, readerCache);
-    }
-
-    // Now see if we've already read data for this field.
-    StaticGroupData data = (StaticGroupData)readerCache.get(field);
-    if (data == null) 
+    // See if we've already read data for this field of this reader.
+    reader = SegmentCache.unwrap(reader);
+    SegmentCache.Entry ent = SegmentCache.entry(cache, reader, field);
+    synchronized (ent) 
     {
-      // Don't have cached data, so read and remember it.
-      data = new StaticGroupData(reader, field);
-      readerCache.put(field, data);
+      // Don't have cached data, so build it from the data for each segment,
+      // and remember it.
+      //
+      if (ent.data == null) {
+        ent.data = new StaticGroupData(segmentCache.get(reader, field),
+                                       SegmentCache.segmentStarts(
+                                         SegmentCache.segments(reader)),
+                                       field);
+      }
+      return (StaticGroupData)ent.data;
     }
-
-    return data;
   } // getCachedData()
 
   /**
@@ -125,92 +156,99 @@ public class StaticGroupData extends GroupData
   public StaticGroupData(IndexReader reader, String field)
     throws IOException 
   {
-    this.field = field;
+    this(new Object[] { new SegmentTerms(reader, field) },
+         new int[] { 0, reader.maxDoc() }, field);
+  } // constructor
 
-    TermPositions termPositions = reader.termPositions();
-    TermEnum termEnum = reader.terms(new Term(field, ""));
+  /**
+   * Build up the arrays of document to group info, and hierarchical
+   * relationships between the groups, from the term data read from each
+   * segment of an index.
+   *
+   * @param parts     A {@link SegmentTerms} for each segment, in order
+   * @param starts    Starting document ID of each segment
+   * @param field     Which field the data is for
+   */
+  private StaticGroupData(Object[] parts, int[] starts, String field) 
+  {
+    this.field = field;
 
     HashMap groupMap = new HashMap();
     Vector groupVec = new Vector();
     HashMap childMap = new HashMap();
-    HashMap docMap = new HashMap();
     HashSet lcTerms = new HashSet();
-    int nLinks = 0;
 
     // Add a default root group.
     groupVec.add("");
     groupMap.put("", Integer.valueOf(0));
 
-    // Make an entry for each document and each term. Ensure that
-    // there is only one term in this field per document.
+    // Step through the terms of all the segments together, in order. For
+    // each segment, record the group key of each of its terms.
     //
-    try 
-    {
-      if (termEnum.term() == null)
-        throw new RuntimeException("no terms in field " + field);
+    SegmentTerms[] segs = new SegmentTerms[parts.length];
+    int[][] termKeys = new int[parts.length][];
+    int[] termPos = new int[parts.length];
+    boolean anyTerms = false;
+    for (int i = 0; i < parts.length; i++) {
+      segs[i] = (SegmentTerms)parts[i];
+      termKeys[i] = new int[segs[i].terms.length];
+      anyTerms |= !segs[i].noTerms;
+    }
 
-      do 
-      {
-        Term term = termEnum.term();
-        if (!term.field().equals(field))
-          break;
+    if (!anyTerms)
+      throw new RuntimeException("no terms in field " + field);
 
-        // If we've seen this term before, skip it. This can happen if
-        // the real term was mixed case, and we encounter the lower-case
-        // version later.
-        //
-        String lcTerm = term.text().toLowerCase();
-        if (lcTerms.contains(lcTerm))
+    while (true) 
+    {
+      // Find the lowest term among the segments.
+      String termText = null;
+      for (int i = 0; i < segs.length; i++) {
+        if (termPos[i] == segs[i].terms.length)
           continue;
+        String t = segs[i].terms[termPos[i]];
+        if (termText == null || t.compareTo(termText) < 0)
+          termText = t;
+      }
+      if (termText == null)
+        break;
+
+      // If we've seen this term before, skip it. This can happen if
+      // the real term was mixed case, and we encounter the lower-case
+      // version later.
+      //
+      int termKey = -1;
+      String lcTerm = termText.toLowerCase();
+      if (!lcTerms.contains(lcTerm)) 
+      {
         lcTerms.add(lcTerm);
 
         // Add a group key for this term. Also, if it's hierarchical,
         // find the ancestor groups and add them to the child map.
         //
-        String termText = term.text();
         if (termText.length() == 0)
-          termText = "<empty>";
-        Integer termKey = addTermKey(termText, groupVec, groupMap, childMap);
+          termKey = addTermKey("<empty>", groupVec, groupMap, childMap).intValue();
+        else
+          termKey = addTermKey(termText, groupVec, groupMap, childMap).intValue();
+      }
 
-        // Now process each document which contains this term.
-        termPositions.seek(termEnum);
-        while (termPositions.next()) 
-        {
-          // Get or create a vector for this document.
-          int docId = termPositions.doc();
-          Integer docKey = Integer.valueOf(docId);
-
-          Vector docGroups = (Vector)docMap.get(docKey);
-          if (docGroups == null) {
-            docGroups = new Vector(1);
-            docMap.put(docKey, docGroups);
-          }
-
-          // If we're going from one group to two, add extra link space
-          // for the initial link.
-          //
-          if (docGroups.size() == 1)
-            nLinks++;
-
-          docGroups.add(termKey);
-          nLinks++;
-        } // while( termPositions.next() )
-      } while (termEnum.next());
-    }
-    finally {
-      termPositions.close();
-      termEnum.close();
+      // Record the key for every segment that has the term.
+      for (int i = 0; i < segs.length; i++) {
+        if (termPos[i] < segs[i].terms.length &&
+            segs[i].terms[termPos[i]].equals(termText))
+          termKeys[i][termPos[i]++] = termKey;
+      }
     }
 
-    // Build the final array of groups. Basically we just take the last
+    // Build the final list of groups. Basically we just take the last
     // component of each path.
     //
-    groups = (String[])groupVec.toArray(new String[groupVec.size()]);
-    for (int i = 0; i < groups.length; i++) {
-      int lastSep = groups[i].lastIndexOf("::");
+    String[] names = (String[])groupVec.toArray(new String[groupVec.size()]);
+    for (int i = 0; i < names.length; i++) {
+      int lastSep = names[i].lastIndexOf("::");
       if (lastSep >= 0)
-        groups[i] = groups[i].substring(lastSep + 2);
+        names[i] = names[i].substring(lastSep + 2);
     }
+    groups = new FrontCodedStrings(names);
 
     // Build the group parent/child/sibling tables.
     buildHierarchy(childMap);
@@ -218,9 +256,7 @@ public class StaticGroupData extends GroupData
     // Now we're ready to build our final arrays that condense all the
     // document -> group information.
     //
-    docs = new int[docMap.size()];
-    links = new int[nLinks];
-    buildLinks(docMap);
+    buildLinks(segs, termKeys, starts);
   } // constructor
 
   /**
@@ -293,80 +329,131 @@ public class StaticGroupData extends GroupData
    */
   private void buildHierarchy(HashMap childMap) 
   {
-    groupParents = new int[groups.length];
-    Arrays.fill(groupParents, -1);
-
-    groupChildren = new int[groups.length];
-    Arrays.fill(groupChildren, -1);
-
-    groupSiblings = new int[groups.length];
-    Arrays.fill(groupSiblings, -1);
+    groupParents = allocInts(groups.size(), -1);
+    groupChildren = allocInts(groups.size(), -1);
+    groupSiblings = allocInts(groups.size(), -1);
 
     for (Iterator iter = childMap.keySet().iterator(); iter.hasNext();) 
     {
       Integer parentKey = (Integer)iter.next();
       int parent = parentKey.intValue();
       HashSet childSet = (HashSet)childMap.get(parentKey);
-      assert groupChildren[parent] < 0 : "multiple child lists for parent";
+      assert groupChildren.get(parent) < 0 : "multiple child lists for parent";
 
       int prev = -1;
       ArrayList children = new ArrayList(childSet);
       Collections.sort(children);
       for (int i = 0; i < children.size(); i++) {
         int child = ((Integer)children.get(i)).intValue();
-        groupParents[child] = parent;
+        groupParents.put(child, parent);
         assert child != prev;
         if (prev < 0)
-          groupChildren[parent] = child;
+          groupChildren.put(parent, child);
         else
-          groupSiblings[prev] = child;
+          groupSiblings.put(prev, child);
         prev = child;
       }
     }
   } // buildHierarchy()
 
   /**
-   * Perform the final build step, forming the 'docs' and 'links' arrays.
+   * Perform the final build step, forming the {@link #docFirstLink} and
+   * {@link #linkGroups} columns.
    *
-   * @param docMap  Map of document ID to vector of group IDs
+   * @param segs      Term data for each segment
+   * @param termKeys  For each segment, the group key of each of its terms,
+   *                  or -1 to skip the term.
+   * @param starts    Starting document ID of each segment
    */
-  private void buildLinks(HashMap docMap) 
+  private void buildLinks(SegmentTerms[] segs, int[][] termKeys, int[] starts) 
   {
-    // Get an array of all the documents, sorted by document ID.
-    ArrayList keyList = new ArrayList(docMap.keySet());
-    assert keyList.size() == docs.length : "incorrect calculation";
-    Collections.sort(keyList);
+    // Count the groups for each document, just after the document's own
+    // entry.
+    //
+    maxDoc = starts[segs.length];
+    docFirstLink = allocInts(maxDoc + 1, 0);
+    for (int i = 0; i < segs.length; i++) 
+    {
+      SegmentTerms seg = segs[i];
+      for (int t = 0; t < seg.terms.length; t++) {
+        if (termKeys[i][t] < 0)
+          continue;
+        for (int p = seg.termStarts.get(t); p < seg.termStarts.get(t + 1); p++) {
+          int entry = starts[i] + seg.docs.get(p) + 1;
+          docFirstLink.put(entry, docFirstLink.get(entry) + 1);
+        }
+      }
+    }
 
-    int topLink = docs.length;
+    // Add up the counts, so each document's entry tells where its first
+    // link goes.
+    //
+    long nLinks = 0;
+    for (int doc = 0; doc <= maxDoc; doc++) {
+      nLinks += docFirstLink.get(doc);
+      if (nLinks > Integer.MAX_VALUE / 4)
+        throw new RuntimeException("too many groups in field " + field);
+      docFirstLink.put(doc, (int)nLinks);
+    }
+    linkGroups = allocInts((int)nLinks, 0);
 
-    for (int i = 0; i < docs.length; i++) 
+    // Now fill in the groups, bumping each document's entry as we go. Within
+    // a segment, the terms are in order, so each document's groups end up in
+    // order too.
+    //
+    for (int i = 0; i < segs.length; i++) 
     {
-      Integer docKey = (Integer)keyList.get(i);
-      Vector docGroups = (Vector)docMap.get(docKey);
-      int docNum = docKey.intValue();
-      docs[i] = docNum;
-
-      // Two cases. If there's only one group, record it directly. Otherwise,
-      // record a link to a list of groups.
-      //
-      if (docGroups.size() == 1)
-        links[i] = ((Integer)docGroups.get(0)).intValue();
-      else 
+      SegmentTerms seg = segs[i];
+      for (int t = 0; t < seg.terms.length; t++) 
       {
-        links[i] = -topLink;
-        for (Iterator iter = docGroups.iterator(); iter.hasNext();) {
-          int groupNum = ((Integer)iter.next()).intValue();
-          if (!iter.hasNext())
-            groupNum = -groupNum;
-          links[topLink++] = groupNum;
+        int termKey = termKeys[i][t];
+        if (termKey < 0)
+          continue;
+        for (int p = seg.termStarts.get(t); p < seg.termStarts.get(t + 1); p++) {
+          int doc = starts[i] + seg.docs.get(p);
+          int link = docFirstLink.get(doc);
+          linkGroups.put(link, termKey);
+          docFirstLink.put(doc, link + 1);
         }
       }
     }
 
+    // Each entry now points where the next document's links start. Mark
+    // the end of each document's groups by flipping its last one, then
+    // shift the entries back into place.
+    //
+    int prevEnd = 0;
+    for (int doc = 0; doc < maxDoc; doc++) {
+      int end = docFirstLink.get(doc);
+      if (end > prevEnd)
+        linkGroups.put(end - 1, ~linkGroups.get(end - 1));
+      prevEnd = end;
+    }
+    for (int doc = maxDoc; doc > 0; doc--)
+      docFirstLink.put(doc, docFirstLink.get(doc - 1));
+    docFirstLink.put(0, 0);
+
     // We should have just the right number of links; no more, no less.
-    assert topLink == links.length : "incorrect calculation";
+    assert docFirstLink.get(maxDoc) == nLinks : "incorrect calculation";
   } // buildLinks()
 
+  /**
+   * Allocate a buffer of ints outside the Java heap.
+   *
+   * @param size      How many ints
+   * @param initVal   Initial value for each one
+   */
+  private static IntBuffer allocInts(int size, int initVal) 
+  {
+    IntBuffer buf = ByteBuffer.allocateDirect(size * 4).
+                    order(ByteOrder.nativeOrder()).asIntBuffer();
+    if (initVal != 0) {
+      for (int i = 0; i < size; i++)
+        buf.put(i, initVal);
+    }
+    return buf;
+  } // allocInts()
+
   /**
    * Return the ID of the first link for the given document, or -1 if there
    * are no links for that document.
@@ -376,21 +463,18 @@ public class StaticGroupData extends GroupData
    */
   public final int firstLink(int docId) 
   {
-    int found = Arrays.binarySearch(docs, docId);
-    if (found < 0 || found >= docs.length)
+    if (docId < 0 || docId >= maxDoc)
       return -1;
 
-    if (links[found] >= 0)
-      return found;
-    else
-      return -links[found];
+    int link = docFirstLink.get(docId);
+    if (link == docFirstLink.get(docId + 1))
+      return -1;
+    return link;
   } // getDocLink()
 
   /** Return the ID of the link after the specified one, or -1 if no more */
   public final int nextLink(int linkId) {
-    if (linkId < docs.length)
-      return -1;
-    else if (links[linkId] < 0)
+    if (linkGroups.get(linkId) < 0)
       return -1;
     else
       return linkId + 1;
@@ -398,8 +482,8 @@ public class StaticGroupData extends GroupData
 
   /** Returns the group number of the specified link */
   public final int linkGroup(int linkId) {
-    int n = links[linkId];
-    return (n < 0) ? -n : n;
+    int n = linkGroups.get(linkId);
+    return (n < 0) ? ~n : n;
   } // getLinkGroup()
 
   /** Get the name of the grouping field */
@@ -409,36 +493,36 @@ public class StaticGroupData extends GroupData
 
   /** Get the total number of groups */
   public final int nGroups() {
-    return groups.length;
+    return groups.size();
   }
 
   /** Get the name of a group given its number */
   public final String name(int groupId) {
-    return groups[groupId];
+    return groups.get(groupId);
   }
 
   /** Get the parent of the given group, or -1 if group is the root */
   public final int parent(int groupId) {
-    return groupParents[groupId];
+    return groupParents.get(groupId);
   }
 
   /** Get the number of children a group has */
   public final int nChildren(int groupId) {
     int nChildren = 0;
-    for (int kid = groupChildren[groupId]; kid >= 0;
-         kid = groupSiblings[kid])
+    for (int kid = groupChildren.get(groupId); kid >= 0;
+         kid = groupSiblings.get(kid))
       nChildren++;
     return nChildren;
   }
 
   /** Get the first child of the given group, or -1 if it has no children */
   public final int child(int groupId) {
-    return groupChildren[groupId];
+    return groupChildren.get(groupId);
   }
 
   /** Get the sibling of the given group, or -1 if no more */
   public final int sibling(int groupId) {
-    return groupSiblings[groupId];
+    return groupSiblings.get(groupId);
   }
 
   /** Compare two groups for sort order */
@@ -447,12 +531,74 @@ public class StaticGroupData extends GroupData
   }
 
   /** Locate a group by name and return its index, or -1 if not found */
-  public final int findGroup(String name) 
+  public final int findGroup(String name) {
+    return groups.indexOf(name);
+  }
+
+  /**
+   * The terms of a field in one segment of an index, and the documents
+   * containing each term.
+   */
+  private static class SegmentTerms 
   {
-    for (int i = 0; i < groups.length; i++) {
-      if (name.equals(groups[i]))
-        return i;
+    /** Term texts, in order */
+    String[] terms;
+
+    /** Where each term's documents start in {@link #docs}, plus the end */
+    IntBuffer termStarts;
+
+    /** Documents containing each term, one term after another */
+    IntBuffer docs;
+
+    /** True if the segment had no terms at all at or after the field */
+    boolean noTerms;
+
+    /** Read the terms and documents for a field */
+    SegmentTerms(IndexReader reader, String field)
+      throws IOException 
+    {
+      TermDocs termDocs = reader.termDocs();
+      TermEnum termEnum = reader.terms(new Term(field, ""));
+      Vector termVec = new Vector();
+      IntList startList = new IntList();
+      IntList docList = new IntList();
+      try 
+      {
+        noTerms = (termEnum.term() == null);
+        while (!noTerms) 
+        {
+          Term term = termEnum.term();
+          if (!term.field().equals(field))
+            break;
+
+          termVec.add(term.text());
+          startList.add(docList.size());
+          termDocs.seek(termEnum);
+          while (termDocs.next())
+            docList.add(termDocs.doc());
+
+          if (!termEnum.next())
+            break;
+        }
+      }
+      finally {
+        termDocs.close();
+        termEnum.close();
+      }
+
+      terms = (String[])termVec.toArray(new String[termVec.size()]);
+      startList.add(docList.size());
+      termStarts = toBuffer(startList);
+      docs = toBuffer(docList);
+    } // constructor
+
+    /** Copy a list of ints outside the Java heap */
+    private static IntBuffer toBuffer(IntList list) 
+    {
+      IntBuffer buf = allocInts(list.size(), 0);
+      for (int i = 0; i < list.size(); i++)
+        buf.put(i, list.get(i));
+      return buf;
     }
-    return -1;
-  }
+  } // class SegmentTerms
 }
@@ -63,8 +63,11 @@ public class HTMLToString
    *      If successful, a string containing the XML equivalent of the source
    *      HTML file. If an error occurred, this method returns <code>null</code>.
    *
+   *  @.notes
+   *      The shared Tidy object isn't thread-safe, so conversions are
+   *      serialized when the indexer runs with multiple threads.
    */
-  static public String convert(InputStream htmlInputStream) 
+  static synchronized public String convert(InputStream htmlInputStream) 
   {
     // Tell Tidy to supress warning and other output messsages.
     if (Trace.getOutputLevel() == Trace.debug) {
@@ -235,7 +235,7 @@ public class IndexDump
         IndexInfo idxInfo = cfgInfo.indexInfo;
         String idxPath = Path.resolveRelOrAbs(cfgInfo.xtfHomePath,
                                               idxInfo.indexPath);
-        XtfSearcher searcher = new XtfSearcher(idxPath, 30);
+        XtfSearcher searcher = new XtfSearcher(idxPath);
         IndexReader indexReader = searcher.indexReader();
         DocNumMap docNumMap = searcher.docNumMap();
 
@@ -245,8 +245,8 @@ public class IndexDump
         else
           dumpFields(indexReader, fieldNameArray, xmlMode, allFieldsMode, out);
 
-        // Close the index reader, and make sure all output is displayed.
-        indexReader.close();
+        // Close the index, and make sure all output is displayed.
+        searcher.release();
         out.flush();
       } // for(;;)
     } // try
@@ -154,6 +154,15 @@ public class IndexInfo
    */
   public String validationPath;
 
+  /** Path to a list of structures (facet, sort, and boost data) and
+   *  queries to pre-warm in the servlets before rotating in a new or
+   *  changed index, so that the first users after an update don't have
+   *  to wait for them to be built.
+   *
+   *  The file should be XML in the defined format.
+   */
+  public String warmingPath;
+
   /** Whether to create a spellcheck dictionary for this index */
   public boolean createSpellcheckDict = false;
 
@@ -163,6 +163,20 @@ public class IndexerConfig
    */
   public boolean rotate;
   
+  /**
+   * Number of threads to use for prefiltering, parsing, and chunking
+   * source documents. With one thread (the default), everything is done
+   * on the main thread. Regardless of the number of threads, the chunks
+   * are always added to the index in the same order.
+   */
+  public int numThreads;
+  
+  /**
+   * Number of background threads to use for writing lazy tree files. With
+   * zero, lazy trees are written inline as each document is parsed.
+   */
+  public int numLazyThreads;
+  
   /** Index specific information for the current index being created or
    *  updated.
    */
@@ -207,6 +221,12 @@ public class IndexerConfig
     // Default to always rotating indexes for which it's enabled
     rotate = true;
     
+    // Default to indexing on a single thread
+    numThreads = 1;
+    
+    // Default to writing lazy trees inline, as they're indexed
+    numLazyThreads = 0;
+    
     // Set the default trace level to display errors.
     traceLevel = Trace.info;
 
@@ -253,6 +273,15 @@ public class IndexerConfig
    *                    The name of an index defined in the configuration file
    *                    to create or update. <br><br>
    *
+   *                   -threads {n}  (optional)<br>
+   *                    Number of threads to use for prefiltering, parsing,
+   *                    and chunking documents. Defaults to 1. <br><br>
+   *
+   *                   -lazythreads {n}  (optional)<br>
+   *                    Number of background threads to use for writing
+   *                    lazy tree files; zero writes them inline. Defaults
+   *                    to 0. <br><br>
+   *
    *                   -trace [errors | warnings | info | debug]  (optional)<br>
    *                    Identifies the level of output the indexer should
    *                    echo back to the user. If not specified, info level
@@ -442,6 +471,48 @@ public class IndexerConfig
       else if (args[i].equalsIgnoreCase("-norotate"))
         rotate = false;
       
+      // If the user asked for multiple indexing threads, record how many.
+      else if (args[i].equalsIgnoreCase("-threads")) 
+      {
+        // And there aren't any more arguments, tell the caller
+        // that we failed to get enough info to continue.
+        //
+        if (++i >= args.length)
+          return -1;
+
+        try {
+          numThreads = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          numThreads = 0;
+        }
+        if (numThreads < 1) {
+          Trace.error("Invalid thread count: " + args[i]);
+          return -1;
+        }
+      }
+      
+      // If the user specified the number of lazy tree threads, record it.
+      else if (args[i].equalsIgnoreCase("-lazythreads")) 
+      {
+        // And there aren't any more arguments, tell the caller
+        // that we failed to get enough info to continue.
+        //
+        if (++i >= args.length)
+          return -1;
+
+        try {
+          numLazyThreads = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          numLazyThreads = -1;
+        }
+        if (numLazyThreads < 0) {
+          Trace.error("Invalid lazy thread count: " + args[i]);
+          return -1;
+        }
+      }
+      
       // If we found the -trace argument...
       else if (args[i].equalsIgnoreCase("-trace")) 
       {
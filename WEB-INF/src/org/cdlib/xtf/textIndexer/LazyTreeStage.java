@@ -0,0 +1,533 @@
+package org.cdlib.xtf.textIndexer;
+
+/**
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.PreparedStylesheet;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceivingContentHandler;
+import net.sf.saxon.instruct.Executable;
+import net.sf.saxon.om.NamePool;
+
+import org.cdlib.xtf.lazyTree.LazyDocument;
+import org.cdlib.xtf.lazyTree.LazyKeyManager;
+import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
+import org.cdlib.xtf.util.StructuredStore;
+import org.cdlib.xtf.util.Trace;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Builds lazy tree files on background threads, so that slow writes to the
+ * lazy directory don't hold up parsing and chunking. For each record, the
+ * indexer gets a {@link Job} that records the SAX events in compact blocks.
+ * The blocks pass through a small bounded queue to a lazy tree thread,
+ * which replays them into a {@link LazyTreeBuilder}. If the lazy threads
+ * fall behind, the indexer waits for room in the queue.
+ */
+class LazyTreeStage 
+{
+  /** Number of characters each block can hold (larger text nodes get a
+   *  block of their own.)
+   */
+  private static final int BLOCK_CHARS = 16 * 1024;
+
+  /** Number of events each block can hold */
+  private static final int BLOCK_EVENTS = 1024;
+
+  /** Max # of filled blocks a job can have waiting for its lazy thread */
+  private static final int MAX_QUEUED_BLOCKS = 8;
+
+  /** Threads that write the lazy files */
+  private ExecutorService pool;
+
+  /** First error encountered by any job, rethrown to the indexer */
+  private volatile Throwable error;
+
+  /** Number of lazy trees completed */
+  private AtomicInteger nTrees = new AtomicInteger();
+
+  /** Total time lazy threads spent building trees */
+  private AtomicLong busyNanos = new AtomicLong();
+
+  /** Total time indexing threads spent waiting on a full queue */
+  private AtomicLong stallNanos = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param nThreads    Number of threads to write lazy files on.
+   */
+  LazyTreeStage(int nThreads) {
+    pool = Executors.newFixedThreadPool(nThreads);
+  }
+
+  /**
+   * Start building a lazy tree. The caller should send all the SAX events
+   * for the document to the returned job, then call
+   * {@link Job#end(boolean)}.
+   *
+   * @param store         Empty store to build the tree in. The job closes it
+   *                      when done.
+   * @param displayStyle  Stylesheet whose xsl:key definitions should be
+   *                      pre-cached in the tree, or null for none.
+   * @param prettyKey     Name of the document, for error messages.
+   */
+  Job start(StructuredStore store, Templates displayStyle, String prettyKey)
+    throws IOException 
+  {
+    checkError();
+    Job job = new Job(store, displayStyle, prettyKey);
+    pool.execute(job);
+    return job;
+  } // start()
+
+  /**
+   * Wait for all the lazy trees to be written, and shut down the threads.
+   * If any job failed, the first error is thrown.
+   */
+  void finish()
+    throws IOException 
+  {
+    pool.shutdown();
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+        ;
+    }
+    catch (InterruptedException e) {
+      pool.shutdownNow();
+    }
+    checkError();
+  } // finish()
+
+  /**
+   * Stop all the lazy threads without waiting for them to finish. Has no
+   * effect if {@link #finish()} has already completed.
+   */
+  void abort() {
+    pool.shutdownNow();
+  } // abort()
+
+  /** Throw the first error encountered by a job, if any. */
+  void checkError()
+    throws IOException 
+  {
+    Throwable t = error;
+    if (t == null)
+      return;
+    if (t instanceof IOException)
+      throw (IOException)t;
+    if (t instanceof RuntimeException)
+      throw (RuntimeException)t;
+    if (t instanceof Error)
+      throw (Error)t;
+    throw new RuntimeException(t);
+  } // checkError()
+
+  /** Number of lazy trees completed so far */
+  int nTrees() {
+    return nTrees.get();
+  }
+
+  /** Total time (in nanoseconds) spent building lazy trees */
+  long busyNanos() {
+    return busyNanos.get();
+  }
+
+  /** Total time (in nanoseconds) the indexer spent waiting for lazy threads */
+  long stallNanos() {
+    return stallNanos.get();
+  }
+
+  /**
+   * Builds the index for each xsl:key declaration in a stylesheet, and stores
+   * them in a finished (but still open) lazy tree.
+   *
+   * @param stylesheet    Stylesheet containing the xsl:key declarations
+   * @param builder       Builder that wrote the tree
+   * @param store         Store the tree was written to
+   * @return              The number of keys stored
+   */
+  static int precacheKeys(Templates stylesheet, LazyTreeBuilder builder,
+                          StructuredStore store)
+    throws Exception 
+  {
+    // Register a lazy key manager
+    PreparedStylesheet pss = (PreparedStylesheet)stylesheet;
+    Executable exec = pss.getExecutable();
+    synchronized (exec) {
+      if (!(exec.getKeyManager() instanceof LazyKeyManager))
+        exec.setKeyManager(new LazyKeyManager(pss.getConfiguration(), exec.getKeyManager()));
+    }
+
+    Transformer trans = pss.newTransformer();
+    LazyKeyManager keyMgr = (LazyKeyManager)exec.getKeyManager();
+    LazyDocument doc = (LazyDocument)builder.load(store);
+
+    // For every xsl:key registered in the stylesheet, build the lazy key
+    // hash.
+    //
+    try {
+      return keyMgr.createAllKeys(doc, ((Controller)trans).newXPathContext());
+    }
+    finally {
+      // Make sure to close it when we're done.
+      doc.close();
+    }
+  } // precacheKeys()
+
+  /**
+   * A batch of recorded SAX events. Character data is packed into a single
+   * array, and the other arguments into an object array.
+   */
+  private static class Block 
+  {
+    static final byte START_DOCUMENT = 1;
+    static final byte END_DOCUMENT = 2;
+    static final byte START_ELEMENT = 3;
+    static final byte END_ELEMENT = 4;
+    static final byte CHARACTERS = 5;
+    static final byte START_PREFIX = 6;
+    static final byte END_PREFIX = 7;
+
+    byte[] ops = new byte[BLOCK_EVENTS];
+    int[] lengths = new int[BLOCK_EVENTS];
+    Object[] args = new Object[BLOCK_EVENTS * 4];
+    char[] chars;
+    int nOps;
+    int nArgs;
+    int nChars;
+
+    /** Final block of a document; if false, the tree is discarded */
+    boolean last;
+    boolean success;
+
+    Block(int charSize) {
+      chars = new char[charSize];
+    }
+
+    /** Send all the events in this block to a handler */
+    void replay(ContentHandler handler)
+      throws SAXException 
+    {
+      int argPos = 0;
+      int charPos = 0;
+      for (int i = 0; i < nOps; i++) 
+      {
+        switch (ops[i]) 
+        {
+          case START_DOCUMENT:
+            handler.startDocument();
+            break;
+          case END_DOCUMENT:
+            handler.endDocument();
+            break;
+          case START_ELEMENT:
+            handler.startElement((String)args[argPos], (String)args[argPos+1],
+                                 (String)args[argPos+2], (Attributes)args[argPos+3]);
+            argPos += 4;
+            break;
+          case END_ELEMENT:
+            handler.endElement((String)args[argPos], (String)args[argPos+1],
+                               (String)args[argPos+2]);
+            argPos += 3;
+            break;
+          case CHARACTERS:
+            handler.characters(chars, charPos, lengths[i]);
+            charPos += lengths[i];
+            break;
+          case START_PREFIX:
+            handler.startPrefixMapping((String)args[argPos], (String)args[argPos+1]);
+            argPos += 2;
+            break;
+          case END_PREFIX:
+            handler.endPrefixMapping((String)args[argPos]);
+            argPos += 1;
+            break;
+          default:
+            assert false : "unknown event";
+        }
+      }
+    } // replay()
+  } // class Block
+
+  /**
+   * Records the SAX events for one lazy tree on the indexing thread, and
+   * builds the tree from them on a lazy thread.
+   */
+  class Job implements ContentHandler, Runnable 
+  {
+    private StructuredStore store;
+    private Templates displayStyle;
+    private String prettyKey;
+    private BlockingQueue<Block> queue = 
+      new ArrayBlockingQueue<Block>(MAX_QUEUED_BLOCKS);
+    private Block cur = new Block(BLOCK_CHARS);
+
+    private Job(StructuredStore store, Templates displayStyle, String prettyKey) 
+    {
+      this.store = store;
+      this.displayStyle = displayStyle;
+      this.prettyKey = prettyKey;
+    }
+
+    /**
+     * Finish the document. If successful, the lazy tree will be completed;
+     * otherwise it will be deleted.
+     */
+    void end(boolean success)
+    {
+      cur.last = true;
+      cur.success = success;
+      send();
+      cur = null;
+    } // end()
+
+    /** Make room for an event with the given number of args and chars */
+    private void reserve(int nArgs, int nChars)
+    {
+      if (cur.nOps == BLOCK_EVENTS ||
+          cur.nArgs + nArgs > cur.args.length ||
+          cur.nChars + nChars > cur.chars.length) 
+      {
+        send();
+        if (nChars > BLOCK_CHARS)
+          cur = new Block(nChars);
+      }
+    } // reserve()
+
+    /** Pass the current block to the lazy thread, and start another. */
+    private void send()
+    {
+      long start = System.nanoTime();
+      try {
+        queue.put(cur);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      stallNanos.addAndGet(System.nanoTime() - start);
+      cur = new Block(BLOCK_CHARS);
+    } // send()
+
+    private void addOp(byte op) {
+      cur.ops[cur.nOps++] = op;
+    }
+
+    private void addArg(Object arg) {
+      cur.args[cur.nArgs++] = arg;
+    }
+
+    public void startDocument() {
+      reserve(0, 0);
+      addOp(Block.START_DOCUMENT);
+    }
+
+    public void endDocument() {
+      reserve(0, 0);
+      addOp(Block.END_DOCUMENT);
+    }
+
+    public void startElement(String uri, String localName, String qName,
+                             Attributes atts) 
+    {
+      reserve(4, 0);
+      addOp(Block.START_ELEMENT);
+      addArg(uri);
+      addArg(localName);
+      addArg(qName);
+      
+      // The parser re-uses its attribute list, so we need a copy.
+      addArg(new AttributesImpl(atts));
+    }
+
+    public void endElement(String uri, String localName, String qName) 
+    {
+      reserve(3, 0);
+      addOp(Block.END_ELEMENT);
+      addArg(uri);
+      addArg(localName);
+      addArg(qName);
+    }
+
+    public void characters(char[] ch, int start, int length) 
+    {
+      reserve(0, length);
+      cur.lengths[cur.nOps] = length;
+      addOp(Block.CHARACTERS);
+      System.arraycopy(ch, start, cur.chars, cur.nChars, length);
+      cur.nChars += length;
+    }
+
+    public void startPrefixMapping(String prefix, String uri) 
+    {
+      reserve(2, 0);
+      addOp(Block.START_PREFIX);
+      addArg(prefix);
+      addArg(uri);
+    }
+
+    public void endPrefixMapping(String prefix) 
+    {
+      reserve(1, 0);
+      addOp(Block.END_PREFIX);
+      addArg(prefix);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+    }
+
+    public void processingInstruction(String target, String data) {
+    }
+
+    public void setDocumentLocator(Locator locator) {
+    }
+
+    public void skippedEntity(String name) {
+    }
+
+    /** Builds the tree from the recorded events (runs on a lazy thread) */
+    public void run() 
+    {
+      LazyTreeBuilder builder = null;
+      Receiver receiver = null;
+      ReceivingContentHandler handler = null;
+      boolean failed = false;
+      while (true)
+      {
+        Block block;
+        try {
+          block = queue.take();
+        }
+        catch (InterruptedException e) {
+          return; // Shutting down after an error.
+        }
+        
+        long start = System.nanoTime();
+        try 
+        {
+          // Get the builder ready on the first block.
+          if (builder == null && !failed)
+          {
+            Configuration config = new Configuration();
+            config.setNamePool(NamePool.getDefaultNamePool());
+            builder = new LazyTreeBuilder(config);
+            receiver = builder.begin(store);
+            builder.setNamePool(config.getNamePool());
+
+            handler = new ReceivingContentHandler();
+            handler.setReceiver(receiver);
+            handler.setPipelineConfiguration(receiver.getPipelineConfiguration());
+          }
+          
+          // If something went wrong earlier, just keep draining the queue
+          // so the indexer doesn't get stuck.
+          //
+          if (!failed)
+          {
+            block.replay(handler);
+            if (block.last) {
+              if (block.success)
+                complete(builder, receiver);
+              else
+                builder.abort(receiver);
+            }
+          }
+        }
+        catch (Throwable t) 
+        {
+          failed = true;
+          if (error == null)
+            error = t;
+          Trace.error("Error building lazy tree for [" + prettyKey + "]: " + t);
+          if (builder != null)
+            builder.abort(receiver);
+          else {
+            try {
+              store.delete();
+            }
+            catch (IOException e) {
+              // Ignore; the first error is more important.
+            }
+          }
+        }
+        busyNanos.addAndGet(System.nanoTime() - start);
+        
+        if (block.last)
+          return;
+      } // while
+    } // run()
+
+    /** Finishes a successfully built tree, and closes the store. */
+    private void complete(LazyTreeBuilder builder, Receiver receiver)
+      throws Exception 
+    {
+      builder.finish(receiver, false); // don't close Store yet
+
+      // If a stylesheet has been specified that contains xsl:key defs
+      // to apply to the lazy tree, do so now.
+      //
+      if (displayStyle != null) 
+      {
+        try {
+          int nKeysCreated = precacheKeys(displayStyle, builder, store);
+          Trace.info("(" + nKeysCreated + " stored " +
+                     ((nKeysCreated == 1) ? "key" : "keys") + " for [" + 
+                     prettyKey + "])");
+        }
+        catch (Throwable t) {
+          throw new IOException(
+            "Error pre-caching XSL keys from " + "display stylesheet \"" +
+            displayStyle + "\": " + t);
+        }
+      }
+
+      // Now that the keys are built, it's safe to close the lazy store.
+      store.close();
+      nTrees.incrementAndGet();
+    } // complete()
+  } // class Job
+} // class LazyTreeStage
@@ -63,8 +63,11 @@ public class PDFToString
    *      If successful, a string containing the XML equivalent of the source
    *      PDF file. If an error occurred, this method returns <code>null</code>.
    *
+   *  @.notes
+   *      The shared text stripper isn't thread-safe, so conversions are
+   *      serialized when the indexer runs with multiple threads.
    */
-  static String convert(InputStream PDFInputStream)
+  static synchronized String convert(InputStream PDFInputStream)
     throws IOException 
   {
     // Make a stripper if we haven't already.
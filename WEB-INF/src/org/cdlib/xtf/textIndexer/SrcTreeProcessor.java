@@ -145,6 +145,8 @@ public class SrcTreeProcessor
 
     // Open the Lucene index specified by the config info.
     if (!cfgInfo.prefilterOnly) {
+      textProcessor.setNumThreads(cfgInfo.numThreads);
+      textProcessor.setNumLazyThreads(cfgInfo.numLazyThreads);
       textProcessor.open(cfgInfo.xtfHomePath, cfgInfo.indexInfo, cfgInfo.clean,
           cfgInfo.force);
     }
@@ -85,6 +85,20 @@ import org.cdlib.xtf.util.Trace;
  * time to complete depending on the index size. If this argument is not
  * specified, the default behavior is to optimize. <br><br>
  *
+ * The <code>-threads</code> argument is an optional argument that specifies
+ * how many threads should prefilter, parse, and chunk source documents. The
+ * resulting chunks are still added to the index by a single thread, in the
+ * same order as a single-threaded run, so chunk numbering and document order
+ * are unaffected. If this argument is not specified, a single thread is used.
+ * <br><br>
+ *
+ * The <code>-lazythreads</code> argument is an optional argument that
+ * specifies how many background threads should write the lazy tree files,
+ * so that slow disk writes don't hold up indexing. If this argument is not
+ * specified (or is zero), they are written inline as each document is
+ * indexed.
+ * <br><br>
+ *
  * The <code>-trace</code> argument is an optional argument that sets the level
  * of output displayed by the text indexer. The output levels are defined as
  * follows:
@@ -277,6 +291,8 @@ public class TextIndexer
           Trace.error("-updatespell|-noupdatespell           Default: -updatespell");
           Trace.error("-rotate|-norotate                     Default: -rotate");
           Trace.error("-validate|-novalidate                 Default: -validate");
+          Trace.error("-threads <n>                          Default: -threads 1");
+          Trace.error("-lazythreads <n>                      Default: -lazythreads 0");
           Trace.tab();
           Trace.error("\n");
           Trace.untab();
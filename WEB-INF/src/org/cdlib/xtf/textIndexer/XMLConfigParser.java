@@ -542,6 +542,16 @@ public class XMLConfigParser extends DefaultHandler
 
       return;
     }
+
+    // If the current tag points to warming specs...
+    if (qName.equalsIgnoreCase("warming")) 
+    {
+      // Save it away
+      configInfo.indexInfo.warmingPath = Path.normalizePath(
+        atts.getValue("path"));
+
+      return;
+    }
     
     // If we don't recognize it, just record it as a pass-through to the stylesheets.
     configInfo.indexInfo.passThroughAttribs.put(qName, atts.getValue("value"));
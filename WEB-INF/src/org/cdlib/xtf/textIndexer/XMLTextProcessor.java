@@ -43,23 +43,26 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.sax.SAXResult;
 
 import net.sf.saxon.Configuration;
-import net.sf.saxon.Controller;
-import net.sf.saxon.PreparedStylesheet;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.event.ReceivingContentHandler;
-import net.sf.saxon.instruct.Executable;
 import net.sf.saxon.om.NamePool;
 
 import org.apache.lucene.document.DateTools;
@@ -79,11 +82,10 @@ import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.analysis.*;
 import org.apache.lucene.bigram.BigramStopFilter;
 import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
-import org.cdlib.xtf.lazyTree.LazyDocument;
-import org.cdlib.xtf.lazyTree.LazyKeyManager;
 import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
 import org.cdlib.xtf.textEngine.IndexUtil;
 import org.cdlib.xtf.textEngine.Constants;
@@ -352,8 +354,29 @@ public class XMLTextProcessor extends DefaultHandler
    *  that translates SAX events to Saxon's internal Receiver API.
    *  {@link XMLTextProcessor#lazyReceiver lazyReceiver} and
    *  {@link XMLTextProcessor#lazyBuilder lazyBuilder} members for more details.
+   *  When lazy trees are built in the background, this is the
+   *  {@link XMLTextProcessor#lazyJob lazyJob} instead.
    */
-  private ReceivingContentHandler lazyHandler;
+  private ContentHandler lazyHandler;
+
+  /** Number of background threads for building lazy trees. Zero means they
+   *  are built inline. See {@link #setNumLazyThreads(int)}.
+   */
+  private int numLazyThreads = 0;
+
+  /** Background stage that builds lazy trees, if enabled and texts are
+   *  being processed.
+   */
+  private LazyTreeStage lazyStage;
+
+  /** Recorder for the lazy tree being built in the background (if any) */
+  private LazyTreeStage.Job lazyJob;
+
+  /** Time spent (across all threads) prefiltering, parsing and chunking */
+  private AtomicLong parseNanos = new AtomicLong();
+
+  /** Time spent adding chunks to the index (including tokenizing them) */
+  private long indexNanos;
 
   /** Character buffer for accumulating partial text blocks (possibly) passed
    *  in to the {@link XMLTextProcessor#characters(char[],int,int) characters()}
@@ -403,6 +426,28 @@ public class XMLTextProcessor extends DefaultHandler
   /** Maximum number of document deletions to do in a single batch */
   private static final int MAX_DELETION_BATCH = 50;
 
+  /** Number of threads to use for prefiltering, parsing, and chunking
+   *  source documents. If one, everything happens on the calling thread.
+   *  See {@link #setNumThreads(int)}.
+   */
+  private int numThreads = 1;
+
+  /** Maximum number of finished records a worker thread may hold before
+   *  the index writing thread gets to them.
+   */
+  private static final int MAX_PENDING_RECORDS = 10;
+
+  /** If this processor is a worker in a multi-threaded run, this receives
+   *  the chunks of the record being processed (instead of them going
+   *  directly into the index.)
+   */
+  private RecordResult curResult;
+
+  /** If this processor is a worker, the analyzer that records which fields
+   *  are facets and which are possibly misspelled.
+   */
+  private XTFTextAnalyzer workerAnalyzer;
+
   /** A buffer containing the "blurbified" text to be stored in the index. For
    *  more about how text is "blurbified", see the
    * {@link XMLTextProcessor#blurbify(StringBuffer,boolean) blurbify()}
@@ -725,12 +770,13 @@ public class XMLTextProcessor extends DefaultHandler
       doc.add(new Field("chunkSize", indexInfo.getChunkSizeStr(), Field.Store.YES, Field.Index.NO));
       doc.add(new Field("chunkOvlp", indexInfo.getChunkOvlpStr(), Field.Store.YES, Field.Index.NO));
 
-      // If plural map, accent map, and/or validation files were specified, copy them to the
-      // index directory.
+      // If plural map, accent map, validation, and/or warming files were specified, copy
+      // them to the index directory.
       //
       copyDependentFile(indexInfo.pluralMapPath,  "pluralMap", doc);
       copyDependentFile(indexInfo.accentMapPath,  "accentMap", doc);
       copyDependentFile(indexInfo.validationPath, "validation", doc);
+      copyDependentFile(indexInfo.warmingPath,    "warming", doc);
 
       // Copy the stopwords to the index
       String stopWords = indexInfo.stopWords;
@@ -845,6 +891,35 @@ public class XMLTextProcessor extends DefaultHandler
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Set the number of threads to use when processing queued texts. With
+   *  more than one, sources are prefiltered, parsed, and chunked in parallel,
+   *  and a single thread adds the finished chunks to the index in queue
+   *  order. This keeps the chunk numbering and document order identical to
+   *  a single-threaded run. <br><br>
+   *
+   *  @param n  Number of threads to use (values below one are treated as
+   *            one.)
+   */
+  public void setNumThreads(int n) {
+    numThreads = Math.max(1, n);
+  } // setNumThreads()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Set the number of background threads used to build lazy tree files
+   *  when processing queued texts. With zero, lazy trees are built inline
+   *  as each document is parsed. Otherwise the parsing thread records the
+   *  SAX events and the lazy files are written in the background, so slow
+   *  disk writes don't hold up indexing. <br><br>
+   *
+   *  @param n  Number of threads to use (zero for inline.)
+   */
+  public void setNumLazyThreads(int n) {
+    numLazyThreads = Math.max(0, n);
+  } // setNumLazyThreads()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Remove a single document from the index.<br><br>
    *
    *  @param srcFile    The original XML source file, used to calculate the
@@ -918,10 +993,12 @@ public class XMLTextProcessor extends DefaultHandler
   ////////////////////////////////////////////////////////////////////////////
 
   /** If the first entry in the file queue requires deletion, we start up
-   *  a batch delete up to {@link #MAX_DELETION_BATCH} deletions. We batch
-   *  these up because in Lucene, you can only delete with an IndexReader.
-   *  It costs time to close our IndexWriter, open an IndexReader for
-   *  the deletions, and then reopen the IndexWriter.
+   *  a batch delete up to {@link #MAX_DELETION_BATCH} deletions. The
+   *  deletions are handed to the open IndexWriter, which buffers them and
+   *  applies them only to chunks added before this point. So the old
+   *  versions go away while the new ones (added afterward in the same writer
+   *  session) stay, and we never have to close the writer and open an
+   *  IndexReader just to delete.
    *
    *  @throws
    *    IOException   Any I/O exceptions encountered when reading the source
@@ -935,11 +1012,8 @@ public class XMLTextProcessor extends DefaultHandler
         !((FileQueueEntry)fileQueue.getFirst()).deleteFirst)
       return;
 
-    // Okay, we need an index reader for the deletions. This has the effect
-    // of closing the index writer, but it will be reopened after the 
-    // deletions.
-    //
-    openIdxForReading();
+    // Deletions go through the writer, so make sure it's open.
+    openIdxForWriting();
 
     // Let's do it.
     int batchSize = 0;
@@ -954,7 +1028,7 @@ public class XMLTextProcessor extends DefaultHandler
         continue;
 
       // Okay, delete chunks from the old document, and clear the flag.
-      indexReader.deleteDocuments(new Term("key", ent.idxSrc.key()));
+      indexWriter.deleteDocuments(new Term("key", ent.idxSrc.key()));
       ent.deleteFirst = false;
     }
   } // public batchDelete()
@@ -1003,6 +1077,82 @@ public class XMLTextProcessor extends DefaultHandler
    */
   public void processQueuedTexts()
     throws IOException 
+  {
+    // If there's nothing to do, don't bother starting anything up.
+    if (fileQueue.isEmpty())
+      return;
+    
+    parseNanos.set(0);
+    indexNanos = 0;
+    
+    // Start the background lazy tree stage if requested.
+    LazyTreeStage stage = null;
+    if (numLazyThreads > 0)
+      stage = lazyStage = new LazyTreeStage(numLazyThreads);
+    
+    try
+    {
+      // If multiple threads were requested, use the parallel pipeline.
+      if (numThreads > 1)
+        processQueuedTextsThreaded();
+      else
+        processQueuedTextsSerial();
+      
+      // Wait for the last lazy trees to be written.
+      if (lazyStage != null)
+        lazyStage.finish();
+    }
+    finally 
+    {
+      if (lazyStage != null) {
+        lazyStage.abort(); // only has an effect if we didn't finish normally
+        lazyStage = null;
+      }
+    }
+  
+    // Let the user know where the time went.
+    reportStageTimes(stage);
+  } // processQueuedTexts()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Prints a summary of the time spent in each stage of processing. Since
+   *  the stages can run on several threads at once, the times may add up
+   *  to more than the elapsed time.
+   *
+   *  @param stage  The lazy tree stage that was used, or null if none.
+   */
+  private void reportStageTimes(LazyTreeStage stage)
+  {
+    StringBuffer buf = new StringBuffer();
+    buf.append("Stage times: prefilter/parse/chunk " + 
+               formatSecs(parseNanos.get()) + ", index " + formatSecs(indexNanos));
+    if (stage != null) {
+      buf.append(", lazy trees " + formatSecs(stage.busyNanos()) + 
+                 " (" + stage.nTrees() + " built; waited " + 
+                 formatSecs(stage.stallNanos()) + ")");
+    }
+    Trace.info("");
+    Trace.info(buf.toString());
+  } // reportStageTimes()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Formats a time in nanoseconds as seconds */
+  private static String formatSecs(long nanos) {
+    return String.format("%.1f sec", nanos / 1e9);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Single-threaded version of {@link #processQueuedTexts()}.
+   *
+   *  @throws
+   *    IOException   Any I/O exceptions encountered when reading the source
+   *                  text file or writing to the Lucene index. <br><br>
+   */
+  private void processQueuedTextsSerial()
+    throws IOException 
   {
     // Initialize the string buffers for accumulating and compacting the 
     // text to index.
@@ -1090,7 +1240,270 @@ public class XMLTextProcessor extends DefaultHandler
 
       processedSize += idxFile.totalSize();
     }
-  } // processQueuedTexts()
+  } // processQueuedTextsSerial()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Multi-threaded version of {@link #processQueuedTexts()}. <br><br>
+   *
+   *  Each queued source is handed to a pool of worker threads, each with its
+   *  own private <code>XMLTextProcessor</code> that does the prefiltering,
+   *  parsing, lazy tree building, and chunking. The resulting Lucene
+   *  documents are passed back, and this thread adds them to the index in
+   *  the original queue order, so that chunk numbering and the position
+   *  of each <code>docInfo</code> chunk are the same as a single-threaded
+   *  run. Tokenizing happens as each document is added, and so also stays
+   *  on this thread; that keeps the spelling dictionary deterministic too.
+   *
+   *  @throws
+   *    IOException   Any I/O exceptions encountered when reading the source
+   *                  text file or writing to the Lucene index. <br><br>
+   */
+  private void processQueuedTextsThreaded()
+    throws IOException 
+  {
+    // Calculate the total size of files in the queue
+    long totalSize = 0;
+    for (Iterator iter = fileQueue.iterator(); iter.hasNext();) {
+      FileQueueEntry ent = (FileQueueEntry)iter.next();
+      totalSize += ent.idxSrc.totalSize();
+    }
+    if (totalSize < 1)
+      totalSize = 1; // avoid divide-by-zero problems
+    long processedSize = 0;
+
+    final int recordBatchSize = 100;
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    LinkedList<SourceTask> inFlight = new LinkedList<SourceTask>();
+    try
+    {
+      while (true)
+      {
+        // Start sources until every worker has one. We never start more 
+        // sources than there are threads; otherwise the source we're waiting
+        // on could end up stuck behind others whose output can't yet be
+        // accepted.
+        //
+        while (inFlight.size() < numThreads && !fileQueue.isEmpty())
+        {
+          // Old versions must be deleted before new chunks get written.
+          // Workers never touch the index, so do it before starting them.
+          //
+          batchDelete();
+          
+          FileQueueEntry ent = (FileQueueEntry)fileQueue.removeFirst();
+          assert !ent.deleteFirst; // Should have been processed by batchDelete()
+          
+          SourceTask task = new SourceTask(ent.idxSrc);
+          inFlight.add(task);
+          pool.execute(task);
+        }
+        
+        // If nothing is left, we're done.
+        if (inFlight.isEmpty())
+          break;
+
+        // Open the index writer (which might have been closed by a batch
+        // deletion.)
+        //
+        openIdxForWriting();
+
+        // Add the records of the oldest source, in order.
+        SourceTask task = inFlight.removeFirst();
+        IndexSource idxFile = task.idxSrc;
+        boolean printDone = false;
+        while (true)
+        {
+          RecordResult result;
+          try {
+            result = task.results.take();
+          }
+          catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while indexing");
+          }
+          if (result == RecordResult.END)
+            break;
+          
+          long fileBytesDone = result.percentDone * idxFile.totalSize() / 100;
+          int percentDone = (int)((processedSize + fileBytesDone) * 100 / totalSize);
+          int recordNum = result.recordNum;
+
+          // Print out a nice message to keep the user informed of
+          // our progress.
+          //
+          String key = idxFile.key();
+          curPrettyKey = (key.indexOf(':') >= 0)
+                         ? key.substring(key.indexOf(':') + 1) : key;
+          if (recordNum > 0)
+            curPrettyKey += "/" + recordNum;
+
+          if (recordNum == 0 || ((recordNum % recordBatchSize) == 1)) 
+          {
+            if (printDone)
+              Trace.more(Trace.info, "Done.");
+
+            // Print a message for the next record.
+            String msg = "";
+            msg = ("(" + percentDone + "%) ");
+            while (msg.length() < 7)
+              msg += " ";
+            Trace.info(msg + "Indexing [" + curPrettyKey + "] ... ");
+            printDone = true;
+          }
+
+          // Now add this record's chunks.
+          addRecordResult(idxFile, result);
+        } // while
+
+        // If the worker hit a fatal error, pass it on.
+        if (task.error != null) 
+        {
+          if (task.error instanceof IOException)
+            throw (IOException)task.error;
+          if (task.error instanceof RuntimeException)
+            throw (RuntimeException)task.error;
+          if (task.error instanceof Error)
+            throw (Error)task.error;
+          throw new RuntimeException(task.error);
+        }
+
+        if (printDone)
+          Trace.more(Trace.info, "Done.");
+
+        processedSize += idxFile.totalSize();
+      } // while
+    }
+    finally 
+    {
+      // Stop any workers still running (only happens if we hit an error.)
+      pool.shutdownNow();
+    }
+  } // processQueuedTextsThreaded()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Adds the chunks built by a worker thread for a single record to the
+   *  index. Only called on the index writing thread.
+   *
+   *  @param idxFile  The source the record came from.
+   *  @param result   The worker's output for the record.
+   */
+  private void addRecordResult(IndexSource idxFile, RecordResult result)
+    throws IOException 
+  {
+    // If the worker couldn't parse the record, its chunks are discarded.
+    // Like the single-threaded path, also remove anything else already
+    // indexed under the same key.
+    //
+    if (result.failed)
+    {
+      Trace.more(Trace.info, "Skipping Due to Errors");
+      if (result.partial) 
+      {
+        try {
+          indexWriter.deleteDocuments(new Term("key", idxFile.key()));
+        }
+        catch (Throwable t) {
+          Trace.warning("Warning: Error deleting partially complete document's chunks: " + 
+                        t.getClass() + ": " + t.getMessage());
+        }
+      }
+      return;
+    }
+    
+    if (result.keyMsg != null)
+      Trace.more(Trace.info, result.keyMsg);
+    
+    // Record any newly discovered tokenized fields.
+    for (String field : result.tokenizedFields)
+      noteTokenizedField(field);
+
+    // And add the chunks, tokenizing each one with the field markings that
+    // were in effect when it was built.
+    //
+    long startTime = System.nanoTime();
+    for (PendingDoc pending : result.docs)
+    {
+      if (spellWriter != null)
+        pending.analyzer.setSpellWriter(spellWriter);
+      indexWriter.addDocument(pending.doc, pending.analyzer);
+    }
+    indexNanos += System.nanoTime() - startTime;
+  } // addRecordResult()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Makes a private processor for a worker thread, sharing this one's
+   *  configuration but with its own text buffers and analyzer.
+   */
+  private XMLTextProcessor newWorker()
+  {
+    XMLTextProcessor worker = new XMLTextProcessor();
+    worker.indexInfo = indexInfo;
+    worker.xtfHomePath = xtfHomePath;
+    worker.ignoreFileTimes = ignoreFileTimes;
+    worker.indexPath = indexPath;
+    worker.stopSet = stopSet;
+    worker.pluralMap = pluralMap;
+    worker.accentMap = accentMap;
+    worker.workerAnalyzer = new XTFTextAnalyzer(stopSet, pluralMap, accentMap);
+    worker.lazyStage = lazyStage;
+    worker.parseNanos = parseNanos;
+    
+    worker.blurbedText = new StringBuffer(bufStartSize);
+    worker.accumText = new StringBuffer(bufStartSize);
+    worker.compactedAccumText = new StringBuffer(bufStartSize);
+    return worker;
+  } // newWorker()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Returns the analyzer whose facet and misspelled field markings should
+   *  be updated for the document being built.
+   */
+  private XTFTextAnalyzer curAnalyzer() {
+    if (workerAnalyzer != null)
+      return workerAnalyzer;
+    return (XTFTextAnalyzer)indexWriter.getAnalyzer();
+  } // curAnalyzer()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Adds a finished Lucene document to the index or, for a worker, to the
+   *  output of the current record.
+   */
+  private void addToIndex(Document doc)
+    throws IOException 
+  {
+    if (curResult != null) {
+      curResult.docs.add(new PendingDoc(doc, new XTFTextAnalyzer(workerAnalyzer)));
+      return;
+    }
+    
+    long startTime = System.nanoTime();
+    indexWriter.addDocument(doc);
+    indexNanos += System.nanoTime() - startTime;
+  } // addToIndex()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Records that a field is tokenized, adding it to the on-disk list the
+   *  first time it's seen. For a worker, the field is just recorded in the
+   *  output of the current record.
+   */
+  private void noteTokenizedField(String field)
+  {
+    if (curResult != null) {
+      curResult.tokenizedFields.add(field);
+      return;
+    }
+    
+    if (!tokenizedFields.contains(field)) {
+      addToTokenizedFieldsFile(field);
+      tokenizedFields.add(field);
+    }
+  } // noteTokenizedField()
 
   ////////////////////////////////////////////////////////////////////////////
 
@@ -1124,10 +1537,23 @@ public class XMLTextProcessor extends DefaultHandler
     //
     curIdxSrc = file;
     curIdxRecord = record;
+    
+    long startTime = System.nanoTime();
+    long startIndexNanos = indexNanos;
 
-    // Build a lazy tree if requested.
+    // Build a lazy tree if requested. If there's a background stage for
+    // that, just record the SAX events for it.
+    //
     lazyStore = record.lazyStore();
-    if (lazyStore != null) 
+    lazyJob = null;
+    if (lazyStore != null && lazyStage != null) 
+    {
+      lazyJob = lazyStage.start(lazyStore, file.displayStyle(), curPrettyKey);
+      lazyHandler = lazyJob;
+      lazyBuilder = null;
+      lazyReceiver = null;
+    }
+    else if (lazyStore != null) 
     {
       // While we parse the source document, we're going to also build up 
       // a tree that will be written to the lazy file.
@@ -1139,9 +1565,10 @@ public class XMLTextProcessor extends DefaultHandler
 
       lazyBuilder.setNamePool(config.getNamePool());
 
-      lazyHandler = new ReceivingContentHandler();
-      lazyHandler.setReceiver(lazyReceiver);
-      lazyHandler.setPipelineConfiguration(lazyReceiver.getPipelineConfiguration());
+      ReceivingContentHandler handler = new ReceivingContentHandler();
+      handler.setReceiver(lazyReceiver);
+      handler.setPipelineConfiguration(lazyReceiver.getPipelineConfiguration());
+      lazyHandler = handler;
     }
     else {
       lazyBuilder = null;
@@ -1199,9 +1626,15 @@ public class XMLTextProcessor extends DefaultHandler
     int result = parseText();
 
     // Regardless of result, finish the lazy tree so we don't leave everything
-    // hanging open.
+    // hanging open. If it's being built in the background, the lazy stage
+    // takes care of it.
     //
-    if (lazyBuilder != null) 
+    if (lazyJob != null) {
+      lazyJob.end(result == 0);
+      lazyJob = null;
+      lazyHandler = null;
+    }
+    else if (lazyBuilder != null) 
     {
       lazyBuilder.finish(lazyReceiver, false); // don't close Store yet
 
@@ -1247,6 +1680,10 @@ public class XMLTextProcessor extends DefaultHandler
       lazyStore.close();
     } // if
 
+    // Account for the time spent, not counting any spent adding to the index.
+    parseNanos.addAndGet(System.nanoTime() - startTime - 
+                         (indexNanos - startIndexNanos));
+    
     // And we're done.
     return result;
   } // processText()
@@ -1327,8 +1764,11 @@ public class XMLTextProcessor extends DefaultHandler
         lazyHandler = null;
       }
       
-      // Tell the caller (and the user) that ther was an error..      
-      Trace.more(Trace.info, "Skipping Due to Errors");
+      // Tell the caller (and the user) that ther was an error. A worker
+      // leaves this to the index writing thread.
+      //
+      if (curResult == null)
+        Trace.more(Trace.info, "Skipping Due to Errors");
 
       String message = "*** XML Parser Exception: " + t.getClass() + "\n" +
                        "    With message: " + t.getMessage() + "\n" +
@@ -1340,13 +1780,15 @@ public class XMLTextProcessor extends DefaultHandler
 
       // We need to delete any chunks that did make it through for this document,
       // otherwise they would end up improperly tacked onto the beginning of the
-      // next document.
+      // next document. A worker hasn't written anything yet, so it just lets
+      // the index writing thread know.
       //
-      if (docWordCount > 0 || subDocsWritten.size() > 0)
+      if (curResult != null)
+        curResult.partial = (docWordCount > 0 || subDocsWritten.size() > 0);
+      else if (docWordCount > 0 || subDocsWritten.size() > 0)
       {
         try {
-          openIdxForReading();
-          indexReader.deleteDocuments(new Term("key", curIdxSrc.key()));
+          indexWriter.deleteDocuments(new Term("key", curIdxSrc.key()));
         }
         catch (Throwable t2) {
           Trace.warning("Warning: Error deleting partially complete document's chunks: " + 
@@ -1377,29 +1819,14 @@ public class XMLTextProcessor extends DefaultHandler
   private void precacheXSLKeys()
     throws Exception 
   {
-    // Get the stylesheet.
-    Templates stylesheet = curIdxSrc.displayStyle();
-
-    // Register a lazy key manager
-    PreparedStylesheet pss = (PreparedStylesheet)stylesheet;
-    Executable exec = pss.getExecutable();
-    if (!(exec.getKeyManager() instanceof LazyKeyManager))
-      exec.setKeyManager(new LazyKeyManager(pss.getConfiguration(), exec.getKeyManager()));
-
-    Transformer trans = pss.newTransformer();
-    LazyKeyManager keyMgr = (LazyKeyManager)exec.getKeyManager();
-    LazyDocument doc = (LazyDocument)lazyBuilder.load(lazyStore);
-
-    // For every xsl:key registered in the stylesheet, build the lazy key
-    // hash.
-    //
-    int nKeysCreated = keyMgr.createAllKeys(doc,
-                                            ((Controller)trans).newXPathContext());
-    Trace.more(Trace.info, "(" + nKeysCreated + " stored " +
-               ((nKeysCreated == 1) ? "key" : "keys") + ") ... ");
-
-    // Make sure to close it when we're done.
-    doc.close();
+    int nKeysCreated = LazyTreeStage.precacheKeys(curIdxSrc.displayStyle(), 
+                                                  lazyBuilder, lazyStore);
+    String msg = "(" + nKeysCreated + " stored " +
+                 ((nKeysCreated == 1) ? "key" : "keys") + ") ... ";
+    if (curResult != null)
+      curResult.keyMsg = msg;
+    else
+      Trace.more(Trace.info, msg);
   } // precacheXSLKeys()
 
   ////////////////////////////////////////////////////////////////////////////
@@ -2891,7 +3318,7 @@ public class XMLTextProcessor extends DefaultHandler
     textField.setBoost(secInfo.wordBoost);
 
     // Establish whether to add words to the spellcheck dictionary.
-    XTFTextAnalyzer analyzer = (XTFTextAnalyzer)indexWriter.getAnalyzer();
+    XTFTextAnalyzer analyzer = curAnalyzer();
     analyzer.clearMisspelledFields();
     if (secInfo.spellFlag == SectionInfo.noSpell)
       analyzer.addMisspelledField("text");
@@ -2904,7 +3331,7 @@ public class XMLTextProcessor extends DefaultHandler
     try 
     {
       // Add the resulting list of fields (document) to the index.
-      indexWriter.addDocument(doc);
+      addToIndex(doc);
 
       // Account for the new chunk added.
       chunkCount++;
@@ -3569,7 +3996,7 @@ public class XMLTextProcessor extends DefaultHandler
     // Get the analyzer that will be used to tokenize fields. Tell it to
     // forget what it knows about facet fields (we'll re-mark them below.)
     //
-    XTFTextAnalyzer analyzer = (XTFTextAnalyzer)indexWriter.getAnalyzer();
+    XTFTextAnalyzer analyzer = curAnalyzer();
     analyzer.clearFacetFields();
 
     // Make sure we got meta-info for this document.
@@ -3623,20 +4050,15 @@ public class XMLTextProcessor extends DefaultHandler
         // the fact. It doesn't matter which document we do this on, as
         // the reader code simply iterates the terms.
         //
-        if (metaField.tokenize && !metaField.isFacet) 
-        {
-          if (!tokenizedFields.contains(metaField.name)) {
-            addToTokenizedFieldsFile(metaField.name);
-            tokenizedFields.add(metaField.name);
-          }
-        }
+        if (metaField.tokenize && !metaField.isFacet)
+          noteTokenizedField(metaField.name);
       } // while(  metaIter.hasNext() )
     } // else( metaInfo != null && !metaInfo.isEmpty() )
 
     try 
     {
       // Add the document info block to the index.
-      indexWriter.addDocument(doc);
+      addToIndex(doc);
     }
 
     // If something went wrong...
@@ -3995,4 +4417,92 @@ public class XMLTextProcessor extends DefaultHandler
       this.deleteFirst = deleteFirst;
     }
   } // private class FileQueueEntry
+
+  /** A finished Lucene document built by a worker thread, along with the
+   *  analyzer settings to tokenize it with.
+   */
+  private static class PendingDoc
+  {
+    public Document doc;
+    public XTFTextAnalyzer analyzer;
+
+    public PendingDoc(Document doc, XTFTextAnalyzer analyzer) {
+      this.doc = doc;
+      this.analyzer = analyzer;
+    }
+  } // private class PendingDoc
+
+  /** Output of a worker thread for a single record of a source. */
+  private static class RecordResult
+  {
+    /** Marks the end of a source's records */
+    public static final RecordResult END = new RecordResult(-1, 100);
+    
+    public int recordNum;
+    public int percentDone;
+    public boolean failed;
+    public boolean partial;
+    public String keyMsg;
+    public ArrayList<PendingDoc> docs = new ArrayList<PendingDoc>();
+    public ArrayList<String> tokenizedFields = new ArrayList<String>();
+
+    public RecordResult(int recordNum, int percentDone) {
+      this.recordNum = recordNum;
+      this.percentDone = percentDone;
+    }
+  } // private class RecordResult
+
+  /** Processes all the records of one source on a worker thread, queueing
+   *  the results for the index writing thread.
+   */
+  private class SourceTask implements Runnable
+  {
+    public IndexSource idxSrc;
+    public BlockingQueue<RecordResult> results = 
+      new ArrayBlockingQueue<RecordResult>(MAX_PENDING_RECORDS);
+    public volatile Throwable error;
+
+    public SourceTask(IndexSource idxSrc) {
+      this.idxSrc = idxSrc;
+    }
+
+    public void run() 
+    {
+      XMLTextProcessor worker = newWorker();
+      try 
+      {
+        try 
+        {
+          IndexRecord idxRec;
+          while ((idxRec = idxSrc.nextRecord()) != null) 
+          {
+            int recordNum = idxRec.recordNum();
+            RecordResult result = new RecordResult(recordNum, idxRec.percentDone());
+            
+            String key = idxSrc.key();
+            worker.curPrettyKey = (key.indexOf(':') >= 0)
+                                  ? key.substring(key.indexOf(':') + 1) : key;
+            if (recordNum > 0)
+              worker.curPrettyKey += "/" + recordNum;
+            
+            worker.curResult = result;
+            result.failed = (worker.processText(idxSrc, idxRec, recordNum) != 0);
+            worker.curResult = null;
+            
+            results.put(result);
+          }
+        }
+        catch (InterruptedException e) {
+          return; // The writing thread gave up on us.
+        }
+        catch (Throwable t) {
+          error = t;
+        }
+        results.put(RecordResult.END);
+      }
+      catch (InterruptedException e) {
+        // The writing thread gave up on us.
+      }
+    } // run()
+  } // private class SourceTask
 } // class XMLTextProcessor
@@ -197,6 +197,26 @@ public class XTFTextAnalyzer extends Analyzer
     this.accentMap = accentMap;
   } // public XTFTextAnalyzer( stopWords, blurbedText )
 
+  /** Copy constructor. <br><br>
+   *
+   *  Makes a new analyzer with the same stop words, plural map, accent map,
+   *  and facet/misspelled field markings as an existing one. The spelling
+   *  writer is not copied.
+   *
+   *  @param  other     The analyzer to copy.
+   *
+   *  @.notes
+   *    The multi-threaded indexer uses this to capture the field markings
+   *    in effect when a chunk is built, so that the chunk can be tokenized
+   *    the same way later on the index writing thread. <br><br>
+   */
+  public XTFTextAnalyzer(XTFTextAnalyzer other)
+  {
+    this(other.stopSet, other.pluralMap, other.accentMap);
+    facetFields.addAll(other.facetFields);
+    misspelledFields.addAll(other.misspelledFields);
+  } // public XTFTextAnalyzer( XTFTextAnalyzer )
+
   /**
    * Clears the list of fields marked as facets. Facet fields receive special
    * tokenization.
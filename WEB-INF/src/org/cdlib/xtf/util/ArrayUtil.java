@@ -34,6 +34,13 @@ public class ArrayUtil
     return resize(in, in.length * 3 / 2);
   }
 
+  // Functions for byte arrays
+  public static byte[] resize(byte[] in, int newSize) {
+    byte[] out = new byte[newSize];
+    System.arraycopy(in, 0, out, 0, Math.min(in.length, newSize));
+    return out;
+  }
+
   // Functions for long arrays
   public static long[] resize(long[] in, int newSize) {
     long[] out = new long[newSize];
@@ -51,11 +51,13 @@ public class DiskHashReader
   /** Size of each hash slot */
   private int slotSize;
 
-  /** Buffer used to read hash slot bytes */
-  private byte[] slotBytes;
-
-  /** Used to decode hash slot values */
-  private PackedByteBuf slotBuf;
+  /** Buffers for each thread doing lookups, so find() needn't allocate */
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() 
+  {
+    protected Scratch initialValue() {
+      return new Scratch(slotSize);
+    }
+  };
 
   /**
    * Read in the header of of the hash from the given subfile.
@@ -78,10 +80,6 @@ public class DiskHashReader
 
     nSlots = subfile.readInt();
     slotSize = subfile.readInt();
-
-    // Allocate the slot buffer.
-    slotBytes = new byte[slotSize];
-    slotBuf = new PackedByteBuf(slotBytes);
   } // constructor
 
   /**
@@ -99,6 +97,8 @@ public class DiskHashReader
 
   /**
    * Locate the entry for the given string key. If not found, returns null.
+   * Only positional reads are used, so many threads may call this at once.
+   *
    * @param key   key to look for
    */
   public PackedByteBuf find(String key)
@@ -112,16 +112,21 @@ public class DiskHashReader
 
     // Find the location of the slot data. If zero, we can fail now.
     int slotNum = (key.hashCode() & 0xffffff) % nSlots;
-    subfile.seek(headerSize + (slotNum * 4));
-    int slotOffset = subfile.readInt();
+    Scratch s = scratch.get();
+    byte[] offsetBytes = s.offsetBytes;
+    subfile.read(headerSize + (slotNum * 4), offsetBytes, 0, 4);
+    int slotOffset = ((offsetBytes[0] & 0xff) << 24) |
+                     ((offsetBytes[1] & 0xff) << 16) |
+                     ((offsetBytes[2] & 0xff) << 8) |
+                     (offsetBytes[3] & 0xff);
     if (slotOffset == 0)
       return null;
     assert (slotOffset + slotSize) <= subfile.length() : "Corrupt hash offset";
 
     // Read the slot data (may be too much, but will always be enough).
-    subfile.seek(slotOffset);
-    subfile.read(slotBytes);
-    slotBuf.setBytes(slotBytes);
+    subfile.read(slotOffset, s.slotBytes, 0, slotSize);
+    PackedByteBuf slotBuf = s.slotBuf;
+    slotBuf.setBytes(s.slotBytes);
 
     // Now scan the entries
     while (true) 
@@ -137,8 +142,22 @@ public class DiskHashReader
         continue;
       }
 
-      // Got a match!
+      // Got a match! (The buffer returned is a copy, so the scratch space
+      // can be re-used.)
+      //
       return slotBuf.readBuffer();
     } // while
   } // find()
+
+  /** Space for one thread's lookups */
+  private static class Scratch 
+  {
+    final byte[] offsetBytes = new byte[4];
+    final byte[] slotBytes;
+    final PackedByteBuf slotBuf = new PackedByteBuf(0);
+
+    Scratch(int slotSize) {
+      slotBytes = new byte[slotSize];
+    }
+  } // class Scratch
 } // class DiskHashReader
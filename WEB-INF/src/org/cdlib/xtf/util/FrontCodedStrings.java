@@ -0,0 +1,193 @@
+package org.cdlib.xtf.util;
+
+
+/**
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only list of strings, stored compactly outside the Java heap.
+ * Strings are "front coded": each one records only how many characters it
+ * shares with the string before it, plus the characters that differ. This
+ * works especially well when neighboring strings share a lot, as sorted
+ * terms do. Every {@link #BLOCK_SIZE} strings, a string is stored in full
+ * so that any one can be found without decoding the whole list.<br><br>
+ *
+ * Since the data is never changed after construction, any number of
+ * threads may read it at once.
+ */
+public class FrontCodedStrings 
+{
+  /** How often to store a complete string */
+  private static final int BLOCK_SIZE = 16;
+
+  /** Number of strings in the list */
+  private int size;
+
+  /** Length of the longest string */
+  private int maxLength;
+
+  /** Position in {@link #data} of each block of strings */
+  private int[] blockStarts;
+
+  /** The encoded strings. Only absolute reads are used, so it can be shared. */
+  private ByteBuffer data;
+
+  /**
+   * Encode the given strings.
+   *
+   * @param strings   Strings to store, in the order they'll be accessed by
+   *                  index.
+   */
+  public FrontCodedStrings(String[] strings) 
+  {
+    size = strings.length;
+    blockStarts = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+
+    byte[] buf = new byte[Math.max(16, size * 4)];
+    int pos = 0;
+    String prev = "";
+    for (int i = 0; i < size; i++) 
+    {
+      String str = strings[i];
+      maxLength = Math.max(maxLength, str.length());
+
+      // Figure out how much to share with the previous string.
+      int prefix = 0;
+      if ((i % BLOCK_SIZE) == 0)
+        blockStarts[i / BLOCK_SIZE] = pos;
+      else {
+        int max = Math.min(prev.length(), str.length());
+        while (prefix < max && prev.charAt(prefix) == str.charAt(prefix))
+          prefix++;
+      }
+
+      // Make sure there's room for the worst case (3 bytes per number)
+      int need = pos + 6 + ((str.length() - prefix) * 3);
+      if (need > buf.length)
+        buf = ArrayUtil.resize(buf, Math.max(need, buf.length * 3 / 2));
+
+      // Write the shared length, the remaining length, and the remaining
+      // characters.
+      //
+      pos = writeNum(buf, pos, prefix);
+      pos = writeNum(buf, pos, str.length() - prefix);
+      for (int j = prefix; j < str.length(); j++)
+        pos = writeNum(buf, pos, str.charAt(j));
+      prev = str;
+    }
+
+    data = ByteBuffer.allocateDirect(pos);
+    data.put(buf, 0, pos);
+  } // constructor
+
+  /** Write a non-negative number, 7 bits at a time, low-order first */
+  private static int writeNum(byte[] buf, int pos, int n) 
+  {
+    while ((n & ~0x7f) != 0) {
+      buf[pos++] = (byte)((n & 0x7f) | 0x80);
+      n >>>= 7;
+    }
+    buf[pos++] = (byte)n;
+    return pos;
+  }
+
+  /** Get the number of strings in the list */
+  public final int size() {
+    return size;
+  }
+
+  /** Get a string by its index in the list */
+  public final String get(int index) 
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+    // Decode from the start of the block up to the one we want.
+    char[] chars = new char[maxLength];
+    int length = 0;
+    int[] pos = new int[] { blockStarts[index / BLOCK_SIZE] };
+    for (int i = index - (index % BLOCK_SIZE); i <= index; i++)
+      length = decode(pos, chars);
+    return new String(chars, 0, length);
+  } // get()
+
+  /**
+   * Find the first string in the list equal to the given one.
+   *
+   * @return  Its index, or -1 if not found
+   */
+  public final int indexOf(String str) 
+  {
+    char[] chars = new char[maxLength];
+    int[] pos = new int[] { 0 };
+    for (int i = 0; i < size; i++) 
+    {
+      int length = decode(pos, chars);
+      if (length != str.length())
+        continue;
+
+      int j;
+      for (j = 0; j < length && chars[j] == str.charAt(j); j++)
+        ;
+      if (j == length)
+        return i;
+    }
+    return -1;
+  } // indexOf()
+
+  /**
+   * Decode the next string, leaving the previous one's characters in
+   * place as the shared prefix.
+   *
+   * @param pos     Position in {@link #data}; advanced past the string
+   * @param chars   Holds the previous string, and receives the new one
+   * @return        Length of the new string
+   */
+  private int decode(int[] pos, char[] chars) 
+  {
+    int prefix = readNum(pos);
+    int length = prefix + readNum(pos);
+    for (int j = prefix; j < length; j++)
+      chars[j] = (char)readNum(pos);
+    return length;
+  }
+
+  /** Read a number written by {@link #writeNum(byte[], int, int)} */
+  private int readNum(int[] pos) 
+  {
+    int n = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = data.get(pos[0]++);
+      n |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return n;
+    }
+  }
+} // class FrontCodedStrings
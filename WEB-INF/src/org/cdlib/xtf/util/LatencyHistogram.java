@@ -0,0 +1,156 @@
+package org.cdlib.xtf.util;
+
+
+/**
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records a distribution of latencies (or any other non-negative values)
+ * with bounded relative error, in the style of an HDR histogram. Values are
+ * counted in buckets: one per value below 32, then 16 for each power of
+ * two, so the reported values are within about 6% of the true ones. No
+ * locks are used, so any number of threads can record at once at little
+ * cost.
+ */
+public class LatencyHistogram 
+{
+  /** Log2 of the number of buckets per power of two */
+  private static final int SUB_BITS = 4;
+
+  /** Number of buckets per power of two */
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+
+  /** Values at or above 2^MAX_BITS are counted as 2^MAX_BITS - 1 */
+  private static final int MAX_BITS = 40;
+
+  /** Total number of buckets */
+  private static final int N_BUCKETS = (2 * SUB_COUNT) + 
+                                       ((MAX_BITS - 1 - SUB_BITS) * SUB_COUNT);
+
+  /** Count of values in each bucket */
+  private final AtomicLongArray buckets = new AtomicLongArray(N_BUCKETS);
+
+  /** Total number of values recorded */
+  private final AtomicLong count = new AtomicLong();
+
+  /** Sum of all values recorded */
+  private final AtomicLong sum = new AtomicLong();
+
+  /** Largest value recorded */
+  private final AtomicLong max = new AtomicLong();
+
+  /** Record a single value. Negative values are counted as zero. */
+  public void record(long value) 
+  {
+    if (value < 0)
+      value = 0;
+    else if (value >= (1L << MAX_BITS))
+      value = (1L << MAX_BITS) - 1;
+
+    buckets.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    long prevMax;
+    while (value > (prevMax = max.get())) {
+      if (max.compareAndSet(prevMax, value))
+        break;
+    }
+  } // record()
+
+  /** Figure out which bucket a value goes in */
+  static int bucketOf(long value) 
+  {
+    if (value < 2 * SUB_COUNT)
+      return (int)value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return (2 * SUB_COUNT) + ((shift - 1) * SUB_COUNT) + 
+           (int)(value >>> shift) - SUB_COUNT;
+  }
+
+  /** Get the largest value that would be counted in the given bucket */
+  static long bucketHigh(int bucket) 
+  {
+    if (bucket < 2 * SUB_COUNT)
+      return bucket;
+    int shift = ((bucket - (2 * SUB_COUNT)) / SUB_COUNT) + 1;
+    long sub = ((bucket - (2 * SUB_COUNT)) % SUB_COUNT) + SUB_COUNT;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /** Get the number of values recorded */
+  public long count() {
+    return count.get();
+  }
+
+  /** Get the sum of the values recorded */
+  public long sum() {
+    return sum.get();
+  }
+
+  /** Get the largest value recorded */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Estimate several quantiles of the values recorded so far.
+   *
+   * @param fractions   Quantiles to estimate, each between 0 and 1, in
+   *                    ascending order (e.g. 0.5 for the median.)
+   * @return            A value for each quantile; each is no smaller than
+   *                    the true value, and no more than about 6% larger.
+   */
+  public long[] quantiles(double[] fractions) 
+  {
+    // Take a snapshot, since other threads may be adding to the counts.
+    long[] counts = new long[N_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < N_BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    long maxVal = max.get();
+
+    // Walk the buckets once, picking off each quantile in turn.
+    long[] ret = new long[fractions.length];
+    int bucket = 0;
+    long seen = counts[0];
+    for (int i = 0; i < fractions.length; i++) 
+    {
+      long target = Math.max(1, (long)Math.ceil(fractions[i] * total));
+      while (seen < target && bucket < N_BUCKETS - 1)
+        seen += counts[++bucket];
+      ret[i] = (total == 0) ? 0 : Math.min(bucketHigh(bucket), maxVal);
+    }
+    return ret;
+  } // quantiles()
+} // class LatencyHistogram
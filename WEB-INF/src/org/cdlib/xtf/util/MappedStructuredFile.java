@@ -0,0 +1,367 @@
+package org.cdlib.xtf.util;
+
+
+/**
+ * Copyright (c) 2004, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * A read-mostly view of a {@link StructuredFile} that reads sub-stores
+ * through memory-mapped buffers instead of a shared RandomAccessFile.
+ * Readers opened from it never lock and never make a system call per read,
+ * so many threads can read the same file at once without queueing up.
+ * The file is mapped in several regions, so it may exceed 2 GB.<br><br>
+ *
+ * Writing (i.e. creating new sub-stores and setting the user version) is
+ * passed through to an underlying StructuredFile; sub-stores created that
+ * way are mapped when first opened.
+ */
+public class MappedStructuredFile implements StructuredStore 
+{
+  /** Log2 of the size of each mapped region */
+  static final int REGION_SHIFT = 30;
+
+  /** Size of each mapped region (1 GB) */
+  static final long REGION_SIZE = 1L << REGION_SHIFT;
+
+  /** Actual file path of the structured file */
+  private File file;
+
+  /** Structured file that maintains the directory and does any writing */
+  private StructuredFile baseFile;
+
+  /** Channel used to map the file */
+  private FileChannel channel;
+
+  /** Regions of the file mapped so far */
+  private ByteBuffer[] regions = new ByteBuffer[0];
+
+  /** Number of bytes of the file covered by {@link #regions} */
+  private long mappedLength = 0;
+
+  /** Number of opens not yet matched by a close */
+  private int openCount = 0;
+
+  /**
+   * Map of currently open mapped files, so that each file is only mapped
+   * once no matter how many threads are reading it.
+   */
+  private static HashMap fileMap = new HashMap();
+
+  /**
+   * Instances should never be created by outside parties, so the constructor
+   * is strictly private.
+   */
+  private MappedStructuredFile(File file)
+    throws IOException 
+  {
+    this.file = file;
+    baseFile = StructuredFile.open(file);
+    try {
+      channel = new RandomAccessFile(file, "r").getChannel();
+      mapTo(channel.size());
+    }
+    catch (IOException e) {
+      if (channel != null)
+        channel.close();
+      baseFile.close();
+      throw e;
+    }
+  } // constructor
+
+  /**
+   * Open an existing structured file for memory-mapped access.
+   *
+   * @param file  The file to open.
+   * @throws FileNotFoundException    If the file doesn't exist.
+   */
+  public static synchronized MappedStructuredFile open(File file)
+    throws FileNotFoundException, IOException 
+  {
+    // Use the open instance, unless the file has been replaced (e.g. a lazy
+    // file re-built) since it was mapped.
+    //
+    MappedStructuredFile msf = (MappedStructuredFile)fileMap.get(file);
+    if (msf == null || !msf.baseFile.isCurrent()) {
+      msf = new MappedStructuredFile(file);
+      fileMap.put(file, msf);
+    }
+
+    msf.openCount++;
+    return msf;
+  }
+
+  /** Get the full path to the file */
+  public String getSystemId() {
+    return file.getAbsolutePath();
+  }
+
+  /**
+   * Makes sure the mapped regions cover at least the given number of bytes
+   * of the file. Regions that are already complete are kept; a partial
+   * last region is re-mapped at its new size.
+   *
+   * @param length    Number of bytes that must be mapped
+   * @return          The current array of regions
+   */
+  private synchronized ByteBuffer[] mapTo(long length)
+    throws IOException 
+  {
+    if (length <= mappedLength)
+      return regions;
+
+    int nRegions = (int)((length + REGION_SIZE - 1) >>> REGION_SHIFT);
+    ByteBuffer[] newRegions = new ByteBuffer[nRegions];
+    int nKept = (int)(mappedLength >>> REGION_SHIFT);
+    System.arraycopy(regions, 0, newRegions, 0, nKept);
+    for (int i = nKept; i < nRegions; i++) {
+      long start = i * REGION_SIZE;
+      long size = Math.min(REGION_SIZE, length - start);
+      newRegions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    regions = newRegions;
+    mappedLength = length;
+    return regions;
+  } // mapTo()
+
+  /**
+   * Sub-stores are always created through the underlying StructuredFile;
+   * they can be opened for (mapped) reading once they've been closed.
+   */
+  public SubStoreWriter createSubStore(String name)
+    throws IOException 
+  {
+    return baseFile.createSubStore(name);
+  }
+
+  /**
+   * Opens a pre-existing sub-store for read. Each reader has an independent
+   * file pointer, and its positional reads are safe to use from many threads
+   * at once.
+   *
+   * @param name  Name of pre-existing sub-store to open.
+   */
+  public SubStoreReader openSubStore(String name)
+    throws IOException 
+  {
+    long[] seg = baseFile.locateSubStore(name);
+    ByteBuffer[] mapped = mapTo(seg[0] + seg[1]);
+    return new MappedSubStoreReader(mapped, seg[0], seg[1]);
+  } // openSubStore()
+
+  /**
+   * Sets a user-defined version number for the store. It can be retrieved
+   * later with {@link #getUserVersion()}.
+   *
+   * @param ver   The version number to set.
+   */
+  public void setUserVersion(String ver)
+    throws IOException 
+  {
+    baseFile.setUserVersion(ver);
+  }
+
+  /**
+   * Gets the user version (if any) set by {@link #setUserVersion(String)}.
+   */
+  public String getUserVersion() {
+    return baseFile.getUserVersion();
+  }
+
+  /**
+   * Closes the file. The mapped regions remain valid for any readers still
+   * using them, and are released when they are garbage collected.
+   */
+  public void close()
+    throws IOException 
+  {
+    synchronized (getClass()) 
+    {
+      // Decrement the count, and if it's not zero yet, wait for another
+      // close later on.
+      //
+      openCount--;
+      if (openCount > 0)
+        return;
+
+      // Remove this instance from the file map, so it never gets used again.
+      if (fileMap.get(file) == this)
+        fileMap.remove(file);
+
+      // Close the underlying files.
+      channel.close();
+      baseFile.close();
+    }
+  } // close()
+
+  /** Close and delete the entire structured file */
+  public void delete()
+    throws IOException 
+  {
+    close();
+    file.delete();
+  } // delete()
+
+  /**
+   * Regression test to make sure the code works properly. Creates a file in
+   * the current directory, then erases it.
+   */
+  public static final Tester tester = new Tester("MappedStructuredFile") 
+  {
+    protected void testImpl()
+      throws Exception 
+    {
+      File testFile = new File("test.msf");
+      File tmpFile = new File("test.msf.tmp");
+      StructuredFile sf = null;
+      MappedStructuredFile f = null;
+      MappedStructuredFile f2 = null;
+
+      try 
+      {
+        // Make a file with a couple sub-files.
+        sf = StructuredFile.create(testFile);
+        SubStoreWriter sfw1 = sf.createSubStore("foo");
+        sfw1.writeInt(1);
+        sfw1.writeByte(2);
+        sfw1.writeInt(3);
+        sfw1.close();
+
+        SubStoreWriter sfw2 = sf.createSubStore("foo2");
+        sfw2.writeByte(8);
+        sfw2.writeInt(9);
+        sfw2.close();
+        sf.close();
+        sf = null;
+
+        // Verify the sub-files through the mapping.
+        f = MappedStructuredFile.open(testFile);
+        SubStoreReader sfr2 = f.openSubStore("foo2");
+        SubStoreReader sfr1 = f.openSubStore("foo");
+        assert sfr2.readByte() == 8;
+        assert sfr1.readInt() == 1;
+        assert sfr1.readByte() == 2;
+        assert sfr2.readInt() == 9;
+        assert sfr1.readInt() == 3;
+
+        // Make sure we can't read past the end.
+        boolean ok = false;
+        try {
+          sfr1.readInt();
+        }
+        catch (EOFException e) {
+          ok = true;
+        }
+        assert ok;
+
+        // Test seeking and positional reads.
+        sfr1.seek(4);
+        assert sfr1.readByte() == 2;
+        byte[] buf = new byte[4];
+        sfr1.read(5, buf, 0, 4);
+        assert buf[3] == 3;
+        assert sfr1.getFilePointer() == 5;
+
+        ok = false;
+        try {
+          sfr1.read(6, buf, 0, 4);
+        }
+        catch (EOFException e) {
+          ok = true;
+        }
+        assert ok;
+
+        // Sub-files created after mapping should be readable too.
+        SubStoreWriter sfw3 = f.createSubStore("foo3");
+        sfw3.writeInt(10);
+        sfw3.close();
+
+        SubStoreReader sfr3 = f.openSubStore("foo3");
+        assert sfr3.readInt() == 10;
+
+        // Writing to the file mustn't make it look like a different one.
+        f2 = MappedStructuredFile.open(testFile);
+        assert f2 == f;
+        f2.close();
+        f2 = null;
+
+        // Shouldn't be able to open a non-existent sub-file.
+        ok = false;
+        try {
+          f.openSubStore("foo99");
+        }
+        catch (FileNotFoundException e) {
+          ok = true;
+        }
+        assert ok;
+
+        // Re-build the file while it's still open, the way a lazy file
+        // gets re-built, and make sure new opens see the new contents.
+        //
+        sf = StructuredFile.create(tmpFile);
+        SubStoreWriter sfw4 = sf.createSubStore("foo");
+        sfw4.writeInt(42);
+        sfw4.close();
+        sf.close();
+        sf = null;
+        testFile.delete();
+        tmpFile.renameTo(testFile);
+
+        f2 = MappedStructuredFile.open(testFile);
+        assert f2 != f;
+        assert f2.openSubStore("foo").readInt() == 42;
+        sf = StructuredFile.open(testFile);
+        assert sf.openSubStore("foo").readInt() == 42;
+
+        // The old instance should still read the old contents.
+        sfr1.seek(0);
+        assert sfr1.readInt() == 1;
+      }
+      finally {
+        // All done. Close and clean up our file.
+        if (sf != null)
+          sf.close();
+        if (f != null)
+          f.close();
+        if (f2 != null)
+          f2.close();
+        testFile.delete();
+        tmpFile.delete();
+      }
+    } // testImpl()
+  };
+} // class MappedStructuredFile
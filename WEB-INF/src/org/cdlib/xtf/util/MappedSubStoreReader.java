@@ -0,0 +1,163 @@
+package org.cdlib.xtf.util;
+
+
+/**
+ * Copyright (c) 2004, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a single sub-file within a {@link MappedStructuredFile}. All reads
+ * come straight from the mapped regions; nothing is locked, so any number
+ * of readers (or threads using the positional read method) can proceed at
+ * once.
+ */
+class MappedSubStoreReader extends SubStoreReader 
+{
+  /** Mapped regions of the file, each {@link MappedStructuredFile#REGION_SIZE} long */
+  private ByteBuffer[] regions;
+
+  /** Absolute file position for the subfile's start */
+  private long segOffset;
+
+  /** Length of this subfile */
+  private long segLength;
+
+  /** Current read position within the subfile */
+  private long curPos;
+
+  /**
+   * Construct a reader. Reads will be constrained to the specified limit.
+   *
+   * @param regions   Mapped regions covering (at least) the segment
+   * @param segOffset Beginning offset of the segment
+   * @param segLength Length of the segment
+   */
+  MappedSubStoreReader(ByteBuffer[] regions, long segOffset, long segLength) {
+    this.regions = regions;
+    this.segOffset = segOffset;
+    this.segLength = segLength;
+    curPos = 0;
+  }
+
+  public void close()
+    throws IOException 
+  {
+    regions = null;
+  }
+
+  public long getFilePointer()
+    throws IOException 
+  {
+    return curPos;
+  }
+
+  public long length()
+    throws IOException 
+  {
+    return segLength;
+  }
+
+  public void read(byte[] b, int off, int len)
+    throws IOException 
+  {
+    read(curPos, b, off, len);
+    curPos += len;
+  }
+
+  public void read(long pos, byte[] b, int off, int len)
+    throws IOException 
+  {
+    if (pos < 0 || pos + len > segLength)
+      throw new EOFException("End of sub-file reached");
+
+    // Copy from each region the read overlaps. We work on a duplicate of
+    // the region buffer so that its position is private to this call.
+    //
+    long absPos = segOffset + pos;
+    while (len > 0) 
+    {
+      ByteBuffer region = regions[(int)(absPos >>> MappedStructuredFile.REGION_SHIFT)].duplicate();
+      int regionPos = (int)(absPos & (MappedStructuredFile.REGION_SIZE - 1));
+      int chunk = (int)Math.min(len, MappedStructuredFile.REGION_SIZE - regionPos);
+      region.position(regionPos);
+      region.get(b, off, chunk);
+      absPos += chunk;
+      off += chunk;
+      len -= chunk;
+    }
+  } // read()
+
+  public void seek(long pos)
+    throws IOException 
+  {
+    if (pos > segLength)
+      throw new EOFException("Cannot seek past end of subfile");
+    curPos = pos;
+  }
+
+  public byte readByte()
+    throws IOException 
+  {
+    if (curPos + 1 > segLength)
+      throw new EOFException("End of sub-file reached");
+    byte ret = byteAt(segOffset + curPos);
+    curPos++;
+    return ret;
+  }
+
+  public int readInt()
+    throws IOException 
+  {
+    if (curPos + 4 > segLength)
+      throw new EOFException("End of sub-file reached");
+
+    // Fast path: the whole int is in one region.
+    long absPos = segOffset + curPos;
+    int regionPos = (int)(absPos & (MappedStructuredFile.REGION_SIZE - 1));
+    int ret;
+    if (regionPos + 4 <= MappedStructuredFile.REGION_SIZE)
+      ret = regions[(int)(absPos >>> MappedStructuredFile.REGION_SHIFT)].getInt(regionPos);
+    else {
+      ret = ((byteAt(absPos) & 0xff) << 24) | 
+            ((byteAt(absPos + 1) & 0xff) << 16) |
+            ((byteAt(absPos + 2) & 0xff) << 8) | 
+            (byteAt(absPos + 3) & 0xff);
+    }
+    curPos += 4;
+    return ret;
+  }
+
+  /** Get the byte at an absolute file position */
+  private byte byteAt(long absPos) {
+    return regions[(int)(absPos >>> MappedStructuredFile.REGION_SHIFT)].get(
+      (int)(absPos & (MappedStructuredFile.REGION_SIZE - 1)));
+  }
+} // class MappedSubStoreReader
@@ -0,0 +1,204 @@
+package org.cdlib.xtf.util;
+
+
+/**
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of how long things take, and how often things happen, across
+ * all the requests served by this JVM. Recording is cheap enough to do on
+ * every request: histograms and counters are found by name in a concurrent
+ * map (or held in a field by the caller), and updated without locks.<br><br>
+ *
+ * The numbers can be written out in the plain text format understood by
+ * common monitoring tools (e.g. Prometheus) using {@link #write(PrintWriter)}.
+ * Latencies are recorded in microseconds.
+ */
+public class Metrics 
+{
+  /** Latency histograms, by name */
+  private static ConcurrentHashMap<String, LatencyHistogram> histograms = 
+    new ConcurrentHashMap<String, LatencyHistogram>();
+
+  /** Event counters, by name */
+  private static ConcurrentHashMap<String, Counter> counters = 
+    new ConcurrentHashMap<String, Counter>();
+
+  /** Current levels (e.g. queue depths), by name */
+  private static ConcurrentHashMap<String, AtomicLong> gauges = 
+    new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Quantiles reported for each histogram */
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  /** Get the histogram with the given name, creating it if necessary. */
+  public static LatencyHistogram histogram(String name) 
+  {
+    LatencyHistogram hist = histograms.get(name);
+    if (hist == null) {
+      hist = new LatencyHistogram();
+      LatencyHistogram prev = histograms.putIfAbsent(name, hist);
+      if (prev != null)
+        hist = prev;
+    }
+    return hist;
+  } // histogram()
+
+  /** Get the counter with the given name, creating it if necessary. */
+  public static Counter counter(String name) 
+  {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      Counter prev = counters.putIfAbsent(name, counter);
+      if (prev != null)
+        counter = prev;
+    }
+    return counter;
+  } // counter()
+
+  /**
+   * Get the gauge with the given name, creating it if necessary. Unlike a
+   * counter, a gauge goes up and down, e.g. the number of requests waiting
+   * in a queue.
+   */
+  public static AtomicLong gauge(String name) 
+  {
+    AtomicLong gauge = gauges.get(name);
+    if (gauge == null) {
+      gauge = new AtomicLong();
+      AtomicLong prev = gauges.putIfAbsent(name, gauge);
+      if (prev != null)
+        gauge = prev;
+    }
+    return gauge;
+  } // gauge()
+
+  /**
+   * Record the time elapsed since the given start time in the named
+   * histogram.
+   *
+   * @param name        Histogram to record in, e.g. "crossQuery.queryParser"
+   * @param startNanos  Start time, from {@link System#nanoTime()}
+   */
+  public static void recordTime(String name, long startNanos) {
+    histogram(name).record((System.nanoTime() - startNanos) / 1000);
+  }
+
+  /**
+   * Write out all the histograms and counters in text exposition format.
+   * Each histogram becomes a summary with several quantiles, each
+   * counter a simple total, and each gauge its current value.
+   */
+  public static void write(PrintWriter out) 
+  {
+    String[] names = histograms.keySet().toArray(new String[0]);
+    Arrays.sort(names);
+    LatencyHistogram[] hists = new LatencyHistogram[names.length];
+    for (int i = 0; i < names.length; i++)
+      hists[i] = histograms.get(names[i]);
+
+    out.println("# HELP xtf_latency_microseconds Time taken by each phase of processing.");
+    out.println("# TYPE xtf_latency_microseconds summary");
+    for (int i = 0; i < names.length; i++) 
+    {
+      String label = "name=\"" + names[i] + "\"";
+      long[] values = hists[i].quantiles(QUANTILES);
+      for (int j = 0; j < QUANTILES.length; j++) {
+        out.println("xtf_latency_microseconds{" + label + ",quantile=\"" + 
+                    QUANTILES[j] + "\"} " + values[j]);
+      }
+      out.println("xtf_latency_microseconds_sum{" + label + "} " + hists[i].sum());
+      out.println("xtf_latency_microseconds_count{" + label + "} " + hists[i].count());
+    }
+
+    out.println("# HELP xtf_latency_microseconds_max Longest time taken by each phase.");
+    out.println("# TYPE xtf_latency_microseconds_max gauge");
+    for (int i = 0; i < names.length; i++)
+      out.println("xtf_latency_microseconds_max{name=\"" + names[i] + "\"} " + hists[i].max());
+
+    names = counters.keySet().toArray(new String[0]);
+    Arrays.sort(names);
+    out.println("# HELP xtf_events_total Number of times each event has occurred.");
+    out.println("# TYPE xtf_events_total counter");
+    for (int i = 0; i < names.length; i++)
+      out.println("xtf_events_total{name=\"" + names[i] + "\"} " + counters.get(names[i]).get());
+
+    names = gauges.keySet().toArray(new String[0]);
+    Arrays.sort(names);
+    out.println("# HELP xtf_current Current level of each gauge.");
+    out.println("# TYPE xtf_current gauge");
+    for (int i = 0; i < names.length; i++)
+      out.println("xtf_current{name=\"" + names[i] + "\"} " + gauges.get(names[i]).get());
+
+    out.flush();
+  } // write()
+
+  /**
+   * A counter that can be bumped very frequently by many threads at once.
+   * The count is spread over several slots, each on its own cache line, so
+   * that threads don't fight over a single memory location.
+   */
+  public static class Counter 
+  {
+    /** Number of slots; must be a power of two */
+    private static final int N_SLOTS = 16;
+
+    /** Distance between slots, so each is on its own cache line */
+    private static final int SPACING = 8;
+
+    /** The slots */
+    private final AtomicLongArray slots = new AtomicLongArray(N_SLOTS * SPACING);
+
+    /** Add one to the count */
+    public void increment() {
+      add(1);
+    }
+
+    /** Add the given amount to the count */
+    public void add(long amount) {
+      int slot = (int)Thread.currentThread().getId() & (N_SLOTS - 1);
+      slots.addAndGet(slot * SPACING, amount);
+    }
+
+    /** Get the current count */
+    public long get() 
+    {
+      long total = 0;
+      for (int i = 0; i < N_SLOTS; i++)
+        total += slots.get(i * SPACING);
+      return total;
+    }
+  } // class Counter
+} // class Metrics
@@ -38,6 +38,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.LinkedList;
 import java.util.HashMap;
+import java.util.Random;
 
 /**
  * A simple structured file with a flat top-level directory. Subfiles
@@ -95,6 +96,20 @@ public class StructuredFile implements StructuredStore
    */
   private static HashMap fileMap = new HashMap();
 
+  /**
+   * Identifies this particular file, as opposed to any other written later
+   * at the same path (e.g. a re-built lazy file.) Chosen at random when the
+   * file is created, and kept in the header. Zero for files written before
+   * the header had one.
+   */
+  private long stamp;
+
+  /** Header identifier byte: 0 for the original header, 1 if stamped */
+  private static final byte STAMPED = 1;
+
+  /** Used to pick stamps for new files */
+  private static Random stampRandom = new Random();
+
   /**
    * Instances should never be created by outside parties, so the constructor
    * is strictly private.
@@ -117,10 +132,16 @@ public class StructuredFile implements StructuredStore
         realFile.writeByte('s');
         realFile.writeByte('s');
         realFile.writeByte('f');
-        realFile.writeByte(0);
+        realFile.writeByte(STAMPED);
   
         // Write a placeholder for the directory position.
         realFile.writeInt(0);
+
+        // Then the stamp that tells this file from any later one.
+        do {
+          stamp = stampRandom.nextLong();
+        } while (stamp == 0);
+        realFile.writeLong(stamp);
   
         // Now write a new directory.
         dir = new Directory();
@@ -154,16 +175,56 @@ public class StructuredFile implements StructuredStore
     // Verify the header.
     if (realFile.readByte() != 's' ||
         realFile.readByte() != 's' ||
-        realFile.readByte() != 'f' ||
-        realFile.readByte() != 0)
+        realFile.readByte() != 'f')
+      throw new IOException("File is not a structured file");
+    byte ident = realFile.readByte();
+    if (ident != 0 && ident != STAMPED)
       throw new IOException("File is not a structured file");
 
-    // Get the position of the directory, and read it in.
+    // Get the position of the directory, and the stamp if any.
     dirPos = realFile.readInt();
+    stamp = (ident == STAMPED) ? realFile.readLong() : 0;
+
+    // Read in the directory.
     realFile.seek(dirPos);
     dir = new Directory(realFile);
   } // readHeader()
 
+  /**
+   * Read the stamp from the header of the file now at the given path, or
+   * zero if it has none.
+   */
+  private static long readStamp(File file)
+    throws IOException 
+  {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      if (in.length() < 16)
+        return 0;
+      in.seek(3);
+      if (in.readByte() != STAMPED)
+        return 0;
+      in.seek(8);
+      return in.readLong();
+    }
+    finally {
+      in.close();
+    }
+  } // readStamp()
+
+  /**
+   * Check whether this instance still has open the file at its path, or the
+   * file has since been replaced by another (e.g. a re-built lazy file.)
+   * Files without a stamp are assumed not to have been replaced.
+   */
+  boolean isCurrent()
+    throws IOException 
+  {
+    if (stamp == 0)
+      return true;
+    return file.exists() && readStamp(file) == stamp;
+  } // isCurrent()
+
   /**
    * Create a structured file from scratch. Any existing file is replaced by
    * a new empty one.
@@ -195,11 +256,11 @@ public class StructuredFile implements StructuredStore
   public static synchronized StructuredFile open(File file)
     throws FileNotFoundException, IOException 
   {
-    StructuredFile sf;
-
-    if (fileMap.get(file) != null)
-      sf = (StructuredFile)fileMap.get(file);
-    else {
+    // Use the open instance, unless the file has been replaced since it
+    // was opened.
+    //
+    StructuredFile sf = (StructuredFile)fileMap.get(file);
+    if (sf == null || !sf.isCurrent()) {
       sf = new StructuredFile(file, false);
       fileMap.put(file, sf);
     }
@@ -284,6 +345,25 @@ public class StructuredFile implements StructuredStore
     return sub;
   } // openSubfile()
 
+  /**
+   * Locates a pre-existing subfile, for readers that access the disk file
+   * by other means (e.g. {@link MappedStructuredFile}).
+   *
+   * @param name  Name of pre-existing subfile to locate.
+   * @return      A two-element array: absolute offset of the subfile's
+   *              start, and its length.
+   */
+  synchronized long[] locateSubStore(String name)
+    throws IOException 
+  {
+    DirEntry ent = dir.find(name);
+    if (ent == null)
+      throw new FileNotFoundException("Sub-file " + name + " not found.");
+    if (creatingEnt == ent)
+      throw new IOException("Cannot open in-progress subfile");
+    return new long[] { ent.segOffset, ent.segLength };
+  } // locateSubStore()
+
   /**
    * Called by a subfile reader when its close() method is called.
    *
@@ -369,7 +449,8 @@ public class StructuredFile implements StructuredStore
         return;
 
       // Remove this instance from the file map, so it never gets used again.
-      fileMap.remove(file);
+      if (fileMap.get(file) == this)
+        fileMap.remove(file);
 
       // If a file was being created, close it.
       if (creatingSubfile != null) {
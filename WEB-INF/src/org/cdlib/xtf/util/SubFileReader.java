@@ -131,6 +131,23 @@ class SubFileReader extends SubStoreReader
     }
   }
 
+  public void read(long pos, byte[] b, int off, int len)
+    throws IOException 
+  {
+    synchronized (parent) 
+    {
+      if (pos < 0 || pos + len > segLength)
+        throw new EOFException("End of sub-file reached");
+      file.seek(segOffset + pos);
+      file.readFully(b, off, len);
+
+      // Our own file pointer hasn't changed, so make sure it gets restored
+      // on the next sequential read.
+      //
+      parent.curSubFile = null;
+    }
+  }
+
   public void seek(long pos)
     throws IOException 
   {
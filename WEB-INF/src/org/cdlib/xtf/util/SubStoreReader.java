@@ -62,6 +62,19 @@ public abstract class SubStoreReader
   public abstract void read(byte[] b, int off, int len)
     throws IOException;
 
+  /**
+   * Reads bytes at the given position within the sub-store, without
+   * disturbing the current file pointer. Unlike a seek() followed by
+   * read(), this is safe to call from several threads at once.
+   *
+   * @param pos   Position (relative to the sub-store start) to read from
+   * @param b     Buffer to read into
+   * @param off   Offset within the buffer to start at
+   * @param len   Number of bytes to read
+   */
+  public abstract void read(long pos, byte[] b, int off, int len)
+    throws IOException;
+
   public abstract void seek(long pos)
     throws IOException;
 
@@ -31,16 +31,40 @@ package org.cdlib.xtf.util;
  */
 import java.lang.reflect.Method;
 import java.text.DecimalFormat;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Keeps an eye on threads, and logs those that appear to be "runaways".
+ * Keeps an eye on threads, and logs those that appear to be "runaways".<br><br>
+ *
+ * Beginning and ending a watch don't take any locks, since they happen on
+ * every request. Each watched operation is placed in a "timer wheel": a
+ * circular array of slots, one per second, where each slot holds the
+ * operations due to be checked during that second. The watcher thread only
+ * has to look at the slot for the current second, instead of scanning every
+ * operation. An operation that ends is simply marked done; on each tick the
+ * watcher drops the done operations from the wheel, so they don't hang on
+ * (with their threads) until their slots come around.
  */
 public class ThreadWatcher 
 {
-  private static HashMap beingWatched = new HashMap();
-  private static Thread watcherThread = null;
+  /** Milliseconds covered by each slot of the timer wheel */
+  private static final long TICK_MILLIS = 1000;
+
+  /** Number of slots in the timer wheel (must be a power of two) */
+  private static final int N_SLOTS = 512;
+
+  /** The operation being watched for each thread */
+  private static ConcurrentHashMap<Thread, Entry> beingWatched = 
+    new ConcurrentHashMap<Thread, Entry>();
+
+  /** Each slot is a linked list of the entries due to be checked */
+  private static AtomicReferenceArray<Entry> wheel = 
+    new AtomicReferenceArray<Entry>(N_SLOTS);
+
+  private static volatile Thread watcherThread = null;
 
   /**
    * Notifies the watcher that the current thread is about to begin an
@@ -61,32 +85,22 @@ public class ThreadWatcher
   {
     Thread curThread = Thread.currentThread();
 
-    synchronized (beingWatched) 
-    {
-      // Make sure this thread isn't already being watched.
-      if (beingWatched.containsKey(curThread)) {
-        Trace.warning(
-          "Thread began operation '" + descrip +
-          "' but never called endWatch()");
-      }
+    // Add it to the list, making sure this thread isn't already being watched.
+    Entry e = new Entry(curThread, descrip, normalTime, killTime);
+    Entry prev = beingWatched.put(curThread, e);
+    if (prev != null) {
+      prev.done = true;
+      Trace.warning(
+        "Thread began operation '" + descrip +
+        "' but never called endWatch()");
+    }
 
-      // Add it to the list
-      beingWatched.put(curThread,
-                       new Entry(curThread, descrip, normalTime, killTime));
+    // Schedule the first check.
+    schedule(e);
 
-      // Make sure the watcher thread is running.
-      if (watcherThread == null) 
-      {
-        watcherThread = new Thread() 
-        {
-          public void run() {
-            watch();
-          }
-        };
-        watcherThread.setDaemon(true);
-        watcherThread.start();
-      }
-    } // synchronized
+    // Make sure the watcher thread is running.
+    if (watcherThread == null)
+      startWatcher();
   } // beginWatch()
 
   /**
@@ -97,28 +111,25 @@ public class ThreadWatcher
   {
     Thread curThread = Thread.currentThread();
 
-    synchronized (beingWatched) 
-    {
-      // Make sure this thread is being watched.
-      Entry e = (Entry)beingWatched.get(curThread);
-      if (e == null) {
-        Trace.warning(
-          "Thread called endWatch() without first " + "calling beginWatch()");
-        return;
-      }
+    // Remove it from the list, making sure this thread is being watched.
+    Entry e = beingWatched.remove(curThread);
+    if (e == null) {
+      Trace.warning(
+        "Thread called endWatch() without first " + "calling beginWatch()");
+      return;
+    }
 
-      // If it was runaway, report that it finally finished.
-      if (e.runaway) {
-        double secs = (System.currentTimeMillis() - e.startTime) / 1000.0;
-        String secStr = DecimalFormat.getInstance().format(secs);
-        Trace.warning(
-          "This thread finally finished after " + secStr + " secs. Descrip: " +
-          e.descrip);
-      }
+    // The watcher will drop it from the timer wheel on its next tick.
+    e.done = true;
 
-      // Remove it from the list
-      beingWatched.remove(curThread);
-    } // synchronized
+    // If it was runaway, report that it finally finished.
+    if (e.runaway) {
+      double secs = (System.currentTimeMillis() - e.startTime) / 1000.0;
+      String secStr = DecimalFormat.getInstance().format(secs);
+      Trace.warning(
+        "This thread finally finished after " + secStr + " secs. Descrip: " +
+        e.descrip);
+    }
   } // endWatch()
 
   /**
@@ -127,19 +138,13 @@ public class ThreadWatcher
   public static int nRunaways() 
   {
     int count = 0;
-
-    synchronized (beingWatched) 
-    {
-      Iterator iter = beingWatched.values().iterator();
-      while (iter.hasNext()) {
-        Entry e = (Entry)iter.next();
-        if (e.runaway)
-          ++count;
-      }
-    } // synchronized
-
+    Iterator<Entry> iter = beingWatched.values().iterator();
+    while (iter.hasNext()) {
+      if (iter.next().runaway)
+        ++count;
+    }
     return count;
-  } // endWatch()
+  } // nRunaways()
 
   /**
    * Tells whether the specified thread has exceeded its kill limit and should
@@ -147,14 +152,51 @@ public class ThreadWatcher
    */
   public static boolean shouldDie(Thread thread) 
   {
-    synchronized (beingWatched) {
-      Entry e = (Entry)beingWatched.get(thread);
-      if (e == null)
-        return false;
-      return e.kill;
-    } // synchronized
+    Entry e = beingWatched.get(thread);
+    return e != null && e.kill;
   } // shouldDie()
 
+  /** Start the watcher thread, if no other thread has beaten us to it. */
+  private static synchronized void startWatcher() 
+  {
+    if (watcherThread != null)
+      return;
+    Thread t = new Thread() 
+    {
+      public void run() {
+        watch();
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    watcherThread = t;
+  } // startWatcher()
+
+  /**
+   * Figure out when the entry next needs checking, and add it to that slot
+   * of the timer wheel. Entries with no time limits aren't added at all.
+   */
+  private static void schedule(Entry e) 
+  {
+    long due = Long.MAX_VALUE;
+    if (!e.kill && e.killTime > 0)
+      due = e.startTime + e.killTime;
+    if (e.normalTime > 0)
+      due = Math.min(due, e.nextCheckTime);
+    if (due == Long.MAX_VALUE)
+      return;
+    e.dueTime = due;
+
+    // Push it on the front of the slot's list.
+    int slot = (int)((due / TICK_MILLIS) & (N_SLOTS - 1));
+    while (true) {
+      Entry head = wheel.get(slot);
+      e.next = head;
+      if (wheel.compareAndSet(slot, head, e))
+        break;
+    }
+  } // schedule()
+
   /**
    * This is the worker function that runs in a separate thread and keeps an
    * eye out for runaways.
@@ -163,121 +205,169 @@ public class ThreadWatcher
   {
     try 
     {
+      long nextTick = System.currentTimeMillis() / TICK_MILLIS;
+      ArrayList<Entry> toPrint = new ArrayList<Entry>();
       while (true) 
       {
-        // Wait a while
-        Thread.sleep(5100);
-
-        // Check for and count runaways
-        synchronized (beingWatched) 
+        // Wait until the next tick
+        Thread.sleep(TICK_MILLIS - (System.currentTimeMillis() % TICK_MILLIS));
+        long curTime = System.currentTimeMillis();
+        long curTick = curTime / TICK_MILLIS;
+
+        // Check each slot whose time has fully passed (normally just one.)
+        // If we slept for more than a full round, one pass covers them all.
+        //
+        if (curTick - nextTick > N_SLOTS)
+          nextTick = curTick - N_SLOTS;
+        for (; nextTick < curTick; nextTick++) 
         {
-          long curTime = System.currentTimeMillis();
-          int nRunaways = 0;
-
-          Iterator iter = beingWatched.values().iterator();
-          while (iter.hasNext()) 
-          {
-            Entry e = (Entry)iter.next();
-
-            // If it has exceeded the kill time, request a kill. It
-            // won't take effect unless and until the thread asks
-            // if it should kill itself and does so.
-            //
-            if (!e.kill &&
-                e.killTime > 0 &&
-                (curTime - e.startTime) > e.killTime) 
-            {
-              e.kill = true;
-              e.runaway = true;
-              ++nRunaways;
-              e.needPrint = true;
-              continue;
-            }
-
-            // If it's not time to check for normal runaways, skip
-            // until next time.
-            //
-            if (e.normalTime <= 0 || curTime < e.nextCheckTime) {
-              if (e.runaway)
-                ++nRunaways;
-              continue;
-            }
-
-            // Mark this as a potential runaway, and mark it to be
-            // printed below.
-            e.runaway = true;
-            ++nRunaways;
-            e.needPrint = true;
-          } // while iter
-
-          // Now print out those that need it.
-          int count = 0;
-          curTime = System.currentTimeMillis();
-          iter = beingWatched.values().iterator();
-          while (iter.hasNext()) 
+          // Take the whole list in this slot, then go through it.
+          Entry e = wheel.getAndSet((int)(nextTick & (N_SLOTS - 1)), null);
+          while (e != null) 
           {
-            Entry e = (Entry)iter.next();
-            if (e.runaway)
-              ++count;
-
-            if (!e.needPrint)
-              continue;
-
-            // Report it
-            String id = Trace.getThreadId(e.thread);
-            if (id == null)
-              id = "";
-            double secs = (curTime - e.startTime) / 1000.0;
-            String secStr = DecimalFormat.getInstance().format(secs);
-            Trace.warning(
-              "Thread " + id + "may be " + "runaway (running " + secStr +
-              " secs so far; runaway #" + count + " of " + nRunaways + "). " +
-              (e.kill ? "Kill time exceeded. " : "") + "Descrip: " + e.descrip);
-
-            // Report a stack trace if we have a new enough JVM
-            try 
-            {
-              Class c = e.thread.getClass();
-              Method m = c.getMethod("getStackTrace", new Class[0]);
-              StackTraceElement[] stackTrace = (StackTraceElement[])m.invoke(
-                e.thread,
-                new Object[0]);
-
-              StringBuffer buf = new StringBuffer();
-              for (int i = 0; i < stackTrace.length; i++) {
-                buf.append("    ");
-                buf.append(stackTrace[i].toString());
-                buf.append("\n");
-              }
-
-              Trace.warning("...stack snapshot: \n" + buf.toString());
-            }
-            catch (Exception exc) {
-            }
-          } // while iter
-
-          // Finally, reschedule each thread we printed.
-          curTime = System.currentTimeMillis();
-          iter = beingWatched.values().iterator();
-          while (iter.hasNext()) 
-          {
-            Entry e = (Entry)iter.next();
-            if (!e.needPrint)
-              continue;
+            Entry next = e.next;
+            e.next = null;
+            check(e, curTime, toPrint);
+            e = next;
+          }
+        }
 
-            // Don't print twice.
-            e.needPrint = false;
+        // Get rid of the operations that have ended since the last tick.
+        sweep();
 
-            // Reschedule this one.
-            e.nextCheckTime = curTime + e.normalTime;
-          } // while iter
-        } // synchronized
+        // Now print out those that need it.
+        if (!toPrint.isEmpty()) {
+          report(toPrint);
+          toPrint.clear();
+        }
       } // while true
     } // try
     catch (InterruptedException e) {
     }
   } // watch()
 
+  /**
+   * Drop the entries of operations that have ended from every slot of the
+   * timer wheel. Only the watcher thread removes entries, and other threads
+   * only push new ones on the front of a slot, so only taking an entry off
+   * the front needs care.
+   */
+  private static void sweep() 
+  {
+    for (int slot = 0; slot < N_SLOTS; slot++) 
+    {
+      Entry head = wheel.get(slot);
+      while (head != null && head.done) {
+        if (wheel.compareAndSet(slot, head, head.next))
+          head.next = null;
+        head = wheel.get(slot);
+      }
+      if (head == null)
+        continue;
+
+      Entry prev = head;
+      for (Entry e = head.next; e != null; e = prev.next) 
+      {
+        if (e.done) {
+          prev.next = e.next;
+          e.next = null;
+        }
+        else
+          prev = e;
+      }
+    }
+  } // sweep()
+
+  /**
+   * Check an entry whose slot has come up, marking it runaway or killing it
+   * as needed, and rescheduling it.
+   */
+  private static void check(Entry e, long curTime, ArrayList<Entry> toPrint) 
+  {
+    // If the operation has ended, just forget about it.
+    if (e.done)
+      return;
+
+    // If it's not due in this round of the wheel, leave it for later.
+    if (e.dueTime > curTime) {
+      schedule(e);
+      return;
+    }
+
+    // If it has exceeded the kill time, request a kill. It won't take effect
+    // unless and until the thread asks if it should kill itself and does so.
+    //
+    boolean print = false;
+    if (!e.kill && e.killTime > 0 && (curTime - e.startTime) >= e.killTime) {
+      e.kill = true;
+      e.runaway = true;
+      print = true;
+    }
+
+    // Otherwise mark this as a potential runaway, if it's time.
+    else if (e.normalTime > 0 && curTime >= e.nextCheckTime) {
+      e.runaway = true;
+      print = true;
+    }
+
+    // Don't print it again until the normal time has passed again.
+    if (print) {
+      toPrint.add(e);
+      e.nextCheckTime = curTime + e.normalTime;
+    }
+
+    // And reschedule it.
+    schedule(e);
+  } // check()
+
+  /**
+   * Log a warning and a stack trace for each of the given runaways.
+   */
+  private static void report(ArrayList<Entry> toPrint) 
+  {
+    int nRunaways = nRunaways();
+    long curTime = System.currentTimeMillis();
+    for (int i = 0; i < toPrint.size(); i++) 
+    {
+      Entry e = toPrint.get(i);
+      if (e.done)
+        continue;
+
+      // Report it
+      String id = Trace.getThreadId(e.thread);
+      if (id == null)
+        id = "";
+      double secs = (curTime - e.startTime) / 1000.0;
+      String secStr = DecimalFormat.getInstance().format(secs);
+      Trace.warning(
+        "Thread " + id + "may be " + "runaway (running " + secStr +
+        " secs so far; runaway #" + (i + 1) + " of " +
+        Math.max(nRunaways, i + 1) + "). " +
+        (e.kill ? "Kill time exceeded. " : "") + "Descrip: " + e.descrip);
+
+      // Report a stack trace if we have a new enough JVM
+      try 
+      {
+        Class c = e.thread.getClass();
+        Method m = c.getMethod("getStackTrace", new Class[0]);
+        StackTraceElement[] stackTrace = (StackTraceElement[])m.invoke(
+          e.thread,
+          new Object[0]);
+
+        StringBuffer buf = new StringBuffer();
+        for (int j = 0; j < stackTrace.length; j++) {
+          buf.append("    ");
+          buf.append(stackTrace[j].toString());
+          buf.append("\n");
+        }
+
+        Trace.warning("...stack snapshot: \n" + buf.toString());
+      }
+      catch (Exception exc) {
+      }
+    } // for i
+  } // report()
+
   /**
    * Keeps track of one thread we're watching.
    */
@@ -289,9 +379,15 @@ public class ThreadWatcher
     long nextCheckTime;
     long normalTime;
     long killTime;
-    boolean runaway = false;
-    boolean needPrint = false;
-    boolean kill = false;
+    volatile boolean runaway = false;
+    volatile boolean kill = false;
+    volatile boolean done = false;
+
+    /** When the entry next needs checking (watcher thread only) */
+    long dueTime;
+
+    /** Next entry in the same slot of the timer wheel */
+    Entry next;
 
     Entry(Thread t, String d, long n, long k) {
       thread = t;
@@ -36,6 +36,10 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 ////////////////////////////////////////////////////////////////////////////////
 
@@ -79,7 +83,15 @@ import java.util.WeakHashMap;
  *  (but if only one thread uses Trace, no such markers will be printed.)
  *  Trace automatically maintains a separate tab level for each thread, but
  *  the other variables, such as PrintStream/Writer, output level, etc.,
- *  are static and apply to all threads.
+ *  are static and apply to all threads.<br><br>
+ *
+ *  Normally each message is written out immediately, and threads take turns
+ *  doing so. When a lot is being logged by many threads, they can instead
+ *  hand their messages off to a single background writer, by calling
+ *  {@link #setAsync(int, boolean)}. Each message is formatted (including
+ *  its indentation) by the thread that logs it, and placed in a fixed-size
+ *  ring buffer without taking any locks. The writer thread takes messages
+ *  out in batches, writing and flushing each batch together.
  */
 public class Trace 
 {
@@ -182,6 +194,58 @@ public class Trace
 
   //////////////////////////////////////////////////////////////////////////////
 
+  /** Switches between writing messages immediately (the default) and handing
+   *  them off to a background thread to write. Messages already handed off
+   *  are written out before switching.
+   *
+   *  @param bufferSize     Max number of messages waiting to be written, or
+   *                        zero to switch back to writing them immediately.
+   *  @param dropWhenFull   What to do when the buffer is full: true to
+   *                        throw away the message (a count of those thrown
+   *                        away is logged later), false to wait for room.
+   */
+  public static void setAsync(int bufferSize, boolean dropWhenFull) 
+  {
+    synchronized (asyncLock) 
+    {
+      // Write out what the old writer has so far. Note that we can't hold
+      // the Trace class lock while waiting, since the writer needs it.
+      //
+      AsyncWriter oldWriter = asyncWriter;
+      if (oldWriter != null)
+        oldWriter.waitForWrites(0);
+
+      // Switch writers.
+      AsyncWriter newWriter = null;
+      if (bufferSize > 0) {
+        newWriter = new AsyncWriter(bufferSize, dropWhenFull);
+        newWriter.start();
+      }
+      synchronized (Trace.class) {
+        asyncWriter = newWriter;
+      }
+
+      // Then finish off the old one, which writes anything added since.
+      if (oldWriter != null)
+        oldWriter.shutdown();
+    }
+  } // setAsync()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** If messages are being written in the background (see
+   *  {@link #setAsync(int, boolean)}), waits until all those logged so far
+   *  have been written and flushed.
+   */
+  public static void flush() 
+  {
+    AsyncWriter w = asyncWriter;
+    if (w != null)
+      w.waitForWrites(0);
+  } // flush()
+
+  //////////////////////////////////////////////////////////////////////////////
+
   /** Indent all subsequent output lines by {@link #defaultTabSize}
    *  (default 2) spaces. Call {@link #untab()} or {@link #clearTabs()} to
    *  undo this effect.
@@ -266,8 +330,12 @@ public class Trace
   /** Retrieve the thread identifier that is printed for messages from the
    *  specified thread.
    */
-  public static String getThreadId(Thread thread) {
-    Trace trace = (Trace)threadTraces.get(thread);
+  public static String getThreadId(Thread thread) 
+  {
+    Trace trace;
+    synchronized (threadTraces) {
+      trace = (Trace)threadTraces.get(thread);
+    }
     if (trace == null)
       return null;
     return trace.threadId;
@@ -455,14 +523,8 @@ public class Trace
   /** Gets a thread-specific instance of Trace. If there wasn't one already,
    *  a new one is created.
    */
-  private static Trace getThreadTrace() 
-  {
-    Trace trace = (Trace)threadTraces.get(Thread.currentThread());
-    if (trace == null) {
-      trace = new Trace();
-      threadTraces.put(Thread.currentThread(), trace);
-    }
-    return trace;
+  private static Trace getThreadTrace() {
+    return (Trace)threadTrace.get();
   } // getThreadTrace()
 
   //////////////////////////////////////////////////////////////////////////////
@@ -496,63 +558,339 @@ public class Trace
 
   /** Workhorse output function -- handles tabbing, prefixing the output with
    *  a thread ID, timestamping, adding newlines, and directing to the proper
-   *  output PrintStream or Writer.
+   *  output PrintStream or Writer. If writing in the background, the message
+   *  is simply handed off, along with the current indentation.
    */
   private void output(String msg, boolean tabbed, boolean linefeed) 
+  {
+    String indent = spaces.substring(0, tabCount);
+    long time = printTimestamps ? System.currentTimeMillis() : 0;
+
+    AsyncWriter w = asyncWriter;
+    if (w != null) {
+      w.add(new Message(this, indent, msg, tabbed, linefeed, time));
+      return;
+    }
+
+    synchronized (getClass()) {
+      write(this, indent, msg, tabbed, linefeed, time);
+    }
+  } // output()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Writes a message to the output PrintStream or Writer. The caller must
+   *  hold the lock on the Trace class.
+   */
+  private static void write(Trace from, String indent, String msg, 
+                            boolean tabbed, boolean linefeed, long time) 
   {
     String outMsg;
 
-    synchronized (getClass()) 
+    // If the previous output was from a different thread, force a newline
+    // and tabbing.
+    //
+    if (prevTrace != from) {
+      tabbed = true;
+      linefeed = true;
+      prevTrace = from;
+    }
+
+    // If the caller wants tabbed output, build a final tabbed message 
+    // string.
+    //
+    if (tabbed)
+      outMsg = indent + msg;
+    else
+      outMsg = msg;
+
+    try 
     {
-      // If the previous output was from a different thread, force a newline
-      // and tabbing.
-      //
-      if (prevTrace != this) {
-        tabbed = true;
-        linefeed = true;
-        prevTrace = this;
+      // Force output to start on the next line.
+      if (linefeed) 
+      {
+        String newLine = autoFlush ? "" : "\n";
+
+        String dateStr = "";
+        if (printTimestamps)
+          dateStr = dateFormat.format(new Date(time)) + " ";
+
+        if (writer != null)
+          writer.write(newLine + dateStr + from.threadId);
+        else
+          printStream.print(newLine + dateStr + from.threadId);
       }
 
-      // If the caller wants tabbed output, build a final tabbed message 
-      // string.
-      //
-      if (tabbed)
-        outMsg = spaces.substring(0, tabCount) + msg;
+      if (writer != null)
+        writer.write(autoFlush ? (outMsg + "\n") : outMsg);
+      else
+        printStream.print(autoFlush ? (outMsg + "\n") : outMsg);
+    }
+    catch (IOException e) {
+    }
+  } // write()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Flushes the output PrintStream or Writer. The caller must hold the
+   *  lock on the Trace class.
+   */
+  private static void flushOutput() 
+  {
+    try {
+      if (writer != null)
+        writer.flush();
       else
-        outMsg = msg;
+        printStream.flush();
+    }
+    catch (IOException e) {
+    }
+  } // flushOutput()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** A message waiting to be written by the {@link AsyncWriter}. */
+  private static class Message 
+  {
+    Trace   from;
+    String  indent;
+    String  msg;
+    boolean tabbed;
+    boolean linefeed;
+    long    time;
+
+    Message(Trace from, String indent, String msg, boolean tabbed, 
+            boolean linefeed, long time) 
+    {
+      this.from = from;
+      this.indent = indent;
+      this.msg = msg;
+      this.tabbed = tabbed;
+      this.linefeed = linefeed;
+      this.time = time;
+    }
+  } // class Message
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Writes messages in the background. Any number of threads can add
+   *  messages, without locking, to a ring buffer; each slot has a sequence
+   *  number that tells whether it's ready to be filled, or to be written.
+   *  The writer thread is the only one that takes messages out.
+   */
+  private static class AsyncWriter extends Thread 
+  {
+    /** Max number of messages to write before flushing */
+    private static final int BATCH_SIZE = 256;
+
+    /** Slots of the ring buffer */
+    private final AtomicReferenceArray<Message> slots;
+
+    /** Sequence number of each slot: equal to the add position when the
+     *  slot is free, or to the add position + 1 when it holds a message.
+     */
+    private final AtomicLongArray sequences;
+
+    /** Size of the ring buffer, minus one (the size is a power of two) */
+    private final int mask;
+
+    /** Where the next message will be added */
+    private final AtomicLong addPos = new AtomicLong();
+
+    /** Where the next message will be taken out (writer thread only) */
+    private long takePos = 0;
+
+    /** Number of messages written and flushed so far */
+    private volatile long nWritten = 0;
+
+    /** Whether to throw away messages when the buffer is full */
+    private final boolean dropWhenFull;
 
-      try 
+    /** Number of messages thrown away since last reported */
+    private final AtomicLong nDropped = new AtomicLong();
+
+    /** Set when the writer is about to wait for messages */
+    private volatile boolean idle = false;
+
+    /** Set to make the writer finish up and exit */
+    private volatile boolean shouldStop = false;
+
+    /** Max time (in milliseconds) to wait for messages to be written when
+     *  the JVM exits, so that a stuck writer can't keep it from exiting.
+     */
+    private static final long EXIT_WAIT = 5000;
+
+    /** Writes waiting messages when the JVM exits */
+    private final Thread shutdownHook = new Thread() {
+      public void run() {
+        waitForWrites(EXIT_WAIT);
+      }
+    };
+
+    AsyncWriter(int bufferSize, boolean dropWhenFull) 
+    {
+      super("TraceWriter");
+      setDaemon(true);
+
+      int size = 1;
+      while (size < bufferSize)
+        size <<= 1;
+      slots = new AtomicReferenceArray<Message>(size);
+      sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++)
+        sequences.set(i, i);
+      mask = size - 1;
+      this.dropWhenFull = dropWhenFull;
+
+      // Make sure waiting messages get written if the JVM exits.
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    } // constructor
+
+    /** Add a message to the buffer, dropping it or waiting if it's full. */
+    void add(Message message) 
+    {
+      while (!offer(message)) 
       {
-        // Force output to start on the next line.
-        if (linefeed) 
+        if (dropWhenFull || shouldStop) {
+          nDropped.incrementAndGet();
+          return;
+        }
+        LockSupport.unpark(this);
+        LockSupport.parkNanos(100000);
+      }
+      if (idle)
+        LockSupport.unpark(this);
+    } // add()
+
+    /** Try to add a message, returning false if the buffer is full. */
+    private boolean offer(Message message) 
+    {
+      while (true) 
+      {
+        long pos = addPos.get();
+        int slot = (int)pos & mask;
+        long diff = sequences.get(slot) - pos;
+        if (diff < 0)
+          return false;
+        if (diff == 0 && addPos.compareAndSet(pos, pos + 1)) {
+          slots.set(slot, message);
+          sequences.set(slot, pos + 1);
+          return true;
+        }
+      }
+    } // offer()
+
+    /** Take the next message out, or return null if there isn't one. */
+    private Message poll() 
+    {
+      int slot = (int)takePos & mask;
+      if (sequences.get(slot) != takePos + 1)
+        return null;
+      Message message = slots.get(slot);
+      slots.set(slot, null);
+      sequences.set(slot, takePos + mask + 1);
+      takePos++;
+      return message;
+    } // poll()
+
+    /** Wait until all messages added so far have been written, or until
+     *  the given number of milliseconds have passed (zero for no limit.)
+     */
+    void waitForWrites(long maxWait) 
+    {
+      long target = addPos.get();
+      long deadline = System.currentTimeMillis() + maxWait;
+      while (nWritten < target && isAlive()) {
+        if (maxWait > 0 && System.currentTimeMillis() >= deadline)
+          break;
+        LockSupport.unpark(this);
+        LockSupport.parkNanos(1000000);
+      }
+    } // waitForWrites()
+
+    /** Write out any remaining messages, then stop. */
+    void shutdown() 
+    {
+      shouldStop = true;
+      LockSupport.unpark(this);
+      try {
+        join();
+      }
+      catch (InterruptedException e) {
+      }
+
+      // We no longer need to do anything at exit.
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      }
+      catch (IllegalStateException e) {
+        // Already exiting; nothing to remove.
+      }
+    } // shutdown()
+
+    /** Write messages in batches as they come in. */
+    public void run() 
+    {
+      while (true) 
+      {
+        Message message = poll();
+        if (message == null) 
         {
-          String newLine = autoFlush ? "" : "\n";
+          if (shouldStop)
+            break;
+
+          // Nothing to do; wait a while (or until someone adds a message.)
+          idle = true;
+          if (sequences.get((int)takePos & mask) != takePos + 1)
+            LockSupport.parkNanos(10000000);
+          idle = false;
+          continue;
+        }
 
-          String dateStr = "";
-          if (printTimestamps) {
-            dateStr = dateFormat.format(new Date(System.currentTimeMillis())) +
-                      " ";
+        // Write out a batch of messages, then flush them all together.
+        synchronized (Trace.class) 
+        {
+          long dropped = nDropped.getAndSet(0);
+          if (dropped > 0) {
+            write(message.from, "", 
+                  "(" + dropped + " log messages dropped; buffer full)", 
+                  true, true, message.time);
           }
 
-          if (writer != null)
-            writer.write(newLine + dateStr + threadId);
-          else
-            printStream.print(newLine + dateStr + threadId);
+          int count = 0;
+          while (true) {
+            write(message.from, message.indent, message.msg, 
+                  message.tabbed, message.linefeed, message.time);
+            if (++count == BATCH_SIZE || (message = poll()) == null)
+              break;
+          }
+          flushOutput();
+          nWritten = takePos;
         }
-
-        if (writer != null)
-          writer.write(autoFlush ? (outMsg + "\n") : outMsg);
-        else
-          printStream.print(autoFlush ? (outMsg + "\n") : outMsg);
-      }
-      catch (IOException e) {
       }
-    } // synchronized
-  } // output()
+    } // run()
+  } // class AsyncWriter
 
-  /** Trace instance for the current thread */
+  /** Trace instance for each thread, used to look up their IDs */
   private static final WeakHashMap threadTraces = new WeakHashMap();
 
+  /** Trace instance for the current thread */
+  private static final ThreadLocal threadTrace = new ThreadLocal() {
+    protected Object initialValue() {
+      Trace trace = new Trace();
+      synchronized (threadTraces) {
+        threadTraces.put(Thread.currentThread(), trace);
+      }
+      return trace;
+    }
+  };
+
+  /** Background writer, or null to write messages immediately */
+  private static volatile AsyncWriter asyncWriter = null;
+
+  /** Serializes calls to {@link #setAsync(int, boolean)} */
+  private static final Object asyncLock = new Object();
+
   /** Trace instance that last wrote to the output stream */
   private static Trace prevTrace = null;
 